@@ -0,0 +1,157 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
+import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
+
+// measures latency of UI-style range queries against the embedded H2 database while aggregates are
+// continuously being inserted by a background thread
+//
+// compare against the single connection behavior by running with
+// -jvmArgsAppend -Dglowroot.internal.h2.readerConnections=0
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class DataSourceBenchmark {
+
+    private static final int INITIAL_ROWS = 100000;
+    private static final int INSERT_BATCH_SIZE = 100;
+
+    private File dbFile;
+    private DataSource dataSource;
+    private Thread ingestionThread;
+    private volatile boolean closed;
+    private volatile long nextCaptureTime;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dbFile = File.createTempFile("glowroot-benchmark", ".h2.db");
+        if (!dbFile.delete()) {
+            throw new IllegalStateException("Could not delete file: " + dbFile);
+        }
+        dataSource = new DataSource(dbFile);
+        dataSource.execute("create table aggregate (transaction_type varchar, capture_time"
+                + " bigint, total_duration_nanos double, transaction_count bigint)");
+        dataSource.execute("create index aggregate_idx on aggregate (transaction_type,"
+                + " capture_time)");
+        closed = false;
+        nextCaptureTime = 0;
+        while (nextCaptureTime < INITIAL_ROWS) {
+            insertBatch();
+        }
+        ingestionThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        insertBatch();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+        });
+        ingestionThread.setDaemon(true);
+        ingestionThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        closed = true;
+        ingestionThread.join();
+        dataSource.close();
+        if (!dbFile.delete()) {
+            throw new IllegalStateException("Could not delete file: " + dbFile);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public List<Double> query1Thread() throws SQLException {
+        return query();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<Double> query4Threads() throws SQLException {
+        return query();
+    }
+
+    private List<Double> query() throws SQLException {
+        // wide time range, similar to opening the transactions page over a long period
+        final long to = nextCaptureTime;
+        final long from = to - INITIAL_ROWS / 2;
+        return dataSource.query(new JdbcRowQuery<Double>() {
+            @Override
+            public String getSql() {
+                return "select total_duration_nanos from aggregate where transaction_type = ?"
+                        + " and capture_time > ? and capture_time <= ?";
+            }
+            @Override
+            public void bind(PreparedStatement preparedStatement) throws SQLException {
+                preparedStatement.setString(1, "Web");
+                preparedStatement.setLong(2, from);
+                preparedStatement.setLong(3, to);
+            }
+            @Override
+            public Double mapRow(ResultSet resultSet) throws SQLException {
+                return resultSet.getDouble(1);
+            }
+        });
+    }
+
+    private void insertBatch() throws Exception {
+        final long captureTime = nextCaptureTime;
+        dataSource.batchUpdate(new JdbcUpdate() {
+            @Override
+            public String getSql() {
+                return "insert into aggregate (transaction_type, capture_time,"
+                        + " total_duration_nanos, transaction_count) values (?, ?, ?, ?)";
+            }
+            @Override
+            public void bind(PreparedStatement preparedStatement) throws SQLException {
+                for (int i = 0; i < INSERT_BATCH_SIZE; i++) {
+                    preparedStatement.setString(1, "Web");
+                    preparedStatement.setLong(2, captureTime + i);
+                    preparedStatement.setDouble(3, 1000000.0 * i);
+                    preparedStatement.setLong(4, 1);
+                    preparedStatement.addBatch();
+                }
+            }
+        });
+        nextCaptureTime = captureTime + INSERT_BATCH_SIZE;
+    }
+}
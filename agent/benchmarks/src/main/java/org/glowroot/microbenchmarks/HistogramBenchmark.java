@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// allocation per operation is reported by running with -prof gc
+//
+// mergeDecodeAndAdd is the prior merge behavior (decode into a new histogram, then add), for
+// comparison with merge
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class HistogramBenchmark {
+
+    // value counts larger than 1024 are encoded as histograms (instead of raw values)
+    @Param({"10000", "1000000"})
+    private int valueCount;
+
+    private LazyHistogram lazyHistogram;
+    private Aggregate.Histogram histogram;
+    private ScratchBuffer scratchBuffer;
+    private LazyHistogram mergedHistogram;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        lazyHistogram = new LazyHistogram();
+        for (int i = 0; i < valueCount; i++) {
+            lazyHistogram.add((long) (Math.abs(random.nextGaussian()) * 100000000));
+        }
+        scratchBuffer = new ScratchBuffer();
+        histogram = lazyHistogram.toProto(scratchBuffer);
+        mergedHistogram = new LazyHistogram();
+    }
+
+    @Benchmark
+    public Aggregate.Histogram encode() {
+        return lazyHistogram.toProto(scratchBuffer);
+    }
+
+    @Benchmark
+    public long merge() {
+        mergedHistogram.reset();
+        mergedHistogram.merge(histogram);
+        return mergedHistogram.getValueAtPercentile(99);
+    }
+
+    @Benchmark
+    public long mergeDecodeAndAdd() {
+        Histogram decodedHistogram = new Histogram(1000, 2000, 5);
+        decodedHistogram.setAutoResize(true);
+        decodedHistogram.add(Histogram
+                .decodeFromByteBuffer(histogram.getEncodedBytes().asReadOnlyByteBuffer(), 0));
+        return decodedHistogram.getValueAtPercentile(99);
+    }
+
+    @Benchmark
+    public long percentile() {
+        return lazyHistogram.getValueAtPercentile(99);
+    }
+}
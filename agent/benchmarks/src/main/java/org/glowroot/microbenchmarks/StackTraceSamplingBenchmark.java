@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// measures the per-sample pause of the ThreadMXBean calls made by the different stack trace
+// sampler modes (see glowroot.profiling.sampler), against threads parked at a realistic depth
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class StackTraceSamplingBenchmark {
+
+    private static final int STACK_DEPTH = 100;
+    private static final int BOUNDED_STACK_DEPTH = 32;
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"100", "1000", "5000"})
+    private int threadCount;
+
+    private ThreadMXBean threadBean;
+    private Thread[] threads;
+    private long[] threadIds;
+    private long[] batchThreadIds;
+    private volatile boolean closed;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        threadBean = ManagementFactory.getThreadMXBean();
+        closed = false;
+        threads = new Thread[threadCount];
+        threadIds = new long[threadCount];
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    recurse(STACK_DEPTH, latch);
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            threads[i] = thread;
+            threadIds[i] = thread.getId();
+        }
+        latch.await();
+        batchThreadIds = new long[Math.min(BATCH_SIZE, threadCount)];
+        System.arraycopy(threadIds, 0, batchThreadIds, 0, batchThreadIds.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        closed = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    @Benchmark
+    public ThreadInfo[] fullDepth() {
+        return threadBean.getThreadInfo(threadIds, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public ThreadInfo[] boundedDepth() {
+        return threadBean.getThreadInfo(threadIds, BOUNDED_STACK_DEPTH);
+    }
+
+    // the batched sampler pauses once per batch, so the per-sample pause is that of one batch
+    @Benchmark
+    public ThreadInfo[] singleBatch() {
+        return threadBean.getThreadInfo(batchThreadIds, BOUNDED_STACK_DEPTH);
+    }
+
+    private void recurse(int depth, CountDownLatch latch) {
+        if (depth > 0) {
+            recurse(depth - 1, latch);
+            return;
+        }
+        latch.countDown();
+        while (!closed) {
+            try {
+                Thread.sleep(Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                // check closed
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// like WeavingBenchmark, but loads a large classpath of synthetic classes (that no pointcut
+// matches) into a new class loader on each invocation, and reports the time per class (which is
+// dominated by the weaving transform since the synthetic classes are small)
+//
+// compare against running without the weaving pre-filter by running with
+// -jvmArgsAppend -Dglowroot.internal.disableWeavingPreFilter=true
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SyntheticWeavingBenchmark {
+
+    private static final int CLASS_COUNT = 10000;
+    private static final int METHOD_COUNT = 10;
+
+    private static final String PACKAGE_NAME = "com/example/synthetic/";
+    private static final String BASE_CLASS_NAME = PACKAGE_NAME + "SyntheticBase";
+
+    private Map<String, byte[]> classBytes;
+    private List<String> classNames;
+
+    @Setup
+    public void setup() throws IOException {
+        classBytes = new HashMap<String, byte[]>();
+        classNames = new ArrayList<String>();
+        classBytes.put(BASE_CLASS_NAME.replace('/', '.'),
+                generateClass(BASE_CLASS_NAME, "java/lang/Object"));
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            String className = PACKAGE_NAME + "Synthetic" + i;
+            // half of the synthetic classes have a (synthetic) super class to resolve
+            String superClassName = i % 2 == 0 ? "java/lang/Object" : BASE_CLASS_NAME;
+            classBytes.put(className.replace('/', '.'), generateClass(className, superClassName));
+            classNames.add(className.replace('/', '.'));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_COUNT)
+    public void execute() throws ClassNotFoundException {
+        ClassLoader loader = new SyntheticClassLoader(classBytes);
+        for (String className : classNames) {
+            loader.loadClass(className);
+        }
+    }
+
+    // generates an abstract class with abstract methods, so that no code attributes are needed
+    private static byte[] generateClass(String internalName, String superInternalName)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0); // minor version
+        out.writeShort(50); // major version (java 6)
+        // constant pool
+        out.writeShort(6 + METHOD_COUNT);
+        writeUtf8(out, internalName); // #1
+        writeClass(out, 1); // #2
+        writeUtf8(out, superInternalName); // #3
+        writeClass(out, 3); // #4
+        writeUtf8(out, "(Ljava/lang/String;)V"); // #5
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            writeUtf8(out, "method" + i); // #6..
+        }
+        out.writeShort(0x0421); // ACC_PUBLIC | ACC_SUPER | ACC_ABSTRACT
+        out.writeShort(2); // this class
+        out.writeShort(4); // super class
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(METHOD_COUNT);
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            out.writeShort(0x0401); // ACC_PUBLIC | ACC_ABSTRACT
+            out.writeShort(6 + i); // name
+            out.writeShort(5); // descriptor
+            out.writeShort(0); // attributes
+        }
+        out.writeShort(0); // attributes
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private static void writeUtf8(DataOutputStream out, String value) throws IOException {
+        out.writeByte(1);
+        out.writeUTF(value);
+    }
+
+    private static void writeClass(DataOutputStream out, int nameIndex) throws IOException {
+        out.writeByte(7);
+        out.writeShort(nameIndex);
+    }
+
+    private static class SyntheticClassLoader extends ClassLoader {
+
+        private final Map<String, byte[]> classBytes;
+
+        private SyntheticClassLoader(Map<String, byte[]> classBytes) {
+            super(SyntheticWeavingBenchmark.class.getClassLoader());
+            this.classBytes = classBytes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classBytes.get(name);
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
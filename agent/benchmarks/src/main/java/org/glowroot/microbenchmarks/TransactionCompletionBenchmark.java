@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// measures the cost of starting and ending a transaction under contention, which is dominated at
+// higher thread counts by the hand-off of completed transactions to the aggregation thread
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TransactionCompletionBenchmark {
+
+    @Param
+    private PointcutType pointcutType;
+
+    private TransactionWorthy transactionWorthy;
+
+    @Setup
+    public void setup() {
+        transactionWorthy = new TransactionWorthy();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void execute1Thread() throws Exception {
+        execute();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void execute8Threads() throws Exception {
+        execute();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void execute64Threads() throws Exception {
+        execute();
+    }
+
+    private void execute() throws Exception {
+        switch (pointcutType) {
+            case API:
+                transactionWorthy.doSomethingTransactionWorthy();
+                break;
+            case CONFIG:
+                transactionWorthy.doSomethingTransactionWorthy2();
+                break;
+        }
+    }
+}
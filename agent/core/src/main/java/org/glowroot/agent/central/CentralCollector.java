@@ -17,11 +17,14 @@ package org.glowroot.agent.central;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -29,6 +32,8 @@ import java.util.regex.Pattern;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closer;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.protobuf.MessageLite;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -36,11 +41,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.CentralSpool.SpoolRecord;
+import org.glowroot.agent.central.CentralSpool.SpoolSegment;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.PropertiesFiles;
 import org.glowroot.common.util.Version;
@@ -73,6 +81,7 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class CentralCollector implements Collector {
 
@@ -102,14 +111,21 @@ public class CentralCollector implements Collector {
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
+    // data that could not be sent to the central collector is spooled to disk (if enabled) and
+    // replayed after the connection is re-established
+    private final @Nullable CentralSpool spool;
+    private final @Nullable ExecutorService spoolReplayExecutor;
+
     private volatile @MonotonicNonNull Environment environment;
     private volatile int nextAggregateDelayMillis;
 
+    private volatile boolean closed;
+
     public CentralCollector(Map<String, String> properties, String collectorAddress,
-            @Nullable String collectorAuthority, List<File> confDirs, boolean configReadOnly,
-            LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
-            LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater,
-            ConfigService configService) throws Exception {
+            @Nullable String collectorAuthority, List<File> confDirs, File tmpDir,
+            boolean configReadOnly, LiveJvmServiceImpl liveJvmService,
+            LiveWeavingServiceImpl liveWeavingService, LiveTraceRepositoryImpl liveTraceRepository,
+            AgentConfigUpdater agentConfigUpdater, ConfigService configService) throws Exception {
 
         String agentId = properties.get("glowroot.agent.id");
         if (agentId == null) {
@@ -139,6 +155,23 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, configReadOnly, liveJvmService, liveWeavingService,
                 liveTraceRepository, agentId, inConnectionFailure, sharedQueryTextLimiter);
+
+        long spoolMaxSizeMb = getLongProperty(properties, "glowroot.collector.spool.maxSizeMb", 0);
+        if (spoolMaxSizeMb > 0) {
+            File spoolDir = new File(tmpDir, "central-spool");
+            spool = new CentralSpool(spoolDir, spoolMaxSizeMb * 1024 * 1024);
+            double replayRatePerSecond = getLongProperty(properties,
+                    "glowroot.collector.spool.replayRatePerSecond", 10);
+            spoolReplayExecutor = Executors.newSingleThreadExecutor(
+                    ThreadFactories.create("Glowroot-Central-Spool-Replay"));
+            spoolReplayExecutor
+                    .execute(new SpoolReplayLoop(spool, Math.max(replayRatePerSecond, 1)));
+            startupLogger.info("spooling data to {} while the central collector is unavailable",
+                    spoolDir.getAbsolutePath());
+        } else {
+            spool = null;
+            spoolReplayExecutor = null;
+        }
     }
 
     @Override
@@ -202,8 +235,14 @@ public class CentralCollector implements Collector {
         if (!SKIP_DELAY) {
             MILLISECONDS.sleep(nextAggregateDelayMillis);
         }
-        centralConnection
-                .blockingCallWithAFewRetries(new CollectAggregatesGrpcCall(aggregateReader));
+        CollectAggregatesGrpcCall grpcCall = new CollectAggregatesGrpcCall(aggregateReader);
+        if (!centralConnection.blockingCallWithAFewRetries(grpcCall) && spool != null) {
+            CollectingStreamObserver<AggregateStreamMessage> requestObserver =
+                    new CollectingStreamObserver<AggregateStreamMessage>();
+            grpcCall.writeMessages(requestObserver);
+            spool(CentralSpool.RECORD_TYPE_AGGREGATES, aggregateReader.captureTime(),
+                    requestObserver);
+        }
     }
 
     @Override
@@ -213,29 +252,15 @@ public class CentralCollector implements Collector {
                 .addAllGaugeValue(gaugeValues)
                 .setPostV09(true)
                 .build();
-        centralConnection.blockingCallWithAFewRetries(new GrpcCall<GaugeValueResponseMessage>() {
-            @Override
-            public void call(StreamObserver<GaugeValueResponseMessage> responseObserver) {
-                collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
-            }
-            @Override
-            public void doWithResponse(GaugeValueResponseMessage response) {
-                if (response.getResendInit() && environment != null) {
-                    final InitMessage initMessage = InitMessage.newBuilder()
-                            .setAgentId(agentId)
-                            .setEnvironment(environment)
-                            .setAgentConfig(configService.getAgentConfig())
-                            .build();
-                    // only once, since resendInit will continue to be sent back until it succeeds
-                    centralConnection.asyncCallOnce(new GrpcCall<InitResponse>() {
-                        @Override
-                        void call(StreamObserver<InitResponse> responseObserver) {
-                            collectorServiceStub.collectInit(initMessage, responseObserver);
-                        }
-                    });
-                }
-            }
-        });
+        if (!centralConnection
+                .blockingCallWithAFewRetries(new CollectGaugeValuesGrpcCall(gaugeValueMessage))
+                && spool != null && !gaugeValues.isEmpty()) {
+            CollectingStreamObserver<GaugeValueMessage> requestObserver =
+                    new CollectingStreamObserver<GaugeValueMessage>();
+            requestObserver.onNext(gaugeValueMessage);
+            spool(CentralSpool.RECORD_TYPE_GAUGE_VALUES, gaugeValues.get(0).getCaptureTime(),
+                    requestObserver);
+        }
     }
 
     @Override
@@ -245,7 +270,14 @@ public class CentralCollector implements Collector {
             // reader will not be idempotent, so could lead to confusing results
             centralConnection.blockingCallOnce(new CollectTraceGrpcCall(traceReader));
         } else {
-            centralConnection.blockingCallWithAFewRetries(new CollectTraceGrpcCall(traceReader));
+            CollectTraceGrpcCall grpcCall = new CollectTraceGrpcCall(traceReader);
+            if (!centralConnection.blockingCallWithAFewRetries(grpcCall) && spool != null) {
+                CollectingStreamObserver<TraceStreamMessage> requestObserver =
+                        new CollectingStreamObserver<TraceStreamMessage>();
+                grpcCall.writeMessages(requestObserver);
+                spool(CentralSpool.RECORD_TYPE_TRACE, traceReader.captureTime(),
+                        requestObserver);
+            }
         }
     }
 
@@ -273,15 +305,54 @@ public class CentralCollector implements Collector {
 
     @OnlyUsedByTests
     public void close() throws InterruptedException {
+        closed = true;
+        if (spoolReplayExecutor != null) {
+            // shutdownNow() is needed here to send interrupt to spool replay thread
+            spoolReplayExecutor.shutdownNow();
+        }
         downstreamServiceObserver.close();
         centralConnection.close();
     }
 
     @OnlyUsedByTests
-    public void awaitClose() throws InterruptedException {
+    public void awaitClose() throws Exception {
+        if (spoolReplayExecutor != null
+                && !spoolReplayExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        if (spool != null) {
+            spool.close();
+        }
         centralConnection.awaitClose();
     }
 
+    private void spool(int recordType, long captureTime,
+            CollectingStreamObserver<? extends MessageLite> requestObserver) {
+        if (spool == null || requestObserver.error) {
+            return;
+        }
+        try {
+            spool.append(recordType, captureTime, requestObserver.messages);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private static long getLongProperty(Map<String, String> properties, String name,
+            long defaultValue) {
+        String value = properties.get(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            logger.debug(e.getMessage(), e);
+            startupLogger.warn("invalid value for property {}: {}", name, value);
+            return defaultValue;
+        }
+    }
+
     @VisibleForTesting
     static String escapeHostname(String hostname) {
         hostname = hostname.replace("\\", "\\\\");
@@ -391,8 +462,10 @@ public class CentralCollector implements Collector {
 
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
-            final StreamObserver<AggregateStreamMessage> requestObserver =
-                    collectorServiceStub.collectAggregateStream(responseObserver);
+            writeMessages(collectorServiceStub.collectAggregateStream(responseObserver));
+        }
+
+        private void writeMessages(StreamObserver<AggregateStreamMessage> requestObserver) {
             requestObserver.onNext(AggregateStreamMessage.newBuilder()
                     .setStreamHeader(AggregateStreamHeader.newBuilder()
                             .setAgentId(agentId)
@@ -465,6 +538,38 @@ public class CentralCollector implements Collector {
         }
     }
 
+    private class CollectGaugeValuesGrpcCall extends GrpcCall<GaugeValueResponseMessage> {
+
+        private final GaugeValueMessage gaugeValueMessage;
+
+        private CollectGaugeValuesGrpcCall(GaugeValueMessage gaugeValueMessage) {
+            this.gaugeValueMessage = gaugeValueMessage;
+        }
+
+        @Override
+        public void call(StreamObserver<GaugeValueResponseMessage> responseObserver) {
+            collectorServiceStub.collectGaugeValues(gaugeValueMessage, responseObserver);
+        }
+
+        @Override
+        public void doWithResponse(GaugeValueResponseMessage response) {
+            if (response.getResendInit() && environment != null) {
+                final InitMessage initMessage = InitMessage.newBuilder()
+                        .setAgentId(agentId)
+                        .setEnvironment(environment)
+                        .setAgentConfig(configService.getAgentConfig())
+                        .build();
+                // only once, since resendInit will continue to be sent back until it succeeds
+                centralConnection.asyncCallOnce(new GrpcCall<InitResponse>() {
+                    @Override
+                    void call(StreamObserver<InitResponse> responseObserver) {
+                        collectorServiceStub.collectInit(initMessage, responseObserver);
+                    }
+                });
+            }
+        }
+    }
+
     private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage> {
 
         private final TraceReader traceReader;
@@ -477,8 +582,10 @@ public class CentralCollector implements Collector {
 
         @Override
         public void call(StreamObserver<EmptyMessage> responseObserver) {
-            StreamObserver<TraceStreamMessage> requestObserver =
-                    collectorServiceStub.collectTraceStream(responseObserver);
+            writeMessages(collectorServiceStub.collectTraceStream(responseObserver));
+        }
+
+        private void writeMessages(StreamObserver<TraceStreamMessage> requestObserver) {
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamHeader(TraceStreamHeader.newBuilder()
                             .setAgentId(agentId)
@@ -575,4 +682,151 @@ public class CentralCollector implements Collector {
                     .build());
         }
     }
+
+    // replays spooled messages as-is, so shared query text sha1 references that were resolved
+    // when the messages were originally built are not re-tracked by sharedQueryTextLimiter
+    private class SpoolReplayLoop implements Runnable {
+
+        private final CentralSpool spool;
+        private final RateLimiter rateLimiter;
+
+        private SpoolReplayLoop(CentralSpool spool, double replayRatePerSecond) {
+            this.spool = spool;
+            rateLimiter = RateLimiter.create(replayRatePerSecond);
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    if (spool.isEmpty() || centralConnection.isInConnectionFailure()) {
+                        SECONDS.sleep(1);
+                        continue;
+                    }
+                    SpoolSegment segment = spool.readOldestSegment();
+                    if (segment == null) {
+                        continue;
+                    }
+                    if (replay(segment)) {
+                        spool.remove(segment);
+                    } else {
+                        // back off before re-trying, replay is idempotent so ok to re-send the
+                        // part of the segment that was already replayed
+                        SECONDS.sleep(30);
+                    }
+                } catch (InterruptedException e) {
+                    // probably shutdown requested (see close method above)
+                    logger.debug(e.getMessage(), e);
+                    return;
+                } catch (Throwable t) {
+                    // log and continue processing
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }
+
+        private boolean replay(SpoolSegment segment) throws Exception {
+            List<SpoolRecord> records = segment.records();
+            for (int i = 0; i < records.size(); i++) {
+                if (spool.isDropped(segment, i)) {
+                    continue;
+                }
+                rateLimiter.acquire();
+                if (replay(records.get(i))) {
+                    continue;
+                }
+                if (centralConnection.isInConnectionFailure()) {
+                    // central is unavailable, which says nothing about this particular record
+                    return false;
+                }
+                if (!spool.replayFailed(segment, i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean replay(SpoolRecord record) throws InterruptedException {
+            GrpcCall<?> grpcCall;
+            try {
+                grpcCall = createGrpcCall(record);
+            } catch (Exception e) {
+                // malformed record
+                logger.debug(e.getMessage(), e);
+                return false;
+            }
+            return centralConnection.blockingCallWithAFewRetries(grpcCall);
+        }
+
+        private GrpcCall<?> createGrpcCall(SpoolRecord record) throws IOException {
+            InputStream payload = record.payload();
+            switch (record.recordType()) {
+                case CentralSpool.RECORD_TYPE_AGGREGATES:
+                    final List<AggregateStreamMessage> aggregateMessages = Lists.newArrayList();
+                    AggregateStreamMessage aggregateMessage;
+                    while ((aggregateMessage =
+                            AggregateStreamMessage.parseDelimitedFrom(payload)) != null) {
+                        aggregateMessages.add(aggregateMessage);
+                    }
+                    return new GrpcCall<AggregateResponseMessage>() {
+                        @Override
+                        void call(StreamObserver<AggregateResponseMessage> responseObserver) {
+                            StreamObserver<AggregateStreamMessage> requestObserver =
+                                    collectorServiceStub.collectAggregateStream(responseObserver);
+                            for (AggregateStreamMessage message : aggregateMessages) {
+                                requestObserver.onNext(message);
+                            }
+                            requestObserver.onCompleted();
+                        }
+                    };
+                case CentralSpool.RECORD_TYPE_TRACE:
+                    final List<TraceStreamMessage> traceMessages = Lists.newArrayList();
+                    TraceStreamMessage traceMessage;
+                    while ((traceMessage =
+                            TraceStreamMessage.parseDelimitedFrom(payload)) != null) {
+                        traceMessages.add(traceMessage);
+                    }
+                    return new GrpcCall<EmptyMessage>() {
+                        @Override
+                        void call(StreamObserver<EmptyMessage> responseObserver) {
+                            StreamObserver<TraceStreamMessage> requestObserver =
+                                    collectorServiceStub.collectTraceStream(responseObserver);
+                            for (TraceStreamMessage message : traceMessages) {
+                                requestObserver.onNext(message);
+                            }
+                            requestObserver.onCompleted();
+                        }
+                    };
+                case CentralSpool.RECORD_TYPE_GAUGE_VALUES:
+                    GaugeValueMessage gaugeValueMessage =
+                            GaugeValueMessage.parseDelimitedFrom(payload);
+                    if (gaugeValueMessage == null) {
+                        throw new IOException("Spooled gauge value message is empty");
+                    }
+                    return new CollectGaugeValuesGrpcCall(gaugeValueMessage);
+                default:
+                    throw new IOException("Unexpected spool record type: " + record.recordType());
+            }
+        }
+    }
+
+    private static class CollectingStreamObserver<T extends MessageLite>
+            implements StreamObserver<T> {
+
+        private final List<T> messages = Lists.newArrayList();
+        private boolean error;
+
+        @Override
+        public void onNext(T value) {
+            messages.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = true;
+        }
+
+        @Override
+        public void onCompleted() {}
+    }
 }
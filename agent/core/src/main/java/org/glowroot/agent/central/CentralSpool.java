@@ -0,0 +1,380 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.MessageLite;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+// append-only, size-capped spool of messages that could not be sent to the central collector
+//
+// the spool is made up of segment files, each holding a sequence of records, and the oldest
+// segments are dropped once the total size exceeds the cap
+//
+// record format: [int record type][long capture time][int payload length][payload], where the
+// payload is the concatenation of length-delimited protobuf messages
+class CentralSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(CentralSpool.class);
+
+    static final int RECORD_TYPE_AGGREGATES = 1;
+    static final int RECORD_TYPE_TRACE = 2;
+    static final int RECORD_TYPE_GAUGE_VALUES = 3;
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    private static final int RECORD_HEADER_BYTES = 16;
+
+    // a record that is rejected this many times in a row (while central is otherwise reachable) is
+    // dropped, so that it does not block replay of everything behind it
+    private static final int MAX_REPLAY_ATTEMPTS =
+            Integer.getInteger("glowroot.internal.collector.spool.maxReplayAttempts", 10);
+
+    private final File dir;
+    private final long maxSizeBytes;
+    private final long maxSegmentSizeBytes;
+
+    private final Object lock = new Object();
+
+    // closed segments, oldest first
+    @GuardedBy("lock")
+    private final Deque<File> segments = Queues.newArrayDeque();
+    @GuardedBy("lock")
+    private @Nullable File currentSegment;
+    @GuardedBy("lock")
+    private @Nullable DataOutputStream currentOut;
+    @GuardedBy("lock")
+    private long currentSegmentSize;
+    @GuardedBy("lock")
+    private long totalSize;
+    @GuardedBy("lock")
+    private long nextSegmentNumber;
+
+    // replay failures are tracked by record index within the oldest segment, which is stable since
+    // segments are only appended to while they are the current segment
+    @GuardedBy("lock")
+    private @Nullable File replayFailureSegment;
+    @GuardedBy("lock")
+    private final Map<Integer, Integer> replayFailureCounts = Maps.newHashMap();
+
+    private final RateLimitedLogger droppingLogger = new RateLimitedLogger(CentralSpool.class);
+
+    CentralSpool(File dir, long maxSizeBytes) throws IOException {
+        this.dir = dir;
+        this.maxSizeBytes = maxSizeBytes;
+        // keep segments small relative to the cap, so that dropping the oldest segment when the
+        // cap is reached does not drop too much at once
+        maxSegmentSizeBytes = Math.max(maxSizeBytes / 16, 64 * 1024);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        // pick up segments left over from prior JVM
+        List<File> existingSegments = Lists.newArrayList();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (getSegmentNumber(file) != -1) {
+                    existingSegments.add(file);
+                }
+            }
+        }
+        Collections.sort(existingSegments, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                return Longs.compare(getSegmentNumber(left), getSegmentNumber(right));
+            }
+        });
+        synchronized (lock) {
+            for (File segment : existingSegments) {
+                segments.add(segment);
+                totalSize += segment.length();
+                nextSegmentNumber = getSegmentNumber(segment) + 1;
+            }
+        }
+    }
+
+    void append(int recordType, long captureTime, List<? extends MessageLite> messages)
+            throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (MessageLite message : messages) {
+            message.writeDelimitedTo(payload);
+        }
+        synchronized (lock) {
+            if (currentOut == null || currentSegmentSize >= maxSegmentSizeBytes) {
+                rollCurrentSegment();
+            }
+            // checker framework doesn't know that rollCurrentSegment() sets currentOut
+            DataOutputStream out = currentOut;
+            if (out == null) {
+                throw new IllegalStateException("Current segment not opened");
+            }
+            out.writeInt(recordType);
+            out.writeLong(captureTime);
+            out.writeInt(payload.size());
+            payload.writeTo(out);
+            // flush so that spooled data survives JVM termination
+            out.flush();
+            long recordSize = RECORD_HEADER_BYTES + payload.size();
+            currentSegmentSize += recordSize;
+            totalSize += recordSize;
+            enforceMaxSize();
+        }
+    }
+
+    boolean isEmpty() {
+        synchronized (lock) {
+            return segments.isEmpty() && currentSegmentSize == 0;
+        }
+    }
+
+    // returns records from the oldest segment, ordered by capture time
+    @Nullable
+    SpoolSegment readOldestSegment() throws IOException {
+        File segment;
+        synchronized (lock) {
+            if (segments.isEmpty() && currentSegmentSize > 0) {
+                closeCurrentSegment();
+            }
+            segment = segments.peekFirst();
+        }
+        if (segment == null) {
+            return null;
+        }
+        List<SpoolRecord> records = readRecords(segment);
+        // stable sort, so records with the same capture time stay in append order
+        Collections.sort(records, new Comparator<SpoolRecord>() {
+            @Override
+            public int compare(SpoolRecord left, SpoolRecord right) {
+                return Longs.compare(left.captureTime(), right.captureTime());
+            }
+        });
+        return new SpoolSegment(segment, records);
+    }
+
+    // returns true if the record has been dropped after too many failed replay attempts
+    boolean isDropped(SpoolSegment segment, int recordIndex) {
+        synchronized (lock) {
+            if (!segment.file.equals(replayFailureSegment)) {
+                return false;
+            }
+            Integer failureCount = replayFailureCounts.get(recordIndex);
+            return failureCount != null && failureCount >= MAX_REPLAY_ATTEMPTS;
+        }
+    }
+
+    // returns true if the record is dropped as a result of this failure
+    boolean replayFailed(SpoolSegment segment, int recordIndex) {
+        synchronized (lock) {
+            if (!segment.file.equals(replayFailureSegment)) {
+                replayFailureSegment = segment.file;
+                replayFailureCounts.clear();
+            }
+            Integer failureCount = replayFailureCounts.get(recordIndex);
+            failureCount = failureCount == null ? 1 : failureCount + 1;
+            replayFailureCounts.put(recordIndex, failureCount);
+            if (failureCount < MAX_REPLAY_ATTEMPTS) {
+                return false;
+            }
+        }
+        SpoolRecord record = segment.records.get(recordIndex);
+        logger.warn("dropping spooled record (type {}, capture time {}) after {} failed replay"
+                + " attempts", record.recordType, record.captureTime, MAX_REPLAY_ATTEMPTS);
+        return true;
+    }
+
+    void remove(SpoolSegment segment) {
+        synchronized (lock) {
+            File file = segment.file;
+            // segment may have already been dropped due to max size
+            if (file.equals(replayFailureSegment)) {
+                replayFailureSegment = null;
+                replayFailureCounts.clear();
+            }
+            if (segments.remove(file)) {
+                totalSize -= file.length();
+                deleteSegment(file);
+            }
+        }
+    }
+
+    @OnlyUsedByTests
+    void close() throws IOException {
+        synchronized (lock) {
+            if (currentOut != null) {
+                currentOut.close();
+                currentOut = null;
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private void rollCurrentSegment() throws IOException {
+        closeCurrentSegment();
+        File segment = new File(dir, nextSegmentNumber++ + SEGMENT_SUFFIX);
+        currentOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(segment, true)));
+        currentSegment = segment;
+        currentSegmentSize = 0;
+    }
+
+    @GuardedBy("lock")
+    private void closeCurrentSegment() throws IOException {
+        if (currentOut == null) {
+            return;
+        }
+        currentOut.close();
+        currentOut = null;
+        if (currentSegment != null) {
+            segments.addLast(currentSegment);
+            currentSegment = null;
+        }
+        currentSegmentSize = 0;
+    }
+
+    @GuardedBy("lock")
+    private void enforceMaxSize() throws IOException {
+        while (totalSize > maxSizeBytes) {
+            File oldest = segments.pollFirst();
+            if (oldest == null) {
+                // only the current segment remains, so start a new one and drop it
+                closeCurrentSegment();
+                oldest = segments.pollFirst();
+                if (oldest == null) {
+                    return;
+                }
+            }
+            totalSize -= oldest.length();
+            deleteSegment(oldest);
+            droppingLogger.warn("dropping oldest data spooled for the central collector since the"
+                    + " spool has reached its maximum size of {} bytes", maxSizeBytes);
+        }
+    }
+
+    private static List<SpoolRecord> readRecords(File segment) throws IOException {
+        List<SpoolRecord> records = Lists.newArrayList();
+        DataInputStream in = new DataInputStream(new FileInputStream(segment));
+        try {
+            while (true) {
+                int recordType;
+                try {
+                    recordType = in.readInt();
+                } catch (EOFException e) {
+                    // end of segment
+                    break;
+                }
+                try {
+                    long captureTime = in.readLong();
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    records.add(new SpoolRecord(recordType, captureTime, payload));
+                } catch (EOFException e) {
+                    // record was only partially written, e.g. JVM terminated in the middle of
+                    // appending it
+                    logger.debug(e.getMessage(), e);
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    private static void deleteSegment(File segment) {
+        if (!segment.delete() && segment.exists()) {
+            logger.warn("could not delete spool file: {}", segment.getAbsolutePath());
+        }
+    }
+
+    private static long getSegmentNumber(File file) {
+        String name = file.getName();
+        if (!name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            logger.debug(e.getMessage(), e);
+            return -1;
+        }
+    }
+
+    static class SpoolSegment {
+
+        private final File file;
+        private final List<SpoolRecord> records;
+
+        private SpoolSegment(File file, List<SpoolRecord> records) {
+            this.file = file;
+            this.records = records;
+        }
+
+        List<SpoolRecord> records() {
+            return records;
+        }
+    }
+
+    static class SpoolRecord {
+
+        private final int recordType;
+        private final long captureTime;
+        private final byte[] payload;
+
+        private SpoolRecord(int recordType, long captureTime, byte[] payload) {
+            this.recordType = recordType;
+            this.captureTime = captureTime;
+            this.payload = payload;
+        }
+
+        int recordType() {
+            return recordType;
+        }
+
+        long captureTime() {
+            return captureTime;
+        }
+
+        ByteArrayInputStream payload() {
+            return new ByteArrayInputStream(payload);
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2018 the original author or authors.
+ * Copyright 2013-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -144,6 +144,58 @@ class AggregateCollector {
         }
     }
 
+    // used to combine the collectors from different aggregation shards when flushing, only the
+    // collector passed in is locked, so this (merged) collector must not be visible to other
+    // threads (this also avoids any lock ordering concern)
+    void mergeDataFrom(AggregateCollector collector) {
+        synchronized (collector.lock) {
+            mergeOverviewDataFrom(collector);
+            durationNanosHistogram.merge(collector.durationNanosHistogram);
+            collector.queries.mergeQueriesInto(queries);
+            collector.serviceCalls.mergeServiceCallsInto(serviceCalls);
+            if (collector.mainThreadProfile != null) {
+                if (mainThreadProfile == null) {
+                    mainThreadProfile = new MutableProfile();
+                }
+                mainThreadProfile.merge(collector.mainThreadProfile);
+            }
+            if (collector.auxThreadProfile != null) {
+                if (auxThreadProfile == null) {
+                    auxThreadProfile = new MutableProfile();
+                }
+                auxThreadProfile.merge(collector.auxThreadProfile);
+            }
+        }
+    }
+
+    // caller must hold the lock of the collector passed in
+    private void mergeOverviewDataFrom(AggregateCollector collector) {
+        totalDurationNanos += collector.totalDurationNanos;
+        transactionCount += collector.transactionCount;
+        errorCount += collector.errorCount;
+        asyncTransactions |= collector.asyncTransactions;
+        mainThreadStats.mergeThreadStats(collector.mainThreadStats);
+        mainThreadRootTimers.mergeRootTimers(collector.mainThreadRootTimers);
+        if (collector.auxThreadRootTimer != null) {
+            if (auxThreadRootTimer == null) {
+                auxThreadRootTimer = MutableAggregateTimer.createAuxThreadRootTimer();
+            }
+            auxThreadRootTimer.addDataFrom(collector.auxThreadRootTimer);
+        }
+        if (collector.auxThreadStats != null) {
+            if (auxThreadStats == null) {
+                auxThreadStats = new ThreadStatsCollectorImpl();
+            }
+            auxThreadStats.mergeThreadStats(collector.auxThreadStats);
+        }
+        if (collector.asyncTimers != null) {
+            if (asyncTimers == null) {
+                asyncTimers = new RootTimerCollectorImpl();
+            }
+            asyncTimers.mergeRootTimers(collector.asyncTimers);
+        }
+    }
+
     Aggregate build(SharedQueryTextCollection sharedQueryTextCollection,
             ScratchBuffer scratchBuffer) {
         synchronized (lock) {
@@ -249,6 +301,63 @@ class AggregateCollector {
         }
     }
 
+    // the static methods below combine collectors from different aggregation shards for "live"
+    // data, locking one collector at a time and only combining the data needed by the caller
+
+    static OverviewAggregate getOverviewAggregate(List<AggregateCollector> collectors,
+            long captureTime) {
+        if (collectors.size() == 1) {
+            return collectors.get(0).getOverviewAggregate(captureTime);
+        }
+        AggregateCollector mergedCollector = new AggregateCollector(null, 0, 0);
+        for (AggregateCollector collector : collectors) {
+            synchronized (collector.lock) {
+                mergedCollector.mergeOverviewDataFrom(collector);
+            }
+        }
+        return mergedCollector.getOverviewAggregate(captureTime);
+    }
+
+    static PercentileAggregate getPercentileAggregate(List<AggregateCollector> collectors,
+            long captureTime) {
+        if (collectors.size() == 1) {
+            return collectors.get(0).getPercentileAggregate(captureTime);
+        }
+        double totalDurationNanos = 0;
+        long transactionCount = 0;
+        LazyHistogram durationNanosHistogram = new LazyHistogram();
+        for (AggregateCollector collector : collectors) {
+            synchronized (collector.lock) {
+                totalDurationNanos += collector.totalDurationNanos;
+                transactionCount += collector.transactionCount;
+                durationNanosHistogram.merge(collector.durationNanosHistogram);
+            }
+        }
+        return ImmutablePercentileAggregate.builder()
+                .captureTime(captureTime)
+                .totalDurationNanos(totalDurationNanos)
+                .transactionCount(transactionCount)
+                .durationNanosHistogram(durationNanosHistogram.toProto(new ScratchBuffer()))
+                .build();
+    }
+
+    static ThroughputAggregate getThroughputAggregate(List<AggregateCollector> collectors,
+            long captureTime) {
+        long transactionCount = 0;
+        long errorCount = 0;
+        for (AggregateCollector collector : collectors) {
+            synchronized (collector.lock) {
+                transactionCount += collector.transactionCount;
+                errorCount += collector.errorCount;
+            }
+        }
+        return ImmutableThroughputAggregate.builder()
+                .captureTime(captureTime)
+                .transactionCount(transactionCount)
+                .errorCount(errorCount)
+                .build();
+    }
+
     @Nullable
     String getFullQueryText(String fullQueryTextSha1) {
         if (queries == null) {
@@ -310,6 +419,25 @@ class AggregateCollector {
             rootMutableTimers.add(rootTimer);
         }
 
+        private void mergeRootTimers(RootTimerCollectorImpl collector) {
+            for (MutableAggregateTimer toBeMergedRootTimer : collector.rootMutableTimers) {
+                MutableAggregateTimer matchingRootTimer = null;
+                for (MutableAggregateTimer rootTimer : rootMutableTimers) {
+                    if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                            && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
+                        matchingRootTimer = rootTimer;
+                        break;
+                    }
+                }
+                if (matchingRootTimer == null) {
+                    matchingRootTimer = new MutableAggregateTimer(toBeMergedRootTimer.getName(),
+                            toBeMergedRootTimer.isExtended());
+                    rootMutableTimers.add(matchingRootTimer);
+                }
+                matchingRootTimer.addDataFrom(toBeMergedRootTimer);
+            }
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -338,6 +466,16 @@ class AggregateCollector {
                     threadStats.getAllocatedBytes());
         }
 
+        private void mergeThreadStats(ThreadStatsCollectorImpl collector) {
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, collector.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, collector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, collector.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, collector.totalAllocatedBytes);
+        }
+
         public Aggregate.ThreadStats toProto() {
             return Aggregate.ThreadStats.newBuilder()
                     .setTotalCpuNanos(totalCpuNanos)
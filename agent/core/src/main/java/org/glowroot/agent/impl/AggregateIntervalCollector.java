@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,9 +19,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.collector.Collector;
@@ -53,17 +58,41 @@ public class AggregateIntervalCollector {
     private final int maxServiceCallAggregates;
     private final Clock clock;
 
-    private final ConcurrentMap<String, IntervalTypeCollector> typeCollectors =
+    // each shard is only written to by a single aggregation thread (transactions are assigned to
+    // shards by transaction type and transaction name, see getShardIndex()), and the shards are
+    // only combined when reading (flush and live data)
+    private final List<ConcurrentMap<String, IntervalTypeCollector>> shards;
+
+    // transaction name limit is applied across all shards
+    private final ConcurrentMap<String, AtomicInteger> transactionAggregateCounts =
             Maps.newConcurrentMap();
 
+    @GuardedBy("pendingAddsLock")
+    private int pendingAdds;
+    private final Object pendingAddsLock = new Object();
+
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
-            Clock clock) {
+            int shardCount, Clock clock) {
         captureTime = CaptureTimes.getRollup(currentTime, aggregateIntervalMillis);
         this.maxTransactionAggregates = maxTransactionAggregates;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.clock = clock;
+        shards = Lists.newArrayListWithCapacity(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(Maps.<String, IntervalTypeCollector>newConcurrentMap());
+        }
+    }
+
+    static int getShardIndex(String transactionType, String transactionName, int shardCount) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        int hash = 31 * transactionType.hashCode() + transactionName.hashCode();
+        // spread the high bits since the shard count is typically small
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % shardCount;
     }
 
     public long getCaptureTime() {
@@ -71,95 +100,110 @@ public class AggregateIntervalCollector {
     }
 
     public void add(Transaction transaction) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transaction.getTransactionType());
+        String transactionType = transaction.getTransactionType();
+        Map<String, IntervalTypeCollector> typeCollectors = shards.get(getShardIndex(
+                transactionType, transaction.getTransactionName(), shards.size()));
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
-            // don't need to worry about race condition here because add() is only called from a
-            // single thread (TransactionProcessorLoop)
-            typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transaction.getTransactionType(), typeCollector);
+            // don't need to worry about race condition here because each shard is only added to
+            // from a single thread (TransactionProcessorLoop or a single AggregationWorker)
+            typeCollector = new IntervalTypeCollector(getTransactionAggregateCount(
+                    transactionType));
+            typeCollectors.put(transactionType, typeCollector);
         }
         typeCollector.add(transaction);
     }
 
+    // called by TransactionProcessorLoop prior to handing off a transaction to an aggregation
+    // worker, so that flush() can wait for all handed off transactions to be added
+    void beginPendingAdd() {
+        synchronized (pendingAddsLock) {
+            pendingAdds++;
+        }
+    }
+
+    // called by aggregation worker after add()
+    void endPendingAdd() {
+        synchronized (pendingAddsLock) {
+            if (--pendingAdds == 0) {
+                pendingAddsLock.notifyAll();
+            }
+        }
+    }
+
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
+        for (IntervalTypeCollector typeCollector : getTypeCollectors(transactionType)) {
+            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
         }
-        typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
     }
 
     public void mergeTransactionNameSummariesInto(TransactionNameSummaryCollector collector,
             String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
-        }
-        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                .values()) {
-            aggregateCollector.mergeTransactionNameSummariesInto(collector);
+        for (IntervalTypeCollector typeCollector : getTypeCollectors(transactionType)) {
+            for (AggregateCollector aggregateCollector : typeCollector
+                    .transactionAggregateCollectors.values()) {
+                aggregateCollector.mergeTransactionNameSummariesInto(collector);
+            }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
+        for (IntervalTypeCollector typeCollector : getTypeCollectors(transactionType)) {
+            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
-        typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
     }
 
     public void mergeTransactionNameErrorSummariesInto(
             TransactionNameErrorSummaryCollector collector, String transactionType) {
-        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-        if (typeCollector == null) {
-            return;
-        }
-        for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                .values()) {
-            aggregateCollector.mergeTransactionNameErrorSummariesInto(collector);
+        for (IntervalTypeCollector typeCollector : getTypeCollectors(transactionType)) {
+            for (AggregateCollector aggregateCollector : typeCollector
+                    .transactionAggregateCollectors.values()) {
+                aggregateCollector.mergeTransactionNameErrorSummariesInto(collector);
+            }
         }
     }
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        AggregateCollector aggregateCollector =
-                getAggregateCollector(transactionType, transactionName);
-        if (aggregateCollector == null) {
+        List<AggregateCollector> aggregateCollectors =
+                getAggregateCollectors(transactionType, transactionName);
+        if (aggregateCollectors.isEmpty()) {
             return null;
         }
         long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-        return aggregateCollector.getOverviewAggregate(liveCaptureTime);
+        return AggregateCollector.getOverviewAggregate(aggregateCollectors, liveCaptureTime);
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        AggregateCollector aggregateCollector =
-                getAggregateCollector(transactionType, transactionName);
-        if (aggregateCollector == null) {
+        List<AggregateCollector> aggregateCollectors =
+                getAggregateCollectors(transactionType, transactionName);
+        if (aggregateCollectors.isEmpty()) {
             return null;
         }
         long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-        return aggregateCollector.getPercentileAggregate(liveCaptureTime);
+        return AggregateCollector.getPercentileAggregate(aggregateCollectors, liveCaptureTime);
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        AggregateCollector aggregateCollector =
-                getAggregateCollector(transactionType, transactionName);
-        if (aggregateCollector == null) {
+        List<AggregateCollector> aggregateCollectors =
+                getAggregateCollectors(transactionType, transactionName);
+        if (aggregateCollectors.isEmpty()) {
             return null;
         }
         long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-        return aggregateCollector.getThroughputAggregate(liveCaptureTime);
+        return AggregateCollector.getThroughputAggregate(aggregateCollectors, liveCaptureTime);
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-            String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
-            if (fullQueryText != null) {
-                return fullQueryText;
+        for (Map<String, IntervalTypeCollector> typeCollectors : shards) {
+            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
+                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                if (fullQueryText != null) {
+                    return fullQueryText;
+                }
             }
         }
         return null;
@@ -167,70 +211,135 @@ public class AggregateIntervalCollector {
 
     public void mergeQueriesInto(QueryCollector collector, String transactionType,
             @Nullable String transactionName) {
-        AggregateCollector aggregateCollector =
-                getAggregateCollector(transactionType, transactionName);
-        if (aggregateCollector == null) {
-            return;
+        for (AggregateCollector aggregateCollector : getAggregateCollectors(transactionType,
+                transactionName)) {
+            aggregateCollector.mergeQueriesInto(collector);
         }
-        aggregateCollector.mergeQueriesInto(collector);
     }
 
     public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
             @Nullable String transactionName) {
-        AggregateCollector aggregateCollector =
-                getAggregateCollector(transactionType, transactionName);
-        if (aggregateCollector == null) {
-            return;
+        for (AggregateCollector aggregateCollector : getAggregateCollectors(transactionType,
+                transactionName)) {
+            aggregateCollector.mergeServiceCallsInto(collector);
         }
-        aggregateCollector.mergeServiceCallsInto(collector);
     }
 
     public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        AggregateCollector aggregateCollector =
-                getAggregateCollector(transactionType, transactionName);
-        if (aggregateCollector == null) {
-            return;
+        for (AggregateCollector aggregateCollector : getAggregateCollectors(transactionType,
+                transactionName)) {
+            aggregateCollector.mergeMainThreadProfilesInto(collector);
         }
-        aggregateCollector.mergeMainThreadProfilesInto(collector);
     }
 
     public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
             @Nullable String transactionName) {
-        AggregateCollector aggregateCollector =
-                getAggregateCollector(transactionType, transactionName);
-        if (aggregateCollector == null) {
-            return;
+        for (AggregateCollector aggregateCollector : getAggregateCollectors(transactionType,
+                transactionName)) {
+            aggregateCollector.mergeAuxThreadProfilesInto(collector);
         }
-        aggregateCollector.mergeAuxThreadProfilesInto(collector);
     }
 
     // TODO report checker framework issue that occurs without this suppression
     @SuppressWarnings("return.type.incompatible")
     Set<String> getTransactionTypes() {
-        return typeCollectors.keySet();
+        if (shards.size() == 1) {
+            return shards.get(0).keySet();
+        }
+        Set<String> transactionTypes = Sets.newHashSet();
+        for (Map<String, IntervalTypeCollector> typeCollectors : shards) {
+            transactionTypes.addAll(typeCollectors.keySet());
+        }
+        return transactionTypes;
     }
 
     void flush(Collector collector) throws Exception {
+        synchronized (pendingAddsLock) {
+            while (pendingAdds > 0) {
+                pendingAddsLock.wait();
+            }
+        }
         collector.collectAggregates(new AggregateReaderImpl(captureTime));
     }
 
     void clear() {
-        typeCollectors.clear();
+        for (Map<String, IntervalTypeCollector> typeCollectors : shards) {
+            typeCollectors.clear();
+        }
+        transactionAggregateCounts.clear();
+    }
+
+    private AtomicInteger getTransactionAggregateCount(String transactionType) {
+        AtomicInteger transactionAggregateCount = transactionAggregateCounts.get(transactionType);
+        if (transactionAggregateCount == null) {
+            transactionAggregateCount = new AtomicInteger();
+            AtomicInteger existing = transactionAggregateCounts.putIfAbsent(transactionType,
+                    transactionAggregateCount);
+            if (existing != null) {
+                transactionAggregateCount = existing;
+            }
+        }
+        return transactionAggregateCount;
+    }
+
+    // can be called without lock
+    private List<IntervalTypeCollector> getTypeCollectors(String transactionType) {
+        List<IntervalTypeCollector> typeCollectors = Lists.newArrayListWithCapacity(shards.size());
+        for (Map<String, IntervalTypeCollector> shard : shards) {
+            IntervalTypeCollector typeCollector = shard.get(transactionType);
+            if (typeCollector != null) {
+                typeCollectors.add(typeCollector);
+            }
+        }
+        return typeCollectors;
     }
 
     // can be called without lock
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
+    private List<AggregateCollector> getAggregateCollectors(String transactionType,
             @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
+        if (transactionName != null && !transactionName.equals(LIMIT_EXCEEDED_BUCKET)) {
+            // a given transaction name is only in a single shard
+            IntervalTypeCollector typeCollector = shards.get(
+                    getShardIndex(transactionType, transactionName, shards.size()))
+                            .get(transactionType);
+            if (typeCollector == null) {
+                return ImmutableList.of();
+            }
+            AggregateCollector aggregateCollector =
+                    typeCollector.transactionAggregateCollectors.get(transactionName);
+            if (aggregateCollector == null) {
+                return ImmutableList.of();
+            }
+            return ImmutableList.of(aggregateCollector);
+        }
+        List<AggregateCollector> aggregateCollectors = Lists.newArrayList();
+        for (IntervalTypeCollector typeCollector : getTypeCollectors(transactionType)) {
+            AggregateCollector aggregateCollector = transactionName == null
+                    ? typeCollector.overallAggregateCollector
+                    : typeCollector.transactionAggregateCollectors.get(transactionName);
+            if (aggregateCollector != null) {
+                aggregateCollectors.add(aggregateCollector);
+            }
+        }
+        return aggregateCollectors;
+    }
+
+    // only called when flushing, after all pending adds have completed
+    private @Nullable IntervalTypeCollector getMergedTypeCollector(String transactionType) {
+        List<IntervalTypeCollector> typeCollectors = getTypeCollectors(transactionType);
+        if (typeCollectors.isEmpty()) {
             return null;
         }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+        if (typeCollectors.size() == 1) {
+            return typeCollectors.get(0);
         }
+        IntervalTypeCollector mergedTypeCollector =
+                new IntervalTypeCollector(new AtomicInteger());
+        for (IntervalTypeCollector typeCollector : typeCollectors) {
+            mergedTypeCollector.mergeDataFrom(typeCollector);
+        }
+        return mergedTypeCollector;
     }
 
     private class IntervalTypeCollector {
@@ -238,10 +347,13 @@ public class AggregateIntervalCollector {
         private final AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
+        // shared across shards for the same transaction type
+        private final AtomicInteger transactionAggregateCount;
 
-        private IntervalTypeCollector() {
+        private IntervalTypeCollector(AtomicInteger transactionAggregateCount) {
             overallAggregateCollector =
                     new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates);
+            this.transactionAggregateCount = transactionAggregateCount;
         }
 
         private void add(Transaction transaction) {
@@ -250,11 +362,12 @@ public class AggregateIntervalCollector {
                     transactionAggregateCollectors.get(transaction.getTransactionName());
             if (transactionAggregateCollector == null) {
                 // don't need to worry about race condition here because add() is only called from a
-                // single thread (TransactionProcessorLoop)
-                if (transactionAggregateCollectors.size() < maxTransactionAggregates) {
+                // single thread per shard (TransactionProcessorLoop or a single AggregationWorker)
+                if (transactionAggregateCount.incrementAndGet() <= maxTransactionAggregates) {
                     transactionAggregateCollector =
                             createTransactionAggregateCollector(transaction.getTransactionName());
                 } else {
+                    transactionAggregateCount.decrementAndGet();
                     transactionAggregateCollector =
                             transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
                     if (transactionAggregateCollector == null) {
@@ -277,6 +390,21 @@ public class AggregateIntervalCollector {
             aggregateCollector.mergeDataFrom(transaction);
         }
 
+        private void mergeDataFrom(IntervalTypeCollector typeCollector) {
+            overallAggregateCollector.mergeDataFrom(typeCollector.overallAggregateCollector);
+            for (Map.Entry<String, AggregateCollector> entry : typeCollector
+                    .transactionAggregateCollectors.entrySet()) {
+                String transactionName = entry.getKey();
+                AggregateCollector transactionAggregateCollector =
+                        transactionAggregateCollectors.get(transactionName);
+                if (transactionAggregateCollector == null) {
+                    transactionAggregateCollector =
+                            createTransactionAggregateCollector(transactionName);
+                }
+                transactionAggregateCollector.mergeDataFrom(entry.getValue());
+            }
+        }
+
         private @Nullable String getFullQueryText(String fullQueryTextSha1) {
             String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
             if (fullQueryText != null) {
@@ -310,9 +438,13 @@ public class AggregateIntervalCollector {
             SharedQueryTextCollectionImpl sharedQueryTextCollector =
                     new SharedQueryTextCollectionImpl();
             ScratchBuffer scratchBuffer = new ScratchBuffer();
-            for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                String transactionType = e.getKey();
-                IntervalTypeCollector intervalTypeCollector = e.getValue();
+            for (String transactionType : getTransactionTypes()) {
+                IntervalTypeCollector intervalTypeCollector =
+                        getMergedTypeCollector(transactionType);
+                if (intervalTypeCollector == null) {
+                    // cleared concurrently
+                    continue;
+                }
                 Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
                         .build(sharedQueryTextCollector, scratchBuffer);
                 aggregateVisitor.visitOverallAggregate(transactionType,
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.impl.NopTransactionService.NopTimer;
+import org.glowroot.agent.model.ErrorMessage;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.Timer;
+import org.glowroot.agent.plugin.api.TraceEntry;
+import org.glowroot.agent.util.Tickers;
+
+// pooled handle for a sync trace entry that is not (yet) part of the linked list of trace entries
+//
+// if the entry ends while it is still a leaf, it is recorded in CompactTraceEntryStore and this
+// handle is returned to the pool, so no TraceEntryImpl is allocated for it
+//
+// if a child entry (or auxiliary thread context) is started underneath it, it is inflated into a
+// regular TraceEntryImpl that this handle then delegates to, and the handle is not pooled again
+//
+// since the handle is reused after it ends, extending a compact entry after it ends is not
+// supported and only returns a no-op timer
+//
+// this is only updated by the thread context's thread, but the active handle is also read when
+// capturing active and partial traces (see TraceEntryComponent.addActiveCompactChildEntry())
+class CompactTraceEntry implements TraceEntry {
+
+    private static final Logger logger = LoggerFactory.getLogger(CompactTraceEntry.class);
+    private static final Ticker ticker = Tickers.getTicker();
+
+    private final ThreadContextImpl threadContext;
+
+    private @Nullable TraceEntryImpl parentTraceEntry;
+    private @Nullable MessageSupplier messageSupplier;
+    private @Nullable TimerImpl syncTimer;
+    private long startTick;
+
+    private boolean active;
+
+    private @Nullable TraceEntryImpl inflatedEntry;
+
+    // this is for maintaining linked list of pooled handles
+    private @Nullable CompactTraceEntry nextPooledEntry;
+
+    CompactTraceEntry(ThreadContextImpl threadContext) {
+        this.threadContext = threadContext;
+    }
+
+    void start(TraceEntryImpl parentTraceEntry, long startTick, MessageSupplier messageSupplier,
+            TimerImpl syncTimer) {
+        this.parentTraceEntry = parentTraceEntry;
+        this.startTick = startTick;
+        this.messageSupplier = messageSupplier;
+        this.syncTimer = syncTimer;
+        active = true;
+    }
+
+    @Nullable
+    TraceEntryImpl getParentTraceEntry() {
+        return parentTraceEntry;
+    }
+
+    long getStartTick() {
+        return startTick;
+    }
+
+    @Nullable
+    TimerImpl getSyncTimer() {
+        return syncTimer;
+    }
+
+    void setInflatedEntry(TraceEntryImpl inflatedEntry) {
+        this.inflatedEntry = inflatedEntry;
+    }
+
+    @Nullable
+    CompactTraceEntry getNextPooledEntry() {
+        return nextPooledEntry;
+    }
+
+    void setNextPooledEntry(@Nullable CompactTraceEntry nextPooledEntry) {
+        this.nextPooledEntry = nextPooledEntry;
+    }
+
+    @Override
+    public @Nullable Object getMessageSupplier() {
+        return messageSupplier;
+    }
+
+    @Override
+    public void end() {
+        if (inflatedEntry != null) {
+            inflatedEntry.end();
+            return;
+        }
+        if (!active) {
+            // this guards against end*() being called multiple times
+            return;
+        }
+        endInternal(ticker.read(), null, null);
+    }
+
+    @Override
+    public void endWithLocationStackTrace(long threshold, TimeUnit unit) {
+        if (inflatedEntry != null) {
+            inflatedEntry.endWithLocationStackTrace(threshold, unit);
+            return;
+        }
+        if (!active) {
+            // this guards against end*() being called multiple times
+            return;
+        }
+        if (threshold < 0) {
+            logger.error("endWithLocationStackTrace(): argument 'threshold' must be non-negative");
+            end();
+            return;
+        }
+        long endTick = ticker.read();
+        if (endTick - startTick >= unit.toNanos(threshold)) {
+            StackTraceElement[] locationStackTrace = Thread.currentThread().getStackTrace();
+            // strip up through this method, plus 1 additional method (the plugin advice method)
+            int index = ThreadContextImpl.getNormalizedStartIndex(locationStackTrace,
+                    "endWithLocationStackTrace", 1);
+            endInternal(endTick, null, ImmutableList.copyOf(locationStackTrace).subList(index,
+                    locationStackTrace.length));
+        } else {
+            endInternal(endTick, null, null);
+        }
+    }
+
+    @Override
+    public void endWithError(Throwable t) {
+        endWithErrorInternal(null, t);
+    }
+
+    @Override
+    public void endWithError(@Nullable String message) {
+        endWithErrorInternal(message, null);
+    }
+
+    @Override
+    public void endWithError(@Nullable String message, Throwable t) {
+        endWithErrorInternal(message, t);
+    }
+
+    @Override
+    public void endWithInfo(Throwable t) {
+        endWithErrorInternal(null, t);
+    }
+
+    @Override
+    public Timer extend() {
+        if (inflatedEntry != null) {
+            return inflatedEntry.extend();
+        }
+        return NopTimer.INSTANCE;
+    }
+
+    private void endWithErrorInternal(@Nullable String message, @Nullable Throwable t) {
+        if (inflatedEntry != null) {
+            if (t == null) {
+                inflatedEntry.endWithError(message);
+            } else {
+                inflatedEntry.endWithError(message, t);
+            }
+            return;
+        }
+        if (!active) {
+            // this guards against end*() being called multiple times
+            return;
+        }
+        ErrorMessage errorMessage = ErrorMessage.create(message, t,
+                threadContext.getTransaction().getThrowableFrameLimitCounter());
+        endInternal(ticker.read(), errorMessage, null);
+    }
+
+    private void endInternal(long endTick, @Nullable ErrorMessage errorMessage,
+            @Nullable ImmutableList<StackTraceElement> locationStackTrace) {
+        if (syncTimer != null) {
+            syncTimer.end(endTick);
+        }
+        active = false;
+        threadContext.popCompactEntry(this, endTick, errorMessage, locationStackTrace);
+    }
+}
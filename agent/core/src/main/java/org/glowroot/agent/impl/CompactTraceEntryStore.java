@@ -0,0 +1,124 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Arrays;
+
+import com.google.common.collect.ListMultimap;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.util.Tickers;
+
+// completed compact trace entries, held column by column
+//
+// each entry records the entry in the linked list of trace entries that it directly follows (its
+// predecessor), which is non-decreasing in list order, so a single pass over the linked list can
+// merge these entries back in at their original position
+//
+// this supports updating by a single thread and reading by multiple threads
+class CompactTraceEntryStore {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // not volatile, so depends on memory barrier in Transaction for visibility
+    private Columns columns = new Columns(INITIAL_CAPACITY);
+    // not volatile, so depends on memory barrier in Transaction for visibility
+    private int size;
+
+    void add(TraceEntryImpl predecessor, TraceEntryImpl parentTraceEntry, Object messageSupplier,
+            long startTick, long endTick) {
+        Columns columns = this.columns;
+        if (size == columns.predecessors.length) {
+            // readers that still hold the prior columns only read up to the prior size
+            columns = columns.copyOf(size * 2);
+            this.columns = columns;
+        }
+        columns.predecessors[size] = predecessor;
+        columns.parentTraceEntries[size] = parentTraceEntry;
+        columns.messageSuppliers[size] = messageSupplier;
+        columns.startTicks[size] = startTick;
+        columns.endTicks[size] = endTick;
+        size++;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // materializes the compact entries starting at the given index that directly follow the given
+    // predecessor, and returns the index of the first compact entry that does not
+    int addChildEntries(int index, TraceEntryImpl predecessor, ThreadContextImpl threadContext,
+            boolean completed, long captureTick,
+            ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap) {
+        int size = this.size;
+        Columns columns = this.columns;
+        size = Math.min(size, columns.predecessors.length);
+        int i = index;
+        while (i < size && columns.predecessors[i] == predecessor) {
+            TraceEntryImpl parentTraceEntry = columns.parentTraceEntries[i];
+            Object messageSupplier = columns.messageSuppliers[i];
+            if (parentTraceEntry == null || messageSupplier == null) {
+                // not visible yet to this thread
+                break;
+            }
+            long startTick = columns.startTicks[i];
+            // filter out entries that started after the capture tick
+            // checking completed is short circuit optimization for the common case
+            if (completed || Tickers.lessThanOrEqual(startTick, captureTick)) {
+                parentChildMap.put(parentTraceEntry,
+                        TraceEntryImpl.createCompletedEntry(threadContext, parentTraceEntry,
+                                messageSupplier, null, null, null, startTick,
+                                columns.endTicks[i]));
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static class Columns {
+
+        private final @Nullable TraceEntryImpl[] predecessors;
+        private final @Nullable TraceEntryImpl[] parentTraceEntries;
+        private final @Nullable Object[] messageSuppliers;
+        private final long[] startTicks;
+        private final long[] endTicks;
+
+        private Columns(int capacity) {
+            predecessors = new TraceEntryImpl[capacity];
+            parentTraceEntries = new TraceEntryImpl[capacity];
+            messageSuppliers = new Object[capacity];
+            startTicks = new long[capacity];
+            endTicks = new long[capacity];
+        }
+
+        private Columns(@Nullable TraceEntryImpl[] predecessors,
+                @Nullable TraceEntryImpl[] parentTraceEntries, @Nullable Object[] messageSuppliers,
+                long[] startTicks, long[] endTicks) {
+            this.predecessors = predecessors;
+            this.parentTraceEntries = parentTraceEntries;
+            this.messageSuppliers = messageSuppliers;
+            this.startTicks = startTicks;
+            this.endTicks = endTicks;
+        }
+
+        private Columns copyOf(int capacity) {
+            return new Columns(Arrays.copyOf(predecessors, capacity),
+                    Arrays.copyOf(parentTraceEntries, capacity),
+                    Arrays.copyOf(messageSuppliers, capacity), Arrays.copyOf(startTicks, capacity),
+                    Arrays.copyOf(endTicks, capacity));
+        }
+    }
+}
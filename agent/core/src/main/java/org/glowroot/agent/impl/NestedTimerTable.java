@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// micro-optimized lookup of nested timers, shared by all timers of a single thread context
+//
+// keyed by (parent timer id, timer name id) packed into a single long, using open addressing with
+// linear probing over primitive keys, so that starting an existing nested timer does not allocate
+// and only touches a couple of array slots
+//
+// only accessed by the transaction thread
+class NestedTimerTable {
+
+    // capacity must always be a power of 2, see mask in get() and put()
+    private int capacity = 16;
+    private long[] keys = new long[capacity];
+    private @Nullable TimerImpl[] values = new TimerImpl[capacity];
+
+    private int size;
+    private int threshold = 12; // 0.75 * capacity
+
+    // 0 is reserved for the root timer
+    private int nextTimerId = 1;
+
+    int nextTimerId() {
+        return nextTimerId++;
+    }
+
+    @Nullable
+    TimerImpl get(int parentTimerId, int timerNameId) {
+        long key = key(parentTimerId, timerNameId);
+        int mask = capacity - 1;
+        int i = hash(key) & mask;
+        while (true) {
+            TimerImpl value = values[i];
+            if (value == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    // IMPORTANT put assumes get was already called and key is not present in this table
+    void put(int parentTimerId, int timerNameId, TimerImpl value) {
+        if (size++ >= threshold) {
+            rehash();
+        }
+        putWithoutRehashCheck(key(parentTimerId, timerNameId), value);
+    }
+
+    private void putWithoutRehashCheck(long key, TimerImpl value) {
+        int mask = capacity - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    private void rehash() {
+        long[] existingKeys = keys;
+        @Nullable
+        TimerImpl[] existingValues = values;
+        capacity <<= 1;
+        threshold <<= 1;
+        keys = new long[capacity];
+        values = new TimerImpl[capacity];
+        for (int i = 0; i < existingValues.length; i++) {
+            TimerImpl value = existingValues[i];
+            if (value != null) {
+                putWithoutRehashCheck(existingKeys[i], value);
+            }
+        }
+    }
+
+    private static long key(int parentTimerId, int timerNameId) {
+        return ((long) parentTimerId << 32) | (timerNameId & 0xFFFFFFFFL);
+    }
+
+    private static int hash(long key) {
+        int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.collect.ListMultimap;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.model.QueryData;
+import org.glowroot.agent.util.Tickers;
+
+// most recent (non-error) trace entries of a thread context of an unsampled transaction, so that
+// if the transaction turns out to be slow its trace still has some context
+//
+// these entries are added as children of the thread context's root entry, since their nesting is
+// not tracked
+//
+// this supports updating by a single thread and reading by multiple threads, though entries that
+// are overwritten while being read can appear inconsistent in partial and active trace captures
+class RecentTraceEntryRing {
+
+    private static final Comparator<TraceEntryImpl> START_TICK_ORDERING =
+            new Comparator<TraceEntryImpl>() {
+                @Override
+                public int compare(TraceEntryImpl left, TraceEntryImpl right) {
+                    // compare difference to handle ticker wrap-around
+                    return Longs.compare(left.getStartTick() - right.getStartTick(), 0);
+                }
+            };
+
+    private final @Nullable Object[] messageSuppliers;
+    private final @Nullable QueryData[] queryData;
+    private final long[] startTicks;
+    private final long[] endTicks;
+
+    // these fields are not volatile, so depends on memory barrier in Transaction for visibility
+    private int nextIndex;
+    private boolean wrapped;
+
+    RecentTraceEntryRing(int capacity) {
+        messageSuppliers = new Object[capacity];
+        queryData = new QueryData[capacity];
+        startTicks = new long[capacity];
+        endTicks = new long[capacity];
+    }
+
+    void add(Object messageSupplier, @Nullable QueryData queryData, long startTick,
+            long endTick) {
+        messageSuppliers[nextIndex] = messageSupplier;
+        this.queryData[nextIndex] = queryData;
+        startTicks[nextIndex] = startTick;
+        endTicks[nextIndex] = endTick;
+        if (++nextIndex == messageSuppliers.length) {
+            nextIndex = 0;
+            wrapped = true;
+        }
+    }
+
+    boolean isEmpty() {
+        return nextIndex == 0 && !wrapped;
+    }
+
+    void addChildEntries(TraceEntryImpl rootEntry, ThreadContextImpl threadContext,
+            boolean completed, long captureTick,
+            ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap) {
+        int nextIndex = this.nextIndex;
+        boolean wrapped = this.wrapped;
+        if (nextIndex == 0 && !wrapped) {
+            return;
+        }
+        int capacity = messageSuppliers.length;
+        int startIndex = wrapped ? nextIndex : 0;
+        int size = wrapped ? capacity : nextIndex;
+        List<TraceEntryImpl> childEntries = parentChildMap.get(rootEntry);
+        for (int i = 0; i < size; i++) {
+            int index = (startIndex + i) % capacity;
+            Object messageSupplier = messageSuppliers[index];
+            if (messageSupplier == null) {
+                // not visible yet to this thread
+                continue;
+            }
+            long startTick = startTicks[index];
+            // filter out entries that started after the capture tick
+            // checking completed is short circuit optimization for the common case
+            if (completed || Tickers.lessThanOrEqual(startTick, captureTick)) {
+                childEntries.add(TraceEntryImpl.createCompletedEntry(threadContext, rootEntry,
+                        messageSupplier, queryData[index], null, null, startTick,
+                        endTicks[index]));
+            }
+        }
+        // ring entries are in order of completion, and are interleaved with any error entries and
+        // auxiliary thread contexts that are also children of the root entry
+        Collections.sort(childEntries, START_TICK_ORDERING);
+    }
+}
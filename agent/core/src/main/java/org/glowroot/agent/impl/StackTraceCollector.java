@@ -15,14 +15,11 @@
  */
 package org.glowroot.agent.impl;
 
-import java.lang.management.ManagementFactory;
-import java.lang.management.ThreadInfo;
 import java.util.List;
 import java.util.Random;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,6 +37,7 @@ public class StackTraceCollector {
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
+    private final StackTraceSampler sampler;
 
     private final InternalRunnable runnable;
     private final Thread processingThread;
@@ -49,6 +47,7 @@ public class StackTraceCollector {
         this.transactionRegistry = transactionRegistry;
         this.configService = configService;
         this.random = random;
+        sampler = StackTraceSampler.create();
 
         runnable = new InternalRunnable();
         // dedicated thread to give best chance of consistent stack trace capture
@@ -78,26 +77,13 @@ public class StackTraceCollector {
         processingThread.join();
     }
 
-    static void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+    private void captureStackTraces(List<ThreadContextImpl> threadContexts) {
         if (threadContexts.isEmpty()) {
             // critical not to call ThreadMXBean.getThreadInfo() with empty id list
             // see https://bugs.openjdk.java.net/browse/JDK-8074368
             return;
         }
-        long[] threadIds = new long[threadContexts.size()];
-        for (int i = 0; i < threadContexts.size(); i++) {
-            threadIds[i] = threadContexts.get(i).getThreadId();
-        }
-        @Nullable
-        ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
-        for (int i = 0; i < threadContexts.size(); i++) {
-            ThreadContextImpl threadContext = threadContexts.get(i);
-            ThreadInfo threadInfo = threadInfos[i];
-            if (threadInfo != null) {
-                threadContext.captureStackTrace(threadInfo);
-            }
-        }
+        sampler.captureStackTraces(threadContexts);
     }
 
     private class InternalRunnable implements Runnable {
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.model.StackFrameTable;
+
+// strategy for capturing stack traces of the threads currently executing transactions
+//
+// selected by the system property glowroot.profiling.sampler:
+// * full (default): single ThreadMXBean.getThreadInfo() call capturing complete stack traces
+// * bounded: same as full, but capturing at most glowroot.profiling.maxStackDepth frames
+// * batched: glowroot.profiling.batchSize threads per ThreadMXBean.getThreadInfo() call, with
+// bounded depth
+//
+// in all modes, frames are interned into a frame table shared across all thread profiles
+//
+// ThreadMXBean.getThreadInfo() brings all threads to a safepoint, and the pause grows with both
+// the number of threads and the stack depth, so bounding the depth and splitting large thread
+// lists into batches both shorten the individual pauses (the latter at the expense of samples
+// in different batches not being captured at exactly the same time)
+abstract class StackTraceSampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(StackTraceSampler.class);
+
+    private static final int DEFAULT_MAX_STACK_DEPTH = 256;
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final int MAX_INTERNED_FRAMES = 100000;
+
+    final StackFrameTable frameTable = new StackFrameTable(MAX_INTERNED_FRAMES);
+
+    abstract void captureStackTraces(List<ThreadContextImpl> threadContexts);
+
+    static StackTraceSampler create() {
+        String sampler = System.getProperty("glowroot.profiling.sampler", "full");
+        int maxStackDepth =
+                Integer.getInteger("glowroot.profiling.maxStackDepth", DEFAULT_MAX_STACK_DEPTH);
+        if (sampler.equals("bounded")) {
+            return new BoundedDepthSampler(maxStackDepth);
+        } else if (sampler.equals("batched")) {
+            int batchSize = Integer.getInteger("glowroot.profiling.batchSize", DEFAULT_BATCH_SIZE);
+            return new BatchedSampler(maxStackDepth, batchSize);
+        } else {
+            if (!sampler.equals("full")) {
+                logger.warn("unexpected glowroot.profiling.sampler value: {}, using full",
+                        sampler);
+            }
+            return new FullDepthSampler();
+        }
+    }
+
+    static class FullDepthSampler extends StackTraceSampler {
+
+        @Override
+        void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+            captureStackTraces(threadContexts, 0, threadContexts.size(), Integer.MAX_VALUE);
+        }
+    }
+
+    // deep stacks are truncated on the root side, since ThreadMXBean returns the top-most frames
+    static class BoundedDepthSampler extends StackTraceSampler {
+
+        private final int maxStackDepth;
+
+        BoundedDepthSampler(int maxStackDepth) {
+            this.maxStackDepth = maxStackDepth;
+        }
+
+        @Override
+        void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+            captureStackTraces(threadContexts, 0, threadContexts.size(), maxStackDepth);
+        }
+    }
+
+    static class BatchedSampler extends StackTraceSampler {
+
+        private final int maxStackDepth;
+        private final int batchSize;
+
+        BatchedSampler(int maxStackDepth, int batchSize) {
+            this.maxStackDepth = maxStackDepth;
+            this.batchSize = Math.max(1, batchSize);
+        }
+
+        @Override
+        void captureStackTraces(List<ThreadContextImpl> threadContexts) {
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            for (int from = 0; from < threadContexts.size(); from += batchSize) {
+                if (from > 0) {
+                    // give application threads a chance to run between safepoints
+                    Thread.yield();
+                }
+                int to = Math.min(from + batchSize, threadContexts.size());
+                @Nullable
+                ThreadInfo[] threadInfos =
+                        threadBean.getThreadInfo(getThreadIds(threadContexts, from, to),
+                                maxStackDepth);
+                for (int i = from; i < to; i++) {
+                    ThreadInfo threadInfo = threadInfos[i - from];
+                    if (threadInfo == null) {
+                        continue;
+                    }
+                    StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+                    int[] frameIds = frameTable.intern(stackTrace);
+                    if (frameIds == null) {
+                        // frame table is full
+                        threadContexts.get(i).captureStackTrace(stackTrace,
+                                threadInfo.getThreadState(), frameTable);
+                    } else {
+                        threadContexts.get(i).captureStackTrace(frameIds,
+                                threadInfo.getThreadState(), frameTable);
+                    }
+                }
+            }
+        }
+    }
+
+    void captureStackTraces(List<ThreadContextImpl> threadContexts, int from, int to,
+            int maxStackDepth) {
+        @Nullable
+        ThreadInfo[] threadInfos = ManagementFactory.getThreadMXBean()
+                .getThreadInfo(getThreadIds(threadContexts, from, to), maxStackDepth);
+        for (int i = from; i < to; i++) {
+            ThreadInfo threadInfo = threadInfos[i - from];
+            if (threadInfo != null) {
+                threadContexts.get(i).captureStackTrace(threadInfo.getStackTrace(),
+                        threadInfo.getThreadState(), frameTable);
+            }
+        }
+    }
+
+    private static long[] getThreadIds(List<ThreadContextImpl> threadContexts, int from,
+            int to) {
+        long[] threadIds = new long[to - from];
+        for (int i = from; i < to; i++) {
+            threadIds[i - from] = threadContexts.get(i).getThreadId();
+        }
+        return threadIds;
+    }
+}
@@ -15,7 +15,6 @@
  */
 package org.glowroot.agent.impl;
 
-import java.lang.management.ThreadInfo;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -44,6 +43,7 @@ import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.model.QueryDataMap;
 import org.glowroot.agent.model.QueryEntryBase;
 import org.glowroot.agent.model.ServiceCallCollector;
+import org.glowroot.agent.model.StackFrameTable;
 import org.glowroot.agent.model.SyncQueryData;
 import org.glowroot.agent.model.ThreadStats;
 import org.glowroot.agent.model.ThreadStatsComponent;
@@ -71,6 +71,13 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private static final boolean CAPTURE_AUXILIARY_THREAD_LOCATION_STACK_TRACES =
             Boolean.getBoolean("glowroot.debug.captureAuxiliaryThreadLocationStackTraces");
 
+    // leaf trace entries that end normally are recorded without allocating a TraceEntryImpl, and
+    // their handles are reused, see CompactTraceEntry
+    //
+    // this is opt-in since plugins must not touch a trace entry after ending it
+    private static final boolean COMPACT_TRACE_ENTRIES =
+            Boolean.getBoolean("glowroot.internal.compactTraceEntries");
+
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
 
     private static final MessageSupplier DETACHED_MESSAGE_SUPPLIER = MessageSupplier
@@ -151,7 +158,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         rootTimer = TimerImpl.createRootTimer(castInitialized(this), (TimerNameImpl) rootTimerName);
         rootTimer.start(startTick);
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
-                rootTimer, startTick);
+                rootTimer, startTick, COMPACT_TRACE_ENTRIES, transaction.getMaxRecentEntries());
         this.parentThreadContextPriorEntry = parentThreadContextPriorEntry;
         threadId = Thread.currentThread().getId();
         threadStatsComponent =
@@ -423,8 +430,16 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return entry;
     }
 
-    void captureStackTrace(ThreadInfo threadInfo) {
-        transaction.captureStackTrace(isAuxiliary(), threadInfo);
+    void captureStackTrace(StackTraceElement[] stackTrace, Thread.State threadState,
+            StackFrameTable frameTable) {
+        transaction.captureStackTrace(isAuxiliary(), stackTrace, threadState, frameTable);
+        // memory barrier read ensures timely visibility of detach()
+        transaction.memoryBarrierRead();
+    }
+
+    void captureStackTrace(int[] frameIds, Thread.State threadState,
+            StackFrameTable frameTable) {
+        transaction.captureStackTrace(isAuxiliary(), frameIds, threadState, frameTable);
         // memory barrier read ensures timely visibility of detach()
         transaction.memoryBarrierRead();
     }
@@ -488,6 +503,15 @@ public class ThreadContextImpl implements ThreadContextPlus {
         transaction.memoryBarrierReadWrite();
     }
 
+    void popCompactEntry(CompactTraceEntry entry, long endTick,
+            @Nullable ErrorMessage errorMessage,
+            @Nullable ImmutableList<StackTraceElement> locationStackTrace) {
+        traceEntryComponent.popCompactEntry(entry, endTick, errorMessage, locationStackTrace);
+        // memory barrier write ensures partial trace capture will see data collected up to now
+        // memory barrier read ensures timely visibility of detach()
+        transaction.memoryBarrierReadWrite();
+    }
+
     // detach is called from another thread
     void detach() {
         // this synchronization protects against clobbering valid thread context in race condition
@@ -600,6 +624,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         long startTick = ticker.read();
         TimerImpl timer = startTimer(timerName, startTick);
         if (transaction.allowAnotherEntry()) {
+            // compact entries are not used once there may be child auxiliary thread contexts,
+            // since compact entries cannot be ordered relative to them
+            if (traceEntryComponent.isCompactEntriesEnabled() && !mayHaveChildAuxThreadContext) {
+                return traceEntryComponent.pushCompactEntry(startTick, messageSupplier, timer);
+            }
             return traceEntryComponent.pushEntry(startTick, messageSupplier, timer, null, null, 0);
         } else {
             return new DummyTraceEntryOrQuery(timer, null, startTick, messageSupplier, null, 0);
@@ -1004,6 +1033,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         boolean completed = isCompleted(captureTick);
         TraceEntryImpl entry = getRootEntry();
         boolean entryIsRoot = true;
+        int compactEntryIndex = 0;
         // filter out entries that started after the capture tick
         // checking completed is short circuit optimization for the common case
         while (entry != null
@@ -1013,12 +1043,17 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 logger.error("found non-root trace entry with null parent trace entry"
                         + "\ntrace entry: {}\ntransaction: {} - {}", entry,
                         transaction.getTransactionType(), transaction.getTransactionName());
+                compactEntryIndex = traceEntryComponent.addCompactChildEntries(compactEntryIndex,
+                        entry, completed, captureTick, parentChildMap);
                 entry = entry.getNextTraceEntry();
                 continue;
             }
             if (!entryIsRoot) {
                 parentChildMap.put(parentTraceEntry, entry);
             }
+            // compact entries are added ahead of auxiliary thread contexts, see startTraceEntry()
+            compactEntryIndex = traceEntryComponent.addCompactChildEntries(compactEntryIndex,
+                    entry, completed, captureTick, parentChildMap);
             for (ThreadContextImpl auxThreadContext : priorEntryAuxThreadContextMap.get(entry)) {
                 TraceEntryImpl auxThreadRootEntry = auxThreadContext.getRootEntry();
                 if (completed || Tickers.lessThanOrEqual(auxThreadRootEntry.getStartTick(),
@@ -1031,6 +1066,8 @@ public class ThreadContextImpl implements ThreadContextPlus {
             entry = entry.getNextTraceEntry();
             entryIsRoot = false;
         }
+        traceEntryComponent.addActiveCompactChildEntry(completed, captureTick, parentChildMap);
+        traceEntryComponent.addRecentChildEntries(completed, captureTick, parentChildMap);
         if (detached && !traceEntryComponent.isEmpty()) {
             TraceEntryImpl rootEntry = getRootEntry();
             parentChildMap.put(rootEntry,
@@ -1107,7 +1144,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
         @Override
         public void end() {
-            endInternal(ticker.read());
+            endAndAddRecentEntry(ticker.read());
         }
 
         @Override
@@ -1116,7 +1153,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
                 logger.error(
                         "endWithLocationStackTrace(): argument 'threshold' must be non-negative");
             }
-            endInternal(ticker.read());
+            endAndAddRecentEntry(ticker.read());
         }
 
         @Override
@@ -1136,7 +1173,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
         @Override
         public void endWithInfo(Throwable t) {
-            endInternal(ticker.read());
+            endAndAddRecentEntry(ticker.read());
         }
 
         private void endWithErrorInternal(@Nullable String message, @Nullable Throwable t) {
@@ -1154,6 +1191,20 @@ public class ThreadContextImpl implements ThreadContextPlus {
             }
         }
 
+        private void endAndAddRecentEntry(long endTick) {
+            if (initialComplete) {
+                // this guards against end*() being called multiple times on async trace entries
+                return;
+            }
+            endInternal(endTick);
+            if (asyncTimer == null) {
+                // async trace entries can end on a different thread, and the recent entries are
+                // only updated by the thread context's thread
+                traceEntryComponent.addRecentEntry(messageSupplier, getQueryData(), startTick,
+                        endTick);
+            }
+        }
+
         private void endInternal(long endTick) {
             if (initialComplete) {
                 // this guards against end*() being called multiple times on async trace entries
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -62,6 +62,7 @@ public class TimerImpl implements Timer, TransactionTimer {
     private final ThreadContextImpl threadContext;
     private final @Nullable TimerImpl parent;
     private final TimerNameImpl timerName;
+    private final int id;
 
     // nanosecond rollover (292 years) isn't a concern for total time on a single transaction
     private long totalNanos;
@@ -70,11 +71,10 @@ public class TimerImpl implements Timer, TransactionTimer {
     private long startTick;
     private int selfNestingLevel;
 
-    // nestedTimers is only accessed by the transaction thread so no need for volatile or
-    // synchronized access during timer capture which is important
-    //
-    // lazy initialize to save memory in common case where this is a leaf timer
-    private @MonotonicNonNull NestedTimerMap nestedTimers;
+    // nestedTimers is shared by all timers of the thread context and is only accessed by the
+    // transaction thread so no need for volatile or synchronized access during timer capture which
+    // is important
+    private final NestedTimerTable nestedTimers;
 
     // separate linked list for safe iterating by other threads (e.g. partial trace capture and
     // active trace viewer)
@@ -82,15 +82,18 @@ public class TimerImpl implements Timer, TransactionTimer {
     private final @Nullable TimerImpl nextSibling;
 
     static TimerImpl createRootTimer(ThreadContextImpl threadContext, TimerNameImpl timerName) {
-        return new TimerImpl(threadContext, null, null, timerName);
+        return new TimerImpl(threadContext, null, null, timerName, new NestedTimerTable(), 0);
     }
 
     private TimerImpl(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
-            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName,
+            NestedTimerTable nestedTimers, int id) {
         this.timerName = timerName;
         this.parent = parent;
         this.nextSibling = nextSibling;
         this.threadContext = threadContext;
+        this.nestedTimers = nestedTimers;
+        this.id = id;
     }
 
     // safe to be called from another thread when transaction is still active transaction
@@ -257,18 +260,17 @@ public class TimerImpl implements Timer, TransactionTimer {
     }
 
     private TimerImpl startNestedTimerInternal(TimerName timerName, long nestedTimerStartTick) {
-        if (nestedTimers == null) {
-            nestedTimers = new NestedTimerMap();
-        }
         TimerNameImpl timerNameImpl = (TimerNameImpl) timerName;
-        TimerImpl nestedTimer = nestedTimers.get(timerNameImpl);
+        int timerNameId = timerNameImpl.id();
+        TimerImpl nestedTimer = nestedTimers.get(id, timerNameId);
         if (nestedTimer != null) {
             nestedTimer.start(nestedTimerStartTick);
             return nestedTimer;
         }
-        nestedTimer = new TimerImpl(threadContext, this, headChild, timerNameImpl);
+        nestedTimer = new TimerImpl(threadContext, this, headChild, timerNameImpl, nestedTimers,
+                nestedTimers.nextTimerId());
         nestedTimer.start(nestedTimerStartTick);
-        nestedTimers.put(timerNameImpl, nestedTimer);
+        nestedTimers.put(id, timerNameId, nestedTimer);
         headChild = nestedTimer;
         return nestedTimer;
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -153,6 +153,7 @@ public class TraceCreator {
             long auxThreadProfileSampleCount) {
         builder.setEntryCount(entryCount);
         builder.setEntryLimitExceeded(transaction.isEntryLimitExceeded(entryCount));
+        builder.setEntriesUnsampled(!transaction.isSampled());
         builder.setQueryCount(queryCount);
         builder.setQueryLimitExceeded(transaction.isQueryLimitExceeded(queryCount));
         builder.setMainThreadProfileSampleCount(mainThreadProfileSampleCount);
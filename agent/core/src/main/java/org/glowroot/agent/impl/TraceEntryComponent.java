@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +25,9 @@ import org.glowroot.agent.model.AsyncTimer;
 import org.glowroot.agent.model.ErrorMessage;
 import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.util.Tickers;
+
+import static com.google.common.base.Preconditions.checkNotNull;
 
 // this supports updating by a single thread and reading by multiple threads
 class TraceEntryComponent {
@@ -43,14 +48,33 @@ class TraceEntryComponent {
 
     private TraceEntryImpl tailEntry;
 
+    // only non-null when compact trace entries are enabled
+    private final @Nullable CompactTraceEntryStore compactEntryStore;
+
+    // compact entry (if any) on top of activeEntry, this is never the parent of another entry
+    private @Nullable CompactTraceEntry activeCompactEntry;
+
+    // head of linked list of pooled compact entry handles
+    private @Nullable CompactTraceEntry pooledCompactEntry;
+
+    // only non-null for thread contexts of unsampled transactions
+    private final @Nullable RecentTraceEntryRing recentEntryRing;
+
     TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
             TimerImpl timer, long startTick) {
+        this(threadContext, messageSupplier, timer, startTick, false, 0);
+    }
+
+    TraceEntryComponent(ThreadContextImpl threadContext, MessageSupplier messageSupplier,
+            TimerImpl timer, long startTick, boolean compactEntries, int maxRecentEntries) {
         this.threadContext = threadContext;
         this.startTick = startTick;
         rootEntry = new TraceEntryImpl(threadContext, null, messageSupplier, null, 0, startTick,
                 timer, null);
         activeEntry = rootEntry;
         tailEntry = rootEntry;
+        compactEntryStore = compactEntries ? new CompactTraceEntryStore() : null;
+        recentEntryRing = maxRecentEntries > 0 ? new RecentTraceEntryRing(maxRecentEntries) : null;
     }
 
     TraceEntryImpl getRootEntry() {
@@ -69,9 +93,14 @@ class TraceEntryComponent {
         return endTick;
     }
 
+    boolean isCompactEntriesEnabled() {
+        return compactEntryStore != null;
+    }
+
     TraceEntryImpl pushEntry(long startTick, Object messageSupplier, TimerImpl syncTimer,
             @Nullable AsyncTimer asyncTimer, @Nullable QueryData queryData,
             long queryExecutionCount) {
+        inflateActiveCompactEntry();
         TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry, messageSupplier,
                 queryData, queryExecutionCount, startTick, syncTimer, asyncTimer);
         tailEntry.setNextTraceEntry(entry);
@@ -84,6 +113,8 @@ class TraceEntryComponent {
     // passed in just to make sure it is the one on top (and if not, then pop until it is found,
     // preventing any nasty bugs from a missed pop, e.g. an entry never being marked as complete)
     void popEntry(TraceEntryImpl entry, long endTick) {
+        // normally there is no active compact entry here, unless a pop was missed
+        inflateActiveCompactEntry();
         popEntrySafe(entry);
         if (entry == rootEntry) {
             this.endTick = endTick;
@@ -95,11 +126,114 @@ class TraceEntryComponent {
     // passed in just to make sure it is the one on top (and if not, then pop until it is found,
     // preventing any nasty bugs from a missed pop, e.g. an entry never being marked as complete)
     void popNonRootEntry(TraceEntryImpl entry) {
+        // normally there is no active compact entry here, unless a pop was missed
+        inflateActiveCompactEntry();
         popEntrySafe(entry);
     }
 
+    // must only be called when compact entries are enabled
+    CompactTraceEntry pushCompactEntry(long startTick, MessageSupplier messageSupplier,
+            TimerImpl syncTimer) {
+        inflateActiveCompactEntry();
+        CompactTraceEntry entry = pooledCompactEntry;
+        if (entry == null) {
+            entry = new CompactTraceEntry(threadContext);
+        } else {
+            pooledCompactEntry = entry.getNextPooledEntry();
+            entry.setNextPooledEntry(null);
+        }
+        entry.start(activeEntry, startTick, messageSupplier, syncTimer);
+        activeCompactEntry = entry;
+        return entry;
+    }
+
+    void popCompactEntry(CompactTraceEntry entry, long endTick,
+            @Nullable ErrorMessage errorMessage,
+            @Nullable ImmutableList<StackTraceElement> locationStackTrace) {
+        if (entry != activeCompactEntry) {
+            // compact entries are inflated before anything else can be pushed or popped, so this
+            // can only be a compact entry that was already ended (and possibly reused)
+            logger.error("compact entry {} is not at top of stack", entry.getMessageSupplier(),
+                    new Exception("location stack trace"));
+            return;
+        }
+        activeCompactEntry = null;
+        Object messageSupplier = checkNotNull(entry.getMessageSupplier());
+        if (errorMessage == null && locationStackTrace == null) {
+            checkNotNull(compactEntryStore).add(tailEntry, activeEntry, messageSupplier,
+                    entry.getStartTick(), endTick);
+        } else {
+            // uncommon case, so just add a regular (completed) trace entry
+            TraceEntryImpl completedEntry = TraceEntryImpl.createCompletedEntry(threadContext,
+                    activeEntry, messageSupplier, null, errorMessage, locationStackTrace,
+                    entry.getStartTick(), endTick);
+            tailEntry.setNextTraceEntry(completedEntry);
+            tailEntry = completedEntry;
+        }
+        entry.setNextPooledEntry(pooledCompactEntry);
+        pooledCompactEntry = entry;
+    }
+
+    // returns the index of the next compact entry to be added
+    int addCompactChildEntries(int compactEntryIndex, TraceEntryImpl predecessor,
+            boolean completed, long captureTick,
+            ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap) {
+        if (compactEntryStore == null) {
+            return compactEntryIndex;
+        }
+        return compactEntryStore.addChildEntries(compactEntryIndex, predecessor, threadContext,
+                completed, captureTick, parentChildMap);
+    }
+
+    // the active compact entry is not part of the linked list or the compact entry store until it
+    // ends (or is inflated), so it is materialized separately here, otherwise a long running leaf
+    // entry (e.g. a hung jdbc call) would be missing from active, partial and stuck traces
+    //
+    // this is called after the linked list and compact entry store have been read, and the active
+    // compact entry is always the most recently started entry, so it belongs last under its parent
+    void addActiveCompactChildEntry(boolean completed, long captureTick,
+            ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap) {
+        if (completed) {
+            return;
+        }
+        CompactTraceEntry compactEntry = activeCompactEntry;
+        if (compactEntry == null) {
+            return;
+        }
+        // the handle can be ended and reused concurrently by the thread context's thread, in which
+        // case the entry has either already been read from the compact entry store, or else it
+        // started after the capture tick and is filtered out below
+        TraceEntryImpl parentTraceEntry = compactEntry.getParentTraceEntry();
+        Object messageSupplier = compactEntry.getMessageSupplier();
+        long startTick = compactEntry.getStartTick();
+        if (parentTraceEntry == null || messageSupplier == null
+                || !Tickers.lessThanOrEqual(startTick, captureTick)) {
+            return;
+        }
+        // no end tick, so it is reported as active
+        parentChildMap.put(parentTraceEntry, new TraceEntryImpl(threadContext, parentTraceEntry,
+                messageSupplier, null, 0, startTick, null, null));
+    }
+
+    // this is used by unsampled transactions to retain their most recent trace entries
+    void addRecentEntry(Object messageSupplier, @Nullable QueryData queryData, long startTick,
+            long endTick) {
+        if (recentEntryRing != null) {
+            recentEntryRing.add(messageSupplier, queryData, startTick, endTick);
+        }
+    }
+
+    void addRecentChildEntries(boolean completed, long captureTick,
+            ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap) {
+        if (recentEntryRing != null) {
+            recentEntryRing.addChildEntries(rootEntry, threadContext, completed, captureTick,
+                    parentChildMap);
+        }
+    }
+
     TraceEntryImpl addErrorEntry(long startTick, long endTick, @Nullable Object messageSupplier,
             @Nullable QueryData queryData, ErrorMessage errorMessage) {
+        inflateActiveCompactEntry();
         TraceEntryImpl entry = TraceEntryImpl.createCompletedErrorEntry(threadContext, activeEntry,
                 messageSupplier, queryData, errorMessage, startTick, endTick);
         tailEntry.setNextTraceEntry(entry);
@@ -107,7 +241,10 @@ class TraceEntryComponent {
         return entry;
     }
 
+    // this is only called by the thread context's thread (when creating an auxiliary thread
+    // context), and inflates the active compact entry, if any, since it will be the parent
     TraceEntryImpl getActiveEntry() {
+        inflateActiveCompactEntry();
         return activeEntry;
     }
 
@@ -116,7 +253,27 @@ class TraceEntryComponent {
     }
 
     boolean isEmpty() {
-        return rootEntry == tailEntry;
+        return rootEntry == tailEntry && activeCompactEntry == null
+                && (compactEntryStore == null || compactEntryStore.isEmpty())
+                && (recentEntryRing == null || recentEntryRing.isEmpty());
+    }
+
+    private void inflateActiveCompactEntry() {
+        CompactTraceEntry compactEntry = activeCompactEntry;
+        if (compactEntry == null) {
+            return;
+        }
+        // the compact entry is always the most recently started entry, so it belongs at the end of
+        // the linked list
+        TraceEntryImpl entry = new TraceEntryImpl(threadContext, activeEntry,
+                compactEntry.getMessageSupplier(), null, 0, compactEntry.getStartTick(),
+                compactEntry.getSyncTimer(), null);
+        tailEntry.setNextTraceEntry(entry);
+        tailEntry = entry;
+        activeEntry = entry;
+        // the handle now delegates to the inflated entry, so is not returned to the pool
+        compactEntry.setInflatedEntry(entry);
+        activeCompactEntry = null;
     }
 
     private void popEntrySafe(TraceEntryImpl entry) {
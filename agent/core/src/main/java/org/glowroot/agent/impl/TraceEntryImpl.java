@@ -102,6 +102,25 @@ class TraceEntryImpl extends QueryEntryBase implements AsyncQueryEntry, Timer {
         return entry;
     }
 
+    // this is used to materialize compact trace entries (see CompactTraceEntry) and recent trace
+    // entries of unsampled transactions (see RecentTraceEntryRing)
+    static TraceEntryImpl createCompletedEntry(ThreadContextImpl threadContext,
+            TraceEntryImpl parentTraceEntry, Object messageSupplier, @Nullable QueryData queryData,
+            @Nullable ErrorMessage errorMessage,
+            @Nullable ImmutableList<StackTraceElement> locationStackTrace, long startTick,
+            long endTick) {
+        // timing/etc for queryData have been captured already at this point, so passing
+        // queryExecutionCount -1 (see createCompletedErrorEntry() above)
+        TraceEntryImpl entry = new TraceEntryImpl(threadContext, parentTraceEntry,
+                messageSupplier, queryData, -1, startTick, null, null);
+        entry.errorMessage = errorMessage;
+        entry.locationStackTrace = locationStackTrace;
+        entry.endTick = endTick;
+        entry.selfNestingLevel = 0;
+        entry.initialComplete = true;
+        return entry;
+    }
+
     TraceEntryImpl(ThreadContextImpl threadContext, @Nullable TraceEntryImpl parentTraceEntry,
             @Nullable Object messageSupplier, @Nullable QueryData queryData,
             long queryExecutionCount, long startTick, @Nullable TimerImpl syncTimer,
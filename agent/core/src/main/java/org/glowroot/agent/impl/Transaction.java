@@ -60,6 +60,7 @@ import org.glowroot.agent.model.MergedThreadTimer;
 import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.ServiceCallCollector;
 import org.glowroot.agent.model.SharedQueryTextCollection;
+import org.glowroot.agent.model.StackFrameTable;
 import org.glowroot.agent.model.ThreadProfile;
 import org.glowroot.agent.model.ThreadStats;
 import org.glowroot.agent.model.TransactionTimer;
@@ -131,6 +132,10 @@ public class Transaction {
     private volatile @Nullable ErrorMessage errorMessage;
 
     private final int maxTraceEntries;
+    // unsampled transactions do not capture (non-error) trace entries, other than their most
+    // recent ones, see TransactionService
+    private final boolean sampled;
+    private final int maxRecentEntries;
     private final int maxQueryAggregates;
     private final int maxServiceCallAggregates;
     private final int maxProfileSamples;
@@ -210,8 +215,9 @@ public class Transaction {
 
     Transaction(long startTime, long startTick, String transactionType, String transactionName,
             MessageSupplier messageSupplier, TimerName timerName, boolean captureThreadStats,
-            int maxTraceEntries, int maxQueryAggregates, int maxServiceCallAggregates,
-            int maxProfileSamples, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
+            int maxTraceEntries, boolean sampled, int maxRecentEntries, int maxQueryAggregates,
+            int maxServiceCallAggregates, int maxProfileSamples,
+            @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
             TransactionRegistry transactionRegistry, TransactionService transactionService,
             ConfigService configService, ThreadContextThreadLocal.Holder threadContextHolder,
@@ -222,6 +228,8 @@ public class Transaction {
         this.transactionType = transactionType;
         this.transactionName = transactionName;
         this.maxTraceEntries = maxTraceEntries;
+        this.sampled = sampled;
+        this.maxRecentEntries = maxRecentEntries;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.maxProfileSamples = maxProfileSamples;
@@ -478,7 +486,16 @@ public class Transaction {
 
     // this method has side effect of incrementing counter
     boolean allowAnotherEntry() {
-        return entryLimitCounter++ < maxTraceEntries;
+        return sampled && entryLimitCounter++ < maxTraceEntries;
+    }
+
+    boolean isSampled() {
+        return sampled;
+    }
+
+    // this is only non-zero for unsampled transactions
+    int getMaxRecentEntries() {
+        return sampled ? 0 : maxRecentEntries;
     }
 
     // this method has side effect of incrementing counter
@@ -778,34 +795,57 @@ public class Transaction {
         return queryCount > maxQueryAggregates;
     }
 
-    void captureStackTrace(boolean auxiliary, ThreadInfo threadInfo) {
+    void captureStackTrace(boolean auxiliary, StackTraceElement[] stackTrace,
+            Thread.State threadState, StackFrameTable frameTable) {
         if (completed) {
             return;
         }
-        ThreadProfile profile;
-        if (auxiliary) {
-            profile = auxThreadProfile;
-        } else {
-            profile = mainThreadProfile;
+        ThreadProfile profile = getThreadProfile(auxiliary);
+        if (profile == null) {
+            profile = new ThreadProfile(maxProfileSamples);
+            profile.addStackTrace(stackTrace, threadState, frameTable);
+            setThreadProfile(auxiliary, profile);
+            return;
+        }
+        profile.addStackTrace(stackTrace, threadState, frameTable);
+    }
+
+    void captureStackTrace(boolean auxiliary, int[] frameIds, Thread.State threadState,
+            StackFrameTable frameTable) {
+        if (completed) {
+            return;
         }
+        ThreadProfile profile = getThreadProfile(auxiliary);
         if (profile == null) {
-            // initialization possible race condition (between StackTraceCollector and
-            // UserProfileRunnable) is ok, worst case scenario it misses an almost simultaneously
-            // captured stack trace
-            //
-            // profile is constructed and first stack trace is added prior to setting the
-            // transaction profile field, so that it is not possible to read a profile that doesn't
-            // have at least one stack trace
             profile = new ThreadProfile(maxProfileSamples);
-            profile.addStackTrace(threadInfo);
-            if (auxiliary) {
-                auxThreadProfile = profile;
-            } else {
-                mainThreadProfile = profile;
-            }
+            profile.addStackTrace(frameIds, threadState, frameTable);
+            setThreadProfile(auxiliary, profile);
             return;
         }
-        profile.addStackTrace(threadInfo);
+        profile.addStackTrace(frameIds, threadState, frameTable);
+    }
+
+    private @Nullable ThreadProfile getThreadProfile(boolean auxiliary) {
+        if (auxiliary) {
+            return auxThreadProfile;
+        } else {
+            return mainThreadProfile;
+        }
+    }
+
+    // initialization possible race condition (between StackTraceCollector and
+    // UserProfileRunnable) is ok, worst case scenario it misses an almost simultaneously
+    // captured stack trace
+    //
+    // profile is constructed and first stack trace is added prior to setting the transaction
+    // profile field, so that it is not possible to read a profile that doesn't have at least one
+    // stack trace
+    private void setThreadProfile(boolean auxiliary, ThreadProfile profile) {
+        if (auxiliary) {
+            auxThreadProfile = profile;
+        } else {
+            mainThreadProfile = profile;
+        }
     }
 
     void end(long endTick, boolean completeAsyncTransaction) {
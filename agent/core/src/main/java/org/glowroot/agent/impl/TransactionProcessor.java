@@ -20,8 +20,8 @@ import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import javax.annotation.concurrent.GuardedBy;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -38,7 +38,6 @@ import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
-import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -51,6 +50,12 @@ public class TransactionProcessor {
     // back pressure on writing captured data to disk/network
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    // number of threads that transactions are merged into aggregates on (each owning a shard of
+    // transaction type/transaction name combinations), the default of 1 merges transactions
+    // directly on the processing thread
+    private static final int AGGREGATION_WORKERS =
+            Math.max(1, Integer.getInteger("glowroot.aggregation.workers", 1));
+
     private volatile AggregateIntervalCollector activeIntervalCollector;
 
     // need to guarantee these are processed in order (at least when running embedded collector
@@ -60,6 +65,8 @@ public class TransactionProcessor {
 
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
+    private final @Nullable ExecutorService aggregationExecutor;
+    private final List<AggregationWorker> aggregationWorkers;
     private final Collector collector;
     private final TraceCollector traceCollector;
     private final ConfigService configService;
@@ -67,14 +74,18 @@ public class TransactionProcessor {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    @GuardedBy("queueLock")
-    private PendingTransaction tail = head;
-    @GuardedBy("queueLock")
-    private int queueLength;
-    private final Object queueLock = new Object();
+    // the transaction queue is a lock free multi-producer single-consumer linked list
+    //
+    // producers append by swinging the tail via compare-and-set, and assign the capture time
+    // inside the same compare-and-set attempt as max(current time, capture time of previous tail),
+    // which guarantees that capture times are non-decreasing in queue order (this is what the
+    // queue reader relies on when deciding it is time to flush)
+    //
+    // head is only accessed by the single processing thread, and points to the last consumed node
+    private PendingTransaction head = new PendingTransaction(null);
+    private final AtomicReference<PendingTransaction> tail =
+            new AtomicReference<PendingTransaction>(head);
+    private final AtomicInteger queueLength = new AtomicInteger();
 
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionProcessor.class);
@@ -92,11 +103,26 @@ public class TransactionProcessor {
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
+        if (AGGREGATION_WORKERS == 1) {
+            aggregationExecutor = null;
+            aggregationWorkers = ImmutableList.of();
+        } else {
+            aggregationExecutor = Executors.newFixedThreadPool(AGGREGATION_WORKERS,
+                    ThreadFactories.create("Glowroot-Aggregate-Worker"));
+            List<AggregationWorker> aggregationWorkers = Lists.newArrayList();
+            for (int i = 0; i < AGGREGATION_WORKERS; i++) {
+                AggregationWorker aggregationWorker = new AggregationWorker();
+                aggregationExecutor.execute(aggregationWorker);
+                aggregationWorkers.add(aggregationWorker);
+            }
+            this.aggregationWorkers = ImmutableList.copyOf(aggregationWorkers);
+        }
         activeIntervalCollector =
                 new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
                         configService.getAdvancedConfig().maxTransactionAggregates(),
                         configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+                        configService.getAdvancedConfig().maxServiceCallAggregates(),
+                        AGGREGATION_WORKERS, clock);
         processingExecutor.execute(new TransactionProcessorLoop());
         flushingExecutor.execute(new AggregateFlushingLoop());
     }
@@ -131,27 +157,40 @@ public class TransactionProcessor {
     }
 
     void processOnCompletion(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        boolean exceededLimit = false;
-        synchronized (queueLock) {
-            if (queueLength < TRANSACTION_PENDING_LIMIT) {
-                newTail.captureTime = clock.currentTimeMillis();
-                tail.next = newTail;
-                tail = newTail;
-                queueLength++;
-            } else {
-                exceededLimit = true;
-            }
-        }
-        if (exceededLimit) {
+        if (queueLength.incrementAndGet() > TRANSACTION_PENDING_LIMIT) {
+            queueLength.decrementAndGet();
             backPressureLogger.warn("not capturing a transaction because of an excessive backlog of"
                     + " {} transactions already waiting to be captured", TRANSACTION_PENDING_LIMIT);
             transaction.setCaptureTime(clock.currentTimeMillis());
             transaction.removeFromActiveTransactions();
+            return;
         }
+        // transactions need to be placed into processing queue in the order of captureTime (so
+        // that queue reader can assume if captureTime indicates time to flush, then no new
+        // transactions will come in with prior captureTime)
+        enqueue(new PendingTransaction(transaction));
+    }
+
+    private void enqueue(PendingTransaction newTail) {
+        while (true) {
+            PendingTransaction currTail = tail.get();
+            newTail.captureTime = Math.max(clock.currentTimeMillis(), currTail.captureTime);
+            if (tail.compareAndSet(currTail, newTail)) {
+                // linking the previous tail is the only step that is not atomic with the
+                // compare-and-set, so the queue reader needs to handle the (very short) window
+                // where tail has moved but the link is not yet visible
+                currTail.next = newTail;
+                return;
+            }
+        }
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxTransactionAggregates(),
+                configService.getAdvancedConfig().maxQueryAggregates(),
+                configService.getAdvancedConfig().maxServiceCallAggregates(), AGGREGATION_WORKERS,
+                clock);
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
@@ -177,6 +216,13 @@ public class TransactionProcessor {
         if (!processingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (aggregationExecutor != null) {
+            // shutdownNow() is needed here to send interrupt to aggregation worker threads
+            aggregationExecutor.shutdownNow();
+            if (!aggregationExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
         // shutdownNow() is needed here to send interrupt to flushing thread
         flushingExecutor.shutdownNow();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
@@ -201,7 +247,10 @@ public class TransactionProcessor {
         private void processOne() throws InterruptedException {
             PendingTransaction pendingTransaction = head.next;
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
+                if (tail.get() != head) {
+                    // a producer has appended to the queue, but has not linked it yet
+                    Thread.yield();
+                } else if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
                     maybeEndOfInterval();
                 } else {
                     // TODO benchmark other alternatives to sleep (e.g. wait/notify)
@@ -209,10 +258,23 @@ public class TransactionProcessor {
                 }
                 return;
             }
+            // remove head (the old head is no longer reachable from the queue)
+            head = pendingTransaction;
+            Transaction transaction = pendingTransaction.transaction;
+            if (transaction == null) {
+                // end of interval marker (see maybeEndOfInterval() below)
+                if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
+                    flushAndResetActiveIntervalCollector(pendingTransaction.captureTime);
+                }
+                return;
+            }
+            // release reference since this node remains the head until the next one is consumed
+            pendingTransaction.transaction = null;
+            queueLength.decrementAndGet();
+
             // remove transaction from list of active transactions
             // used to do this at the very end of Transaction.end(), but moved to here to remove the
             // (minor) cost from the transaction main path
-            Transaction transaction = checkNotNull(pendingTransaction.transaction);
             transaction.setCaptureTime(pendingTransaction.captureTime);
 
             // send to the trace collector before removing from transaction registry so that the
@@ -222,48 +284,39 @@ public class TransactionProcessor {
 
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
-            }
             if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
                 flushAndResetActiveIntervalCollector(pendingTransaction.captureTime);
             }
-            activeIntervalCollector.add(transaction);
+            if (aggregationWorkers.isEmpty()) {
+                activeIntervalCollector.add(transaction);
+            } else {
+                int shardIndex = AggregateIntervalCollector.getShardIndex(
+                        transaction.getTransactionType(), transaction.getTransactionName(),
+                        aggregationWorkers.size());
+                activeIntervalCollector.beginPendingAdd();
+                try {
+                    // this blocks when the worker is behind, which then applies back pressure via
+                    // TRANSACTION_PENDING_LIMIT
+                    aggregationWorkers.get(shardIndex).queue
+                            .put(new PendingAdd(activeIntervalCollector, transaction));
+                } catch (InterruptedException e) {
+                    activeIntervalCollector.endPendingAdd();
+                    throw e;
+                }
+            }
         }
 
         private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
-            }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushAndResetActiveIntervalCollector(currentTime);
-            }
+            // instead of locking out producers while checking the time, the end of interval
+            // marker goes through the same queue, so it is assigned a capture time that is
+            // ordered with respect to all transactions, and any transaction enqueued after it is
+            // guaranteed to have capture time greater than or equal to the marker's capture time
+            enqueue(new PendingTransaction(null));
         }
 
         private void flushAndResetActiveIntervalCollector(long currentTime) {
             flushActiveIntervalCollector();
-            activeIntervalCollector =
-                    new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
-                            configService.getAdvancedConfig().maxTransactionAggregates(),
-                            configService.getAdvancedConfig().maxQueryAggregates(),
-                            configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+            activeIntervalCollector = createIntervalCollector(currentTime);
         }
 
         private void flushActiveIntervalCollector() {
@@ -307,10 +360,52 @@ public class TransactionProcessor {
         }
     }
 
+    private static class AggregationWorker implements Runnable {
+
+        private final BlockingQueue<PendingAdd> queue =
+                Queues.newLinkedBlockingQueue(TRANSACTION_PENDING_LIMIT);
+
+        @Override
+        public void run() {
+            while (true) {
+                PendingAdd pendingAdd;
+                try {
+                    pendingAdd = queue.take();
+                } catch (InterruptedException e) {
+                    // shutdown requested (see close method above)
+                    logger.debug(e.getMessage(), e);
+                    return;
+                }
+                try {
+                    pendingAdd.intervalCollector.add(pendingAdd.transaction);
+                } catch (Throwable e) {
+                    // log and continue processing
+                    logger.error(e.getMessage(), e);
+                } finally {
+                    pendingAdd.intervalCollector.endPendingAdd();
+                }
+            }
+        }
+    }
+
+    private static class PendingAdd {
+
+        private final AggregateIntervalCollector intervalCollector;
+        private final Transaction transaction;
+
+        private PendingAdd(AggregateIntervalCollector intervalCollector, Transaction transaction) {
+            this.intervalCollector = intervalCollector;
+            this.transaction = transaction;
+        }
+    }
+
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        // only null for initial head and for end of interval markers, and also nulled out after
+        // being consumed
+        private @Nullable Transaction transaction;
+        // written before the node is published via compare-and-set on tail
+        private long captureTime;
         private volatile @Nullable PendingTransaction next;
 
         private PendingTransaction(@Nullable Transaction transaction) {
@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.google.common.base.Ticker;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -42,6 +44,10 @@ public class TransactionService implements ConfigListener {
     private final TransactionCompletionCallback transactionCompletionCallback =
             new TransactionCompletionCallback();
 
+    // counter based rather than random, both to avoid contention on a shared Random and so that
+    // sampled transactions are spread evenly
+    private final AtomicInteger samplingCounter = new AtomicInteger();
+
     // cache for fast read access
     // visibility is provided by memoryBarrier below
     private boolean captureThreadStats;
@@ -49,6 +55,8 @@ public class TransactionService implements ConfigListener {
     private int maxQueryAggregates;
     private int maxServiceCallAggregates;
     private int maxProfileSamples;
+    private int traceEntrySamplingPercentage;
+    private int maxRecentTraceEntries;
 
     // intentionally not volatile for small optimization
     private @MonotonicNonNull TransactionProcessor transactionProcessor;
@@ -90,9 +98,10 @@ public class TransactionService implements ConfigListener {
         long startTick = ticker.read();
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
                 transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
-                maxTraceEntries, maxQueryAggregates, maxServiceCallAggregates, maxProfileSamples,
-                threadAllocatedBytes, transactionCompletionCallback, ticker, transactionRegistry,
-                this, configService, threadContextHolder, rootNestingGroupId, rootSuppressionKeyId);
+                maxTraceEntries, isSampled(), maxRecentTraceEntries, maxQueryAggregates,
+                maxServiceCallAggregates, maxProfileSamples, threadAllocatedBytes,
+                transactionCompletionCallback, ticker, transactionRegistry, this, configService,
+                threadContextHolder, rootNestingGroupId, rootSuppressionKeyId);
         SelfRemovableEntry transactionEntry = transactionRegistry.addTransaction(transaction);
         transaction.setTransactionEntry(transactionEntry);
         threadContextHolder.set(transaction.getMainThreadContext());
@@ -120,6 +129,22 @@ public class TransactionService implements ConfigListener {
         maxServiceCallAggregates = advancedConfig.maxServiceCallAggregates();
         maxTraceEntries = advancedConfig.maxTraceEntriesPerTransaction();
         maxProfileSamples = advancedConfig.maxProfileSamplesPerTransaction();
+        traceEntrySamplingPercentage = advancedConfig.traceEntrySamplingPercentage();
+        maxRecentTraceEntries = advancedConfig.maxRecentTraceEntriesPerUnsampledTransaction();
+    }
+
+    // head sampling decision, made when the transaction starts
+    private boolean isSampled() {
+        int percentage = traceEntrySamplingPercentage;
+        if (percentage >= 100) {
+            return true;
+        }
+        if (percentage <= 0) {
+            return false;
+        }
+        // exactly "percentage" out of every 100 consecutive counter values are sampled
+        int n = (samplingCounter.getAndIncrement() & Integer.MAX_VALUE) % 100;
+        return n * percentage % 100 < percentage;
     }
 
     private class TransactionCompletionCallback implements CompletionCallback {
@@ -70,10 +70,12 @@ import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.PointcutClassFileTransformer;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.ScheduledRunnable;
+import org.glowroot.common.util.Version;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -91,6 +93,14 @@ public class AgentModule {
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", MINUTES.toMillis(1));
 
+    // persist woven bytecode across jvm restarts, see WeavingCache
+    private static final boolean WEAVING_CACHE =
+            Boolean.getBoolean("glowroot.internal.weavingCache");
+
+    // skip analysis of classes that no pointcut can match, see ClassPreFilter
+    private static final boolean WEAVING_PRE_FILTER =
+            !Boolean.getBoolean("glowroot.internal.disableWeavingPreFilter");
+
     private final Clock clock;
     private final Ticker ticker;
 
@@ -150,9 +160,16 @@ public class AgentModule {
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         TimerNameCache timerNameCache = new TimerNameCache();
 
+        WeavingCache weavingCache = null;
+        if (WEAVING_CACHE && instrumentation != null) {
+            weavingCache = new WeavingCache(new File(tmpDir, "weaving-cache"),
+                    Version.getVersion(AgentModule.class), adviceCache.getShimTypes(),
+                    adviceCache.getMixinTypes());
+        }
         weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, ticker,
-                timerNameCache, configService);
+                timerNameCache, configService, weavingCache,
+                WEAVING_PRE_FILTER ? adviceCache.getClassPreFilterSupplier() : null);
 
         // need to initialize glowroot-agent-api, glowroot-agent-plugin-api and glowroot-weaving-api
         // services before enabling instrumentation
@@ -76,8 +76,9 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
     }
 
     @Override
-    public void init(@Nullable File pluginsDir, final List<File> confDirs, File logDir, File tmpDir,
-            final @Nullable File glowrootJarFile, final Map<String, String> properties,
+    public void init(@Nullable File pluginsDir, final List<File> confDirs, File logDir,
+            final File tmpDir, final @Nullable File glowrootJarFile,
+            final Map<String, String> properties,
             final @Nullable Instrumentation instrumentation,
             @Nullable PreCheckClassFileTransformer preCheckClassFileTransformer,
             final String glowrootVersion, Closeable agentDirLockCloseable) throws Exception {
@@ -130,7 +131,7 @@ public class NonEmbeddedGlowrootAgentInit implements GlowrootAgentInit {
                     collector = customCollectorClass.newInstance();
                 } else {
                     centralCollector = new CentralCollector(properties,
-                            checkNotNull(collectorAddress), collectorAuthority, confDirs,
+                            checkNotNull(collectorAddress), collectorAuthority, confDirs, tmpDir,
                             configReadOnly, agentModule.getLiveJvmService(),
                             agentModule.getLiveWeavingService(),
                             agentModule.getLiveTraceRepository(), agentConfigUpdater,
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// full query text sha1s are needed for each long query text when merging aggregates and when
+// sending aggregates and traces to the central collector, and the same long query texts are
+// typically seen in every aggregate interval and in many traces
+//
+// the cache is keyed by query text equality, since plugins are not required to pass the same
+// query text instance each time (though the jdbc plugin interns the sql of prepared statements, in
+// which case lookups short circuit on identity), and String caches its own hash code so repeat
+// lookups with the same instance do not re-scan the query text
+//
+// the cache is bounded by the total length of the cached query texts (instead of by the number of
+// entries) since it holds strong references to them, and the long query texts that get here are
+// often orm generated sql that can be many kilobytes each
+public class FullQueryTextSha1s {
+
+    private static final long MAX_CACHED_CHARS =
+            Long.getLong("glowroot.internal.fullQueryTextSha1CacheMaxChars", 1024 * 1024);
+
+    private static final LoadingCache<String, String> sha1s = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_CHARS)
+            .weigher(new Weigher<String, String>() {
+                @Override
+                public int weigh(String fullQueryText, String sha1) {
+                    return fullQueryText.length();
+                }
+            })
+            .build(new CacheLoader<String, String>() {
+                @Override
+                public String load(String fullQueryText) {
+                    return Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
+                }
+            });
+
+    private FullQueryTextSha1s() {}
+
+    public static String get(String fullQueryText) {
+        return sha1s.getUnchecked(fullQueryText);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2018 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,10 +15,24 @@
  */
 package org.glowroot.agent.model;
 
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Doubles;
+
+import org.glowroot.common.model.HeavyHitterHeap;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
-class MutableQuery {
+class MutableQuery implements HeavyHitterHeap.Entry {
+
+    static final Ordering<MutableQuery> byTotalDurationDesc = new Ordering<MutableQuery>() {
+        @Override
+        public int compare(MutableQuery left, MutableQuery right) {
+            return Doubles.compare(right.getTotalDurationNanos(), left.getTotalDurationNanos());
+        }
+    };
+
+    private final String type;
+    private final String text;
 
     private double totalDurationNanos;
     private long executionCount;
@@ -28,6 +42,24 @@ class MutableQuery {
 
     private boolean active;
 
+    // maximum total duration that may have been attributed to the limit exceeded bucket before
+    // this query was admitted (see HeavyHitterHeap)
+    private double errorBoundNanos;
+    private int heapIndex = -1;
+
+    MutableQuery(String type, String text) {
+        this.type = type;
+        this.text = text;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    String getText() {
+        return text;
+    }
+
     double getTotalDurationNanos() {
         return totalDurationNanos;
     }
@@ -48,6 +80,25 @@ class MutableQuery {
         return active;
     }
 
+    double getErrorBoundNanos() {
+        return errorBoundNanos;
+    }
+
+    @Override
+    public double getEstimatedTotalDurationNanos() {
+        return totalDurationNanos + errorBoundNanos;
+    }
+
+    @Override
+    public int getHeapIndex() {
+        return heapIndex;
+    }
+
+    @Override
+    public void setHeapIndex(int heapIndex) {
+        this.heapIndex = heapIndex;
+    }
+
     void addToTotalDurationNanos(double totalDurationNanos) {
         this.totalDurationNanos += totalDurationNanos;
     }
@@ -67,6 +118,10 @@ class MutableQuery {
         this.active = active;
     }
 
+    void setErrorBoundNanos(double errorBoundNanos) {
+        this.errorBoundNanos = errorBoundNanos;
+    }
+
     void add(MutableQuery query) {
         addToTotalDurationNanos(query.totalDurationNanos);
         addToExecutionCount(query.executionCount);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2018 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,18 +19,19 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.hash.Hashing;
+import com.google.common.collect.Sets;
 import com.google.common.primitives.Doubles;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.common.Constants;
+import org.glowroot.common.model.HeavyHitterHeap;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
-import static com.google.common.base.Charsets.UTF_8;
-
 public class QueryCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
@@ -42,6 +43,10 @@ public class QueryCollector {
     private final int hardLimitMultiplierWhileBuilding;
 
     private int queryCount;
+    // only created once the hard limit is reached, after which the query with the smallest
+    // estimated total duration is evicted into the limit exceeded bucket to make room for each new
+    // query (space-saving heavy hitters algorithm)
+    private @MonotonicNonNull HeavyHitterHeap<MutableQuery> heap;
 
     public QueryCollector(int limit, int hardLimitMultiplierWhileBuilding) {
         this.limit = limit;
@@ -50,45 +55,45 @@ public class QueryCollector {
 
     public List<Aggregate.Query> toAggregateProto(
             SharedQueryTextCollection sharedQueryTextCollection, boolean includeActive) {
-        // " + queries.size()" is to cover the maximum number of limit exceeded buckets
-        List<Aggregate.Query> allQueries =
-                Lists.newArrayListWithCapacity(Math.min(queryCount, limit) + queries.size());
-        for (Map.Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
-            for (Map.Entry<String, MutableQuery> innerEntry : outerEntry.getValue().entrySet()) {
-                allQueries.add(innerEntry.getValue().toAggregateProto(outerEntry.getKey(),
-                        innerEntry.getKey(), sharedQueryTextCollection, includeActive));
-            }
-        }
+        List<MutableQuery> allQueries = getAllQueries();
+        Map<String, MutableQuery> limitExceededBuckets;
+        List<MutableQuery> topQueries;
         if (allQueries.size() <= limit) {
             // there could be limit exceeded buckets if hardLimitMultiplierWhileBuilding is 1
-            for (Map.Entry<String, MutableQuery> entry : limitExceededBuckets.entrySet()) {
-                allQueries.add(entry.getValue().toAggregateProto(entry.getKey(),
-                        LIMIT_EXCEEDED_BUCKET, sharedQueryTextCollection, includeActive));
-            }
-            sort(allQueries);
-            return allQueries;
-        }
-        sort(allQueries);
-        List<Aggregate.Query> exceededQueries = allQueries.subList(limit, allQueries.size());
-        allQueries = Lists.newArrayList(allQueries.subList(0, limit));
-        // do not modify original limit exceeded buckets since adding exceeded queries below
-        Map<String, MutableQuery> limitExceededBuckets = copyLimitExceededBuckets();
-        for (Aggregate.Query exceededQuery : exceededQueries) {
-            String queryType = exceededQuery.getType();
-            MutableQuery limitExceededBucket = limitExceededBuckets.get(queryType);
-            if (limitExceededBucket == null) {
-                limitExceededBucket = new MutableQuery();
-                limitExceededBuckets.put(queryType, limitExceededBucket);
+            limitExceededBuckets = this.limitExceededBuckets;
+            topQueries = allQueries;
+        } else {
+            // partial selection of the top queries instead of sorting all of them
+            topQueries = MutableQuery.byTotalDurationDesc.leastOf(allQueries, limit);
+            Set<MutableQuery> topQuerySet = Sets.newHashSet(topQueries);
+            // do not modify original limit exceeded buckets since adding exceeded queries below
+            limitExceededBuckets = copyLimitExceededBuckets();
+            for (MutableQuery query : allQueries) {
+                if (topQuerySet.contains(query)) {
+                    continue;
+                }
+                String queryType = query.getType();
+                MutableQuery limitExceededBucket = limitExceededBuckets.get(queryType);
+                if (limitExceededBucket == null) {
+                    limitExceededBucket = new MutableQuery(queryType, LIMIT_EXCEEDED_BUCKET);
+                    limitExceededBuckets.put(queryType, limitExceededBucket);
+                }
+                limitExceededBucket.add(query);
             }
-            limitExceededBucket.add(exceededQuery);
+        }
+        List<Aggregate.Query> queries =
+                Lists.newArrayListWithCapacity(topQueries.size() + limitExceededBuckets.size());
+        for (MutableQuery query : topQueries) {
+            queries.add(query.toAggregateProto(query.getType(), query.getText(),
+                    sharedQueryTextCollection, includeActive));
         }
         for (Map.Entry<String, MutableQuery> entry : limitExceededBuckets.entrySet()) {
-            allQueries.add(entry.getValue().toAggregateProto(entry.getKey(), LIMIT_EXCEEDED_BUCKET,
+            queries.add(entry.getValue().toAggregateProto(entry.getKey(), LIMIT_EXCEEDED_BUCKET,
                     sharedQueryTextCollection, includeActive));
         }
-        // need to re-sort now including limit exceeded bucket
-        sort(allQueries);
-        return allQueries;
+        // need to sort now including limit exceeded bucket
+        sort(queries);
+        return queries;
     }
 
     public void mergeQuery(String queryType, String queryText, double totalDurationNanos,
@@ -101,17 +106,20 @@ public class QueryCollector {
         MutableQuery aggregateQuery = queriesForType.get(queryText);
         if (aggregateQuery == null) {
             if (queryCount < limit * hardLimitMultiplierWhileBuilding) {
-                aggregateQuery = new MutableQuery();
-                queriesForType.put(queryText, aggregateQuery);
+                aggregateQuery = new MutableQuery(queryType, queryText);
                 queryCount++;
             } else {
-                aggregateQuery = getOrCreateLimitExceededBucket(queryType);
+                aggregateQuery = evictMinQuery(queryType, queryText);
             }
+            queriesForType.put(queryText, aggregateQuery);
         }
         aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
         aggregateQuery.addToExecutionCount(executionCount);
         aggregateQuery.addToTotalRows(hasTotalRows, totalRows);
         aggregateQuery.setActive(active);
+        if (heap != null) {
+            heap.increased(aggregateQuery);
+        }
     }
 
     public void mergeQueriesInto(QueryCollector collector) {
@@ -139,7 +147,7 @@ public class QueryCollector {
                 if (fullQueryText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     truncatedQueryText =
                             fullQueryText.substring(0, Constants.AGGREGATE_QUERY_TEXT_TRUNCATE);
-                    fullQueryTextSha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
+                    fullQueryTextSha1 = FullQueryTextSha1s.get(fullQueryText);
                 } else {
                     truncatedQueryText = fullQueryText;
                     fullQueryTextSha1 = null;
@@ -165,7 +173,7 @@ public class QueryCollector {
                 if (fullQueryText.length() <= Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     continue;
                 }
-                String sha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
+                String sha1 = FullQueryTextSha1s.get(fullQueryText);
                 if (fullQueryTextSha1.equals(sha1)) {
                     return fullQueryText;
                 }
@@ -174,6 +182,30 @@ public class QueryCollector {
         return null;
     }
 
+    private MutableQuery evictMinQuery(String queryType, String queryText) {
+        if (heap == null) {
+            heap = new HeavyHitterHeap<MutableQuery>(getAllQueries());
+        }
+        MutableQuery minQuery = heap.min();
+        Map<String, MutableQuery> minQueriesForType = queries.get(minQuery.getType());
+        if (minQueriesForType != null) {
+            minQueriesForType.remove(minQuery.getText());
+        }
+        getOrCreateLimitExceededBucket(minQuery.getType()).add(minQuery);
+        MutableQuery query = new MutableQuery(queryType, queryText);
+        query.setErrorBoundNanos(minQuery.getEstimatedTotalDurationNanos());
+        heap.replaceMin(query);
+        return query;
+    }
+
+    private List<MutableQuery> getAllQueries() {
+        List<MutableQuery> allQueries = Lists.newArrayListWithCapacity(queryCount);
+        for (Map<String, MutableQuery> queriesForType : queries.values()) {
+            allQueries.addAll(queriesForType.values());
+        }
+        return allQueries;
+    }
+
     private void mergeLimitExceededBucket(String queryType, MutableQuery limitExceededBucket) {
         MutableQuery query = getOrCreateLimitExceededBucket(queryType);
         query.add(limitExceededBucket);
@@ -182,7 +214,7 @@ public class QueryCollector {
     private MutableQuery getOrCreateLimitExceededBucket(String queryType) {
         MutableQuery query = limitExceededBuckets.get(queryType);
         if (query == null) {
-            query = new MutableQuery();
+            query = new MutableQuery(queryType, LIMIT_EXCEEDED_BUCKET);
             limitExceededBuckets.put(queryType, query);
         }
         return query;
@@ -193,7 +225,7 @@ public class QueryCollector {
         for (Map.Entry<String, MutableQuery> entry : limitExceededBuckets.entrySet()) {
             String queryType = entry.getKey();
             MutableQuery limitExceededBucket = entry.getValue();
-            MutableQuery copy = new MutableQuery();
+            MutableQuery copy = new MutableQuery(queryType, LIMIT_EXCEEDED_BUCKET);
             copy.add(limitExceededBucket);
             copies.put(queryType, copy);
         }
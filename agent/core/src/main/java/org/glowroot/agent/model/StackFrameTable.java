@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// bounded table of interned stack frames, so that sampled stack traces can be held as int arrays
+// of frame ids instead of arrays of (mostly duplicate) StackTraceElement instances
+//
+// frame ids are never re-assigned, so once the table is full, new frames are not interned (and
+// callers need to fall back to holding the StackTraceElement directly)
+public class StackFrameTable {
+
+    private final int maxFrames;
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private final Map<StackTraceElement, Integer> frameIds = Maps.newHashMap();
+
+    // lock free reads
+    private final AtomicReferenceArray<StackTraceElement> frames;
+
+    public StackFrameTable(int maxFrames) {
+        this.maxFrames = maxFrames;
+        frames = new AtomicReferenceArray<StackTraceElement>(maxFrames);
+    }
+
+    // returns -1 if the table is full
+    public int intern(StackTraceElement frame) {
+        synchronized (lock) {
+            Integer frameId = frameIds.get(frame);
+            if (frameId != null) {
+                return frameId;
+            }
+            int size = frameIds.size();
+            if (size == maxFrames) {
+                return -1;
+            }
+            frames.set(size, frame);
+            frameIds.put(frame, size);
+            return size;
+        }
+    }
+
+    // returns null if the table is full
+    public int /*@Nullable*/ [] intern(StackTraceElement[] stackTrace) {
+        int[] ids = new int[stackTrace.length];
+        for (int i = 0; i < stackTrace.length; i++) {
+            int frameId = intern(stackTrace[i]);
+            if (frameId == -1) {
+                return null;
+            }
+            ids[i] = frameId;
+        }
+        return ids;
+    }
+
+    public StackTraceElement getFrame(int frameId) {
+        // frame id is only handed out after the frame is set
+        return checkNotNull(frames.get(frameId));
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return frameIds.size();
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,55 +15,81 @@
  */
 package org.glowroot.agent.model;
 
-import java.lang.management.ThreadInfo;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// profile tree held in parallel primitive arrays indexed by node id, where each node refers to its
+// stack frame by id in the (shared) frame table
+//
+// node 0 is a synthetic root whose children are the outermost frames, and children are linked
+// through firstChild/nextSibling, so merging a sample only allocates when the arrays need to grow
 public class ThreadProfile {
 
+    private static final int ROOT_NODE = 0;
+    private static final int NO_NODE = -1;
+
+    private static final int INITIAL_CAPACITY = 128;
+
     private final int maxSamples;
     private final Object lock = new Object();
+
+    // frame ids >= 0 refer to the frame table, frame ids < 0 refer to overflowFrames (used once
+    // the frame table is full)
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
+    private int[] frameIds = new int[INITIAL_CAPACITY];
+    // Profile.LeafThreadState number, NONE for non-leaf nodes
     @GuardedBy("lock")
-    private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
+    private int[] leafThreadStates = new int[INITIAL_CAPACITY];
     @GuardedBy("lock")
-    private @MonotonicNonNull MutableProfile profile;
+    private int[] sampleCounts = new int[INITIAL_CAPACITY];
+    @GuardedBy("lock")
+    private int[] firstChildren = new int[INITIAL_CAPACITY];
+    @GuardedBy("lock")
+    private int[] nextSiblings = new int[INITIAL_CAPACITY];
+    @GuardedBy("lock")
+    private int nodeCount;
+
+    // all samples in a given profile are interned using the same frame table
+    @GuardedBy("lock")
+    private @MonotonicNonNull StackFrameTable frameTable;
+    @GuardedBy("lock")
+    private @MonotonicNonNull List<StackTraceElement> overflowFrames;
+    @GuardedBy("lock")
+    private @MonotonicNonNull Map<StackTraceElement, Integer> overflowFrameIds;
+
     @GuardedBy("lock")
     private long sampleCount;
 
     @VisibleForTesting
     public ThreadProfile(int maxSamples) {
         this.maxSamples = maxSamples;
+        firstChildren[ROOT_NODE] = NO_NODE;
+        nextSiblings[ROOT_NODE] = NO_NODE;
+        nodeCount = 1;
     }
 
     public void mergeInto(MutableProfile profile) {
-        synchronized (lock) {
-            if (this.profile == null) {
-                mergeTheUnmergedInto(profile);
-            } else {
-                profile.merge(this.profile);
-            }
-        }
+        profile.merge(toProto());
     }
 
-    public org.glowroot.wire.api.model.ProfileOuterClass.Profile toProto() {
+    public Profile toProto() {
         synchronized (lock) {
-            if (profile == null) {
-                profile = new MutableProfile();
-                mergeTheUnmergedInto(profile);
-                unmergedStackTraces.clear();
-                unmergedStackTraceThreadStates.clear();
-            }
-            return profile.toProto();
+            return new ProtoEncoder().encode();
         }
     }
 
@@ -83,35 +109,207 @@ public class ThreadProfile {
 
     // limit is just to cap memory consumption for a single transaction profile in case it runs for
     // a very very very long time
-    public void addStackTrace(ThreadInfo threadInfo) {
+    public void addStackTrace(StackTraceElement[] stackTrace, Thread.State threadState,
+            StackFrameTable frameTable) {
         synchronized (lock) {
             if (++sampleCount > maxSamples) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
-                    profile = new MutableProfile();
-                    mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
+            this.frameTable = frameTable;
+            int leafThreadState = MutableProfile.getThreadState(threadState).getNumber();
+            int nodeId = ROOT_NODE;
+            // stack trace is ordered leaf first
+            for (int i = stackTrace.length - 1; i >= 0; i--) {
+                StackTraceElement frame = stackTrace[i];
+                int frameId = frameTable.intern(frame);
+                if (frameId == -1) {
+                    frameId = getOverflowFrameId(frame);
                 }
-            } else {
-                profile.merge(stackTrace, threadState);
+                nodeId = mergeNode(nodeId, frameId,
+                        i == 0 ? leafThreadState : Profile.LeafThreadState.NONE_VALUE);
+            }
+        }
+    }
+
+    // frame ids must come from the frame table that is passed in
+    public void addStackTrace(int[] frameIds, Thread.State threadState,
+            StackFrameTable frameTable) {
+        synchronized (lock) {
+            if (++sampleCount > maxSamples) {
+                return;
+            }
+            this.frameTable = frameTable;
+            int leafThreadState = MutableProfile.getThreadState(threadState).getNumber();
+            int nodeId = ROOT_NODE;
+            for (int i = frameIds.length - 1; i >= 0; i--) {
+                nodeId = mergeNode(nodeId, frameIds[i],
+                        i == 0 ? leafThreadState : Profile.LeafThreadState.NONE_VALUE);
             }
         }
     }
 
     @GuardedBy("lock")
-    private void mergeTheUnmergedInto(MutableProfile profile) {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
+    private int mergeNode(int parentNodeId, int frameId, int leafThreadState) {
+        for (int nodeId = firstChildren[parentNodeId]; nodeId != NO_NODE;
+                nodeId = nextSiblings[nodeId]) {
+            if (frameIds[nodeId] == frameId && leafThreadStates[nodeId] == leafThreadState) {
+                sampleCounts[nodeId]++;
+                return nodeId;
+            }
         }
+        if (nodeCount == frameIds.length) {
+            int newCapacity = frameIds.length * 2;
+            frameIds = Arrays.copyOf(frameIds, newCapacity);
+            leafThreadStates = Arrays.copyOf(leafThreadStates, newCapacity);
+            sampleCounts = Arrays.copyOf(sampleCounts, newCapacity);
+            firstChildren = Arrays.copyOf(firstChildren, newCapacity);
+            nextSiblings = Arrays.copyOf(nextSiblings, newCapacity);
+        }
+        int nodeId = nodeCount++;
+        frameIds[nodeId] = frameId;
+        leafThreadStates[nodeId] = leafThreadState;
+        sampleCounts[nodeId] = 1;
+        firstChildren[nodeId] = NO_NODE;
+        nextSiblings[nodeId] = firstChildren[parentNodeId];
+        firstChildren[parentNodeId] = nodeId;
+        return nodeId;
+    }
+
+    @GuardedBy("lock")
+    private int getOverflowFrameId(StackTraceElement frame) {
+        if (overflowFrames == null) {
+            overflowFrames = Lists.newArrayList();
+        }
+        if (overflowFrameIds == null) {
+            overflowFrameIds = Maps.newHashMap();
+        }
+        Integer frameId = overflowFrameIds.get(frame);
+        if (frameId == null) {
+            overflowFrames.add(frame);
+            frameId = -overflowFrames.size();
+            overflowFrameIds.put(frame, frameId);
+        }
+        return frameId;
+    }
+
+    @GuardedBy("lock")
+    private StackTraceElement getFrame(int frameId) {
+        if (frameId >= 0) {
+            // frame table is always set prior to the first node being added
+            return checkNotNull(frameTable).getFrame(frameId);
+        } else {
+            return checkNotNull(overflowFrames).get(-frameId - 1);
+        }
+    }
+
+    // names are resolved once per distinct frame, not once per sample
+    private class ProtoEncoder {
+
+        private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
+
+        private final Profile.Builder builder = Profile.newBuilder();
+
+        // frame id -> [package name index, class name index, method name index, file name index]
+        private final Map<Integer, int[]> frameNameIndexes = Maps.newHashMap();
+
+        @GuardedBy("lock")
+        private Profile encode() {
+            // iterative pre-order traversal to avoid StackOverflowError on deep stack traces
+            //
+            // children are linked newest first, so pushing them in that order pops them in the
+            // order they were added
+            int[] nodeStack = new int[nodeCount];
+            int[] depthStack = new int[nodeCount];
+            int stackSize = 0;
+            for (int nodeId = firstChildren[ROOT_NODE]; nodeId != NO_NODE;
+                    nodeId = nextSiblings[nodeId]) {
+                nodeStack[stackSize] = nodeId;
+                depthStack[stackSize++] = 0;
+            }
+            while (stackSize > 0) {
+                int nodeId = nodeStack[--stackSize];
+                int depth = depthStack[stackSize];
+                int frameId = frameIds[nodeId];
+                int[] nameIndexes = getNameIndexes(frameId);
+                builder.addNode(Profile.ProfileNode.newBuilder()
+                        .setDepth(depth)
+                        .setPackageNameIndex(nameIndexes[0])
+                        .setClassNameIndex(nameIndexes[1])
+                        .setMethodNameIndex(nameIndexes[2])
+                        .setFileNameIndex(nameIndexes[3])
+                        .setLineNumber(getFrame(frameId).getLineNumber())
+                        .setLeafThreadStateValue(leafThreadStates[nodeId])
+                        .setSampleCount(sampleCounts[nodeId]));
+                for (int childNodeId = firstChildren[nodeId]; childNodeId != NO_NODE;
+                        childNodeId = nextSiblings[childNodeId]) {
+                    nodeStack[stackSize] = childNodeId;
+                    depthStack[stackSize++] = depth + 1;
+                }
+            }
+            return builder.build();
+        }
+
+        @GuardedBy("lock")
+        private int[] getNameIndexes(int frameId) {
+            int[] nameIndexes = frameNameIndexes.get(frameId);
+            if (nameIndexes != null) {
+                return nameIndexes;
+            }
+            StackTraceElement frame = getFrame(frameId);
+            String fullClassName = frame.getClassName();
+            int index = fullClassName.lastIndexOf('.');
+            String packageName;
+            String className;
+            if (index == -1) {
+                packageName = "";
+                className = fullClassName;
+            } else {
+                packageName = fullClassName.substring(0, index);
+                className = fullClassName.substring(index + 1);
+            }
+            nameIndexes = new int[4];
+            nameIndexes[0] = getNameIndex(packageName, packageNameIndexes, NameType.PACKAGE);
+            nameIndexes[1] = getNameIndex(className, classNameIndexes, NameType.CLASS);
+            nameIndexes[2] = getNameIndex(
+                    MoreObjects.firstNonNull(frame.getMethodName(), "<null method name>"),
+                    methodNameIndexes, NameType.METHOD);
+            nameIndexes[3] = getNameIndex(Strings.nullToEmpty(frame.getFileName()),
+                    fileNameIndexes, NameType.FILE);
+            frameNameIndexes.put(frameId, nameIndexes);
+            return nameIndexes;
+        }
+
+        private int getNameIndex(String name, Map<String, Integer> nameIndexes,
+                NameType nameType) {
+            Integer index = nameIndexes.get(name);
+            if (index == null) {
+                index = nameIndexes.size();
+                nameIndexes.put(name, index);
+                switch (nameType) {
+                    case PACKAGE:
+                        builder.addPackageName(name);
+                        break;
+                    case CLASS:
+                        builder.addClassName(name);
+                        break;
+                    case METHOD:
+                        builder.addMethodName(name);
+                        break;
+                    case FILE:
+                        builder.addFileName(name);
+                        break;
+                    default:
+                        throw new AssertionError("Unexpected name type: " + nameType);
+                }
+            }
+            return index;
+        }
+    }
+
+    private enum NameType {
+        PACKAGE, CLASS, METHOD, FILE
     }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2018 the original author or authors.
+ * Copyright 2014-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -28,7 +28,7 @@ import org.glowroot.common.util.Styles;
 @Styles.AllParameters
 public abstract class TimerNameImpl implements TimerName {
 
-    private static final AtomicInteger nextSpecialHashCode = new AtomicInteger();
+    private static final AtomicInteger nextId = new AtomicInteger();
 
     @VisibleForTesting
     public abstract String name();
@@ -43,8 +43,10 @@ public abstract class TimerNameImpl implements TimerName {
         return ImmutableTimerNameImpl.of(name(), true);
     }
 
+    // dense id assigned when the timer name is created (which for @Pointcut timer names is at
+    // weaving time), used to index nested timers by primitive key
     @Value.Derived
-    public int specialHashCode() {
-        return nextSpecialHashCode.getAndIncrement();
+    public int id() {
+        return nextId.getAndIncrement();
     }
 }
@@ -66,6 +66,8 @@ public class AdviceCache {
     private volatile ImmutableSet<String> reweavableConfigVersions;
 
     private volatile ImmutableList<Advice> allAdvisors;
+    // this is always updated after allAdvisors, see Weaver.weaveUnderTimer()
+    private volatile ClassPreFilter classPreFilter;
 
     public AdviceCache(List<PluginDescriptor> pluginDescriptors,
             List<InstrumentationConfig> reweavableConfigs,
@@ -118,6 +120,7 @@ public class AdviceCache {
                 createReweavableAdvisors(reweavableConfigs, instrumentation, tmpDir, true);
         reweavableConfigVersions = createReweavableConfigVersions(reweavableConfigs);
         allAdvisors = ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors));
+        classPreFilter = ClassPreFilter.create(allAdvisors, this.shimTypes, this.mixinTypes);
     }
 
     public Supplier<List<Advice>> getAdvisorsSupplier() {
@@ -129,6 +132,15 @@ public class AdviceCache {
         };
     }
 
+    public Supplier<ClassPreFilter> getClassPreFilterSupplier() {
+        return new Supplier<ClassPreFilter>() {
+            @Override
+            public ClassPreFilter get() {
+                return classPreFilter;
+            }
+        };
+    }
+
     @VisibleForTesting
     public List<ShimType> getShimTypes() {
         return shimTypes;
@@ -164,6 +176,7 @@ public class AdviceCache {
                 createReweavableAdvisors(reweavableConfigs, instrumentation, tmpDir, false);
         reweavableConfigVersions = createReweavableConfigVersions(reweavableConfigs);
         allAdvisors = ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors));
+        classPreFilter = ClassPreFilter.create(allAdvisors, shimTypes, mixinTypes);
     }
 
     public boolean isOutOfSync(List<InstrumentationConfig> reweavableConfigs) {
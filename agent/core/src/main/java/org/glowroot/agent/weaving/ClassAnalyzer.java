@@ -188,6 +188,15 @@ class ClassAnalyzer {
         this.hackAdvisors = loader != null;
     }
 
+    // method analysis is skipped when this returns true, so there is nothing worth caching
+    boolean isShortCircuitBeforeAnalyzeMethods() {
+        return shortCircuitBeforeAnalyzeMethods;
+    }
+
+    ImmutableList<AnalyzedClass> getSuperAnalyzedClasses() {
+        return superAnalyzedClasses;
+    }
+
     void analyzeMethods() {
         methodAdvisors = Maps.newHashMap();
         bridgeTargetAdvisors = Maps.newHashMap();
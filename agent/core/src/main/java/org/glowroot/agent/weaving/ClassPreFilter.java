@@ -0,0 +1,447 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.reflect.Modifier;
+import java.security.CodeSource;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// pre-filter that is consulted directly on the raw class bytes (prior to any ASM parsing) in order
+// to skip analysis of classes that no advice, shim type or mixin type can apply to
+//
+// the class name is checked against a trie of pointcut class names (and class name prefixes for
+// pointcuts using *), and every utf8 constant in the constant pool is checked against a trie of
+// pointcut annotation descriptors, since any annotation on the class or its methods must appear
+// there
+//
+// the super class hierarchy still needs to be resolved (as it would be anyways) in order to check
+// for advice inherited from super types and for pointcut super type restrictions
+class ClassPreFilter {
+
+    // these always require full analysis, see ThinClassVisitor and
+    // AnalyzedWorld.mergeInstrumentationAnnotations()
+    private static final ImmutableList<String> MARKER_DESCRIPTORS = ImmutableList.of(
+            "Lorg/glowroot/agent/plugin/api/weaving/Pointcut;", "Ljavax/ejb/Remote;",
+            "Ljavax/ejb/Stateless;");
+    private static final String INSTRUMENTATION_MARKER_DESCRIPTOR_PREFIX =
+            "Lorg/glowroot/agent/api/Instrumentation$";
+
+    // these always require full analysis, see Weaver.weaveUnderTimer() and
+    // ClassAnalyzer.hasMainMethod()
+    private static final ImmutableList<String> IMPORTANT_CLASS_NAMES = ImmutableList.of(
+            ImportantClassNames.JBOSS_WELD_HACK_CLASS_NAME,
+            ImportantClassNames.JBOSS_MODULES_HACK_CLASS_NAME,
+            ImportantClassNames.JBOSS_URL_HACK_CLASS_NAME,
+            ImportantClassNames.FELIX_OSGI_HACK_CLASS_NAME,
+            ImportantClassNames.FELIX3_OSGI_HACK_CLASS_NAME,
+            ImportantClassNames.ECLIPSE_OSGI_HACK_CLASS_NAME,
+            ImportantClassNames.OPENEJB_HACK_CLASS_NAME,
+            ImportantClassNames.HIKARI_CP_PROXY_HACK_CLASS_NAME,
+            ImportantClassNames.BITRONIX_PROXY_HACK_CLASS_NAME,
+            "org/apache/commons/daemon/support/DaemonLoader");
+
+    private static final int ACC_MODULE = 0x8000;
+
+    private final List<Advice> advisors;
+    // true if there is advice that is not constrained by class name, annotation or super type
+    private final boolean matchesEverything;
+    // internal names
+    private final ByteTrie classNames;
+    private final ByteTrie annotationDescriptors;
+    private final ImmutableSet<String> superTypeNames;
+
+    private ClassPreFilter(List<Advice> advisors, boolean matchesEverything, ByteTrie classNames,
+            ByteTrie annotationDescriptors, Set<String> superTypeNames) {
+        this.advisors = advisors;
+        this.matchesEverything = matchesEverything;
+        this.classNames = classNames;
+        this.annotationDescriptors = annotationDescriptors;
+        this.superTypeNames = ImmutableSet.copyOf(superTypeNames);
+    }
+
+    static ClassPreFilter create(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        ByteTrie classNames = new ByteTrie();
+        ByteTrie annotationDescriptors = new ByteTrie();
+        Set<String> superTypeNames = Sets.newHashSet();
+        boolean matchesEverything = false;
+        for (Advice advice : advisors) {
+            Pointcut pointcut = advice.pointcut();
+            if (addAll(classNames, pointcut.className(), "")) {
+                continue;
+            }
+            // class annotation and method annotation are both required when both are specified,
+            // so either one can be used
+            if (addAll(annotationDescriptors, pointcut.classAnnotation(), "L")) {
+                continue;
+            }
+            if (addAll(annotationDescriptors, pointcut.methodAnnotation(), "L")) {
+                continue;
+            }
+            List<String> superTypeRestrictions =
+                    getExactMatches(pointcut.superTypeRestriction());
+            if (superTypeRestrictions == null) {
+                matchesEverything = true;
+                break;
+            }
+            superTypeNames.addAll(superTypeRestrictions);
+        }
+        // shim and mixin targets are matched against super types too, but those are covered by
+        // the check for shim and mixin types in the analyzed super types, see
+        // ClassAnalyzer.getMatchedShimTypes() and ClassAnalyzer.getMatchedMixinTypes()
+        for (ShimType shimType : shimTypes) {
+            for (String target : shimType.targets()) {
+                classNames.add(ClassNames.toInternalName(target), false);
+            }
+        }
+        for (MixinType mixinType : mixinTypes) {
+            for (String target : mixinType.targets()) {
+                classNames.add(ClassNames.toInternalName(target), false);
+            }
+        }
+        for (String importantClassName : IMPORTANT_CLASS_NAMES) {
+            classNames.add(importantClassName, false);
+        }
+        for (String markerDescriptor : MARKER_DESCRIPTORS) {
+            annotationDescriptors.add(markerDescriptor, false);
+        }
+        annotationDescriptors.add(INSTRUMENTATION_MARKER_DESCRIPTOR_PREFIX, true);
+        return new ClassPreFilter(advisors, matchesEverything, classNames, annotationDescriptors,
+                superTypeNames);
+    }
+
+    // this is the advisors list that the pre-filter was built from
+    List<Advice> advisors() {
+        return advisors;
+    }
+
+    // returns the analyzed class if no advice, shim type or mixin type can apply to the class,
+    // otherwise returns null and the class needs full analysis
+    @Nullable
+    AnalyzedClass analyzeIfNoMatch(byte[] classBytes, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, AnalyzedWorld analyzedWorld,
+            boolean noLongerNeedToWeaveMainMethods) {
+        if (matchesEverything) {
+            return null;
+        }
+        try {
+            return analyzeInternal(classBytes, loader, codeSource, analyzedWorld,
+                    noLongerNeedToWeaveMainMethods);
+        } catch (RuntimeException e) {
+            // malformed (or newer) class file format, leave it to ASM to report any issue
+            return null;
+        }
+    }
+
+    private @Nullable AnalyzedClass analyzeInternal(byte[] b, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, AnalyzedWorld analyzedWorld,
+            boolean noLongerNeedToWeaveMainMethods) {
+        int constantPoolCount = readUnsignedShort(b, 8);
+        // offsets of the constant pool entries (just past the tag byte)
+        int[] offsets = new int[constantPoolCount];
+        int index = 10;
+        for (int i = 1; i < constantPoolCount; i++) {
+            int tag = b[index];
+            offsets[i] = index + 1;
+            switch (tag) {
+                case 1: // Utf8
+                    int length = readUnsignedShort(b, index + 1);
+                    if (annotationDescriptors.matches(b, index + 3, length)) {
+                        return null;
+                    }
+                    index += 3 + length;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    index += 3;
+                    break;
+                case 15: // MethodHandle
+                    index += 4;
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    index += 5;
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    index += 9;
+                    i++;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        int access = readUnsignedShort(b, index);
+        if (Modifier.isInterface(access) || (access & ACC_MODULE) != 0) {
+            // interface methods are always analyzed, see ClassAnalyzer.analyzeMethod()
+            return null;
+        }
+        int thisClassOffset = offsets[readUnsignedShort(b, offsets[readUnsignedShort(b,
+                index + 2)])];
+        if (classNames.matches(b, thisClassOffset + 2, readUnsignedShort(b, thisClassOffset))) {
+            return null;
+        }
+        String className = ClassNames.fromInternalName(readClassName(b, offsets, index + 2));
+        int superClassIndex = readUnsignedShort(b, index + 4);
+        @Nullable
+        String superClassName = superClassIndex == 0 ? null
+                : ClassNames.fromInternalName(readClassName(b, offsets, index + 4));
+        int interfaceCount = readUnsignedShort(b, index + 6);
+        index += 8;
+        List<String> interfaceNames = Lists.newArrayList();
+        for (int i = 0; i < interfaceCount; i++) {
+            interfaceNames.add(ClassNames.fromInternalName(readClassName(b, offsets, index)));
+            index += 2;
+        }
+        index = skipMembers(b, index);
+        List<PublicFinalMethod> bridgePublicFinalMethods = Lists.newArrayList();
+        List<PublicFinalMethod> nonBridgePublicFinalMethods = Lists.newArrayList();
+        int methodCount = readUnsignedShort(b, index);
+        index += 2;
+        for (int i = 0; i < methodCount; i++) {
+            int methodAccess = readUnsignedShort(b, index);
+            String name = readUtf8(b, offsets[readUnsignedShort(b, index + 2)]);
+            if (!noLongerNeedToWeaveMainMethods && name.equals("main")) {
+                return null;
+            }
+            if (Modifier.isPublic(methodAccess) && Modifier.isFinal(methodAccess)) {
+                String descriptor = readUtf8(b, offsets[readUnsignedShort(b, index + 4)]);
+                ImmutablePublicFinalMethod.Builder builder = ImmutablePublicFinalMethod.builder()
+                        .name(name);
+                for (Type parameterType : Type.getArgumentTypes(descriptor)) {
+                    builder.addParameterTypes(parameterType.getClassName());
+                }
+                if ((methodAccess & 0x0040) != 0) {
+                    bridgePublicFinalMethods.add(builder.build());
+                } else {
+                    nonBridgePublicFinalMethods.add(builder.build());
+                }
+            }
+            index = skipAttributes(b, index + 6);
+        }
+        if (superTypeNames.contains(className)) {
+            return null;
+        }
+        ParseContext parseContext = ImmutableParseContext.of(className, codeSource);
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        for (String interfaceName : interfaceNames) {
+            superAnalyzedClasses.addAll(
+                    analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, parseContext));
+        }
+        superAnalyzedClasses.addAll(
+                analyzedWorld.getAnalyzedHierarchy(superClassName, loader, parseContext));
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            if (hasAdviceShimOrMixin(superAnalyzedClass)
+                    || superTypeNames.contains(superAnalyzedClass.name())) {
+                return null;
+            }
+        }
+        // this is the same analyzed class that ClassAnalyzer would have built
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(access)
+                .name(className)
+                .superName(superClassName)
+                .addAllInterfaceNames(interfaceNames)
+                .addAllPublicFinalMethods(bridgePublicFinalMethods)
+                .addAllPublicFinalMethods(nonBridgePublicFinalMethods)
+                .ejbRemote(false)
+                .build();
+    }
+
+    // returns false if the maybe pattern cannot be used to constrain matches
+    private static boolean addAll(ByteTrie trie, String maybePattern, String prefix) {
+        if (maybePattern.isEmpty()
+                || (maybePattern.startsWith("/") && maybePattern.endsWith("/"))) {
+            return false;
+        }
+        List<String> parts = Lists.newArrayList();
+        for (String part : maybePattern.split("\\|")) {
+            if (part.startsWith("*")) {
+                return false;
+            }
+            parts.add(part);
+        }
+        for (String part : parts) {
+            int index = part.indexOf('*');
+            if (index == -1) {
+                String value = prefix + ClassNames.toInternalName(part);
+                trie.add(prefix.isEmpty() ? value : value + ';', false);
+            } else {
+                trie.add(prefix + ClassNames.toInternalName(part.substring(0, index)), true);
+            }
+        }
+        return true;
+    }
+
+    private static @Nullable List<String> getExactMatches(String maybePattern) {
+        if (maybePattern.isEmpty() || maybePattern.contains("*")
+                || (maybePattern.startsWith("/") && maybePattern.endsWith("/"))) {
+            return null;
+        }
+        return ImmutableList.copyOf(maybePattern.split("\\|"));
+    }
+
+    private static boolean hasAdviceShimOrMixin(AnalyzedClass analyzedClass) {
+        if (!analyzedClass.shimTypes().isEmpty() || !analyzedClass.mixinTypes().isEmpty()
+                || !analyzedClass.nonReweavableMixinTypes().isEmpty()) {
+            return true;
+        }
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            if (!analyzedMethod.advisors().isEmpty()
+                    || !analyzedMethod.subTypeRestrictedAdvisors().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // skips the fields table
+    private static int skipMembers(byte[] b, int index) {
+        int count = readUnsignedShort(b, index);
+        index += 2;
+        for (int i = 0; i < count; i++) {
+            index = skipAttributes(b, index + 6);
+        }
+        return index;
+    }
+
+    private static int skipAttributes(byte[] b, int index) {
+        int count = readUnsignedShort(b, index);
+        index += 2;
+        for (int i = 0; i < count; i++) {
+            index += 6 + readInt(b, index + 2);
+        }
+        return index;
+    }
+
+    private static String readClassName(byte[] b, int[] offsets, int index) {
+        return readUtf8(b, offsets[readUnsignedShort(b, offsets[readUnsignedShort(b, index)])]);
+    }
+
+    // decodes modified utf8
+    private static String readUtf8(byte[] b, int offset) {
+        int length = readUnsignedShort(b, offset);
+        char[] chars = new char[length];
+        int charCount = 0;
+        int index = offset + 2;
+        int end = index + length;
+        while (index < end) {
+            int c = b[index++];
+            if ((c & 0x80) == 0) {
+                chars[charCount++] = (char) (c & 0x7F);
+            } else if ((c & 0xE0) == 0xC0) {
+                chars[charCount++] = (char) (((c & 0x1F) << 6) + (b[index++] & 0x3F));
+            } else {
+                chars[charCount++] = (char) (((c & 0xF) << 12) + ((b[index++] & 0x3F) << 6)
+                        + (b[index++] & 0x3F));
+            }
+        }
+        return new String(chars, 0, charCount);
+    }
+
+    private static int readUnsignedShort(byte[] b, int index) {
+        return ((b[index] & 0xFF) << 8) | (b[index + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] b, int index) {
+        return ((b[index] & 0xFF) << 24) | ((b[index + 1] & 0xFF) << 16)
+                | ((b[index + 2] & 0xFF) << 8) | (b[index + 3] & 0xFF);
+    }
+
+    // trie over (modified) utf8 bytes, matching both exact values and prefixes
+    //
+    // not thread safe during construction, but immutable after being published
+    static class ByteTrie {
+
+        private byte[] keys = new byte[0];
+        private ByteTrie[] children = new ByteTrie[0];
+        private boolean exact;
+        private boolean prefix;
+
+        void add(String value, boolean prefix) {
+            ByteTrie node = this;
+            for (byte key : value.getBytes(UTF_8)) {
+                node = node.getOrCreateChild(key);
+            }
+            if (prefix) {
+                node.prefix = true;
+            } else {
+                node.exact = true;
+            }
+        }
+
+        boolean matches(byte[] b, int offset, int length) {
+            ByteTrie node = this;
+            for (int i = offset; i < offset + length; i++) {
+                if (node.prefix) {
+                    return true;
+                }
+                node = node.getChild(b[i]);
+                if (node == null) {
+                    return false;
+                }
+            }
+            return node.prefix || node.exact;
+        }
+
+        private @Nullable ByteTrie getChild(byte key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private ByteTrie getOrCreateChild(byte key) {
+            ByteTrie child = getChild(key);
+            if (child == null) {
+                child = new ByteTrie();
+                byte[] newKeys = new byte[keys.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, keys.length);
+                newKeys[keys.length] = key;
+                ByteTrie[] newChildren = new ByteTrie[children.length + 1];
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                newChildren[children.length] = child;
+                keys = newKeys;
+                children = newChildren;
+            }
+            return child;
+        }
+    }
+}
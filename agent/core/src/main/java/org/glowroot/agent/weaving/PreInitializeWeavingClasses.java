@@ -252,7 +252,7 @@ public class PreInitializeWeavingClasses {
 
     private static List<String> getGlowrootUsedTypes() {
         List<String> types = Lists.newArrayList();
-        types.add("org.glowroot.agent.impl.NestedTimerMap");
+        types.add("org.glowroot.agent.impl.NestedTimerTable");
         types.add("org.glowroot.agent.impl.ThreadContextImpl");
         types.add("org.glowroot.agent.impl.TimerImpl");
         types.add("org.glowroot.agent.impl.TransactionRegistry");
@@ -327,6 +327,8 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.ClassLoaders");
         types.add("org.glowroot.agent.weaving.ClassLoaders$LazyDefinedClass");
         types.add("org.glowroot.agent.weaving.ClassNames");
+        types.add("org.glowroot.agent.weaving.ClassPreFilter");
+        types.add("org.glowroot.agent.weaving.ClassPreFilter$ByteTrie");
         types.add("org.glowroot.agent.weaving.FrameDeduppingMethodVisitor");
         types.add("org.glowroot.agent.weaving.MethodInfoImpl");
         types.add("org.glowroot.agent.weaving.Weaver$ActiveWeaving");
@@ -412,6 +414,9 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinClass");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$ThinMethod");
         types.add("org.glowroot.agent.weaving.Weaver");
+        types.add("org.glowroot.agent.weaving.WeavingCache");
+        types.add("org.glowroot.agent.weaving.WeavingCache$AdvisorsFingerprint");
+        types.add("org.glowroot.agent.weaving.WeavingCache$CachedWeaving");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$InitMixins");
@@ -528,7 +533,6 @@ public class PreInitializeWeavingClasses {
         // these are special classes generated by javac (but not by the eclipse compiler) to handle
         // accessing the private constructor in an enclosed type
         // (see http://stackoverflow.com/questions/2883181)
-        types.add("org.glowroot.agent.model.NestedTimerMap$1");
         types.add("org.glowroot.agent.util.IterableWithSelfRemovableEntries$1");
         types.add("org.glowroot.agent.util.Tickers$1");
         types.add("org.glowroot.agent.weaving.Advice$1");
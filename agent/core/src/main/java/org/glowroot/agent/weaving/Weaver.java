@@ -23,6 +23,7 @@ import java.lang.management.MonitorInfo;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.security.CodeSource;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -57,8 +58,10 @@ import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
 import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
+import org.glowroot.agent.weaving.WeavingCache.CachedWeaving;
 import org.glowroot.common.util.ScheduledRunnable.TerminateSubsequentExecutionsException;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.objectweb.asm.Opcodes.ASM7;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
@@ -87,6 +90,8 @@ public class Weaver {
     private final TransactionRegistry transactionRegistry;
     private final Ticker ticker;
     private final TimerName timerName;
+    private final @Nullable WeavingCache weavingCache;
+    private final @Nullable Supplier<ClassPreFilter> classPreFilter;
 
     private volatile boolean weavingTimerEnabled;
 
@@ -100,7 +105,8 @@ public class Weaver {
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, Ticker ticker, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            final ConfigService configService, @Nullable WeavingCache weavingCache,
+            @Nullable Supplier<ClassPreFilter> classPreFilter) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
@@ -114,6 +120,8 @@ public class Weaver {
             }
         });
         this.timerName = timerNameCache.getTimerName(OnlyForTheTimerName.class);
+        this.weavingCache = weavingCache;
+        this.classPreFilter = classPreFilter;
     }
 
     public void setNoLongerNeedToWeaveMainMethods() {
@@ -178,7 +186,20 @@ public class Weaver {
     private byte /*@Nullable*/ [] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable Class<?> classBeingRedefined, @Nullable CodeSource codeSource,
             @Nullable ClassLoader loader) {
-        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        List<Advice> sharedAdvisors = this.advisors.get();
+        if (classPreFilter != null && classBeingRedefined == null) {
+            ClassPreFilter filter = classPreFilter.get();
+            // the pre-filter is stale while advisors are being updated
+            if (filter.advisors() == sharedAdvisors) {
+                AnalyzedClass analyzedClass = filter.analyzeIfNoMatch(classBytes, loader,
+                        codeSource, analyzedWorld, noLongerNeedToWeaveMainMethods);
+                if (analyzedClass != null) {
+                    analyzedWorld.add(analyzedClass, loader);
+                    return null;
+                }
+            }
+        }
+        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(sharedAdvisors,
                 classBytes, loader, className);
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
@@ -244,9 +265,29 @@ public class Weaver {
         ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
                 mixinTypes, loader, analyzedWorld, codeSource, classBytes, classBeingRedefined,
                 noLongerNeedToWeaveMainMethods);
+        String weavingCacheKey = null;
+        if (weavingCache != null && classBeingRedefined == null && maybeProcessedBytes == null
+                && !classAnalyzer.isShortCircuitBeforeAnalyzeMethods()) {
+            weavingCacheKey = weavingCache.getKey(classBytes, loader, codeSource, sharedAdvisors,
+                    classAnalyzer.getSuperAnalyzedClasses(), noLongerNeedToWeaveMainMethods);
+            CachedWeaving cachedWeaving = weavingCache.get(weavingCacheKey, advisors);
+            if (cachedWeaving != null) {
+                analyzedWorld.add(cachedWeaving.analyzedClass(), loader);
+                if (loader != null
+                        && !defineAdviceClasses(cachedWeaving.usedAdvisors(), loader, className)) {
+                    return null;
+                }
+                return cachedWeaving.wovenBytes();
+            }
+        }
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
-            analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+            analyzedWorld.add(analyzedClass, loader);
+            if (weavingCacheKey != null && !analyzedClass.ejbRemote()) {
+                checkNotNull(weavingCache).put(weavingCacheKey, null, analyzedClass,
+                        ImmutableList.<Advice>of());
+            }
             return maybeProcessedBytes;
         }
         List<ShimType> matchedShimTypes = classAnalyzer.getMatchedShimTypes();
@@ -317,21 +358,32 @@ public class Weaver {
                 logger.warn(e.getMessage(), e);
             }
         }
-        if (loader != null) {
-            try {
-                for (Advice usedAdvice : cv.getUsedAdvisors()) {
-                    LazyDefinedClass nonBootstrapLoaderAdviceClass =
-                            usedAdvice.nonBootstrapLoaderAdviceClass();
-                    if (nonBootstrapLoaderAdviceClass != null) {
-                        ClassLoaders.defineClassIfNotExists(nonBootstrapLoaderAdviceClass, loader);
-                    }
+        if (loader != null && !defineAdviceClasses(cv.getUsedAdvisors(), loader, className)) {
+            return null;
+        }
+        if (weavingCacheKey != null && !cv.usesMetaHolder()
+                && !classAnalyzer.getAnalyzedClass().ejbRemote()) {
+            checkNotNull(weavingCache).put(weavingCacheKey, transformedBytes,
+                    classAnalyzer.getAnalyzedClass(), cv.getUsedAdvisors());
+        }
+        return transformedBytes;
+    }
+
+    private static boolean defineAdviceClasses(Collection<Advice> usedAdvisors,
+            ClassLoader loader, String className) {
+        try {
+            for (Advice usedAdvice : usedAdvisors) {
+                LazyDefinedClass nonBootstrapLoaderAdviceClass =
+                        usedAdvice.nonBootstrapLoaderAdviceClass();
+                if (nonBootstrapLoaderAdviceClass != null) {
+                    ClassLoaders.defineClassIfNotExists(nonBootstrapLoaderAdviceClass, loader);
                 }
-            } catch (Exception e) {
-                logger.error("unable to weave {}: {}", className, e.getMessage(), e);
-                return null;
             }
+            return true;
+        } catch (Exception e) {
+            logger.error("unable to weave {}: {}", className, e.getMessage(), e);
+            return false;
         }
-        return transformedBytes;
     }
 
     private void checkForDeadlockedActiveWeaving(List<Long> activeWeavingThreadIds) {
@@ -0,0 +1,642 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.Method;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.plugin.api.weaving.MethodModifier;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.weaving.Advice.AdviceParameter;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.concurrent.TimeUnit.DAYS;
+
+// opt-in (-Dglowroot.internal.weavingCache=true) on disk cache of woven bytecode and class analysis
+// results, to reduce weaving overhead during jvm startup
+//
+// the cache key covers the original class bytes, the class loader type and code source, the active
+// advisors, shim types and mixin types, and the analyzed super class hierarchy, so entries are not
+// used after plugins or instrumentation config change
+//
+// classes are only cached when weaving has no side effects other than the woven bytes and defining
+// advice classes in the class loader, e.g. classes that need meta holders are never cached since
+// meta holder class names are only unique within a single jvm
+//
+// this is called from inside of ClassFileTransformer.transform(), see PreInitializeWeavingClasses
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAX_ENTRIES =
+            Integer.getInteger("glowroot.internal.weavingCache.maxEntries", 100000);
+
+    // entries that have not been used in this long are removed on startup
+    private static final long MAX_UNUSED_MILLIS = DAYS.toMillis(
+            Integer.getInteger("glowroot.internal.weavingCache.maxUnusedDays", 30));
+
+    private static final String FINGERPRINT_FILE_NAME = "fingerprint";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File dir;
+    private final ImmutableList<ShimType> shimTypes;
+    private final ImmutableList<MixinType> mixinTypes;
+    // cloned for each use since MessageDigest is not thread safe
+    private final MessageDigest prototypeDigest;
+    // agent version, shim types and mixin types
+    private final byte[] staticFingerprint;
+
+    private final Set<String> existingKeys =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile @Nullable AdvisorsFingerprint advisorsFingerprint;
+
+    public WeavingCache(File dir, String agentVersion, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) throws Exception {
+        this.dir = dir;
+        this.shimTypes = ImmutableList.copyOf(shimTypes);
+        this.mixinTypes = ImmutableList.copyOf(mixinTypes);
+        prototypeDigest = MessageDigest.getInstance("SHA-1");
+        StringBuilder sb = new StringBuilder();
+        sb.append(FORMAT_VERSION).append(agentVersion).append('\n');
+        for (ShimType shimType : shimTypes) {
+            sb.append(shimType.iface().getInternalName()).append(shimType.targets())
+                    .append(shimType.shimMethods()).append('\n');
+        }
+        MessageDigest digest = newDigest();
+        digest.update(sb.toString().getBytes(UTF_8));
+        for (MixinType mixinType : mixinTypes) {
+            digest.update((mixinType.targets().toString() + mixinType.interfaces()
+                    + mixinType.initMethodName() + '\n').getBytes(UTF_8));
+            digest.update(mixinType.implementationBytes());
+        }
+        staticFingerprint = digest.digest();
+        File fingerprintFile = new File(dir, FINGERPRINT_FILE_NAME);
+        String fingerprint = toHex(staticFingerprint);
+        if (dir.isDirectory() && fingerprint.equals(readFingerprintFile(fingerprintFile))) {
+            existingKeys.addAll(prune(dir, System.currentTimeMillis()));
+        } else {
+            // agent version or plugins have changed, so none of the existing entries can be used
+            ClassLoaders.createDirectoryOrCleanPreviousContentsWithPrefix(dir, "");
+            writeFile(fingerprintFile, fingerprint.getBytes(UTF_8));
+        }
+    }
+
+    // advisors merged from @Instrumentation annotations are not passed in here since they are
+    // derived from the class bytes
+    String getKey(byte[] classBytes, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, List<Advice> sharedAdvisors,
+            List<AnalyzedClass> superAnalyzedClasses, boolean noLongerNeedToWeaveMainMethods) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(loader == null ? "" : loader.getClass().getName()).append('\n');
+        if (codeSource != null) {
+            sb.append(codeSource.getLocation());
+        }
+        sb.append('\n').append(noLongerNeedToWeaveMainMethods).append('\n');
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            appendAnalyzedClass(sb, superAnalyzedClass);
+        }
+        MessageDigest digest = newDigest();
+        digest.update(staticFingerprint);
+        digest.update(getAdvisorsFingerprint(sharedAdvisors));
+        digest.update(sb.toString().getBytes(UTF_8));
+        digest.update(classBytes);
+        return toHex(digest.digest());
+    }
+
+    @Nullable
+    CachedWeaving get(String key, List<Advice> advisors) {
+        if (!existingKeys.contains(key)) {
+            return null;
+        }
+        File file = new File(dir, key);
+        try {
+            CachedWeaving cachedWeaving;
+            InputStream in = new FileInputStream(file);
+            try {
+                cachedWeaving = read(new DataInputStream(in), getAdvisorsByName(advisors));
+            } finally {
+                in.close();
+            }
+            // last modified time is used as last used time, see prune()
+            if (cachedWeaving != null && !file.setLastModified(System.currentTimeMillis())) {
+                logger.debug("could not set last modified time: {}", file.getAbsolutePath());
+            }
+            return cachedWeaving;
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            existingKeys.remove(key);
+            return null;
+        }
+    }
+
+    // wovenBytes is null when weaving was not required
+    void put(String key, byte /*@Nullable*/ [] wovenBytes, AnalyzedClass analyzedClass,
+            Collection<Advice> usedAdvisors) {
+        if (existingKeys.contains(key) || existingKeys.size() >= MAX_ENTRIES) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            if (!write(out, wovenBytes, analyzedClass, usedAdvisors)) {
+                return;
+            }
+            out.flush();
+            File tmpFile = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+            writeFile(tmpFile, baos.toByteArray());
+            if (tmpFile.renameTo(new File(dir, key))) {
+                existingKeys.add(key);
+            } else if (!tmpFile.delete()) {
+                logger.debug("could not delete file: {}", tmpFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    // entries are orphaned whenever their key changes (e.g. after instrumentation config changes,
+    // application redeploys and jar updates), so entries that have not been used recently are
+    // removed, and if there are still too many entries, the least recently used entries are removed
+    // to leave room for new entries
+    //
+    // returns the keys of the remaining entries
+    @VisibleForTesting
+    static List<String> prune(File dir, long currentTimeMillis) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return ImmutableList.of();
+        }
+        List<Entry> entries = Lists.newArrayList();
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.endsWith(".tmp")) {
+                // left over from a jvm that exited in the middle of writing an entry
+                delete(file);
+            } else if (fileName.length() == 40) {
+                long lastUsed = file.lastModified();
+                if (lastUsed < currentTimeMillis - MAX_UNUSED_MILLIS) {
+                    delete(file);
+                } else {
+                    entries.add(new Entry(file, lastUsed));
+                }
+            }
+        }
+        int maxRetained = MAX_ENTRIES - MAX_ENTRIES / 10;
+        if (entries.size() > maxRetained) {
+            // most recently used first
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry left, Entry right) {
+                    return Longs.compare(right.lastUsed, left.lastUsed);
+                }
+            });
+            for (Entry entry : entries.subList(maxRetained, entries.size())) {
+                delete(entry.file);
+            }
+            entries = entries.subList(0, maxRetained);
+        }
+        List<String> keys = Lists.newArrayList();
+        for (Entry entry : entries) {
+            keys.add(entry.file.getName());
+        }
+        return keys;
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            logger.debug("could not delete file: {}", file.getAbsolutePath());
+        }
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return (MessageDigest) prototypeDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] getAdvisorsFingerprint(List<Advice> advisors) {
+        AdvisorsFingerprint advisorsFingerprint = this.advisorsFingerprint;
+        if (advisorsFingerprint != null && advisorsFingerprint.advisors == advisors) {
+            return advisorsFingerprint.fingerprint;
+        }
+        // advisor order is not significant (and is not stable across jvm restarts)
+        List<String> adviceDescriptions = Lists.newArrayList();
+        for (Advice advice : advisors) {
+            StringBuilder sb = new StringBuilder();
+            appendAdvice(sb, advice);
+            Advice nonBootstrapLoaderAdvice = advice.nonBootstrapLoaderAdvice();
+            if (nonBootstrapLoaderAdvice != null) {
+                sb.append(" / ");
+                appendAdvice(sb, nonBootstrapLoaderAdvice);
+            }
+            adviceDescriptions.add(sb.toString());
+        }
+        Collections.sort(adviceDescriptions);
+        MessageDigest digest = newDigest();
+        for (String adviceDescription : adviceDescriptions) {
+            digest.update(adviceDescription.getBytes(UTF_8));
+            digest.update((byte) '\n');
+        }
+        byte[] fingerprint = digest.digest();
+        // the shared advisors list is only replaced when instrumentation config changes
+        this.advisorsFingerprint = new AdvisorsFingerprint(advisors, fingerprint);
+        return fingerprint;
+    }
+
+    private @Nullable CachedWeaving read(DataInputStream in, Map<String, Advice> advisorsByName)
+            throws IOException {
+        if (in.readInt() != FORMAT_VERSION) {
+            return null;
+        }
+        byte[] wovenBytes = null;
+        int wovenBytesLength = in.readInt();
+        if (wovenBytesLength != -1) {
+            wovenBytes = new byte[wovenBytesLength];
+            in.readFully(wovenBytes);
+        }
+        List<Advice> usedAdvisors = readAdvisors(in, advisorsByName);
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(in.readInt())
+                .name(in.readUTF())
+                .superName(readNullableString(in))
+                .addAllInterfaceNames(readStrings(in));
+        int analyzedMethodCount = in.readInt();
+        for (int i = 0; i < analyzedMethodCount; i++) {
+            builder.addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .returnType(in.readUTF())
+                    .modifiers(in.readInt())
+                    .signature(readNullableString(in))
+                    .addAllExceptions(readStrings(in))
+                    .addAllAdvisors(readAdvisors(in, advisorsByName))
+                    .addAllSubTypeRestrictedAdvisors(readAdvisors(in, advisorsByName))
+                    .build());
+        }
+        int publicFinalMethodCount = in.readInt();
+        for (int i = 0; i < publicFinalMethodCount; i++) {
+            builder.addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .build());
+        }
+        int shimTypeCount = in.readInt();
+        for (int i = 0; i < shimTypeCount; i++) {
+            builder.addShimTypes(shimTypes.get(in.readInt()));
+        }
+        builder.addAllMixinTypes(readMixinTypes(in));
+        builder.addAllNonReweavableMixinTypes(readMixinTypes(in));
+        builder.ejbRemote(in.readBoolean());
+        return new CachedWeaving(wovenBytes, builder.build(), usedAdvisors);
+    }
+
+    private boolean write(DataOutputStream out, byte /*@Nullable*/ [] wovenBytes,
+            AnalyzedClass analyzedClass, Collection<Advice> usedAdvisors) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        if (wovenBytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(wovenBytes.length);
+            out.write(wovenBytes);
+        }
+        writeAdvisors(out, usedAdvisors);
+        out.writeInt(analyzedClass.modifiers());
+        out.writeUTF(analyzedClass.name());
+        writeNullableString(out, analyzedClass.superName());
+        writeStrings(out, analyzedClass.interfaceNames());
+        out.writeInt(analyzedClass.analyzedMethods().size());
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            out.writeUTF(analyzedMethod.name());
+            writeStrings(out, analyzedMethod.parameterTypes());
+            out.writeUTF(analyzedMethod.returnType());
+            out.writeInt(analyzedMethod.modifiers());
+            writeNullableString(out, analyzedMethod.signature());
+            writeStrings(out, analyzedMethod.exceptions());
+            writeAdvisors(out, analyzedMethod.advisors());
+            writeAdvisors(out, analyzedMethod.subTypeRestrictedAdvisors());
+        }
+        out.writeInt(analyzedClass.publicFinalMethods().size());
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            out.writeUTF(publicFinalMethod.name());
+            writeStrings(out, publicFinalMethod.parameterTypes());
+        }
+        out.writeInt(analyzedClass.shimTypes().size());
+        for (ShimType shimType : analyzedClass.shimTypes()) {
+            int index = shimTypes.indexOf(shimType);
+            if (index == -1) {
+                return false;
+            }
+            out.writeInt(index);
+        }
+        if (!writeMixinTypes(out, analyzedClass.mixinTypes())
+                || !writeMixinTypes(out, analyzedClass.nonReweavableMixinTypes())) {
+            return false;
+        }
+        out.writeBoolean(analyzedClass.ejbRemote());
+        return true;
+    }
+
+    private List<MixinType> readMixinTypes(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<MixinType> list = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            list.add(mixinTypes.get(in.readInt()));
+        }
+        return list;
+    }
+
+    private boolean writeMixinTypes(DataOutputStream out, List<MixinType> list)
+            throws IOException {
+        out.writeInt(list.size());
+        for (MixinType mixinType : list) {
+            int index = mixinTypes.indexOf(mixinType);
+            if (index == -1) {
+                return false;
+            }
+            out.writeInt(index);
+        }
+        return true;
+    }
+
+    private static Map<String, Advice> getAdvisorsByName(List<Advice> advisors) {
+        Map<String, Advice> advisorsByName = Maps.newHashMap();
+        for (Advice advice : advisors) {
+            advisorsByName.put(advice.adviceType().getInternalName(), advice);
+            Advice nonBootstrapLoaderAdvice = advice.nonBootstrapLoaderAdvice();
+            if (nonBootstrapLoaderAdvice != null) {
+                advisorsByName.put(nonBootstrapLoaderAdvice.adviceType().getInternalName(),
+                        nonBootstrapLoaderAdvice);
+            }
+        }
+        return advisorsByName;
+    }
+
+    private static List<Advice> readAdvisors(DataInputStream in,
+            Map<String, Advice> advisorsByName) throws IOException {
+        int count = in.readInt();
+        List<Advice> advisors = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            Advice advice = advisorsByName.get(name);
+            if (advice == null) {
+                // this is not expected since advisors are part of the cache key
+                throw new IOException("Advice not found: " + name);
+            }
+            advisors.add(advice);
+        }
+        return advisors;
+    }
+
+    private static void writeAdvisors(DataOutputStream out, Collection<Advice> advisors)
+            throws IOException {
+        out.writeInt(advisors.size());
+        for (Advice advice : advisors) {
+            out.writeUTF(advice.adviceType().getInternalName());
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> list = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            list.add(in.readUTF());
+        }
+        return list;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> list)
+            throws IOException {
+        out.writeInt(list.size());
+        for (String value : list) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableString(DataOutputStream out, @Nullable String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void appendAdvice(StringBuilder sb, Advice advice) {
+        Pointcut pointcut = advice.pointcut();
+        sb.append(advice.adviceType().getInternalName())
+                .append(' ').append(pointcut.className())
+                .append(' ').append(pointcut.classAnnotation())
+                .append(' ').append(pointcut.subTypeRestriction())
+                .append(' ').append(pointcut.superTypeRestriction())
+                .append(' ').append(pointcut.methodName())
+                .append(' ').append(pointcut.methodAnnotation());
+        for (String methodParameterType : pointcut.methodParameterTypes()) {
+            sb.append(' ').append(methodParameterType);
+        }
+        sb.append(' ').append(pointcut.methodReturnType());
+        for (MethodModifier methodModifier : pointcut.methodModifiers()) {
+            sb.append(' ').append(methodModifier);
+        }
+        sb.append(' ').append(pointcut.nestingGroup())
+                .append(' ').append(pointcut.timerName())
+                .append(' ').append(pointcut.order())
+                .append(' ').append(pointcut.suppressibleUsingKey())
+                .append(' ').append(pointcut.suppressionKey());
+        Type travelerType = advice.travelerType();
+        sb.append(' ').append(travelerType == null ? "" : travelerType.getDescriptor());
+        appendAdviceMethod(sb, advice.isEnabledAdvice(), advice.isEnabledParameters());
+        appendAdviceMethod(sb, advice.onBeforeAdvice(), advice.onBeforeParameters());
+        appendAdviceMethod(sb, advice.onReturnAdvice(), advice.onReturnParameters());
+        appendAdviceMethod(sb, advice.onThrowAdvice(), advice.onThrowParameters());
+        appendAdviceMethod(sb, advice.onAfterAdvice(), advice.onAfterParameters());
+        sb.append(' ').append(advice.hasBindThreadContext())
+                .append(' ').append(advice.hasBindOptionalThreadContext())
+                .append(' ').append(advice.reweavable());
+    }
+
+    private static void appendAdviceMethod(StringBuilder sb, @Nullable Method method,
+            List<AdviceParameter> parameters) {
+        if (method == null) {
+            sb.append(" -");
+            return;
+        }
+        sb.append(' ').append(method.getName()).append(method.getDescriptor());
+        for (AdviceParameter parameter : parameters) {
+            sb.append(' ').append(parameter.kind()).append(parameter.type().getDescriptor());
+        }
+    }
+
+    private static void appendAnalyzedClass(StringBuilder sb, AnalyzedClass analyzedClass) {
+        sb.append(analyzedClass.name())
+                .append(' ').append(analyzedClass.modifiers())
+                .append(' ').append(analyzedClass.superName())
+                .append(' ').append(analyzedClass.interfaceNames())
+                .append(' ').append(analyzedClass.ejbRemote());
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            sb.append(';').append(analyzedMethod.name())
+                    .append(' ').append(analyzedMethod.parameterTypes())
+                    .append(' ').append(analyzedMethod.returnType())
+                    .append(' ').append(analyzedMethod.modifiers())
+                    .append(' ').append(analyzedMethod.signature())
+                    .append(' ').append(analyzedMethod.exceptions());
+            appendAdviceNames(sb, analyzedMethod.advisors());
+            sb.append(" /");
+            appendAdviceNames(sb, analyzedMethod.subTypeRestrictedAdvisors());
+        }
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            sb.append(';').append(publicFinalMethod.name())
+                    .append(' ').append(publicFinalMethod.parameterTypes());
+        }
+        for (ShimType shimType : analyzedClass.shimTypes()) {
+            sb.append(";shim ").append(shimType.iface().getInternalName());
+        }
+        for (MixinType mixinType : analyzedClass.mixinTypes()) {
+            sb.append(";mixin ").append(mixinType.interfaces());
+        }
+        for (MixinType mixinType : analyzedClass.nonReweavableMixinTypes()) {
+            sb.append(";non-reweavable mixin ").append(mixinType.interfaces());
+        }
+        sb.append('\n');
+    }
+
+    private static void appendAdviceNames(StringBuilder sb, List<Advice> advisors) {
+        for (Advice advice : advisors) {
+            sb.append(' ').append(advice.adviceType().getInternalName());
+        }
+    }
+
+    private static @Nullable String readFingerprintFile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] bytes = new byte[(int) file.length()];
+                new DataInputStream(in).readFully(bytes);
+                return new String(bytes, UTF_8);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    static class CachedWeaving {
+
+        private final byte /*@Nullable*/ [] wovenBytes;
+        private final AnalyzedClass analyzedClass;
+        private final List<Advice> usedAdvisors;
+
+        private CachedWeaving(byte /*@Nullable*/ [] wovenBytes, AnalyzedClass analyzedClass,
+                List<Advice> usedAdvisors) {
+            this.wovenBytes = wovenBytes;
+            this.analyzedClass = analyzedClass;
+            this.usedAdvisors = usedAdvisors;
+        }
+
+        // null when weaving is not required
+        byte /*@Nullable*/ [] wovenBytes() {
+            return wovenBytes;
+        }
+
+        AnalyzedClass analyzedClass() {
+            return analyzedClass;
+        }
+
+        List<Advice> usedAdvisors() {
+            return usedAdvisors;
+        }
+    }
+
+    private static class AdvisorsFingerprint {
+
+        private final List<Advice> advisors;
+        private final byte[] fingerprint;
+
+        private AdvisorsFingerprint(List<Advice> advisors, byte[] fingerprint) {
+            this.advisors = advisors;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private static class Entry {
+
+        private final File file;
+        private final long lastUsed;
+
+        private Entry(File file, long lastUsed) {
+            this.file = file;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -229,6 +229,10 @@ class WeavingClassVisitor extends ClassVisitor {
         return usedAdvisors;
     }
 
+    boolean usesMetaHolder() {
+        return metaHolderInternalName != null;
+    }
+
     private boolean isMixinProxy(String name, String descriptor) {
         for (ClassNode cn : mixinClassNodes) {
             List<MethodNode> methodNodes = cn.methods;
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CentralSpool.SpoolRecord;
+import org.glowroot.agent.central.CentralSpool.SpoolSegment;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CentralSpoolTest {
+
+    private File dir;
+
+    @Before
+    public void beforeEachTest() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReadBackInCaptureTimeOrder() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024);
+        spool.append(CentralSpool.RECORD_TYPE_GAUGE_VALUES, 2000, ImmutableList.of(message(2000)));
+        spool.append(CentralSpool.RECORD_TYPE_GAUGE_VALUES, 1000, ImmutableList.of(message(1000)));
+        // when
+        SpoolSegment segment = spool.readOldestSegment();
+        // then
+        assertThat(segment).isNotNull();
+        assertThat(segment.records()).hasSize(2);
+        assertThat(segment.records().get(0).captureTime()).isEqualTo(1000);
+        assertThat(readCaptureTime(segment.records().get(0))).isEqualTo(1000);
+        assertThat(segment.records().get(1).captureTime()).isEqualTo(2000);
+        assertThat(readCaptureTime(segment.records().get(1))).isEqualTo(2000);
+        spool.remove(segment);
+        assertThat(spool.isEmpty()).isTrue();
+        spool.close();
+    }
+
+    @Test
+    public void shouldPickUpSegmentsFromPriorInstance() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024);
+        spool.append(CentralSpool.RECORD_TYPE_GAUGE_VALUES, 1000, ImmutableList.of(message(1000)));
+        spool.close();
+        // when
+        spool = new CentralSpool(dir, 1024 * 1024);
+        // then
+        assertThat(spool.isEmpty()).isFalse();
+        SpoolSegment segment = spool.readOldestSegment();
+        assertThat(segment).isNotNull();
+        assertThat(segment.records()).hasSize(1);
+        spool.close();
+    }
+
+    @Test
+    public void shouldDropOldestWhenOverMaxSize() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 256 * 1024);
+        GaugeValueMessage largeMessage = GaugeValueMessage.newBuilder()
+                .setAgentId(new String(new char[50 * 1024]))
+                .build();
+        // when
+        for (int i = 0; i < 20; i++) {
+            spool.append(CentralSpool.RECORD_TYPE_GAUGE_VALUES, i, ImmutableList.of(largeMessage));
+        }
+        // then
+        long totalSize = 0;
+        File[] files = dir.listFiles();
+        assertThat(files).isNotNull();
+        for (File file : files) {
+            totalSize += file.length();
+        }
+        assertThat(totalSize).isLessThanOrEqualTo(256 * 1024);
+        SpoolSegment segment = spool.readOldestSegment();
+        assertThat(segment).isNotNull();
+        assertThat(segment.records().get(0).captureTime()).isGreaterThan(0);
+        spool.close();
+    }
+
+    @Test
+    public void shouldDropRecordAfterTooManyFailedReplayAttempts() throws Exception {
+        // given
+        CentralSpool spool = new CentralSpool(dir, 1024 * 1024);
+        spool.append(CentralSpool.RECORD_TYPE_GAUGE_VALUES, 1000, ImmutableList.of(message(1000)));
+        spool.append(CentralSpool.RECORD_TYPE_GAUGE_VALUES, 2000, ImmutableList.of(message(2000)));
+        // when
+        boolean dropped = false;
+        int attempts = 0;
+        while (!dropped) {
+            // re-read each time, same as the replay loop
+            SpoolSegment segment = spool.readOldestSegment();
+            assertThat(spool.isDropped(segment, 0)).isFalse();
+            dropped = spool.replayFailed(segment, 0);
+            attempts++;
+        }
+        // then
+        assertThat(attempts).isEqualTo(10);
+        SpoolSegment segment = spool.readOldestSegment();
+        assertThat(spool.isDropped(segment, 0)).isTrue();
+        assertThat(spool.isDropped(segment, 1)).isFalse();
+        spool.close();
+    }
+
+    private static GaugeValueMessage message(long captureTime) {
+        return GaugeValueMessage.newBuilder()
+                .setAgentId("xyz")
+                .addGaugeValue(GaugeValue.newBuilder()
+                        .setGaugeName("abc")
+                        .setCaptureTime(captureTime)
+                        .setValue(1))
+                .build();
+    }
+
+    private static long readCaptureTime(SpoolRecord record) throws IOException {
+        InputStream payload = record.payload();
+        GaugeValueMessage message = GaugeValueMessage.parseDelimitedFrom(payload);
+        return message.getGaugeValue(0).getCaptureTime();
+    }
+}
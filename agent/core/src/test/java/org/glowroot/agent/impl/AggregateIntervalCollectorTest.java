@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.OverallSummaryCollector;
+import org.glowroot.common.model.OverallSummaryCollector.OverallSummary;
+import org.glowroot.common.util.Clock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateIntervalCollectorTest {
+
+    private static final int TRANSACTION_NAME_COUNT = 20;
+
+    @Test
+    public void shouldAggregateAcrossShards() {
+        // given
+        AggregateIntervalCollector collector = new AggregateIntervalCollector(
+                System.currentTimeMillis(), 60000, 500, 500, 500, 4, Clock.systemClock());
+        // when
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < TRANSACTION_NAME_COUNT; j++) {
+                collector.add(mockTransaction("Web", "name" + j));
+            }
+        }
+        // then
+        ThroughputAggregate overall = collector.getThroughputAggregate("Web", null);
+        assertThat(overall).isNotNull();
+        assertThat(overall.transactionCount()).isEqualTo(3 * TRANSACTION_NAME_COUNT);
+        for (int j = 0; j < TRANSACTION_NAME_COUNT; j++) {
+            ThroughputAggregate transaction =
+                    collector.getThroughputAggregate("Web", "name" + j);
+            assertThat(transaction).isNotNull();
+            assertThat(transaction.transactionCount()).isEqualTo(3);
+        }
+    }
+
+    @Test
+    public void shouldMergeLiveDataAcrossShards() {
+        // given
+        AggregateIntervalCollector collector = new AggregateIntervalCollector(
+                System.currentTimeMillis(), 60000, 500, 500, 500, 4, Clock.systemClock());
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < TRANSACTION_NAME_COUNT; j++) {
+                collector.add(mockTransaction("Web", "name" + j));
+            }
+        }
+        OverallSummaryCollector overallSummaryCollector = new OverallSummaryCollector();
+        // when
+        collector.mergeOverallSummaryInto(overallSummaryCollector, "Web");
+        PercentileAggregate percentileAggregate = collector.getPercentileAggregate("Web", null);
+        OverviewAggregate overviewAggregate = collector.getOverviewAggregate("Web", null);
+        // then
+        OverallSummary overallSummary = overallSummaryCollector.getOverallSummary();
+        assertThat(overallSummary.transactionCount()).isEqualTo(3 * TRANSACTION_NAME_COUNT);
+        assertThat(overallSummary.totalDurationNanos())
+                .isEqualTo(3 * TRANSACTION_NAME_COUNT * 1000000.0);
+        assertThat(percentileAggregate).isNotNull();
+        assertThat(percentileAggregate.transactionCount()).isEqualTo(3 * TRANSACTION_NAME_COUNT);
+        assertThat(new LazyHistogram(percentileAggregate.durationNanosHistogram())
+                .getValueAtPercentile(50)).isEqualTo(1000000);
+        assertThat(overviewAggregate).isNotNull();
+        assertThat(overviewAggregate.transactionCount()).isEqualTo(3 * TRANSACTION_NAME_COUNT);
+        assertThat(collector.getOverviewAggregate("Other", null)).isNull();
+    }
+
+    @Test
+    public void shouldSpreadTransactionNamesAcrossShards() {
+        // given
+        boolean[] used = new boolean[4];
+        // when
+        for (int j = 0; j < TRANSACTION_NAME_COUNT; j++) {
+            used[AggregateIntervalCollector.getShardIndex("Web", "name" + j, 4)] = true;
+        }
+        // then
+        assertThat(used).containsOnly(true);
+    }
+
+    private static Transaction mockTransaction(String transactionType, String transactionName) {
+        TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
+        when(mainThreadRootTimer.getName()).thenReturn("mock");
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getTransactionType()).thenReturn(transactionType);
+        when(transaction.getTransactionName()).thenReturn(transactionName);
+        when(transaction.getDurationNanos()).thenReturn(1000000L);
+        when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
+        when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
+        return transaction;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class NestedTimerTableTest {
+
+    @Test
+    public void testRehash() {
+        // given
+        NestedTimerTable table = new NestedTimerTable();
+        TimerImpl[][] timers = new TimerImpl[10][100];
+        // when
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 100; j++) {
+                timers[i][j] = mock(TimerImpl.class);
+                table.put(i, j, timers[i][j]);
+            }
+        }
+        // then
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 100; j++) {
+                assertThat(table.get(i, j)).isSameAs(timers[i][j]);
+            }
+        }
+        assertThat(table.get(10, 0)).isNull();
+        assertThat(table.get(0, 100)).isNull();
+    }
+
+    @Test
+    public void testKeyIncludesParent() {
+        // given
+        NestedTimerTable table = new NestedTimerTable();
+        TimerImpl timer = mock(TimerImpl.class);
+        // when
+        table.put(1, 2, timer);
+        // then
+        assertThat(table.get(1, 2)).isSameAs(timer);
+        assertThat(table.get(2, 1)).isNull();
+        assertThat(table.get(0, 2)).isNull();
+    }
+}
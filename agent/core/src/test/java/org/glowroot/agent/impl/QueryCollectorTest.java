@@ -1,5 +1,5 @@
 /*
- * Copyright 2016-2018 the original author or authors.
+ * Copyright 2016-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -48,6 +48,39 @@ public class QueryCollectorTest {
         test(queries);
     }
 
+    @Test
+    public void testHeavyHitterAfterLimitReached() throws Exception {
+        // given
+        QueryCollector collector = new QueryCollector(10, 2);
+        for (int i = 0; i < 100; i++) {
+            collector.mergeQuery("SQL", "light " + i, 1, 1, false, 0, false);
+        }
+        for (int i = 0; i < 10; i++) {
+            collector.mergeQuery("SQL", "heavy", 1000, 1, false, 0, false);
+        }
+        // when
+        SharedQueryTextCollectionImpl sharedQueryTextCollection =
+                new SharedQueryTextCollectionImpl();
+        List<Aggregate.Query> queries =
+                collector.toAggregateProto(sharedQueryTextCollection, false);
+        // then
+        assertThat(queries).hasSize(11);
+        Aggregate.Query topQuery = queries.get(0);
+        assertThat(
+                sharedQueryTextCollection.sharedQueryTexts.get(topQuery.getSharedQueryTextIndex()))
+                        .isEqualTo("heavy");
+        assertThat(topQuery.getTotalDurationNanos()).isEqualTo(10000);
+        assertThat(topQuery.getExecutionCount()).isEqualTo(10);
+        double totalDurationNanos = 0;
+        long executionCount = 0;
+        for (Aggregate.Query query : queries) {
+            totalDurationNanos += query.getTotalDurationNanos();
+            executionCount += query.getExecutionCount();
+        }
+        assertThat(totalDurationNanos).isEqualTo(10100);
+        assertThat(executionCount).isEqualTo(110);
+    }
+
     private void test(QueryCollector collector) throws Exception {
         // when
         SharedQueryTextCollectionImpl sharedQueryTextCollection =
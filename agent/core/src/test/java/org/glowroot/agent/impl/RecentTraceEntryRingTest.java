@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import org.junit.Test;
+
+import org.glowroot.agent.plugin.api.MessageSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class RecentTraceEntryRingTest {
+
+    @Test
+    public void shouldRetainMostRecentEntriesInStartOrder() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TraceEntryImpl rootEntry = new TraceEntryImpl(threadContext, null,
+                mock(MessageSupplier.class), null, 0, 0, null, null);
+        RecentTraceEntryRing ring = new RecentTraceEntryRing(3);
+        // when
+        ring.add(mock(MessageSupplier.class), null, 1, 2);
+        ring.add(mock(MessageSupplier.class), null, 3, 4);
+        // nested entry ends before its parent
+        ring.add(mock(MessageSupplier.class), null, 6, 7);
+        ring.add(mock(MessageSupplier.class), null, 5, 8);
+        // then
+        ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap =
+                ArrayListMultimap.create();
+        ring.addChildEntries(rootEntry, threadContext, true, 0, parentChildMap);
+        List<TraceEntryImpl> childEntries = parentChildMap.get(rootEntry);
+        assertThat(childEntries).hasSize(3);
+        assertThat(childEntries.get(0).getStartTick()).isEqualTo(3);
+        assertThat(childEntries.get(1).getStartTick()).isEqualTo(5);
+        assertThat(childEntries.get(2).getStartTick()).isEqualTo(6);
+    }
+
+    @Test
+    public void shouldFilterEntriesStartedAfterCaptureTick() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        TraceEntryImpl rootEntry = new TraceEntryImpl(threadContext, null,
+                mock(MessageSupplier.class), null, 0, 0, null, null);
+        RecentTraceEntryRing ring = new RecentTraceEntryRing(3);
+        ring.add(mock(MessageSupplier.class), null, 1, 2);
+        ring.add(mock(MessageSupplier.class), null, 3, 4);
+        // when
+        ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap =
+                ArrayListMultimap.create();
+        ring.addChildEntries(rootEntry, threadContext, false, 2, parentChildMap);
+        // then
+        assertThat(parentChildMap.get(rootEntry)).hasSize(1);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import org.junit.Test;
 
 import org.glowroot.agent.plugin.api.Message;
@@ -78,4 +80,83 @@ public class TraceEntryComponentTest {
         // then
         assertThat(traceEntryComponent.isCompleted()).isFalse();
     }
+
+    @Test
+    public void testCompactEntry() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier1 = mock(MessageSupplier.class);
+        MessageSupplier messageSupplier2 = mock(MessageSupplier.class);
+        TimerImpl timer1 = mock(TimerImpl.class);
+        TimerImpl timer2 = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, true, 0);
+        // when
+        CompactTraceEntry entry = traceEntryComponent.pushCompactEntry(1, messageSupplier2, timer2);
+        traceEntryComponent.popCompactEntry(entry, 2, null, null);
+        CompactTraceEntry entry2 =
+                traceEntryComponent.pushCompactEntry(3, messageSupplier2, timer2);
+        // then
+        assertThat(traceEntryComponent.isEmpty()).isFalse();
+        assertThat(traceEntryComponent.getRootEntry().getNextTraceEntry()).isNull();
+        assertThat(entry2).isSameAs(entry);
+        ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap =
+                ArrayListMultimap.create();
+        int compactEntryIndex = traceEntryComponent.addCompactChildEntries(0,
+                traceEntryComponent.getRootEntry(), true, 0, parentChildMap);
+        assertThat(compactEntryIndex).isEqualTo(1);
+        TraceEntryImpl child =
+                parentChildMap.get(traceEntryComponent.getRootEntry()).get(0);
+        assertThat(child.getMessageSupplier()).isSameAs(messageSupplier2);
+        assertThat(child.getStartTick()).isEqualTo(1);
+    }
+
+    @Test
+    public void testActiveCompactEntry() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier1 = mock(MessageSupplier.class);
+        MessageSupplier messageSupplier2 = mock(MessageSupplier.class);
+        TimerImpl timer1 = mock(TimerImpl.class);
+        TimerImpl timer2 = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, true, 0);
+        // when
+        traceEntryComponent.pushCompactEntry(1, messageSupplier2, timer2);
+        // then
+        ListMultimap<TraceEntryImpl, TraceEntryImpl> parentChildMap =
+                ArrayListMultimap.create();
+        traceEntryComponent.addActiveCompactChildEntry(false, 0, parentChildMap);
+        assertThat(parentChildMap.isEmpty()).isTrue();
+        traceEntryComponent.addActiveCompactChildEntry(false, 5, parentChildMap);
+        TraceEntryImpl child =
+                parentChildMap.get(traceEntryComponent.getRootEntry()).get(0);
+        assertThat(child.getMessageSupplier()).isSameAs(messageSupplier2);
+        assertThat(child.getStartTick()).isEqualTo(1);
+    }
+
+    @Test
+    public void testCompactEntryInflatedByChild() {
+        // given
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        MessageSupplier messageSupplier1 = mock(MessageSupplier.class);
+        MessageSupplier messageSupplier2 = mock(MessageSupplier.class);
+        MessageSupplier messageSupplier3 = mock(MessageSupplier.class);
+        TimerImpl timer1 = mock(TimerImpl.class);
+        TimerImpl timer2 = mock(TimerImpl.class);
+        TimerImpl timer3 = mock(TimerImpl.class);
+        TraceEntryComponent traceEntryComponent =
+                new TraceEntryComponent(threadContext, messageSupplier1, timer1, 0, true, 0);
+        // when
+        CompactTraceEntry entry = traceEntryComponent.pushCompactEntry(1, messageSupplier2, timer2);
+        TraceEntryImpl childEntry =
+                traceEntryComponent.pushEntry(2, messageSupplier3, timer3, null, null, 0);
+        // then
+        TraceEntryImpl inflatedEntry = traceEntryComponent.getRootEntry().getNextTraceEntry();
+        assertThat(inflatedEntry).isNotNull();
+        assertThat(inflatedEntry.getMessageSupplier()).isSameAs(messageSupplier2);
+        assertThat(inflatedEntry.getNextTraceEntry()).isSameAs(childEntry);
+        assertThat(childEntry.getParentTraceEntry()).isSameAs(inflatedEntry);
+        assertThat(entry.getMessageSupplier()).isSameAs(messageSupplier2);
+    }
 }
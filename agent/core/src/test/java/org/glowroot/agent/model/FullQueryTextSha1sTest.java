@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.hash.Hashing;
+import org.junit.Test;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FullQueryTextSha1sTest {
+
+    @Test
+    public void shouldReturnSha1() {
+        // given
+        String fullQueryText = "select * from orders where customer_id = ?";
+        // when
+        String sha1 = FullQueryTextSha1s.get(fullQueryText);
+        // then
+        assertThat(sha1).isEqualTo(Hashing.sha1().hashString(fullQueryText, UTF_8).toString());
+    }
+
+    @Test
+    public void shouldReturnSameSha1ForEqualQueryTexts() {
+        // given
+        String fullQueryText = "select * from orders where customer_id = ?";
+        String copy = new String(fullQueryText);
+        // when
+        String sha1 = FullQueryTextSha1s.get(fullQueryText);
+        String copySha1 = FullQueryTextSha1s.get(copy);
+        // then
+        assertThat(copySha1).isSameAs(sha1);
+    }
+}
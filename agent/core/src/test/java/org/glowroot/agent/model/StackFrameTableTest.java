@@ -0,0 +1,52 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StackFrameTableTest {
+
+    @Test
+    public void shouldInternSameFrameOnce() {
+        // given
+        StackFrameTable table = new StackFrameTable(10);
+        StackTraceElement[] stackTrace = new StackTraceElement[] {frame(1), frame(2), frame(1)};
+        // when
+        int[] frameIds = table.intern(stackTrace);
+        // then
+        assertThat(frameIds).containsExactly(0, 1, 0);
+        assertThat(table.size()).isEqualTo(2);
+        assertThat(table.getFrame(1)).isEqualTo(frame(2));
+    }
+
+    @Test
+    public void shouldReturnNullWhenFull() {
+        // given
+        StackFrameTable table = new StackFrameTable(2);
+        // when
+        int[] frameIds = table.intern(new StackTraceElement[] {frame(1), frame(2), frame(3)});
+        // then
+        assertThat(frameIds).isNull();
+        assertThat(table.intern(frame(1))).isEqualTo(0);
+        assertThat(table.intern(frame(3))).isEqualTo(-1);
+    }
+
+    private static StackTraceElement frame(int lineNumber) {
+        return new StackTraceElement("Abc", "xyz", "Abc.java", lineNumber);
+    }
+}
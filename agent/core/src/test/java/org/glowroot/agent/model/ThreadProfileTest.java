@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.MutableProfile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadProfileTest {
+
+    @Test
+    public void shouldMatchMutableProfile() throws Exception {
+        // given
+        StackTraceElement[] stackTrace1 = new StackTraceElement[] {frame("c", 3), frame("b", 2),
+                frame("a", 1)};
+        StackTraceElement[] stackTrace2 = new StackTraceElement[] {frame("d", 4), frame("b", 2),
+                frame("a", 1)};
+        ThreadProfile threadProfile = new ThreadProfile(100);
+        StackFrameTable frameTable = new StackFrameTable(100);
+        MutableProfile expected = new MutableProfile();
+        // when
+        threadProfile.addStackTrace(stackTrace1, Thread.State.RUNNABLE, frameTable);
+        threadProfile.addStackTrace(stackTrace2, Thread.State.BLOCKED, frameTable);
+        threadProfile.addStackTrace(stackTrace1, Thread.State.RUNNABLE, frameTable);
+        expected.merge(Arrays.asList(stackTrace1), Thread.State.RUNNABLE);
+        expected.merge(Arrays.asList(stackTrace2), Thread.State.BLOCKED);
+        expected.merge(Arrays.asList(stackTrace1), Thread.State.RUNNABLE);
+        // then
+        MutableProfile actual = new MutableProfile();
+        threadProfile.mergeInto(actual);
+        assertThat(actual.getSampleCount()).isEqualTo(3);
+        assertThat(actual.toJson()).isEqualTo(expected.toJson());
+    }
+
+    @Test
+    public void shouldFallBackWhenFrameTableIsFull() throws Exception {
+        // given
+        StackTraceElement[] stackTrace = new StackTraceElement[] {frame("c", 3), frame("b", 2),
+                frame("a", 1)};
+        ThreadProfile threadProfile = new ThreadProfile(100);
+        StackFrameTable frameTable = new StackFrameTable(1);
+        MutableProfile expected = new MutableProfile();
+        // when
+        threadProfile.addStackTrace(stackTrace, Thread.State.RUNNABLE, frameTable);
+        threadProfile.addStackTrace(stackTrace, Thread.State.RUNNABLE, frameTable);
+        expected.merge(Arrays.asList(stackTrace), Thread.State.RUNNABLE);
+        expected.merge(Arrays.asList(stackTrace), Thread.State.RUNNABLE);
+        // then
+        MutableProfile actual = new MutableProfile();
+        threadProfile.mergeInto(actual);
+        assertThat(actual.toJson()).isEqualTo(expected.toJson());
+    }
+
+    @Test
+    public void shouldStopAtMaxSamples() {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(2);
+        StackFrameTable frameTable = new StackFrameTable(100);
+        // when
+        for (int i = 0; i < 5; i++) {
+            threadProfile.addStackTrace(new StackTraceElement[] {frame("a", i)},
+                    Thread.State.RUNNABLE, frameTable);
+        }
+        // then
+        assertThat(threadProfile.getSampleCount()).isEqualTo(2);
+        assertThat(threadProfile.isSampleLimitExceeded()).isTrue();
+        assertThat(threadProfile.toProto().getNodeCount()).isEqualTo(2);
+    }
+
+    private static StackTraceElement frame(String methodName, int lineNumber) {
+        return new StackTraceElement("org.example.Abc", methodName, "Abc.java", lineNumber);
+    }
+}
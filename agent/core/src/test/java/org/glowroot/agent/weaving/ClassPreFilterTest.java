@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BasicAnnotationBasedAdvice;
+import org.glowroot.agent.weaving.targets.AbstractNotMisc.ExtendsAbstractNotMisc;
+import org.glowroot.agent.weaving.targets.AbstractNotMiscWithFinal;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClassPreFilterTest {
+
+    @Test
+    public void shouldSkipClassThatNoAdviceMatches() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(newAdvice(BasicAdvice.class));
+        // when
+        AnalyzedClass analyzedClass = analyzeIfNoMatch(advisors, AbstractNotMiscWithFinal.class);
+        // then
+        assertThat(analyzedClass).isNotNull();
+        assertThat(analyzedClass.name()).isEqualTo(AbstractNotMiscWithFinal.class.getName());
+        assertThat(analyzedClass.superName()).isEqualTo("java.lang.Object");
+        assertThat(analyzedClass.isAbstract()).isTrue();
+        assertThat(analyzedClass.publicFinalMethods()).hasSize(1);
+        assertThat(analyzedClass.publicFinalMethods().get(0).name()).isEqualTo("execute1");
+    }
+
+    @Test
+    public void shouldNotSkipClassWithMatchingAnnotation() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(newAdvice(BasicAnnotationBasedAdvice.class));
+        // when
+        AnalyzedClass analyzedClass = analyzeIfNoMatch(advisors, BasicMisc.class);
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotSkipClassWithAdvisedSuperType() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(newAdvice(BasicAdvice.class));
+        // when
+        AnalyzedClass analyzedClass = analyzeIfNoMatch(advisors, ExtendsAbstractNotMisc.class);
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldMatchTriePrefixes() {
+        // given
+        ClassPreFilter.ByteTrie trie = new ClassPreFilter.ByteTrie();
+        trie.add("views/html/", true);
+        trie.add("org/example/Exact", false);
+        // then
+        assertThat(matches(trie, "views/html/index")).isTrue();
+        assertThat(matches(trie, "views/htmlx")).isFalse();
+        assertThat(matches(trie, "org/example/Exact")).isTrue();
+        assertThat(matches(trie, "org/example/ExactNot")).isFalse();
+        assertThat(matches(trie, "org/example/Exac")).isFalse();
+    }
+
+    private static AnalyzedClass analyzeIfNoMatch(List<Advice> advisors, Class<?> clazz)
+            throws Exception {
+        Supplier<List<Advice>> advisorsSupplier = Suppliers.ofInstance(advisors);
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        ClassPreFilter classPreFilter = ClassPreFilter.create(advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        byte[] classBytes = Resources.toByteArray(Resources
+                .getResource(ClassNames.toInternalName(clazz.getName()) + ".class"));
+        return classPreFilter.analyzeIfNoMatch(classBytes,
+                ClassPreFilterTest.class.getClassLoader(), null, analyzedWorld, true);
+    }
+
+    private static boolean matches(ClassPreFilter.ByteTrie trie, String value) {
+        byte[] bytes = value.getBytes();
+        return trie.matches(bytes, 0, bytes.length);
+    }
+
+    private static Advice newAdvice(Class<?> clazz) throws Exception {
+        return new AdviceBuilder(PluginDetailBuilder.buildAdviceClass(clazz)).build();
+    }
+}
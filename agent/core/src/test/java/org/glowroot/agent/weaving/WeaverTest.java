@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2018 the original author or authors.
+ * Copyright 2012-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.weaving;
 
+import java.io.File;
 import java.lang.reflect.Array;
 import java.util.Arrays;
 import java.util.List;
@@ -25,6 +26,7 @@ import com.google.common.base.Suppliers;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
@@ -150,7 +152,14 @@ import org.glowroot.agent.weaving.targets.ThrowMutatedParamMisc;
 import org.glowroot.agent.weaving.targets.ThrowingMisc;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollectionOf;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class WeaverTest {
@@ -1024,7 +1033,8 @@ public class WeaverTest {
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
                 ImmutableList.<MixinType>of(), analyzedWorld, transactionRegistry,
-                Ticker.systemTicker(), new TimerNameCache(), mock(ConfigService.class));
+                Ticker.systemTicker(), new TimerNameCache(), mock(ConfigService.class),
+                null, null);
         isolatedWeavingClassLoader.setWeaver(weaver);
         Misc test = isolatedWeavingClassLoader.newInstance(BasicMisc.class, Misc.class);
         // when
@@ -1818,6 +1828,76 @@ public class WeaverTest {
         // do not crash with java.lang.VerifyError
     }
 
+    // ===================== weaving cache =====================
+
+    @Test
+    public void shouldWeaveSameFromWeavingCache() throws Exception {
+        // given
+        File dir = Files.createTempDir();
+        List<Advice> advisors = ImmutableList.of(newAdvice(BasicAdvice.class));
+        WeavingCache weavingCache = spy(newWeavingCache(dir));
+        AnalyzedWorld analyzedWorld = newAnalyzedWorld(advisors);
+        Misc test = newWovenObject(advisors, analyzedWorld, weavingCache);
+        test.execute1();
+        AnalyzedClass analyzedClass = getAnalyzedClass(analyzedWorld, test);
+        verify(weavingCache, atLeastOnce()).put(anyString(), any(byte[].class),
+                any(AnalyzedClass.class), anyCollectionOf(Advice.class));
+        // when
+        WeavingCache restartedWeavingCache = spy(newWeavingCache(dir));
+        AnalyzedWorld restartedAnalyzedWorld = newAnalyzedWorld(advisors);
+        Misc restartedTest = newWovenObject(advisors, restartedAnalyzedWorld,
+                restartedWeavingCache);
+        restartedTest.execute1();
+        // then
+        verify(restartedWeavingCache, never()).put(anyString(), any(), any(AnalyzedClass.class),
+                anyCollectionOf(Advice.class));
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(2);
+        assertThat(SomeAspectThreadLocals.onReturnCount.get()).isEqualTo(2);
+        assertThat(SomeAspectThreadLocals.onAfterCount.get()).isEqualTo(2);
+        assertThat(analyzedClass.name()).isEqualTo(BasicMisc.class.getName());
+        assertThat(analyzedClass.analyzedMethods()).isNotEmpty();
+        assertThat(getAnalyzedClass(restartedAnalyzedWorld, restartedTest))
+                .isEqualTo(analyzedClass);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static WeavingCache newWeavingCache(File dir) throws Exception {
+        return new WeavingCache(dir, "0.0", ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+    }
+
+    private static AnalyzedWorld newAnalyzedWorld(List<Advice> advisors) {
+        return new AnalyzedWorld(Suppliers.ofInstance(advisors), ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+    }
+
+    private static Misc newWovenObject(List<Advice> advisors, AnalyzedWorld analyzedWorld,
+            WeavingCache weavingCache) throws Exception {
+        IsolatedWeavingClassLoader isolatedWeavingClassLoader = new IsolatedWeavingClassLoader(
+                Misc.class, SomeAspectThreadLocals.class, IntegerThreadLocal.class);
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getCurrentThreadContextHolder())
+                .thenReturn(new ThreadContextThreadLocal().getHolder());
+        Weaver weaver = new Weaver(Suppliers.ofInstance(advisors), ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), analyzedWorld, transactionRegistry,
+                Ticker.systemTicker(), new TimerNameCache(), mock(ConfigService.class),
+                weavingCache, null);
+        isolatedWeavingClassLoader.setWeaver(weaver);
+        return isolatedWeavingClassLoader.newInstance(BasicMisc.class, Misc.class);
+    }
+
+    private static AnalyzedClass getAnalyzedClass(AnalyzedWorld analyzedWorld, Misc test) {
+        String className = test.getClass().getName();
+        return analyzedWorld.getAnalyzedHierarchy(className, test.getClass().getClassLoader(),
+                ImmutableParseContext.of(className, null)).get(0);
+    }
+
     public static <S, T extends S> S newWovenObject(Class<T> implClass, Class<S> bridgeClass,
             Class<?> adviceOrShimOrMixinClass, Class<?>... extraBridgeClasses) throws Exception {
         // SomeAspectThreadLocals is passed as bridgeable so that the static thread locals will be
@@ -1851,7 +1931,7 @@ public class WeaverTest {
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
                 transactionRegistry, Ticker.systemTicker(), new TimerNameCache(),
-                mock(ConfigService.class));
+                mock(ConfigService.class), null, null);
         isolatedWeavingClassLoader.setWeaver(weaver);
         return isolatedWeavingClassLoader.newInstance(implClass, bridgeClass);
     }
@@ -1891,7 +1971,7 @@ public class WeaverTest {
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
         Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
                 transactionRegistry, Ticker.systemTicker(), new TimerNameCache(),
-                mock(ConfigService.class));
+                mock(ConfigService.class), null, null);
         isolatedWeavingClassLoader.setWeaver(weaver);
 
         String className = toBeDefinedImplClass.type().getClassName();
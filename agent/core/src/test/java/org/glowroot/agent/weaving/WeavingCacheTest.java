@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.WeavingCache.CachedWeaving;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingCacheTest {
+
+    private static final byte[] CLASS_BYTES = new byte[] {1, 2, 3};
+    private static final byte[] WOVEN_BYTES = new byte[] {4, 5, 6};
+
+    private File dir;
+
+    @Before
+    public void beforeEachTest() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReadBackAfterRestart() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1.0");
+        String key = getKey(weavingCache, ImmutableList.<AnalyzedClass>of());
+        weavingCache.put(key, WOVEN_BYTES, analyzedClass("a.B"), ImmutableList.<Advice>of());
+        // when
+        weavingCache = newWeavingCache("1.0");
+        CachedWeaving cachedWeaving = weavingCache.get(
+                getKey(weavingCache, ImmutableList.<AnalyzedClass>of()),
+                ImmutableList.<Advice>of());
+        // then
+        assertThat(cachedWeaving).isNotNull();
+        assertThat(cachedWeaving.wovenBytes()).isEqualTo(WOVEN_BYTES);
+        assertThat(cachedWeaving.analyzedClass()).isEqualTo(analyzedClass("a.B"));
+        assertThat(cachedWeaving.usedAdvisors()).isEmpty();
+    }
+
+    @Test
+    public void shouldNotReadBackAfterAgentVersionChange() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1.0");
+        String key = getKey(weavingCache, ImmutableList.<AnalyzedClass>of());
+        weavingCache.put(key, WOVEN_BYTES, analyzedClass("a.B"), ImmutableList.<Advice>of());
+        // when
+        weavingCache = newWeavingCache("1.1");
+        CachedWeaving cachedWeaving = weavingCache.get(
+                getKey(weavingCache, ImmutableList.<AnalyzedClass>of()),
+                ImmutableList.<Advice>of());
+        // then
+        assertThat(cachedWeaving).isNull();
+    }
+
+    @Test
+    public void shouldNotReadBackAfterSuperClassChange() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1.0");
+        String key = getKey(weavingCache, ImmutableList.of(analyzedClass("a.Super")));
+        weavingCache.put(key, WOVEN_BYTES, analyzedClass("a.B"), ImmutableList.<Advice>of());
+        // when
+        String otherKey = getKey(weavingCache, ImmutableList.of(analyzedClass("a.OtherSuper")));
+        // then
+        assertThat(weavingCache.get(key, ImmutableList.<Advice>of())).isNotNull();
+        assertThat(otherKey).isNotEqualTo(key);
+        assertThat(weavingCache.get(otherKey, ImmutableList.<Advice>of())).isNull();
+    }
+
+    @Test
+    public void shouldPruneUnusedEntriesAfterRestart() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1.0");
+        String key = getKey(weavingCache, ImmutableList.<AnalyzedClass>of());
+        weavingCache.put(key, WOVEN_BYTES, analyzedClass("a.B"), ImmutableList.<Advice>of());
+        File file = new File(dir, key);
+        assertThat(file.setLastModified(System.currentTimeMillis() - DAYS.toMillis(31)))
+                .isTrue();
+        // when
+        weavingCache = newWeavingCache("1.0");
+        // then
+        assertThat(file).doesNotExist();
+        assertThat(weavingCache.get(key, ImmutableList.<Advice>of())).isNull();
+    }
+
+    @Test
+    public void shouldNotPruneRecentlyUsedEntries() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1.0");
+        String key = getKey(weavingCache, ImmutableList.<AnalyzedClass>of());
+        weavingCache.put(key, WOVEN_BYTES, analyzedClass("a.B"), ImmutableList.<Advice>of());
+        File file = new File(dir, key);
+        assertThat(file.setLastModified(System.currentTimeMillis() - DAYS.toMillis(31)))
+                .isTrue();
+        // when
+        assertThat(weavingCache.get(key, ImmutableList.<Advice>of())).isNotNull();
+        weavingCache = newWeavingCache("1.0");
+        // then
+        assertThat(file).exists();
+        assertThat(weavingCache.get(key, ImmutableList.<Advice>of())).isNotNull();
+    }
+
+    @Test
+    public void shouldPruneOrphanedEntriesAndTempFiles() throws Exception {
+        // given
+        WeavingCache weavingCache = newWeavingCache("1.0");
+        String key = getKey(weavingCache, ImmutableList.<AnalyzedClass>of());
+        weavingCache.put(key, WOVEN_BYTES, analyzedClass("a.B"), ImmutableList.<Advice>of());
+        File tmpFile = new File(dir, key + ".1.tmp");
+        Files.write(WOVEN_BYTES, tmpFile);
+        // when
+        List<String> keys =
+                WeavingCache.prune(dir, System.currentTimeMillis() + DAYS.toMillis(31));
+        // then
+        assertThat(keys).isEmpty();
+        assertThat(new File(dir, key)).doesNotExist();
+        assertThat(tmpFile).doesNotExist();
+        assertThat(new File(dir, "fingerprint")).exists();
+    }
+
+    private WeavingCache newWeavingCache(String agentVersion) throws Exception {
+        return new WeavingCache(dir, agentVersion, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+    }
+
+    private static String getKey(WeavingCache weavingCache,
+            ImmutableList<AnalyzedClass> superAnalyzedClasses) {
+        return weavingCache.getKey(CLASS_BYTES, WeavingCacheTest.class.getClassLoader(), null,
+                ImmutableList.<Advice>of(), superAnalyzedClasses, false);
+    }
+
+    private static AnalyzedClass analyzedClass(String name) {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name(name)
+                .superName("java.lang.Object")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("execute")
+                        .addParameterTypes("java.lang.String")
+                        .returnType("void")
+                        .modifiers(Modifier.PUBLIC)
+                        .build())
+                .ejbRemote(false)
+                .build();
+    }
+}
@@ -16,6 +16,7 @@
 package org.glowroot.agent.embedded.repo;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -65,6 +66,7 @@ import org.glowroot.common.model.TransactionNameErrorSummaryCollector.ErrorSumma
 import org.glowroot.common.model.TransactionNameSummaryCollector;
 import org.glowroot.common.model.TransactionNameSummaryCollector.SummarySortOrder;
 import org.glowroot.common.util.NotAvailableAware;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.AggregateRepository;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
@@ -151,6 +153,9 @@ public class AggregateDao implements AggregateRepository {
     private final ConfigRepositoryImpl configRepository;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
+    // null unless the columnar segment store is enabled, in which case it serves the throughput and
+    // percentile queries, and h2 continues to serve everything else
+    private final @Nullable AggregateSegmentStore segmentStore;
 
     private final AtomicLongArray lastRollupTimes;
 
@@ -158,12 +163,14 @@ public class AggregateDao implements AggregateRepository {
 
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepositoryImpl configRepository, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao) throws Exception {
+            FullQueryTextDao fullQueryTextDao, @Nullable AggregateSegmentStore segmentStore)
+            throws Exception {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.configRepository = configRepository;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
+        this.segmentStore = segmentStore;
 
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         for (int i = 0; i < rollupConfigs.size(); i++) {
@@ -187,6 +194,30 @@ public class AggregateDao implements AggregateRepository {
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
 
+        if (segmentStore != null && !segmentStore.isInitialized()) {
+            // first time the segment store is enabled, copy existing data one segment window at a
+            // time so that the whole history is never held in a single result set
+            for (int i = 0; i < rollupConfigs.size(); i++) {
+                long minCaptureTime = dataSource.queryForLong("select ifnull(min(capture_time), 0)"
+                        + " from aggregate_tt_rollup_" + castUntainted(i));
+                long maxCaptureTime = dataSource.queryForLong("select ifnull(max(capture_time), 0)"
+                        + " from aggregate_tt_rollup_" + castUntainted(i));
+                if (maxCaptureTime == 0) {
+                    continue;
+                }
+                long segmentMillis = segmentStore.getSegmentMillis(i);
+                long from = (long) Math.ceil(minCaptureTime / (double) segmentMillis)
+                        * segmentMillis - segmentMillis;
+                while (from < maxCaptureTime) {
+                    dataSource.query(new SegmentStoreReplay(segmentStore, i, from,
+                            from + segmentMillis));
+                    from += segmentMillis;
+                }
+                segmentStore.flush();
+            }
+            segmentStore.markInitialized();
+        }
+
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
@@ -201,8 +232,8 @@ public class AggregateDao implements AggregateRepository {
             public void visitOverallAggregate(String transactionType, List<String> sharedQueryTexts,
                     Aggregate overallAggregate) throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
-                dataSource.update(new AggregateInsert(transactionType, null, captureTime,
-                        overallAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                insert(new AggregateInsert(transactionType, null, captureTime, overallAggregate,
+                        truncatedQueryTexts, 0, cappedDatabase));
                 transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
             }
             @Override
@@ -210,7 +241,7 @@ public class AggregateDao implements AggregateRepository {
                     List<String> sharedQueryTexts, Aggregate transactionAggregate)
                     throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
-                dataSource.update(new AggregateInsert(transactionType, transactionName, captureTime,
+                insert(new AggregateInsert(transactionType, transactionName, captureTime,
                         transactionAggregate, truncatedQueryTexts, 0, cappedDatabase));
             }
             private void addToTruncatedQueryTexts(List<String> sharedQueryTexts)
@@ -290,6 +321,9 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
             AggregateQuery query) throws Exception {
+        if (segmentStore != null) {
+            return segmentStore.readPercentileAggregates(query);
+        }
         return dataSource.query(new PercentileAggregateQuery(query));
     }
 
@@ -297,6 +331,9 @@ public class AggregateDao implements AggregateRepository {
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
             AggregateQuery query) throws Exception {
+        if (segmentStore != null) {
+            return segmentStore.readThroughputAggregates(query);
+        }
         return dataSource.query(new ThroughputAggregateQuery(query));
     }
 
@@ -423,6 +460,32 @@ public class AggregateDao implements AggregateRepository {
     void deleteBefore(long captureTime, int rollupLevel) throws SQLException {
         dataSource.deleteBefore("aggregate_tt_rollup_" + castUntainted(rollupLevel), captureTime);
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
+        if (segmentStore != null) {
+            segmentStore.deleteBefore(captureTime, rollupLevel);
+        }
+    }
+
+    void reinitAfterDeletingDatabase() {
+        if (segmentStore != null) {
+            segmentStore.deleteAll();
+        }
+    }
+
+    @OnlyUsedByTests
+    void flushSegmentStore() throws IOException {
+        if (segmentStore != null) {
+            segmentStore.flush();
+        }
+    }
+
+    private void insert(AggregateInsert aggregateInsert) throws Exception {
+        if (segmentStore != null) {
+            // appended before the h2 insert, so that a failure here cannot leave the segment store
+            // missing a point that is in h2 (if the h2 insert fails instead, the point is re-stored
+            // with the same capture time, and the last point written for a capture time wins)
+            aggregateInsert.appendTo(segmentStore);
+        }
+        dataSource.update(aggregateInsert);
     }
 
     private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
@@ -1058,7 +1121,7 @@ public class AggregateDao implements AggregateRepository {
                 String transactionType = checkNotNull(resultSet.getString(1));
                 if (curr == null || !transactionType.equals(curr.transactionType())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(), null,
+                        insert(new AggregateInsert(curr.transactionType(), null,
                                 rollupCaptureTime, curr.aggregate(), toRollupLevel,
                                 cappedDatabase, scratchBuffer));
                     }
@@ -1068,9 +1131,8 @@ public class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, 2, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                        rollupCaptureTime, curr.aggregate(), toRollupLevel, cappedDatabase,
-                        scratchBuffer));
+                insert(new AggregateInsert(curr.transactionType(), null, rollupCaptureTime,
+                        curr.aggregate(), toRollupLevel, cappedDatabase, scratchBuffer));
             }
             return null;
         }
@@ -1132,7 +1194,7 @@ public class AggregateDao implements AggregateRepository {
                 if (curr == null || !transactionType.equals(curr.transactionType())
                         || !transactionName.equals(curr.transactionName())) {
                     if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(),
+                        insert(new AggregateInsert(curr.transactionType(),
                                 curr.transactionName(), rollupCaptureTime, curr.aggregate(),
                                 toRollupLevel, cappedDatabase, scratchBuffer));
                     }
@@ -1142,7 +1204,7 @@ public class AggregateDao implements AggregateRepository {
                 merge(curr.aggregate(), resultSet, i++, fromRollupLevel);
             }
             if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(),
+                insert(new AggregateInsert(curr.transactionType(),
                         curr.transactionName(), rollupCaptureTime, curr.aggregate(), toRollupLevel,
                         cappedDatabase, scratchBuffer));
             }
@@ -1242,6 +1304,67 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static class SegmentStoreReplay implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final AggregateSegmentStore segmentStore;
+        private final int rollupLevel;
+        private final long from;
+        private final long to;
+
+        private SegmentStoreReplay(AggregateSegmentStore segmentStore, int rollupLevel, long from,
+                long to) {
+            this.segmentStore = segmentStore;
+            this.rollupLevel = rollupLevel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            // single ordered result set so that the segment store receives points in capture time
+            // order across all series
+            return "select transaction_type, null, capture_time, total_duration_nanos,"
+                    + " transaction_count, error_count, duration_nanos_histogram"
+                    + " from aggregate_tt_rollup_" + castUntainted(rollupLevel)
+                    + " where capture_time > ? and capture_time <= ? union all select"
+                    + " transaction_type, transaction_name, capture_time, total_duration_nanos,"
+                    + " transaction_count, error_count, duration_nanos_histogram"
+                    + " from aggregate_tn_rollup_" + castUntainted(rollupLevel)
+                    + " where capture_time > ? and capture_time <= ? order by 3";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws Exception {
+            int i = 1;
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to);
+            preparedStatement.setLong(i++, from);
+            preparedStatement.setLong(i++, to);
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            while (resultSet.next()) {
+                int i = 1;
+                String transactionType = checkNotNull(resultSet.getString(i++));
+                String transactionName = resultSet.getString(i++);
+                long captureTime = resultSet.getLong(i++);
+                double totalDurationNanos = resultSet.getDouble(i++);
+                long transactionCount = resultSet.getLong(i++);
+                long errorCount = resultSet.getLong(i++);
+                byte[] durationNanosHistogram = checkNotNull(resultSet.getBytes(i++));
+                segmentStore.append(rollupLevel, transactionType, transactionName, captureTime,
+                        totalDurationNanos, transactionCount, errorCount, durationNanosHistogram);
+            }
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosed() {
+            return null;
+        }
+    }
+
     private static class RollupTimeRowMapper implements JdbcRowQuery<Long> {
 
         private final int rollupLevel;
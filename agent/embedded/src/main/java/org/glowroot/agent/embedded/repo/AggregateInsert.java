@@ -244,6 +244,11 @@ class AggregateInsert implements JdbcUpdate {
         preparedStatement.setBytes(i++, durationNanosHistogramBytes);
     }
 
+    void appendTo(AggregateSegmentStore segmentStore) throws IOException {
+        segmentStore.append(rollupLevel, transactionType, transactionName, captureTime,
+                totalDurationNanos, transactionCount, errorCount, durationNanosHistogramBytes);
+    }
+
     private static List<Stored.QueriesByType> toStored(List<Aggregate.Query> aggregateQueries,
             List<TruncatedQueryText> truncatedQueryTexts) {
         Map<String, Stored.QueriesByType.Builder> builders = Maps.newHashMap();
@@ -0,0 +1,714 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.CountingInputStream;
+import com.google.common.primitives.Longs;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.live.ImmutablePercentileAggregate;
+import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// append-only columnar store for the throughput and percentile series of each rollup level
+//
+// each rollup level has its own directory of immutable segment files, where each segment file
+// covers a fixed window of SEGMENT_INTERVALS rollup intervals and holds one encoded
+// AggregateSeriesChunk per series, followed by a footer indexing the chunks by series
+//
+// points for the current (and any late) window are held in memory and written out as a new segment
+// file once a later window is started, and until then each point is also appended to a per window
+// log file, which is re-read on the next startup (so late points for older windows are not lost)
+//
+// existing data is only copied from the h2 database the first time the store is enabled (see
+// AggregateDao), which is tracked by a marker file
+//
+// expiring data is just deleting whole segment files, so there is nothing to defrag
+class AggregateSegmentStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(AggregateSegmentStore.class);
+
+    private static final int MAGIC = 0x474c5253;
+    private static final int VERSION = 2;
+
+    private static final int SEGMENT_INTERVALS = 60;
+
+    private static final String SEGMENT_FILE_SUFFIX = ".segment";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String LOG_FILE_SUFFIX = ".log";
+
+    private static final String INITIALIZED_FILE_NAME = "initialized";
+
+    private final File initializedFile;
+    private final ImmutableList<RollupLevel> rollupLevels;
+
+    AggregateSegmentStore(File dir, List<RollupConfig> rollupConfigs) throws IOException {
+        initializedFile = new File(dir, INITIALIZED_FILE_NAME);
+        boolean initialized = initializedFile.exists();
+        List<RollupLevel> rollupLevels = Lists.newArrayList();
+        for (int i = 0; i < rollupConfigs.size(); i++) {
+            File levelDir = new File(dir, "rollup-" + i);
+            if (!levelDir.exists() && !levelDir.mkdirs()) {
+                throw new IOException("Could not create directory: " + levelDir.getAbsolutePath());
+            }
+            RollupLevel rollupLevel = new RollupLevel(levelDir,
+                    rollupConfigs.get(i).intervalMillis() * SEGMENT_INTERVALS);
+            if (initialized) {
+                rollupLevel.loadSegments();
+            } else {
+                // left over from an incomplete initial copy, or from before the store was disabled
+                rollupLevel.deleteAll();
+            }
+            rollupLevels.add(rollupLevel);
+        }
+        this.rollupLevels = ImmutableList.copyOf(rollupLevels);
+    }
+
+    // the store no longer receives data while it is disabled, so it needs to be re-initialized
+    // from the h2 database if it is enabled again later on
+    static void invalidate(File dir) {
+        File initializedFile = new File(dir, INITIALIZED_FILE_NAME);
+        if (initializedFile.exists() && !initializedFile.delete()) {
+            logger.warn("could not delete file: {}", initializedFile.getAbsolutePath());
+        }
+    }
+
+    // false until existing data has been copied from the h2 database
+    boolean isInitialized() {
+        return initializedFile.exists();
+    }
+
+    void markInitialized() throws IOException {
+        flush();
+        if (!initializedFile.createNewFile() && !initializedFile.exists()) {
+            throw new IOException("Could not create file: " + initializedFile.getAbsolutePath());
+        }
+    }
+
+    long getSegmentMillis(int rollupLevel) {
+        return rollupLevels.get(rollupLevel).segmentMillis;
+    }
+
+    void append(int rollupLevel, String transactionType, @Nullable String transactionName,
+            long captureTime, double totalDurationNanos, long transactionCount, long errorCount,
+            byte[] durationNanosHistogram) throws IOException {
+        rollupLevels.get(rollupLevel).append(ImmutableSeriesKey.of(transactionType,
+                transactionName), captureTime, totalDurationNanos, transactionCount, errorCount,
+                durationNanosHistogram);
+    }
+
+    // query.from() is INCLUSIVE
+    List<ThroughputAggregate> readThroughputAggregates(AggregateQuery query) throws IOException {
+        AggregateSeriesChunk points = read(query, false);
+        List<ThroughputAggregate> throughputAggregates = Lists.newArrayList();
+        for (int i = 0; i < points.size(); i++) {
+            throughputAggregates.add(ImmutableThroughputAggregate.builder()
+                    .captureTime(points.getCaptureTime(i))
+                    .transactionCount(points.getTransactionCount(i))
+                    .errorCount(points.getErrorCount(i))
+                    .build());
+        }
+        return throughputAggregates;
+    }
+
+    // query.from() is INCLUSIVE
+    List<PercentileAggregate> readPercentileAggregates(AggregateQuery query) throws IOException {
+        AggregateSeriesChunk points = read(query, true);
+        List<PercentileAggregate> percentileAggregates = Lists.newArrayList();
+        for (int i = 0; i < points.size(); i++) {
+            percentileAggregates.add(ImmutablePercentileAggregate.builder()
+                    .captureTime(points.getCaptureTime(i))
+                    .totalDurationNanos(points.getTotalDurationNanos(i))
+                    .transactionCount(points.getTransactionCount(i))
+                    .durationNanosHistogram(Aggregate.Histogram.parser()
+                            .parseFrom(points.getDurationNanosHistogram(i)))
+                    .build());
+        }
+        return percentileAggregates;
+    }
+
+    void deleteBefore(long captureTime, int rollupLevel) {
+        rollupLevels.get(rollupLevel).deleteBefore(captureTime);
+    }
+
+    void deleteAll() {
+        for (RollupLevel rollupLevel : rollupLevels) {
+            rollupLevel.deleteAll();
+        }
+    }
+
+    void flush() throws IOException {
+        for (RollupLevel rollupLevel : rollupLevels) {
+            rollupLevel.flush();
+        }
+    }
+
+    private AggregateSeriesChunk read(AggregateQuery query, boolean includeHistograms)
+            throws IOException {
+        RollupLevel rollupLevel = rollupLevels.get(query.rollupLevel());
+        SeriesKey seriesKey =
+                ImmutableSeriesKey.of(query.transactionType(), query.transactionName());
+        List<AggregateSeriesChunk> chunks =
+                rollupLevel.readChunks(seriesKey, query.from(), query.to(), includeHistograms);
+        // chunks are in the order they were written, so that when the same capture time was
+        // written more than once (e.g. rollup re-run after restart), the last one wins, matching
+        // the h2 "merge into" behavior
+        List<PointRef> pointRefs = Lists.newArrayList();
+        for (AggregateSeriesChunk chunk : chunks) {
+            for (int i = 0; i < chunk.size(); i++) {
+                long captureTime = chunk.getCaptureTime(i);
+                if (captureTime >= query.from() && captureTime <= query.to()) {
+                    pointRefs.add(new PointRef(chunk, i));
+                }
+            }
+        }
+        // stable sort
+        Collections.sort(pointRefs, new Comparator<PointRef>() {
+            @Override
+            public int compare(PointRef left, PointRef right) {
+                return Longs.compare(left.captureTime(), right.captureTime());
+            }
+        });
+        AggregateSeriesChunk points = new AggregateSeriesChunk();
+        for (int i = 0; i < pointRefs.size(); i++) {
+            PointRef pointRef = pointRefs.get(i);
+            if (i < pointRefs.size() - 1
+                    && pointRefs.get(i + 1).captureTime() == pointRef.captureTime()) {
+                continue;
+            }
+            AggregateSeriesChunk chunk = pointRef.chunk;
+            int index = pointRef.index;
+            points.add(chunk.getCaptureTime(index), chunk.getTotalDurationNanos(index),
+                    chunk.getTransactionCount(index), chunk.getErrorCount(index),
+                    chunk.getDurationNanosHistogram(index));
+        }
+        return points;
+    }
+
+    private static class RollupLevel {
+
+        private final File dir;
+        private final long segmentMillis;
+
+        // time index, keyed by segment end time (segment covers segmentEnd - segmentMillis
+        // exclusive, to segmentEnd inclusive, same as rollup capture times)
+        @GuardedBy("this")
+        private final NavigableMap<Long, List<Segment>> segments = Maps.newTreeMap();
+
+        @GuardedBy("this")
+        private final NavigableMap<Long, Map<SeriesKey, AggregateSeriesChunk>> openChunks =
+                Maps.newTreeMap();
+
+        // per window log of the points in openChunks
+        @GuardedBy("this")
+        private final Map<Long, DataOutputStream> openLogs = Maps.newHashMap();
+
+        @GuardedBy("this")
+        private int nextFileNum;
+
+        private RollupLevel(File dir, long segmentMillis) {
+            this.dir = dir;
+            this.segmentMillis = segmentMillis;
+        }
+
+        private synchronized void loadSegments() {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            List<File> logFiles = Lists.newArrayList();
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(TEMP_FILE_SUFFIX)) {
+                    // incomplete write
+                    deleteFile(file);
+                    continue;
+                }
+                if (name.endsWith(LOG_FILE_SUFFIX)) {
+                    logFiles.add(file);
+                    continue;
+                }
+                if (!name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                    continue;
+                }
+                Segment segment;
+                try {
+                    segment = Segment.load(file);
+                } catch (IOException e) {
+                    logger.warn("deleting unreadable segment file {}: {}", file, e.getMessage());
+                    logger.debug(e.getMessage(), e);
+                    deleteFile(file);
+                    continue;
+                }
+                addSegment(segment);
+                nextFileNum = Math.max(nextFileNum, segment.fileNum + 1);
+            }
+            for (File logFile : logFiles) {
+                try {
+                    loadLog(logFile);
+                } catch (IOException e) {
+                    logger.warn("deleting unreadable segment log file {}: {}", logFile,
+                            e.getMessage());
+                    logger.debug(e.getMessage(), e);
+                    deleteFile(logFile);
+                }
+            }
+            // sort each segment's files in write order
+            for (List<Segment> list : segments.values()) {
+                Collections.sort(list, new Comparator<Segment>() {
+                    @Override
+                    public int compare(Segment left, Segment right) {
+                        return left.fileNum - right.fileNum;
+                    }
+                });
+            }
+        }
+
+        @GuardedBy("this")
+        private void loadLog(File logFile) throws IOException {
+            String name = logFile.getName();
+            long segmentEnd;
+            try {
+                segmentEnd = Long.parseLong(
+                        name.substring(0, name.length() - LOG_FILE_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected segment log file name", e);
+            }
+            Map<SeriesKey, AggregateSeriesChunk> chunks = getOpenChunks(segmentEnd);
+            CountingInputStream countingIn =
+                    new CountingInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+            DataInputStream in = new DataInputStream(countingIn);
+            long validLength = -1;
+            try {
+                while (true) {
+                    long recordPosition = countingIn.getCount();
+                    String transactionType;
+                    try {
+                        transactionType = readString(in);
+                    } catch (EOFException e) {
+                        // end of log
+                        break;
+                    }
+                    try {
+                        String transactionName = in.readBoolean() ? readString(in) : null;
+                        long captureTime = in.readLong();
+                        double totalDurationNanos = in.readDouble();
+                        long transactionCount = in.readLong();
+                        long errorCount = in.readLong();
+                        byte[] durationNanosHistogram = new byte[in.readInt()];
+                        in.readFully(durationNanosHistogram);
+                        getOpenChunk(chunks, ImmutableSeriesKey.of(transactionType,
+                                transactionName)).add(captureTime, totalDurationNanos,
+                                        transactionCount, errorCount, durationNanosHistogram);
+                    } catch (EOFException e) {
+                        // point was only partially written, e.g. JVM terminated in the middle of
+                        // appending it (in which case the h2 insert did not happen either)
+                        logger.debug(e.getMessage(), e);
+                        validLength = recordPosition;
+                        break;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            if (validLength != -1) {
+                // truncate partial point so that later appends to the log can be read back
+                RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+
+        private synchronized void append(SeriesKey seriesKey, long captureTime,
+                double totalDurationNanos, long transactionCount, long errorCount,
+                byte[] durationNanosHistogram) throws IOException {
+            long segmentEnd = (long) Math.ceil(captureTime / (double) segmentMillis)
+                    * segmentMillis;
+            if (!openChunks.isEmpty() && segmentEnd > openChunks.lastKey()) {
+                // a later window has started
+                for (Map.Entry<Long, Map<SeriesKey, AggregateSeriesChunk>> entry : openChunks
+                        .entrySet()) {
+                    writeSegment(entry.getKey(), entry.getValue());
+                }
+                openChunks.clear();
+            }
+            // the point is logged before it is added, so that it is not lost if the jvm is shut
+            // down before the window is written out as a segment file
+            DataOutputStream log = getOpenLog(segmentEnd);
+            writeString(log, seriesKey.transactionType());
+            String transactionName = seriesKey.transactionName();
+            log.writeBoolean(transactionName != null);
+            if (transactionName != null) {
+                writeString(log, transactionName);
+            }
+            log.writeLong(captureTime);
+            log.writeDouble(totalDurationNanos);
+            log.writeLong(transactionCount);
+            log.writeLong(errorCount);
+            log.writeInt(durationNanosHistogram.length);
+            log.write(durationNanosHistogram);
+            log.flush();
+            getOpenChunk(getOpenChunks(segmentEnd), seriesKey).add(captureTime,
+                    totalDurationNanos, transactionCount, errorCount, durationNanosHistogram);
+        }
+
+        @GuardedBy("this")
+        private Map<SeriesKey, AggregateSeriesChunk> getOpenChunks(long segmentEnd) {
+            Map<SeriesKey, AggregateSeriesChunk> chunks = openChunks.get(segmentEnd);
+            if (chunks == null) {
+                // linked hash map so that segment file layout is deterministic
+                chunks = Maps.newLinkedHashMap();
+                openChunks.put(segmentEnd, chunks);
+            }
+            return chunks;
+        }
+
+        @GuardedBy("this")
+        private DataOutputStream getOpenLog(long segmentEnd) throws IOException {
+            DataOutputStream log = openLogs.get(segmentEnd);
+            if (log == null) {
+                log = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(getLogFile(segmentEnd), true)));
+                openLogs.put(segmentEnd, log);
+            }
+            return log;
+        }
+
+        private File getLogFile(long segmentEnd) {
+            return new File(dir, segmentEnd + LOG_FILE_SUFFIX);
+        }
+
+        private List<AggregateSeriesChunk> readChunks(SeriesKey seriesKey, long from, long to,
+                boolean includeHistograms) throws IOException {
+            List<Segment> segmentsToRead = Lists.newArrayList();
+            List<AggregateSeriesChunk> chunks = Lists.newArrayList();
+            synchronized (this) {
+                for (List<Segment> list : segments
+                        .subMap(from, true, to + segmentMillis, false).values()) {
+                    segmentsToRead.addAll(list);
+                }
+                for (Map<SeriesKey, AggregateSeriesChunk> openChunksForSegment : openChunks
+                        .subMap(from, true, to + segmentMillis, false).values()) {
+                    AggregateSeriesChunk chunk = openChunksForSegment.get(seriesKey);
+                    if (chunk != null) {
+                        // copy since the open chunk continues to be appended to
+                        chunks.add(AggregateSeriesChunk.decode(chunk.encode(), includeHistograms));
+                    }
+                }
+            }
+            // read segment files outside of the lock so that appends are not blocked by ui queries
+            List<AggregateSeriesChunk> segmentChunks = Lists.newArrayList();
+            for (Segment segment : segmentsToRead) {
+                byte[] bytes;
+                try {
+                    bytes = segment.readChunk(seriesKey);
+                } catch (FileNotFoundException e) {
+                    // segment file was expired concurrently
+                    logger.debug(e.getMessage(), e);
+                    continue;
+                }
+                if (bytes != null) {
+                    segmentChunks.add(AggregateSeriesChunk.decode(bytes, includeHistograms));
+                }
+            }
+            // open chunks are newer than any segment file
+            segmentChunks.addAll(chunks);
+            return segmentChunks;
+        }
+
+        private synchronized void deleteBefore(long captureTime) {
+            NavigableMap<Long, List<Segment>> expired = segments.headMap(captureTime, false);
+            for (List<Segment> list : expired.values()) {
+                for (Segment segment : list) {
+                    deleteFile(segment.file);
+                }
+            }
+            expired.clear();
+            NavigableMap<Long, Map<SeriesKey, AggregateSeriesChunk>> expiredOpenChunks =
+                    openChunks.headMap(captureTime, false);
+            for (Long segmentEnd : expiredOpenChunks.keySet()) {
+                DataOutputStream log = openLogs.remove(segmentEnd);
+                if (log != null) {
+                    try {
+                        log.close();
+                    } catch (IOException e) {
+                        logger.debug(e.getMessage(), e);
+                    }
+                }
+                deleteFile(getLogFile(segmentEnd));
+            }
+            expiredOpenChunks.clear();
+        }
+
+        private synchronized void deleteAll() {
+            closeOpenLogs();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    deleteFile(file);
+                }
+            }
+            segments.clear();
+            openChunks.clear();
+        }
+
+        private synchronized void flush() throws IOException {
+            for (Map.Entry<Long, Map<SeriesKey, AggregateSeriesChunk>> entry : openChunks
+                    .entrySet()) {
+                writeSegment(entry.getKey(), entry.getValue());
+            }
+            openChunks.clear();
+        }
+
+        @GuardedBy("this")
+        private void closeOpenLogs() {
+            for (DataOutputStream log : openLogs.values()) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    logger.debug(e.getMessage(), e);
+                }
+            }
+            openLogs.clear();
+        }
+
+        @GuardedBy("this")
+        private void writeSegment(long segmentEnd, Map<SeriesKey, AggregateSeriesChunk> chunks)
+                throws IOException {
+            int fileNum = nextFileNum++;
+            File file = new File(dir, segmentEnd + "-" + fileNum + SEGMENT_FILE_SUFFIX);
+            File tempFile = new File(dir, file.getName() + TEMP_FILE_SUFFIX);
+            Map<SeriesKey, long[]> chunkPositions = Maps.newLinkedHashMap();
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (Map.Entry<SeriesKey, AggregateSeriesChunk> entry : chunks.entrySet()) {
+                    AggregateSeriesChunk chunk = entry.getValue();
+                    byte[] bytes = chunk.encode();
+                    chunkPositions.put(entry.getKey(), new long[] {out.size(), bytes.length});
+                    out.write(bytes);
+                }
+                long footerPosition = out.size();
+                out.writeInt(chunkPositions.size());
+                for (Map.Entry<SeriesKey, long[]> entry : chunkPositions.entrySet()) {
+                    SeriesKey seriesKey = entry.getKey();
+                    writeString(out, seriesKey.transactionType());
+                    String transactionName = seriesKey.transactionName();
+                    out.writeBoolean(transactionName != null);
+                    if (transactionName != null) {
+                        writeString(out, transactionName);
+                    }
+                    out.writeLong(entry.getValue()[0]);
+                    out.writeInt((int) entry.getValue()[1]);
+                }
+                out.writeLong(footerPosition);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename file: " + tempFile.getAbsolutePath());
+            }
+            addSegment(new Segment(file, segmentEnd, fileNum, chunkPositions));
+            // the points are now in the segment file
+            DataOutputStream log = openLogs.remove(segmentEnd);
+            if (log != null) {
+                log.close();
+            }
+            File logFile = getLogFile(segmentEnd);
+            if (logFile.exists()) {
+                deleteFile(logFile);
+            }
+        }
+
+        private static AggregateSeriesChunk getOpenChunk(
+                Map<SeriesKey, AggregateSeriesChunk> chunks, SeriesKey seriesKey) {
+            AggregateSeriesChunk chunk = chunks.get(seriesKey);
+            if (chunk == null) {
+                chunk = new AggregateSeriesChunk();
+                chunks.put(seriesKey, chunk);
+            }
+            return chunk;
+        }
+
+        @GuardedBy("this")
+        private void addSegment(Segment segment) {
+            List<Segment> list = segments.get(segment.segmentEnd);
+            if (list == null) {
+                list = Lists.newArrayList();
+                segments.put(segment.segmentEnd, list);
+            }
+            list.add(segment);
+        }
+
+        private static void deleteFile(File file) {
+            if (!file.delete()) {
+                logger.warn("could not delete file: {}", file.getAbsolutePath());
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            // not using writeUTF() since it is limited to 64k
+            byte[] bytes = value.getBytes(Charsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private final long segmentEnd;
+        private final int fileNum;
+        // series key -> [file position, length]
+        private final Map<SeriesKey, long[]> chunkPositions;
+
+        private Segment(File file, long segmentEnd, int fileNum,
+                Map<SeriesKey, long[]> chunkPositions) {
+            this.file = file;
+            this.segmentEnd = segmentEnd;
+            this.fileNum = fileNum;
+            this.chunkPositions = chunkPositions;
+        }
+
+        private byte /*@Nullable*/ [] readChunk(SeriesKey seriesKey) throws IOException {
+            long[] chunkPosition = chunkPositions.get(seriesKey);
+            if (chunkPosition == null) {
+                return null;
+            }
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                byte[] bytes = new byte[(int) chunkPosition[1]];
+                in.seek(chunkPosition[0]);
+                in.readFully(bytes);
+                return bytes;
+            } finally {
+                in.close();
+            }
+        }
+
+        private static Segment load(File file) throws IOException {
+            String name = file.getName();
+            String[] parts =
+                    name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()).split("-");
+            if (parts.length != 2) {
+                throw new IOException("Unexpected segment file name");
+            }
+            long segmentEnd;
+            int fileNum;
+            try {
+                segmentEnd = Long.parseLong(parts[0]);
+                fileNum = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected segment file name", e);
+            }
+            byte[] footer;
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Unexpected segment file header");
+                }
+                long length = in.length();
+                in.seek(length - 8);
+                long footerPosition = in.readLong();
+                if (footerPosition < 8 || footerPosition > length - 8) {
+                    throw new IOException("Unexpected segment file footer position");
+                }
+                footer = new byte[(int) (length - 8 - footerPosition)];
+                in.seek(footerPosition);
+                in.readFully(footer);
+            } finally {
+                in.close();
+            }
+            DataInputStream footerIn = new DataInputStream(new ByteArrayInputStream(footer));
+            int count = footerIn.readInt();
+            Map<SeriesKey, long[]> chunkPositions = Maps.newHashMap();
+            for (int i = 0; i < count; i++) {
+                String transactionType = readString(footerIn);
+                String transactionName = footerIn.readBoolean() ? readString(footerIn) : null;
+                long position = footerIn.readLong();
+                int length = footerIn.readInt();
+                chunkPositions.put(ImmutableSeriesKey.of(transactionType, transactionName),
+                        new long[] {position, length});
+            }
+            return new Segment(file, segmentEnd, fileNum, chunkPositions);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static class PointRef {
+
+        private final AggregateSeriesChunk chunk;
+        private final int index;
+
+        private PointRef(AggregateSeriesChunk chunk, int index) {
+            this.chunk = chunk;
+            this.index = index;
+        }
+
+        private long captureTime() {
+            return chunk.getCaptureTime(index);
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface SeriesKey {
+        String transactionType();
+        @Nullable
+        String transactionName();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// points of a single aggregate series (transaction type, or transaction type + transaction name),
+// held column by column
+//
+// encoded layout is a point count followed by one length-prefixed block per column, so readers can
+// skip columns that they don't need (e.g. throughput queries never decode the histograms):
+// * capture times: delta-of-delta, zigzag varint (regular intervals encode to a single zero byte)
+// * transaction counts and error counts: delta, zigzag varint
+// * total duration nanos: xor with the previous value, with leading and trailing zero bytes elided
+// * duration nanos histograms: length-prefixed protobuf bytes
+class AggregateSeriesChunk {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final byte[] NOT_DECODED = new byte[0];
+
+    private long[] captureTimes;
+    private double[] totalDurationNanos;
+    private long[] transactionCounts;
+    private long[] errorCounts;
+    private byte[][] durationNanosHistograms;
+
+    private int size;
+
+    AggregateSeriesChunk() {
+        this(INITIAL_CAPACITY);
+    }
+
+    private AggregateSeriesChunk(int capacity) {
+        captureTimes = new long[capacity];
+        totalDurationNanos = new double[capacity];
+        transactionCounts = new long[capacity];
+        errorCounts = new long[capacity];
+        durationNanosHistograms = new byte[capacity][];
+    }
+
+    void add(long captureTime, double totalDurationNanos, long transactionCount, long errorCount,
+            byte[] durationNanosHistogram) {
+        if (size == captureTimes.length) {
+            int newCapacity = captureTimes.length * 2;
+            captureTimes = Arrays.copyOf(captureTimes, newCapacity);
+            this.totalDurationNanos = Arrays.copyOf(this.totalDurationNanos, newCapacity);
+            transactionCounts = Arrays.copyOf(transactionCounts, newCapacity);
+            errorCounts = Arrays.copyOf(errorCounts, newCapacity);
+            durationNanosHistograms = Arrays.copyOf(durationNanosHistograms, newCapacity);
+        }
+        captureTimes[size] = captureTime;
+        this.totalDurationNanos[size] = totalDurationNanos;
+        transactionCounts[size] = transactionCount;
+        errorCounts[size] = errorCount;
+        durationNanosHistograms[size] = durationNanosHistogram;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getCaptureTime(int index) {
+        return captureTimes[index];
+    }
+
+    double getTotalDurationNanos(int index) {
+        return totalDurationNanos[index];
+    }
+
+    long getTransactionCount(int index) {
+        return transactionCounts[index];
+    }
+
+    long getErrorCount(int index) {
+        return errorCounts[index];
+    }
+
+    // empty if the chunk was decoded without histograms
+    byte[] getDurationNanosHistogram(int index) {
+        return durationNanosHistograms[index];
+    }
+
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarLong(out, size);
+        writeColumn(out, encodeCaptureTimes());
+        writeColumn(out, encodeDeltas(transactionCounts));
+        writeColumn(out, encodeDeltas(errorCounts));
+        writeColumn(out, encodeXor(totalDurationNanos));
+        ByteArrayOutputStream histograms = new ByteArrayOutputStream();
+        for (int i = 0; i < size; i++) {
+            writeVarLong(histograms, durationNanosHistograms[i].length);
+            histograms.write(durationNanosHistograms[i]);
+        }
+        writeColumn(out, histograms.toByteArray());
+        return out.toByteArray();
+    }
+
+    static AggregateSeriesChunk decode(byte[] bytes, boolean includeHistograms) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int size = (int) readVarLong(buffer);
+        AggregateSeriesChunk chunk = new AggregateSeriesChunk(Math.max(size, 1));
+        chunk.size = size;
+        readVarLong(buffer); // column length
+        long captureTime = 0;
+        long delta = 0;
+        for (int i = 0; i < size; i++) {
+            long value = decodeZigZag(readVarLong(buffer));
+            if (i == 0) {
+                captureTime = value;
+            } else if (i == 1) {
+                delta = value;
+                captureTime += delta;
+            } else {
+                delta += value;
+                captureTime += delta;
+            }
+            chunk.captureTimes[i] = captureTime;
+        }
+        readDeltas(buffer, chunk.transactionCounts, size);
+        readDeltas(buffer, chunk.errorCounts, size);
+        readVarLong(buffer); // column length
+        long prevBits = 0;
+        for (int i = 0; i < size; i++) {
+            int control = buffer.get() & 0xff;
+            long xor = 0;
+            if (control != 0) {
+                int leadingZeroBytes = (control >>> 3) & 0x7;
+                int trailingZeroBytes = control & 0x7;
+                for (int j = 7 - leadingZeroBytes; j >= trailingZeroBytes; j--) {
+                    xor |= (buffer.get() & 0xffL) << (8 * j);
+                }
+            }
+            prevBits ^= xor;
+            chunk.totalDurationNanos[i] = Double.longBitsToDouble(prevBits);
+        }
+        if (includeHistograms) {
+            readVarLong(buffer); // column length
+            for (int i = 0; i < size; i++) {
+                byte[] histogram = new byte[(int) readVarLong(buffer)];
+                buffer.get(histogram);
+                chunk.durationNanosHistograms[i] = histogram;
+            }
+        } else {
+            Arrays.fill(chunk.durationNanosHistograms, 0, size, NOT_DECODED);
+        }
+        return chunk;
+    }
+
+    private byte[] encodeCaptureTimes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long prevDelta = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0) {
+                writeVarLong(out, encodeZigZag(captureTimes[0]));
+            } else {
+                long delta = captureTimes[i] - captureTimes[i - 1];
+                writeVarLong(out, encodeZigZag(i == 1 ? delta : delta - prevDelta));
+                prevDelta = delta;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] encodeDeltas(long[] values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long prev = 0;
+        for (int i = 0; i < size; i++) {
+            writeVarLong(out, encodeZigZag(values[i] - prev));
+            prev = values[i];
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] encodeXor(double[] values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long prevBits = 0;
+        for (int i = 0; i < size; i++) {
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ prevBits;
+            prevBits = bits;
+            if (xor == 0) {
+                out.write(0);
+                continue;
+            }
+            // at least one byte is non-zero, so leading + trailing zero bytes is at most 7
+            int leadingZeroBytes = Long.numberOfLeadingZeros(xor) / 8;
+            int trailingZeroBytes = Long.numberOfTrailingZeros(xor) / 8;
+            out.write(0x80 | (leadingZeroBytes << 3) | trailingZeroBytes);
+            for (int j = 7 - leadingZeroBytes; j >= trailingZeroBytes; j--) {
+                out.write((int) (xor >>> (8 * j)));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void readDeltas(ByteBuffer buffer, long[] values, int size) {
+        readVarLong(buffer); // column length
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value += decodeZigZag(readVarLong(buffer));
+            values[i] = value;
+        }
+    }
+
+    private static void writeColumn(ByteArrayOutputStream out, byte[] column) throws IOException {
+        writeVarLong(out, column.length);
+        out.write(column);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        long remaining = value;
+        while ((remaining & ~0x7FL) != 0) {
+            out.write((int) ((remaining & 0x7F) | 0x80));
+            remaining >>>= 7;
+        }
+        out.write((int) remaining);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static long encodeZigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
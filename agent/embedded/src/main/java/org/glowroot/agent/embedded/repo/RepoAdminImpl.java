@@ -51,6 +51,7 @@ class RepoAdminImpl implements RepoAdmin {
     private final GaugeNameDao gaugeNameDao;
     private final GaugeValueDao gaugeValueDao;
     private final TransactionTypeDao transactionTypeDao;
+    private final AggregateDao aggregateDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
     private final Clock clock;
@@ -59,8 +60,9 @@ class RepoAdminImpl implements RepoAdmin {
             CappedDatabase traceCappedDatabase, ConfigRepositoryImpl configRepository,
             AlertingDisabledDao alertingDisabledDao, EnvironmentDao environmentDao,
             GaugeIdDao gaugeIdDao, GaugeNameDao gaugeNameDao, GaugeValueDao gaugeValueDao,
-            TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            TraceAttributeNameDao traceAttributeNameDao, Clock clock) {
+            TransactionTypeDao transactionTypeDao, AggregateDao aggregateDao,
+            FullQueryTextDao fullQueryTextDao, TraceAttributeNameDao traceAttributeNameDao,
+            Clock clock) {
         this.dataSource = dataSource;
         this.rollupCappedDatabases = rollupCappedDatabases;
         this.traceCappedDatabase = traceCappedDatabase;
@@ -71,6 +73,7 @@ class RepoAdminImpl implements RepoAdmin {
         this.gaugeNameDao = gaugeNameDao;
         this.gaugeValueDao = gaugeValueDao;
         this.transactionTypeDao = transactionTypeDao;
+        this.aggregateDao = aggregateDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.traceAttributeNameDao = traceAttributeNameDao;
         this.clock = clock;
@@ -93,6 +96,7 @@ class RepoAdminImpl implements RepoAdmin {
         gaugeNameDao.invalidateCache();
         gaugeValueDao.reinitAfterDeletingDatabase();
         transactionTypeDao.invalidateCache();
+        aggregateDao.reinitAfterDeletingDatabase();
         fullQueryTextDao.invalidateCache();
         traceAttributeNameDao.invalidateCache();
         if (environment != null) {
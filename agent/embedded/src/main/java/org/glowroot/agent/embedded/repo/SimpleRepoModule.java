@@ -104,8 +104,17 @@ public class SimpleRepoModule {
         transactionTypeDao = new TransactionTypeDao(dataSource);
         rollupLevelService = new RollupLevelService(configRepository, clock);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(dataSource);
+        File aggregateSegmentDir = new File(dataDir, "aggregate-segments");
+        AggregateSegmentStore aggregateSegmentStore;
+        if (Boolean.getBoolean("glowroot.internal.aggregateSegmentStore")) {
+            aggregateSegmentStore = new AggregateSegmentStore(aggregateSegmentDir,
+                    configRepository.getRollupConfigs());
+        } else {
+            AggregateSegmentStore.invalidate(aggregateSegmentDir);
+            aggregateSegmentStore = null;
+        }
         aggregateDao = new AggregateDao(dataSource, this.rollupCappedDatabases, configRepository,
-                transactionTypeDao, fullQueryTextDao);
+                transactionTypeDao, fullQueryTextDao, aggregateSegmentStore);
         traceAttributeNameDao = new TraceAttributeNameDao(dataSource);
         traceDao = new TraceDao(dataSource, traceCappedDatabase, transactionTypeDao,
                 fullQueryTextDao, traceAttributeNameDao);
@@ -121,7 +130,8 @@ public class SimpleRepoModule {
 
         repoAdmin = new RepoAdminImpl(dataSource, rollupCappedDatabases, traceCappedDatabase,
                 configRepository, alertingDisabledDao, environmentDao, gaugeIdDao, gaugeNameDao,
-                gaugeValueDao, transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, clock);
+                gaugeValueDao, transactionTypeDao, aggregateDao, fullQueryTextDao,
+                traceAttributeNameDao, clock);
 
         httpClient = new HttpClient(configRepository);
 
@@ -27,6 +27,9 @@ import java.io.Reader;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -77,10 +80,16 @@ public class CappedDatabase {
     @GuardedBy("lock")
     private final CappedDatabaseOutputStream out;
     private final Thread shutdownHookThread;
-    @GuardedBy("lock")
-    private RandomAccessFile inFile;
     private volatile boolean closed = false;
 
+    // readers do not take the writer lock above, instead each reader reads through its own file
+    // handle (so there is no shared file position), and validates after each read that the bytes
+    // it read were not being overwritten at the same time
+    //
+    // the read lock is held for the duration of each read, and the write lock is only held during
+    // resize, since the file is replaced during resize
+    private final ReadWriteLock resizeLock = new ReentrantReadWriteLock();
+
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
@@ -90,7 +99,6 @@ public class CappedDatabase {
         this.file = file;
         this.ticker = ticker;
         out = CappedDatabaseOutputStream.create(file, requestedSizeKb, scheduledExecutor, ticker);
-        inFile = new RandomAccessFile(file, "r");
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -244,13 +252,16 @@ public class CappedDatabase {
     }
 
     public void resize(int newSizeKb) throws IOException {
-        synchronized (lock) {
-            if (closed) {
-                return;
+        resizeLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                out.resize(newSizeKb);
             }
-            inFile.close();
-            out.resize(newSizeKb);
-            inFile = new RandomAccessFile(file, "r");
+        } finally {
+            resizeLock.writeLock().unlock();
         }
     }
 
@@ -259,7 +270,6 @@ public class CappedDatabase {
         synchronized (lock) {
             closed = true;
             out.close();
-            inFile.close();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
@@ -306,6 +316,9 @@ public class CappedDatabase {
         private long blockLength = -1;
         private long blockIndex;
 
+        private @Nullable Lock readLock;
+        private @Nullable RandomAccessFile inFile;
+
         private CappedBlockInputStream(long cappedId) {
             this.cappedId = cappedId;
         }
@@ -315,24 +328,63 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
-            synchronized (lock) {
-                if (out.isOverwritten(cappedId)) {
-                    throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
-                }
-                if (blockLength == -1) {
-                    long filePosition = out.convertToFilePosition(cappedId);
-                    inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                    blockLength = inFile.readLong();
+            RandomAccessFile inFile = this.inFile;
+            if (inFile == null) {
+                // lock and file are acquired lazily, and released in close()
+                Lock readLock = resizeLock.readLock();
+                readLock.lock();
+                try {
+                    inFile = new RandomAccessFile(file, "r");
+                } catch (IOException e) {
+                    readLock.unlock();
+                    throw e;
                 }
-                long filePosition = out.convertToFilePosition(
-                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+                this.readLock = readLock;
+                this.inFile = inFile;
+            }
+            checkNotOverwritten();
+            if (blockLength == -1) {
+                long filePosition = out.convertToFilePosition(cappedId);
                 inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
-                long blockRemaining = blockLength - blockIndex;
-                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
-                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
-                inFile.readFully(bytes, off, numToRead);
-                blockIndex += numToRead;
-                return numToRead;
+                blockLength = inFile.readLong();
+                // validate after reading
+                checkNotOverwritten();
+            }
+            long filePosition = out.convertToFilePosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            inFile.seek(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+            long blockRemaining = blockLength - blockIndex;
+            long fileRemaining = out.getSizeKb() * 1024L - filePosition;
+            int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+            inFile.readFully(bytes, off, numToRead);
+            // validate after reading
+            checkNotOverwritten();
+            blockIndex += numToRead;
+            return numToRead;
+        }
+
+        @Override
+        public void close() throws IOException {
+            RandomAccessFile inFile = this.inFile;
+            Lock readLock = this.readLock;
+            this.inFile = null;
+            this.readLock = null;
+            try {
+                if (inFile != null) {
+                    inFile.close();
+                }
+            } finally {
+                if (readLock != null) {
+                    readLock.unlock();
+                }
+            }
+        }
+
+        private void checkNotOverwritten() throws CappedBlockRolledOverMidReadException {
+            // since the block is contiguous (other than wrapping), the entire block is valid as
+            // long as its first byte is valid
+            if (out.isOverwrittenOrPendingOverwrite(cappedId)) {
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
             }
         }
 
@@ -360,7 +412,6 @@ public class CappedDatabase {
                 closed = true;
                 synchronized (lock) {
                     out.close();
-                    inFile.close();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
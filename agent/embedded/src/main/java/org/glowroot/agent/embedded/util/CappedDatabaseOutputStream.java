@@ -58,6 +58,10 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     // volatile so it can be read outside of the external synchronization
     private volatile long smallestNonOverwrittenId;
+    // same as smallestNonOverwrittenId, except that it is updated prior to (instead of after)
+    // writing, so that readers (which do not synchronize with the writer) can validate after
+    // reading that the bytes they read were not being overwritten at the same time
+    private volatile long smallestNonOverwrittenIdAfterPendingWrite;
 
     private long blockStartIndex;
     private long blockStartPosition;
@@ -103,6 +107,7 @@ class CappedDatabaseOutputStream extends OutputStream {
         }
         smallestNonOverwrittenId =
                 calculateSmallestNonOverwrittenId(lastResizeBaseIndex, currIndex, sizeBytes);
+        smallestNonOverwrittenIdAfterPendingWrite = smallestNonOverwrittenId;
         lastFsyncTick.set(ticker.read());
         fsyncScheduledRunnable = new FsyncRunnable();
     }
@@ -146,6 +151,11 @@ class CappedDatabaseOutputStream extends OutputStream {
         return cappedId < smallestNonOverwrittenId;
     }
 
+    // this is ok to call outside of external synchronization
+    boolean isOverwrittenOrPendingOverwrite(long cappedId) {
+        return cappedId < smallestNonOverwrittenIdAfterPendingWrite;
+    }
+
     // this is ok to call outside of external synchronization
     long getSmallestNonOverwrittenId() {
         return smallestNonOverwrittenId;
@@ -226,6 +236,8 @@ class CappedDatabaseOutputStream extends OutputStream {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
+        smallestNonOverwrittenIdAfterPendingWrite =
+                calculateSmallestNonOverwrittenId(lastResizeBaseIndex, currIndex + len, sizeBytes);
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
@@ -283,6 +295,7 @@ class CappedDatabaseOutputStream extends OutputStream {
     private void updateSmallestNonOverwrittenId() {
         smallestNonOverwrittenId =
                 calculateSmallestNonOverwrittenId(lastResizeBaseIndex, currIndex, sizeBytes);
+        smallestNonOverwrittenIdAfterPendingWrite = smallestNonOverwrittenId;
     }
 
     // separate static method to satisfy checker framework since calling from constructor
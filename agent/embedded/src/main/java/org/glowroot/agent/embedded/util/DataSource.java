@@ -23,8 +23,12 @@ import java.sql.Statement;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -52,6 +56,7 @@ import org.glowroot.common2.repo.RepoAdmin.H2Table;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class DataSource {
@@ -64,6 +69,9 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    private static final int READER_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readerConnections", 2);
+
     // null means use memDb
     private final @Nullable File dbFile;
     private final Thread shutdownHookThread;
@@ -72,6 +80,18 @@ public class DataSource {
     private JdbcConnection connection;
     private volatile boolean closed;
 
+    // all writes go through the single connection above (under lock), so they stay ordered, while
+    // queries go through the reader connections, so that queries (e.g. from the UI over a wide
+    // time range) and writes (e.g. storing aggregates and rollups) do not block each other for the
+    // full duration of the query, including mapping of the result set rows
+    //
+    // null when using memDb (since each connection to an unnamed in-memory database gets its own
+    // database) or when disabled, in which case queries go through the single connection above
+    private final @Nullable BlockingQueue<ReaderConnection> readerConnections;
+    // write lock is held while the database is being shut down and re-opened (see defrag(),
+    // compact() and deleteAll()), read lock is held while using a reader connection
+    private final ReadWriteLock readerConnectionsLock = new ReentrantReadWriteLock();
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private final ThreadLocal<Boolean> suppressQueryTimeout = new ThreadLocal<Boolean>() {
         @Override
@@ -99,6 +119,7 @@ public class DataSource {
     public DataSource() throws SQLException {
         dbFile = null;
         connection = createConnection(null);
+        readerConnections = null;
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -106,6 +127,12 @@ public class DataSource {
     public DataSource(File dbFile) throws SQLException {
         this.dbFile = dbFile;
         connection = createConnection(dbFile);
+        if (READER_CONNECTIONS > 0) {
+            readerConnections = new ArrayBlockingQueue<ReaderConnection>(READER_CONNECTIONS);
+            openReaderConnections(readerConnections, dbFile);
+        } else {
+            readerConnections = null;
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -114,14 +141,23 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        readerConnectionsLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                checkConnectionUnderLock();
+                closeReaderConnections();
+                execute("shutdown defrag");
+                connection = createConnection(dbFile);
+                preparedStatementCache.invalidateAll();
+                if (readerConnections != null) {
+                    openReaderConnections(readerConnections, dbFile);
+                }
             }
-            checkConnectionUnderLock();
-            execute("shutdown defrag");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
+        } finally {
+            readerConnectionsLock.writeLock().unlock();
         }
     }
 
@@ -129,14 +165,23 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
+        readerConnectionsLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                checkConnectionUnderLock();
+                closeReaderConnections();
+                execute("shutdown compact");
+                connection = createConnection(dbFile);
+                preparedStatementCache.invalidateAll();
+                if (readerConnections != null) {
+                    openReaderConnections(readerConnections, dbFile);
+                }
             }
-            checkConnectionUnderLock();
-            execute("shutdown compact");
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
+        } finally {
+            readerConnectionsLock.writeLock().unlock();
         }
     }
 
@@ -157,30 +202,40 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
-            if (closed) {
-                return;
-            }
-            checkConnectionUnderLock();
-            List<String> schemaVersionRows =
-                    queryForStringList("select schema_version from schema_version");
-            connection.close();
-            if (!dbFile.delete()) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
-            }
-            connection = createConnection(dbFile);
-            preparedStatementCache.invalidateAll();
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
-                    .entrySet()) {
-                syncTable(entry.getKey(), entry.getValue());
-            }
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
-                    .entrySet()) {
-                syncIndexes(entry.getKey(), entry.getValue());
-            }
-            for (String schemaVersionRow : schemaVersionRows) {
-                update("insert into schema_version (schema_version) values (?)", schemaVersionRow);
+        readerConnectionsLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                checkConnectionUnderLock();
+                List<String> schemaVersionRows =
+                        queryForStringList("select schema_version from schema_version");
+                closeReaderConnections();
+                connection.close();
+                if (!dbFile.delete()) {
+                    throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+                }
+                connection = createConnection(dbFile);
+                preparedStatementCache.invalidateAll();
+                for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
+                        .entrySet()) {
+                    syncTable(entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
+                        .entrySet()) {
+                    syncIndexes(entry.getKey(), entry.getValue());
+                }
+                for (String schemaVersionRow : schemaVersionRows) {
+                    update("insert into schema_version (schema_version) values (?)",
+                            schemaVersionRow);
+                }
+                if (readerConnections != null) {
+                    openReaderConnections(readerConnections, dbFile);
+                }
             }
+        } finally {
+            readerConnectionsLock.writeLock().unlock();
         }
     }
 
@@ -208,53 +263,41 @@ public class DataSource {
     // warning: this method returns 0 when data source is closed
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return 0;
-            }
-            checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
-                @Override
-                public Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return 0L;
-                    }
-                    long val = resultSet.getLong(1);
-                    if (resultSet.wasNull()) {
-                        logger.warn("no rows returned: {}", sql);
-                    }
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return val;
+        return query(sql, args, 0L, new ResultSetExtractor<Long>() {
+            @Override
+            public Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return 0L;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                if (resultSet.wasNull()) {
+                    logger.warn("no rows returned: {}", sql);
+                }
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return val;
+            }
+        });
     }
 
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return null;
-            }
-            checkConnectionUnderLock();
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
-                @Override
-                public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
-                    if (!resultSet.next()) {
-                        return null;
-                    }
-                    long val = resultSet.getLong(1);
-                    Long value = resultSet.wasNull() ? null : val;
-                    if (resultSet.next()) {
-                        logger.warn("more than one row returned: {}", sql);
-                    }
-                    return value;
+        return query(sql, args, null, new ResultSetExtractor</*@Nullable*/ Long>() {
+            @Override
+            public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
+                if (!resultSet.next()) {
+                    return null;
                 }
-            });
-        }
+                long val = resultSet.getLong(1);
+                Long value = resultSet.wasNull() ? null : val;
+                if (resultSet.next()) {
+                    logger.warn("more than one row returned: {}", sql);
+                }
+                return value;
+            }
+        });
     }
 
     public List<String> queryForStringList(final @Untainted String sql) throws SQLException {
@@ -272,26 +315,24 @@ public class DataSource {
         });
     }
 
-    public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
-            if (closed) {
-                return jdbcQuery.valueIfDataSourceClosed();
-            }
-            checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                return jdbcQuery.processResultSet(resultSet);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
-            // don't need to close statement since they are all cached and used under lock
-        }
+    public <T> T query(final JdbcQuery<T> jdbcQuery) throws Exception {
+        return query(jdbcQuery.getSql(), jdbcQuery.valueIfDataSourceClosed(),
+                new StatementCallback<T, Exception>() {
+                    @Override
+                    public T doWithStatement(PreparedStatement preparedStatement)
+                            throws Exception {
+                        jdbcQuery.bind(preparedStatement);
+                        ResultSet resultSet = preparedStatement.executeQuery();
+                        ResultSetCloser closer = new ResultSetCloser(resultSet);
+                        try {
+                            return jdbcQuery.processResultSet(resultSet);
+                        } catch (Throwable t) {
+                            throw closer.rethrow(t);
+                        } finally {
+                            closer.close();
+                        }
+                    }
+                });
     }
 
     public <T extends /*@NonNull*/ Object> /*@Nullable*/ T queryAtMostOne(JdbcRowQuery<T> jdbcQuery)
@@ -306,31 +347,29 @@ public class DataSource {
         return list.get(0);
     }
 
-    public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
+    public <T extends /*@NonNull*/ Object> List<T> query(final JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
-            if (closed) {
-                return ImmutableList.of();
-            }
-            checkConnectionUnderLock();
-            PreparedStatement preparedStatement =
-                    prepareStatementUnderLock(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
-            jdbcQuery.bind(preparedStatement);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            ResultSetCloser closer = new ResultSetCloser(resultSet);
-            try {
-                List<T> mappedRows = Lists.newArrayList();
-                while (resultSet.next()) {
-                    mappedRows.add(jdbcQuery.mapRow(resultSet));
-                }
-                return ImmutableList.copyOf(mappedRows);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
-            // don't need to close statement since they are all cached and used under lock
-        }
+        return query(jdbcQuery.getSql(), ImmutableList.<T>of(),
+                new StatementCallback<List<T>, SQLException>() {
+                    @Override
+                    public List<T> doWithStatement(PreparedStatement preparedStatement)
+                            throws SQLException {
+                        jdbcQuery.bind(preparedStatement);
+                        ResultSet resultSet = preparedStatement.executeQuery();
+                        ResultSetCloser closer = new ResultSetCloser(resultSet);
+                        try {
+                            List<T> mappedRows = Lists.newArrayList();
+                            while (resultSet.next()) {
+                                mappedRows.add(jdbcQuery.mapRow(resultSet));
+                            }
+                            return ImmutableList.copyOf(mappedRows);
+                        } catch (Throwable t) {
+                            throw closer.rethrow(t);
+                        } finally {
+                            closer.close();
+                        }
+                    }
+                });
     }
 
     public int update(final @Untainted String sql, final @Nullable Object... args)
@@ -514,6 +553,7 @@ public class DataSource {
             closed = true;
             connection.close();
         }
+        closeReaderConnections();
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
@@ -529,6 +569,12 @@ public class DataSource {
     @GuardedBy("lock")
     private PreparedStatement prepareStatementUnderLock(@Untainted String sql,
             int queryTimeoutSeconds) throws SQLException {
+        return prepareStatement(preparedStatementCache, sql, queryTimeoutSeconds);
+    }
+
+    private PreparedStatement prepareStatement(
+            LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache,
+            @Untainted String sql, int queryTimeoutSeconds) throws SQLException {
         try {
             PreparedStatement preparedStatement = preparedStatementCache.get(sql);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
@@ -548,16 +594,78 @@ public class DataSource {
         }
     }
 
-    @GuardedBy("lock")
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS);
-        for (int i = 0; i < args.length; i++) {
-            preparedStatement.setObject(i + 1, args[i]);
+    private <T extends /*@Nullable*/ Object> T query(@Untainted String sql, final Object[] args,
+            T valueIfDataSourceClosed, final ResultSetExtractor<T> rse) throws SQLException {
+        return query(sql, valueIfDataSourceClosed, new StatementCallback<T, SQLException>() {
+            @Override
+            public T doWithStatement(PreparedStatement preparedStatement) throws SQLException {
+                for (int i = 0; i < args.length; i++) {
+                    preparedStatement.setObject(i + 1, args[i]);
+                }
+                ResultSet resultSet = preparedStatement.executeQuery();
+                return extractAndClose(resultSet, rse);
+            }
+        });
+    }
+
+    private <T extends /*@Nullable*/ Object, E extends Exception> T query(@Untainted String sql,
+            T valueIfDataSourceClosed, StatementCallback<T, E> callback) throws E, SQLException {
+        BlockingQueue<ReaderConnection> readerConnections = this.readerConnections;
+        if (readerConnections == null) {
+            synchronized (lock) {
+                if (closed) {
+                    return valueIfDataSourceClosed;
+                }
+                checkConnectionUnderLock();
+                return callback.doWithStatement(
+                        prepareStatementUnderLock(sql, QUERY_TIMEOUT_SECONDS));
+                // don't need to close statement since they are all cached and used under lock
+            }
+        }
+        readerConnectionsLock.readLock().lock();
+        try {
+            ReaderConnection readerConnection;
+            try {
+                while ((readerConnection = readerConnections.poll(1, SECONDS)) == null) {
+                    if (closed) {
+                        return valueIfDataSourceClosed;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            }
+            try {
+                if (closed) {
+                    return valueIfDataSourceClosed;
+                }
+                readerConnection.checkConnection();
+                return callback.doWithStatement(prepareStatement(
+                        readerConnection.preparedStatementCache, sql, QUERY_TIMEOUT_SECONDS));
+                // don't need to close statement since they are all cached per reader connection
+                // and each reader connection is only used by one thread at a time
+            } finally {
+                readerConnections.add(readerConnection);
+                if (closed) {
+                    // in case close() or the shutdown hook has already closed the idle ones
+                    closeReaderConnections();
+                }
+            }
+        } finally {
+            readerConnectionsLock.readLock().unlock();
+        }
+    }
+
+    // caller must hold the write lock of readerConnectionsLock, or the data source must be closed
+    // (in which case the reader connections that are in use are closed once they are returned)
+    private void closeReaderConnections() throws SQLException {
+        if (readerConnections == null) {
+            return;
+        }
+        ReaderConnection readerConnection;
+        while ((readerConnection = readerConnections.poll()) != null) {
+            readerConnection.connection.close();
         }
-        ResultSet resultSet = preparedStatement.executeQuery();
-        return extractAndClose(resultSet, rse);
-        // don't need to close statement since they are all cached and used under lock
     }
 
     private List<H2Table> analyzeH2DiskSpaceUnderSuppressQueryTimeout() throws Exception {
@@ -607,6 +715,13 @@ public class DataSource {
         }
     }
 
+    private void openReaderConnections(BlockingQueue<ReaderConnection> readerConnections,
+            File dbFile) throws SQLException {
+        for (int i = 0; i < READER_CONNECTIONS; i++) {
+            readerConnections.add(new ReaderConnection(createConnection(dbFile)));
+        }
+    }
+
     private static JdbcConnection createConnection(@Nullable File dbFile) throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
@@ -690,6 +805,37 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    private interface StatementCallback<T extends /*@Nullable*/ Object, E extends Exception> {
+        T doWithStatement(PreparedStatement preparedStatement) throws E, SQLException;
+    }
+
+    private class ReaderConnection {
+
+        private JdbcConnection connection;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement>
+                preparedStatementCache = CacheBuilder.newBuilder().weakValues()
+                        .build(new CacheLoader</*@Untainted*/ String, PreparedStatement>() {
+                            @Override
+                            public PreparedStatement load(@Untainted String sql)
+                                    throws SQLException {
+                                return connection.prepareStatement(sql);
+                            }
+                        });
+
+        private ReaderConnection(JdbcConnection connection) {
+            this.connection = connection;
+        }
+
+        private void checkConnection() throws SQLException {
+            if (connection.getPowerOffCount() == -1) {
+                // connection was closed internally due to OutOfMemoryError
+                connection = createConnection(dbFile);
+                preparedStatementCache.invalidateAll();
+            }
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -704,6 +850,7 @@ public class DataSource {
                 synchronized (lock) {
                     connection.close();
                 }
+                closeReaderConnections();
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
             }
@@ -87,7 +87,8 @@ public class AggregateDaoTest {
         aggregateDao = new AggregateDao(
                 dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
                         cappedDatabase, cappedDatabase),
-                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                null);
     }
 
     @After
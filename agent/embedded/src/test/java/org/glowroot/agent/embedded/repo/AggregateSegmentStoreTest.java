@@ -0,0 +1,251 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common.live.ImmutableAggregateQuery;
+import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common2.repo.ImmutableRollupConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AggregateSegmentStoreTest {
+
+    private static final ImmutableList<RollupConfig> ROLLUP_CONFIGS =
+            ImmutableList.<RollupConfig>of(ImmutableRollupConfig.of(1000, 0),
+                    ImmutableRollupConfig.of(15000, 3600000));
+
+    private File dir;
+
+    @Before
+    public void beforeEachTest() {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void shouldRoundTripChunk() throws Exception {
+        // given
+        AggregateSeriesChunk chunk = new AggregateSeriesChunk();
+        for (int i = 0; i < 100; i++) {
+            chunk.add(60000 * (i + 1), 1234.5 * i, i * 3, i % 2, new byte[] {(byte) i});
+        }
+        chunk.add(60000 * 200, Double.NaN, 0, 0, new byte[0]);
+        // when
+        AggregateSeriesChunk decoded = AggregateSeriesChunk.decode(chunk.encode(), true);
+        AggregateSeriesChunk decodedWithoutHistograms =
+                AggregateSeriesChunk.decode(chunk.encode(), false);
+        // then
+        assertThat(decoded.size()).isEqualTo(101);
+        for (int i = 0; i < 101; i++) {
+            assertThat(decoded.getCaptureTime(i)).isEqualTo(chunk.getCaptureTime(i));
+            assertThat(decoded.getTotalDurationNanos(i))
+                    .isEqualTo(chunk.getTotalDurationNanos(i));
+            assertThat(decoded.getTransactionCount(i)).isEqualTo(chunk.getTransactionCount(i));
+            assertThat(decoded.getErrorCount(i)).isEqualTo(chunk.getErrorCount(i));
+            assertThat(decoded.getDurationNanosHistogram(i))
+                    .isEqualTo(chunk.getDurationNanosHistogram(i));
+            assertThat(decodedWithoutHistograms.getTransactionCount(i))
+                    .isEqualTo(chunk.getTransactionCount(i));
+        }
+    }
+
+    @Test
+    public void shouldReadFromMemoryAndSegmentFiles() throws Exception {
+        // given
+        AggregateSegmentStore segmentStore = newSegmentStore();
+        // when
+        // 60 intervals per segment, so this spans multiple segment files
+        for (int i = 1; i <= 150; i++) {
+            append(segmentStore, "a type", null, i * 1000L, i);
+            append(segmentStore, "a type", "a name", i * 1000L, i);
+        }
+        // then
+        List<ThroughputAggregate> throughputAggregates =
+                segmentStore.readThroughputAggregates(query(null, 50000, 130000));
+        assertThat(throughputAggregates).hasSize(81);
+        assertThat(throughputAggregates.get(0).captureTime()).isEqualTo(50000);
+        assertThat(throughputAggregates.get(0).transactionCount()).isEqualTo(50);
+        assertThat(throughputAggregates.get(80).captureTime()).isEqualTo(130000);
+        List<PercentileAggregate> percentileAggregates =
+                segmentStore.readPercentileAggregates(query("a name", 1000, 2000));
+        assertThat(percentileAggregates).hasSize(2);
+        assertThat(percentileAggregates.get(1).totalDurationNanos()).isEqualTo(2000000.0);
+        assertThat(percentileAggregates.get(1).durationNanosHistogram().getOrderedRawValueList())
+                .containsExactly(2000000L);
+    }
+
+    @Test
+    public void shouldReloadSegmentFiles() throws Exception {
+        // given
+        AggregateSegmentStore segmentStore = newSegmentStore();
+        for (int i = 1; i <= 90; i++) {
+            append(segmentStore, "a type", null, i * 1000L, i);
+        }
+        // when
+        AggregateSegmentStore reloaded = new AggregateSegmentStore(dir, ROLLUP_CONFIGS);
+        // then
+        // points that were not yet written to a segment file are re-read from the window log
+        List<ThroughputAggregate> throughputAggregates =
+                reloaded.readThroughputAggregates(query(null, 0, 100000));
+        assertThat(throughputAggregates).hasSize(90);
+        assertThat(throughputAggregates.get(89).transactionCount()).isEqualTo(90);
+    }
+
+    @Test
+    public void shouldReloadLateDataForEarlierWindow() throws Exception {
+        // given
+        AggregateSegmentStore segmentStore = newSegmentStore();
+        for (int i = 1; i <= 90; i++) {
+            append(segmentStore, "a type", null, i * 1000L, i);
+        }
+        // late point below the capture time of points already written to a segment file
+        append(segmentStore, "a type", "a name", 30000, 7);
+        append(segmentStore, "a type", null, 91000, 91);
+        // when
+        AggregateSegmentStore reloaded = new AggregateSegmentStore(dir, ROLLUP_CONFIGS);
+        // then
+        List<ThroughputAggregate> throughputAggregates =
+                reloaded.readThroughputAggregates(query("a name", 0, 100000));
+        assertThat(throughputAggregates).hasSize(1);
+        assertThat(throughputAggregates.get(0).captureTime()).isEqualTo(30000);
+        assertThat(throughputAggregates.get(0).transactionCount()).isEqualTo(7);
+        assertThat(reloaded.readThroughputAggregates(query(null, 0, 100000))).hasSize(91);
+    }
+
+    @Test
+    public void shouldIgnorePartiallyWrittenPointInWindowLog() throws Exception {
+        // given
+        AggregateSegmentStore segmentStore = newSegmentStore();
+        append(segmentStore, "a type", null, 1000, 1);
+        append(segmentStore, "a type", null, 2000, 2);
+        File logFile = new File(dir, "rollup-0/60000.log");
+        RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+        // when
+        AggregateSegmentStore reloaded = new AggregateSegmentStore(dir, ROLLUP_CONFIGS);
+        append(reloaded, "a type", null, 3000, 3);
+        reloaded = new AggregateSegmentStore(dir, ROLLUP_CONFIGS);
+        // then
+        List<ThroughputAggregate> throughputAggregates =
+                reloaded.readThroughputAggregates(query(null, 0, 100000));
+        assertThat(throughputAggregates).hasSize(2);
+        assertThat(throughputAggregates.get(0).captureTime()).isEqualTo(1000);
+        assertThat(throughputAggregates.get(1).captureTime()).isEqualTo(3000);
+    }
+
+    @Test
+    public void shouldDiscardDataIfNotInitialized() throws Exception {
+        // given
+        AggregateSegmentStore segmentStore = newSegmentStore();
+        for (int i = 1; i <= 90; i++) {
+            append(segmentStore, "a type", null, i * 1000L, i);
+        }
+        // when
+        AggregateSegmentStore.invalidate(dir);
+        AggregateSegmentStore reloaded = new AggregateSegmentStore(dir, ROLLUP_CONFIGS);
+        // then
+        assertThat(reloaded.isInitialized()).isFalse();
+        assertThat(reloaded.readThroughputAggregates(query(null, 0, 100000))).isEmpty();
+    }
+
+    @Test
+    public void shouldKeepLastWrittenPointForSameCaptureTime() throws Exception {
+        // given
+        AggregateSegmentStore segmentStore = newSegmentStore();
+        append(segmentStore, "a type", null, 1000, 1);
+        segmentStore.flush();
+        // when
+        append(segmentStore, "a type", null, 1000, 5);
+        // then
+        List<ThroughputAggregate> throughputAggregates =
+                segmentStore.readThroughputAggregates(query(null, 0, 100000));
+        assertThat(throughputAggregates).hasSize(1);
+        assertThat(throughputAggregates.get(0).transactionCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldDeleteExpiredSegments() throws Exception {
+        // given
+        AggregateSegmentStore segmentStore = newSegmentStore();
+        for (int i = 1; i <= 150; i++) {
+            append(segmentStore, "a type", null, i * 1000L, i);
+        }
+        // when
+        segmentStore.deleteBefore(100000, 0);
+        // then
+        List<ThroughputAggregate> throughputAggregates =
+                segmentStore.readThroughputAggregates(query(null, 0, 200000));
+        assertThat(throughputAggregates.get(0).captureTime()).isEqualTo(61000);
+    }
+
+    private AggregateSegmentStore newSegmentStore() throws Exception {
+        AggregateSegmentStore segmentStore = new AggregateSegmentStore(dir, ROLLUP_CONFIGS);
+        segmentStore.markInitialized();
+        return segmentStore;
+    }
+
+    private static void append(AggregateSegmentStore segmentStore, String transactionType,
+            String transactionName, long captureTime, int transactionCount) throws Exception {
+        double totalDurationNanos = captureTime * 1000.0;
+        segmentStore.append(0, transactionType, transactionName, captureTime, totalDurationNanos,
+                transactionCount, 0, Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValue((long) totalDurationNanos)
+                        .build()
+                        .toByteArray());
+    }
+
+    private static AggregateQuery query(String transactionName, long from, long to) {
+        return ImmutableAggregateQuery.builder()
+                .transactionType("a type")
+                .transactionName(transactionName)
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        file.delete();
+    }
+}
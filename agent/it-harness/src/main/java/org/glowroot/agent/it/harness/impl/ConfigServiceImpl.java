@@ -208,6 +208,8 @@ class ConfigServiceImpl implements ConfigService {
                 .setMaxServiceCallAggregates(of(500))
                 .setMaxTraceEntriesPerTransaction(of(2000))
                 .setMaxProfileSamplesPerTransaction(of(50000))
+                .setTraceEntrySamplingPercentage(of(100))
+                .setMaxRecentTraceEntriesPerUnsampledTransaction(of(100))
                 .setMbeanGaugeNotFoundDelaySeconds(of(60))
                 .build();
     }
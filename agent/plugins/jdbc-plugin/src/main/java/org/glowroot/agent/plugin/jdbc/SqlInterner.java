@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+// interns the sql passed to prepareStatement/prepareCall so that prepared statements with the
+// same sql share the same String instance across connections and transactions
+//
+// this keeps a single copy of long orm generated sql in memory, and lets the agent's per query
+// text lookups (e.g. the full query text sha1 cache) short circuit on identity instead of
+// comparing the full sql
+//
+// entries are weakly referenced so that sql which is no longer referenced by any prepared
+// statement (or by any pending aggregate/trace) is released, and the table is bounded so that
+// applications which generate unbounded distinct sql do not grow it indefinitely (once full, sql
+// is simply not interned)
+//
+// the table is split into independently locked segments (by sql hash code) since this is called
+// on every prepareStatement/prepareCall, from all application threads
+class SqlInterner {
+
+    private static final int MAX_SIZE =
+            Integer.getInteger("glowroot.internal.jdbc.sqlInternerMaxSize", 10000);
+
+    // must be power of 2
+    private static final int SEGMENT_COUNT = 16;
+
+    private static final Segment[] segments;
+
+    static {
+        segments = new Segment[SEGMENT_COUNT];
+        int segmentMaxSize = Math.max(1, MAX_SIZE / SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentMaxSize);
+        }
+    }
+
+    private SqlInterner() {}
+
+    static String intern(String sql) {
+        int hash = sql.hashCode();
+        // spread higher bits since only the lowest bits are used to select the segment
+        hash ^= hash >>> 16;
+        return segments[hash & (SEGMENT_COUNT - 1)].intern(sql);
+    }
+
+    private static class Segment {
+
+        private final int maxSize;
+
+        private final Map<String, WeakReference<String>> interned =
+                new WeakHashMap<String, WeakReference<String>>();
+
+        private Segment(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        private synchronized String intern(String sql) {
+            WeakReference<String> ref = interned.get(sql);
+            if (ref != null) {
+                String existing = ref.get();
+                if (existing != null) {
+                    return existing;
+                }
+            }
+            // size() expunges entries that have been garbage collected
+            if (interned.size() < maxSize) {
+                interned.put(sql, new WeakReference<String>(sql));
+            }
+            return sql;
+        }
+    }
+}
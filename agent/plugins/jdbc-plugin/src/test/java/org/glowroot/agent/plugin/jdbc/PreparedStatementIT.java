@@ -107,6 +107,39 @@ public class PreparedStatementIT {
         assertThat(j.hasNext()).isFalse();
     }
 
+    @Test
+    public void testPreparedStatementWithSameLongSqlOnDifferentConnections() throws Exception {
+        // when
+        Trace trace =
+                container.execute(ExecutePreparedStatementWithSameLongSqlOnTwoConnections.class);
+
+        // then
+        Iterator<Trace.Entry> i = trace.getEntryList().iterator();
+        List<Trace.SharedQueryText> sharedQueryTexts = trace.getSharedQueryTextList();
+
+        Trace.Entry entry = i.next();
+        int sharedQueryTextIndex = entry.getQueryEntryMessage().getSharedQueryTextIndex();
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" ['john%'] => 1 row");
+        entry = i.next();
+        assertThat(entry.getQueryEntryMessage().getSharedQueryTextIndex())
+                .isEqualTo(sharedQueryTextIndex);
+        assertThat(entry.getQueryEntryMessage().getSuffix()).isEqualTo(" ['john%'] => 1 row");
+
+        assertThat(i.hasNext()).isFalse();
+
+        assertThat(sharedQueryTexts).hasSize(1);
+
+        Iterator<Aggregate.Query> j = trace.getQueryList().iterator();
+
+        Aggregate.Query query = j.next();
+        assertThat(query.getType()).isEqualTo("SQL");
+        assertThat(query.getSharedQueryTextIndex()).isEqualTo(sharedQueryTextIndex);
+        assertThat(query.getExecutionCount()).isEqualTo(2);
+        assertThat(query.getTotalRows().getValue()).isEqualTo(2);
+
+        assertThat(j.hasNext()).isFalse();
+    }
+
     @Test
     public void testPreparedStatementQuery() throws Exception {
         // when
@@ -737,6 +770,48 @@ public class PreparedStatementIT {
         }
     }
 
+    public static class ExecutePreparedStatementWithSameLongSqlOnTwoConnections
+            implements AppUnderTest, TransactionMarker {
+        // longer than the aggregate query text truncation, which is where the full query text
+        // sha1 is needed
+        private static final String SQL = "select id, name, misc, misc2 from employee"
+                + " where name like ? and name is not null and id is not null"
+                + " and (misc is null or misc is not null) order by name, id";
+        private Connection connection;
+        private Connection otherConnection;
+        @Override
+        public void executeApp() throws Exception {
+            connection = Connections.createConnection();
+            otherConnection = Connections.createConnection();
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+                Connections.closeConnection(otherConnection);
+            }
+        }
+        @Override
+        public void transactionMarker() throws Exception {
+            // a different String instance for each prepareStatement, as when the sql is built by
+            // an orm
+            execute(connection, new String(SQL));
+            execute(otherConnection, new String(SQL));
+        }
+        private static void execute(Connection connection, String sql) throws SQLException {
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            try {
+                preparedStatement.setString(1, "john%");
+                preparedStatement.execute();
+                ResultSet rs = preparedStatement.getResultSet();
+                while (rs.next()) {
+                    rs.getString(1);
+                }
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
     public static class ExecutePreparedStatementQueryAndIterateOverResults
             implements AppUnderTest, TransactionMarker {
         private Connection connection;
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.infinispan.util.function.SerializableFunction;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.DistributedExecutionMap;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.util.AlertMetricValues;
+import org.glowroot.common2.repo.util.ImmutableMetricValue;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// sliding windows of the aggregates and gauge values that are needed to evaluate the metric alerts
+// of each agent, maintained as the data is collected so that the alerts can be evaluated without
+// reading back from cassandra
+//
+// windows are held on the central node that the agent is sending its data to, and are registered
+// in a distributed execution map so that other central nodes (e.g. the once a minute alert check
+// in RollupService) can evaluate against them
+//
+// a window only answers when it has observed all of the data in the requested interval, otherwise
+// (e.g. shortly after the agent connected, after a gap in the data, for time periods longer than
+// MAX_WINDOW_MILLIS, and for agent rollups) the metric value is read from cassandra as before
+class AlertMetricWindows implements AlertMetricValues {
+
+    private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+    private static final long AGGREGATE_INTERVAL_MILLIS = MINUTES.toMillis(1);
+    private static final long MAX_WINDOW_MILLIS = HOURS.toMillis(1);
+    // gauge values that arrive after a longer gap than this are treated as a gap in the data
+    private static final long GAUGE_GAP_MILLIS = MINUTES.toMillis(1);
+
+    private static final long EXPIRATION_MILLIS = MINUTES.toMillis(5);
+
+    private final Clock clock;
+
+    private final DistributedExecutionMap<String, AgentWindow> distributedWindows;
+    private final ConcurrentMap<String, AgentWindow> localWindows = new ConcurrentHashMap<>();
+
+    private final AtomicLong lastExpirationCheckTime = new AtomicLong();
+
+    AlertMetricWindows(ClusterManager clusterManager, Clock clock) {
+        this.clock = clock;
+        distributedWindows = clusterManager.createDistributedExecutionMap("alertMetricWindows");
+    }
+
+    void recordAggregates(String agentId, List<AlertConfig> alertConfigs, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList) {
+        WindowSpec spec = WindowSpec.create(alertConfigs);
+        if (spec.aggregateSeries.isEmpty()) {
+            AgentWindow window = localWindows.get(agentId);
+            if (window != null) {
+                window.recordAggregates(spec, captureTime, aggregatesByTypeList);
+            }
+        } else {
+            getOrCreateWindow(agentId).recordAggregates(spec, captureTime, aggregatesByTypeList);
+        }
+        expireWindowsIfNeeded();
+    }
+
+    void recordGaugeValues(String agentId, List<AlertConfig> alertConfigs,
+            List<GaugeValue> gaugeValues) {
+        if (gaugeValues.isEmpty()) {
+            return;
+        }
+        WindowSpec spec = WindowSpec.create(alertConfigs);
+        if (spec.gaugeNames.isEmpty()) {
+            AgentWindow window = localWindows.get(agentId);
+            if (window != null) {
+                window.recordGaugeValues(spec, gaugeValues);
+            }
+        } else {
+            getOrCreateWindow(agentId).recordGaugeValues(spec, gaugeValues);
+        }
+        expireWindowsIfNeeded();
+    }
+
+    @Override
+    public @Nullable MetricValue getMetricValue(String agentRollupId,
+            MetricCondition metricCondition, long startTime, long endTime) throws Exception {
+        if (agentRollupId.endsWith("::")) {
+            // windows are only maintained for agents, not for agent rollups
+            return null;
+        }
+        AgentWindow window = localWindows.get(agentRollupId);
+        if (window != null) {
+            // the agent is (or was recently) sending its data to this central node, so don't look
+            // for its window on other central nodes
+            return window.getMetricValue(metricCondition, startTime, endTime);
+        }
+        return distributedWindows.execute(agentRollupId,
+                new GetMetricValueFunction(metricCondition, startTime, endTime)).orElse(null);
+    }
+
+    private AgentWindow getOrCreateWindow(String agentId) {
+        AgentWindow window = localWindows.get(agentId);
+        if (window == null) {
+            window = new AgentWindow();
+            AgentWindow existingWindow = localWindows.putIfAbsent(agentId, window);
+            if (existingWindow == null) {
+                distributedWindows.put(agentId, window);
+            } else {
+                window = existingWindow;
+            }
+        }
+        window.lastUpdateTime = clock.currentTimeMillis();
+        return window;
+    }
+
+    private void expireWindowsIfNeeded() {
+        long currentTimeMillis = clock.currentTimeMillis();
+        long lastCheckTime = lastExpirationCheckTime.get();
+        if (currentTimeMillis - lastCheckTime < SECONDS.toMillis(60)
+                || !lastExpirationCheckTime.compareAndSet(lastCheckTime, currentTimeMillis)) {
+            return;
+        }
+        Iterator<Map.Entry<String, AgentWindow>> i = localWindows.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, AgentWindow> entry = i.next();
+            AgentWindow window = entry.getValue();
+            if (window.lastUpdateTime < currentTimeMillis - EXPIRATION_MILLIS
+                    || window.isEmpty()) {
+                i.remove();
+                distributedWindows.remove(entry.getKey(), window);
+            }
+        }
+    }
+
+    private static boolean isTransactionMetric(String metric) {
+        return metric.startsWith("transaction:") || metric.startsWith("error:");
+    }
+
+    private static class WindowSpec {
+
+        // transaction type -> transaction name (empty for overall) -> whether histograms are needed
+        private final Map<String, Map<String, Boolean>> aggregateSeries = new HashMap<>();
+        private final Set<String> gaugeNames = new HashSet<>();
+        private long windowMillis;
+
+        private static WindowSpec create(List<AlertConfig> alertConfigs) {
+            WindowSpec spec = new WindowSpec();
+            for (AlertConfig alertConfig : alertConfigs) {
+                AlertCondition condition = alertConfig.getCondition();
+                if (condition.getValCase() != AlertCondition.ValCase.METRIC_CONDITION) {
+                    continue;
+                }
+                MetricCondition metricCondition = condition.getMetricCondition();
+                long timePeriodMillis = SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
+                if (timePeriodMillis > MAX_WINDOW_MILLIS) {
+                    continue;
+                }
+                String metric = metricCondition.getMetric();
+                if (isTransactionMetric(metric)) {
+                    Map<String, Boolean> histogramsNeeded = spec.aggregateSeries.computeIfAbsent(
+                            metricCondition.getTransactionType(), k -> new HashMap<>());
+                    histogramsNeeded.merge(metricCondition.getTransactionName(),
+                            metric.equals("transaction:x-percentile"), Boolean::logicalOr);
+                } else if (metric.startsWith("gauge:")) {
+                    spec.gaugeNames.add(metric.substring("gauge:".length()));
+                } else {
+                    continue;
+                }
+                spec.windowMillis = Math.max(spec.windowMillis, timePeriodMillis);
+            }
+            return spec;
+        }
+    }
+
+    private static class AgentWindow {
+
+        // transaction type -> transaction name (empty for overall) -> series
+        @GuardedBy("this")
+        private final Map<String, Map<String, AggregateSeries>> aggregateSeries = new HashMap<>();
+        @GuardedBy("this")
+        private final Map<String, GaugeSeries> gaugeSeries = new HashMap<>();
+
+        @GuardedBy("this")
+        private long lastAggregateCaptureTime;
+        @GuardedBy("this")
+        private long lastGaugeCaptureTime;
+
+        private volatile long lastUpdateTime;
+
+        private synchronized void recordAggregates(WindowSpec spec, long captureTime,
+                List<OldAggregatesByType> aggregatesByTypeList) {
+            if (lastAggregateCaptureTime != 0
+                    && captureTime > lastAggregateCaptureTime + AGGREGATE_INTERVAL_MILLIS) {
+                // gap in the data, e.g. the agent was sending its data to a different central node
+                for (Map<String, AggregateSeries> seriesByName : aggregateSeries.values()) {
+                    for (AggregateSeries series : seriesByName.values()) {
+                        series.coveredFrom = captureTime - AGGREGATE_INTERVAL_MILLIS;
+                    }
+                }
+            }
+            // series that are added now have not observed any earlier data
+            long coveredFrom = Math.max(captureTime - AGGREGATE_INTERVAL_MILLIS,
+                    lastAggregateCaptureTime);
+            syncAggregateSeries(spec, coveredFrom);
+            lastAggregateCaptureTime = Math.max(lastAggregateCaptureTime, captureTime);
+            Map<String, OldAggregatesByType> aggregatesByType = new HashMap<>();
+            for (OldAggregatesByType aggregatesByTypeItem : aggregatesByTypeList) {
+                aggregatesByType.put(aggregatesByTypeItem.getTransactionType(),
+                        aggregatesByTypeItem);
+            }
+            long pruneBefore = lastAggregateCaptureTime - spec.windowMillis
+                    - AGGREGATE_INTERVAL_MILLIS;
+            for (Map.Entry<String, Map<String, AggregateSeries>> entry : aggregateSeries
+                    .entrySet()) {
+                OldAggregatesByType aggregatesByTypeItem = aggregatesByType.get(entry.getKey());
+                Map<String, AggregateSeries> seriesByName = entry.getValue();
+                for (Map.Entry<String, AggregateSeries> seriesEntry : seriesByName.entrySet()) {
+                    AggregateSeries series = seriesEntry.getValue();
+                    Aggregate aggregate = aggregatesByTypeItem == null ? null
+                            : getAggregate(aggregatesByTypeItem, seriesEntry.getKey());
+                    if (aggregate == null) {
+                        // also handles the agent re-sending the same capture time
+                        series.buckets.remove(captureTime);
+                    } else {
+                        series.buckets.put(captureTime,
+                                new AggregateBucket(aggregate, series.histograms));
+                    }
+                    series.prune(pruneBefore);
+                }
+            }
+        }
+
+        private synchronized void recordGaugeValues(WindowSpec spec,
+                List<GaugeValue> gaugeValues) {
+            long minCaptureTime = Long.MAX_VALUE;
+            long maxCaptureTime = 0;
+            for (GaugeValue gaugeValue : gaugeValues) {
+                minCaptureTime = Math.min(minCaptureTime, gaugeValue.getCaptureTime());
+                maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
+            }
+            if (lastGaugeCaptureTime != 0
+                    && minCaptureTime > lastGaugeCaptureTime + GAUGE_GAP_MILLIS) {
+                // gap in the data, e.g. the agent was sending its data to a different central node
+                for (GaugeSeries series : gaugeSeries.values()) {
+                    series.coveredFrom = minCaptureTime - 1;
+                }
+            }
+            gaugeSeries.keySet().retainAll(spec.gaugeNames);
+            for (GaugeValue gaugeValue : gaugeValues) {
+                String gaugeName = gaugeValue.getGaugeName();
+                if (!spec.gaugeNames.contains(gaugeName)) {
+                    continue;
+                }
+                GaugeSeries series = gaugeSeries.get(gaugeName);
+                if (series == null) {
+                    // series that are added now have not observed any earlier data
+                    series = new GaugeSeries(Math.max(minCaptureTime - 1, lastGaugeCaptureTime));
+                    gaugeSeries.put(gaugeName, series);
+                }
+                series.points.put(gaugeValue.getCaptureTime(),
+                        new double[] {gaugeValue.getValue(), gaugeValue.getWeight()});
+            }
+            lastGaugeCaptureTime = Math.max(lastGaugeCaptureTime, maxCaptureTime);
+            long pruneBefore = lastGaugeCaptureTime - spec.windowMillis;
+            for (GaugeSeries series : gaugeSeries.values()) {
+                series.prune(pruneBefore);
+            }
+        }
+
+        private synchronized @Nullable MetricValue getMetricValue(
+                MetricCondition metricCondition, long startTime, long endTime) {
+            String metric = metricCondition.getMetric();
+            if (metric.startsWith("gauge:")) {
+                GaugeSeries series = gaugeSeries.get(metric.substring("gauge:".length()));
+                if (series == null || series.coveredFrom > startTime
+                        || lastGaugeCaptureTime <= endTime - GAUGE_GAP_MILLIS) {
+                    return null;
+                }
+                return series.getMetricValue(startTime, endTime);
+            }
+            if (!isTransactionMetric(metric)) {
+                return null;
+            }
+            Map<String, AggregateSeries> seriesByName =
+                    aggregateSeries.get(metricCondition.getTransactionType());
+            if (seriesByName == null) {
+                return null;
+            }
+            AggregateSeries series = seriesByName.get(metricCondition.getTransactionName());
+            // aggregates are captured once per interval, so the window is missing data in the
+            // requested interval unless it has observed the last interval that ended before the
+            // end time
+            if (series == null || series.coveredFrom > startTime
+                    || lastAggregateCaptureTime <= endTime - AGGREGATE_INTERVAL_MILLIS) {
+                return null;
+            }
+            if (metric.equals("transaction:x-percentile") && !series.histograms) {
+                return null;
+            }
+            return series.getMetricValue(metricCondition, startTime, endTime);
+        }
+
+        private synchronized boolean isEmpty() {
+            return aggregateSeries.isEmpty() && gaugeSeries.isEmpty();
+        }
+
+        @GuardedBy("this")
+        private void syncAggregateSeries(WindowSpec spec, long coveredFrom) {
+            aggregateSeries.keySet().retainAll(spec.aggregateSeries.keySet());
+            for (Map.Entry<String, Map<String, Boolean>> entry : spec.aggregateSeries
+                    .entrySet()) {
+                Map<String, AggregateSeries> seriesByName =
+                        aggregateSeries.computeIfAbsent(entry.getKey(), k -> new HashMap<>());
+                Map<String, Boolean> histogramsNeeded = entry.getValue();
+                seriesByName.keySet().retainAll(histogramsNeeded.keySet());
+                for (Map.Entry<String, Boolean> nameEntry : histogramsNeeded.entrySet()) {
+                    boolean histograms = nameEntry.getValue();
+                    AggregateSeries series = seriesByName.get(nameEntry.getKey());
+                    if (series == null || histograms && !series.histograms) {
+                        seriesByName.put(nameEntry.getKey(),
+                                new AggregateSeries(coveredFrom, histograms));
+                    }
+                }
+            }
+        }
+
+        private static @Nullable Aggregate getAggregate(OldAggregatesByType aggregatesByType,
+                String transactionName) {
+            if (transactionName.isEmpty()) {
+                return aggregatesByType.getOverallAggregate();
+            }
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                if (transactionAggregate.getTransactionName().equals(transactionName)) {
+                    return transactionAggregate.getAggregate();
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class AggregateSeries {
+
+        private final boolean histograms;
+        private final NavigableMap<Long, AggregateBucket> buckets = new TreeMap<>();
+
+        // all data with capture time after this has been observed
+        private long coveredFrom;
+
+        private AggregateSeries(long coveredFrom, boolean histograms) {
+            this.coveredFrom = coveredFrom;
+            this.histograms = histograms;
+        }
+
+        private void prune(long pruneBefore) {
+            if (pruneBefore > coveredFrom) {
+                buckets.headMap(pruneBefore, true).clear();
+                coveredFrom = pruneBefore;
+            }
+        }
+
+        // see org.glowroot.common2.repo.util.MetricService
+        private @Nullable MetricValue getMetricValue(MetricCondition metricCondition,
+                long startTime, long endTime) {
+            Map<Long, AggregateBucket> subMap = buckets.subMap(startTime, false, endTime, true);
+            double totalDurationNanos = 0;
+            long transactionCount = 0;
+            long errorCount = 0;
+            LazyHistogram durationNanosHistogram = histograms ? new LazyHistogram() : null;
+            for (AggregateBucket bucket : subMap.values()) {
+                totalDurationNanos += bucket.totalDurationNanos;
+                transactionCount += bucket.transactionCount;
+                errorCount += bucket.errorCount;
+                if (durationNanosHistogram != null && bucket.durationNanosHistogram != null) {
+                    durationNanosHistogram.merge(bucket.durationNanosHistogram);
+                }
+            }
+            String metric = metricCondition.getMetric();
+            Double value;
+            if (metric.equals("transaction:count")) {
+                value = (double) transactionCount;
+            } else if (metric.equals("error:count")) {
+                value = (double) errorCount;
+            } else if (transactionCount == 0) {
+                // cannot calculate due to no data
+                value = null;
+            } else if (metric.equals("transaction:x-percentile")) {
+                value = durationNanosHistogram == null ? null
+                        : durationNanosHistogram.getValueAtPercentile(
+                                metricCondition.getPercentile().getValue())
+                                / NANOSECONDS_PER_MILLISECOND;
+            } else if (metric.equals("transaction:average")) {
+                value = totalDurationNanos / (transactionCount * NANOSECONDS_PER_MILLISECOND);
+            } else if (metric.equals("error:rate")) {
+                value = (100.0 * errorCount) / transactionCount;
+            } else {
+                return null;
+            }
+            return ImmutableMetricValue.of(value, transactionCount);
+        }
+    }
+
+    private static class AggregateBucket {
+
+        private final double totalDurationNanos;
+        private final long transactionCount;
+        private final long errorCount;
+        private final @Nullable LazyHistogram durationNanosHistogram;
+
+        private AggregateBucket(Aggregate aggregate, boolean histograms) {
+            totalDurationNanos = aggregate.getTotalDurationNanos();
+            transactionCount = aggregate.getTransactionCount();
+            errorCount = aggregate.getErrorCount();
+            durationNanosHistogram =
+                    histograms ? new LazyHistogram(aggregate.getDurationNanosHistogram()) : null;
+        }
+    }
+
+    private static class GaugeSeries {
+
+        // capture time -> {value, weight}
+        private final NavigableMap<Long, double[]> points = new TreeMap<>();
+
+        // all data with capture time after this has been observed
+        private long coveredFrom;
+
+        private GaugeSeries(long coveredFrom) {
+            this.coveredFrom = coveredFrom;
+        }
+
+        private void prune(long pruneBefore) {
+            if (pruneBefore > coveredFrom) {
+                points.headMap(pruneBefore, true).clear();
+                coveredFrom = pruneBefore;
+            }
+        }
+
+        // see org.glowroot.common2.repo.util.MetricService
+        private MetricValue getMetricValue(long startTime, long endTime) {
+            double totalWeightedValue = 0;
+            double totalWeight = 0;
+            for (double[] point : points.subMap(startTime, false, endTime, true).values()) {
+                totalWeightedValue += point[0] * point[1];
+                totalWeight += point[1];
+            }
+            if (totalWeight == 0) {
+                // cannot calculate due to no data
+                return ImmutableMetricValue.of(null, 0);
+            }
+            return ImmutableMetricValue.of(totalWeightedValue / totalWeight, 0);
+        }
+    }
+
+    // using named class instead of lambda to avoid "Invalid lambda deserialization" when one node
+    // is running with this class compiled by eclipse and one node is running with this class
+    // compiled by javac, see https://bugs.eclipse.org/bugs/show_bug.cgi?id=516620
+    private static class GetMetricValueFunction
+            implements SerializableFunction<AgentWindow, MetricValue> {
+
+        private static final long serialVersionUID = 0L;
+
+        private final MetricCondition metricCondition;
+        private final long startTime;
+        private final long endTime;
+
+        private GetMetricValueFunction(MetricCondition metricCondition, long startTime,
+                long endTime) {
+            this.metricCondition = metricCondition;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        // returning null (not covered) is collected as no response from this central node
+        @Override
+        public @Nullable MetricValue apply(AgentWindow window) {
+            return window.getMetricValue(metricCondition, startTime, endTime);
+        }
+    }
+}
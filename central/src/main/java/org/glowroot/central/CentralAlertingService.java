@@ -27,12 +27,15 @@ import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.agent.api.Instrumentation.AlreadyInTransactionBehavior;
 import org.glowroot.central.repo.AlertingDisabledDao;
 import org.glowroot.central.repo.ConfigRepositoryImpl;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.MoreExecutors2;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.ConfigRepository.AgentConfigNotFoundException;
 import org.glowroot.common2.repo.util.AlertingService;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -45,6 +48,7 @@ class CentralAlertingService {
     private final AlertingService alertingService;
     private final HeartbeatAlertingService heartbeatAlertingService;
     private final AlertingDisabledDao alertingDisabledDao;
+    private final AlertMetricWindows alertMetricWindows;
     private final Clock clock;
 
     private final ExecutorService workerExecutor;
@@ -55,12 +59,13 @@ class CentralAlertingService {
 
     CentralAlertingService(ConfigRepositoryImpl configRepository, AlertingService alertingService,
             HeartbeatAlertingService heartbeatAlertingService,
-            AlertingDisabledDao alertingDisabledDao, Clock clock) {
+            AlertingDisabledDao alertingDisabledDao, ClusterManager clusterManager, Clock clock) {
         this.configRepository = configRepository;
         this.alertingService = alertingService;
         this.heartbeatAlertingService = heartbeatAlertingService;
         this.alertingDisabledDao = alertingDisabledDao;
         this.clock = clock;
+        alertMetricWindows = new AlertMetricWindows(clusterManager, clock);
         workerExecutor = MoreExecutors2.newCachedThreadPool("Alert-Async-Worker-%d");
     }
 
@@ -96,6 +101,38 @@ class CentralAlertingService {
         }
     }
 
+    void recordAggregates(String agentId, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList) throws InterruptedException {
+        try {
+            alertMetricWindows.recordAggregates(agentId, configRepository.getAlertConfigs(agentId),
+                    captureTime, aggregatesByTypeList);
+        } catch (InterruptedException e) {
+            // probably shutdown requested
+            throw e;
+        } catch (AgentConfigNotFoundException e) {
+            // be lenient if agent_config table is messed up
+            logger.debug(e.getMessage(), e);
+        } catch (Exception e) {
+            logger.error("{} - {}", agentId, e.getMessage(), e);
+        }
+    }
+
+    void recordGaugeValues(String agentId, List<GaugeValue> gaugeValues)
+            throws InterruptedException {
+        try {
+            alertMetricWindows.recordGaugeValues(agentId, configRepository.getAlertConfigs(agentId),
+                    gaugeValues);
+        } catch (InterruptedException e) {
+            // probably shutdown requested
+            throw e;
+        } catch (AgentConfigNotFoundException e) {
+            // be lenient if agent_config table is messed up
+            logger.debug(e.getMessage(), e);
+        } catch (Exception e) {
+            logger.error("{} - {}", agentId, e.getMessage(), e);
+        }
+    }
+
     void checkAggregateAlertsAsync(String agentId, String agentDisplay, long endTime)
             throws InterruptedException {
         List<AlertConfig> alertConfigs;
@@ -228,7 +265,7 @@ class CentralAlertingService {
                 alertingService.checkMetricAlert(
                         configRepository.getCentralAdminGeneralConfig().centralDisplayName(),
                         agentRollupId, agentDisplay, alertConfig,
-                        alertCondition.getMetricCondition(), endTime);
+                        alertCondition.getMetricCondition(), endTime, alertMetricWindows);
                 break;
             case HEARTBEAT_CONDITION:
                 if (stopwatch.elapsed(MINUTES) >= 4) {
@@ -205,7 +205,7 @@ public class CentralModule {
                     repos.getConfigRepository());
             centralAlertingService = new CentralAlertingService(repos.getConfigRepository(),
                     alertingService, heartbeatAlertingService, repos.getAlertingDisabledDao(),
-                    clock);
+                    clusterManager, clock);
 
             grpcServer = new GrpcServer(centralConfig.grpcBindAddress(),
                     centralConfig.grpcHttpPort(), centralConfig.grpcHttpsPort(),
@@ -22,12 +22,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.base.Ticker;
 import io.grpc.Status;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
@@ -79,7 +76,6 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.HOURS;
-import static java.util.concurrent.TimeUnit.MINUTES;
 
 class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase {
 
@@ -102,14 +98,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private volatile long currentMinute;
     private final AtomicInteger nextDelay = new AtomicInteger();
 
-    private final LoadingCache<String, Semaphore> throttlePerAgentId = CacheBuilder.newBuilder()
-            .weakValues()
-            .build(new CacheLoader<String, Semaphore>() {
-                @Override
-                public Semaphore load(String key) throws Exception {
-                    return new Semaphore(1);
-                }
-            });
+    private final IngestionPipeline ingestionPipeline =
+            new IngestionPipeline(Ticker.systemTicker());
 
     CollectorServiceImpl(AgentDisplayDao agentDisplayDao, AgentConfigDao agentConfigDao,
             ActiveAgentDao activeAgentDao, EnvironmentDao environmentDao, HeartbeatDao heartbeatDao,
@@ -293,29 +283,16 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         });
     }
 
+    // the grpc thread only enqueues the work, so that a slow down in storage does not tie up grpc
+    // threads (see IngestionPipeline)
     private <T> void throttle(String agentId, boolean postV09, String collectionType,
             StreamObserver<T> responseObserver, Runnable runnable) {
-        Semaphore semaphore = throttlePerAgentId.getUnchecked(agentId);
-        boolean acquired;
-        try {
-            acquired = semaphore.tryAcquire(1, MINUTES);
-        } catch (InterruptedException e) {
-            // probably shutdown requested
-            responseObserver.onError(e);
-            return;
-        }
-        if (!acquired) {
+        if (!ingestionPipeline.submit(agentId, runnable)) {
             logger.warn("{} - {} collection rejected due to backlog",
                     getAgentIdForLogging(agentId, postV09), collectionType);
             responseObserver.onError(Status.RESOURCE_EXHAUSTED
                     .withDescription("collection rejected due to backlog")
                     .asRuntimeException());
-            return;
-        }
-        try {
-            runnable.run();
-        } finally {
-            semaphore.release();
         }
     }
 
@@ -347,6 +324,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             return;
         }
         try {
+            centralAlertingService.recordAggregates(postV09AgentId, captureTime,
+                    aggregatesByTypeList);
             centralAlertingService.checkForDeletedAlerts(postV09AgentId);
             centralAlertingService.checkAggregateAlertsAsync(postV09AgentId, agentDisplay,
                     captureTime);
@@ -372,9 +351,10 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             responseObserver.onError(t);
             return;
         }
+        List<GaugeValue> gaugeValues;
         long maxCaptureTime = 0;
         try {
-            List<GaugeValue> gaugeValues = getFutureProofGaugeValues(request.getGaugeValueList());
+            gaugeValues = getFutureProofGaugeValues(request.getGaugeValueList());
             gaugeValueDao.store(postV09AgentId, gaugeValues);
             for (GaugeValue gaugeValue : gaugeValues) {
                 maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
@@ -400,6 +380,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             return;
         }
         try {
+            centralAlertingService.recordGaugeValues(postV09AgentId, gaugeValues);
             centralAlertingService.checkForDeletedAlerts(postV09AgentId);
             centralAlertingService.checkGaugeAndHeartbeatAlertsAsync(postV09AgentId, agentDisplay,
                     maxCaptureTime);
@@ -489,7 +470,12 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             currentMinute = (long) Math.ceil(currentishTimeMillis / 60000.0) * 60000;
         }
         // spread out aggregate collections 100 milliseconds a part, rolling over at 10 seconds
-        return nextDelay.getAndAdd(100) % 10000;
+        // and then add backpressure delay when storage is falling behind
+        return nextDelay.getAndAdd(100) % 10000 + ingestionPipeline.getBackpressureDelayMillis();
+    }
+
+    void close() throws InterruptedException {
+        ingestionPipeline.close();
     }
 
     private String getAgentIdForLogging(String agentId, boolean postV09) {
@@ -66,6 +66,7 @@ class GrpcServer {
     private static final Logger logger = LoggerFactory.getLogger(GrpcServer.class);
 
     private final DownstreamServiceImpl downstreamService;
+    private final CollectorServiceImpl collectorService;
 
     private final @Nullable Server httpServer;
     private final @Nullable Server httpsServer;
@@ -82,7 +83,7 @@ class GrpcServer {
         GrpcCommon grpcCommon = new GrpcCommon(v09AgentRollupDao);
         downstreamService = new DownstreamServiceImpl(grpcCommon, clusterManager);
 
-        CollectorServiceImpl collectorService = new CollectorServiceImpl(agentDisplayDao,
+        collectorService = new CollectorServiceImpl(agentDisplayDao,
                 agentConfigDao, activeAgentDao, environmentDao, heartbeatDao, aggregateDao,
                 gaugeValueDao, traceDao, v09AgentRollupDao, grpcCommon, centralAlertingService,
                 clock, version);
@@ -173,6 +174,8 @@ class GrpcServer {
         if (httpServer != null) {
             shutdownNow(httpServer);
         }
+        // wait for already collected data to be stored
+        collectorService.close();
     }
 
     private static void shutdownNow(Server server) throws InterruptedException {
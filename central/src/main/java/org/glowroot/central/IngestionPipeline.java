@@ -0,0 +1,221 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.util.MoreExecutors2;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// stores collected agent data on a bounded worker pool instead of on the grpc threads
+//
+// each agent has its own bounded queue, and an agent's data is stored one request at a time (in
+// order), which is the same per-agent serialization that was previously enforced by blocking the
+// grpc thread on a per-agent semaphore
+//
+// backpressure is signaled to agents via a delay (see getBackpressureDelayMillis()) based on the
+// overall backlog and the smoothed storage latency, and requests are only rejected when an agent's
+// own queue is full, or when the total number of queued requests across all agents is at its limit
+// (which bounds memory when many agents are backed up at the same time)
+class IngestionPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestionPipeline.class);
+
+    private static final int WORKER_THREADS =
+            Integer.getInteger("glowroot.internal.collector.workerThreads", 32);
+
+    private static final int MAX_QUEUED_PER_AGENT =
+            Integer.getInteger("glowroot.internal.collector.maxQueuedPerAgent", 20);
+
+    private static final int MAX_QUEUED =
+            Integer.getInteger("glowroot.internal.collector.maxQueued", 1000);
+
+    // storage latency below this is considered healthy and does not result in any backpressure
+    private static final long HEALTHY_LATENCY_MILLIS = 1000;
+
+    // agents cap the delay at 30 seconds, and the spread of aggregate collections (see
+    // CollectorServiceImpl.getNextDelayMillis()) uses up to 10 seconds of that
+    private static final int MAX_BACKPRESSURE_DELAY_MILLIS = 20000;
+
+    private static final double SMOOTHING = 0.1;
+
+    private final int workerThreads;
+    private final int maxQueuedPerAgent;
+    private final int maxQueued;
+    private final ExecutorService workers;
+    private final Ticker ticker;
+
+    // queued and running, across all agents
+    private final AtomicInteger backlog = new AtomicInteger();
+    // queued (not yet running), across all agents
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // race condition updating this is ok, at worst a sample is lost
+    private volatile double smoothedLatencyNanos;
+
+    private final LoadingCache<String, AgentQueue> agentQueues = CacheBuilder.newBuilder()
+            .weakValues()
+            .build(new CacheLoader<String, AgentQueue>() {
+                @Override
+                public AgentQueue load(String key) throws Exception {
+                    return new AgentQueue();
+                }
+            });
+
+    IngestionPipeline(Ticker ticker) {
+        this(WORKER_THREADS, MAX_QUEUED_PER_AGENT, MAX_QUEUED, ticker);
+    }
+
+    IngestionPipeline(int workerThreads, int maxQueuedPerAgent, int maxQueued, Ticker ticker) {
+        this.workerThreads = Math.max(1, workerThreads);
+        this.maxQueuedPerAgent = Math.max(1, maxQueuedPerAgent);
+        this.maxQueued = Math.max(1, maxQueued);
+        workers = MoreExecutors2.newFixedThreadPool(this.workerThreads,
+                "Glowroot-Collector-Worker-%d");
+        this.ticker = ticker;
+    }
+
+    // returns false if the agent's queue or the global queue is full
+    boolean submit(String agentId, Runnable task) {
+        return agentQueues.getUnchecked(agentId).offer(task);
+    }
+
+    int getBackpressureDelayMillis() {
+        long latencyMillis = NANOSECONDS.toMillis((long) smoothedLatencyNanos);
+        // requests beyond what the workers can run immediately
+        int queued = backlog.get() - workerThreads;
+        if (queued <= 0 && latencyMillis < HEALTHY_LATENCY_MILLIS) {
+            return 0;
+        }
+        // estimated time to drain the current backlog
+        long drainMillis = Math.max(0, queued) * latencyMillis / workerThreads;
+        return (int) Math.min(latencyMillis + drainMillis, MAX_BACKPRESSURE_DELAY_MILLIS);
+    }
+
+    void close() throws InterruptedException {
+        workers.shutdown();
+        if (!workers.awaitTermination(10, SECONDS)) {
+            workers.shutdownNow();
+        }
+    }
+
+    private boolean tryIncrementQueued() {
+        while (true) {
+            int current = queued.get();
+            if (current >= maxQueued) {
+                return false;
+            }
+            if (queued.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void recordLatency(long latencyNanos) {
+        double smoothed = smoothedLatencyNanos;
+        if (smoothed == 0) {
+            smoothedLatencyNanos = latencyNanos;
+        } else {
+            smoothedLatencyNanos = smoothed + SMOOTHING * (latencyNanos - smoothed);
+        }
+    }
+
+    // runs at most one task at a time for a given agent
+    private class AgentQueue implements Runnable {
+
+        @GuardedBy("this")
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        @GuardedBy("this")
+        private boolean running;
+
+        private boolean offer(Runnable task) {
+            synchronized (this) {
+                if (tasks.size() >= maxQueuedPerAgent || !tryIncrementQueued()) {
+                    return false;
+                }
+                tasks.add(task);
+                backlog.incrementAndGet();
+                if (running) {
+                    return true;
+                }
+                running = true;
+            }
+            schedule();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+            queued.decrementAndGet();
+            long startTick = ticker.read();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            } finally {
+                recordLatency(ticker.read() - startTick);
+                backlog.decrementAndGet();
+            }
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    running = false;
+                    return;
+                }
+            }
+            // re-submit instead of looping so that a single busy agent cannot hold on to a worker
+            // while other agents are waiting
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                // shutdown requested
+                logger.debug(e.getMessage(), e);
+                synchronized (this) {
+                    backlog.addAndGet(-tasks.size());
+                    queued.addAndGet(-tasks.size());
+                    tasks.clear();
+                    running = false;
+                }
+            }
+        }
+    }
+}
@@ -49,7 +49,10 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 class RollupService implements Runnable {
 
     private static final int MIN_WORKER_THREADS = 1;
-    private static final int MAX_WORKER_THREADS = 4;
+    // rollups are mostly waiting on cassandra, so allow more worker threads than cores, but still
+    // scale with cores since (partial) rollups also merge timers, histograms and profiles
+    private static final int MAX_WORKER_THREADS =
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
     private static final int INITIAL_WORKER_THREADS = 2;
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
@@ -95,16 +98,11 @@ class RollupService implements Runnable {
                 runInternal(agentRollups, workerExecutor);
                 long elapsedInSeconds = stopwatch.elapsed(SECONDS);
                 int oldNumWorkerThreads = numWorkerThreads;
-                if (elapsedInSeconds > 300) {
-                    if (numWorkerThreads < MAX_WORKER_THREADS) {
-                        numWorkerThreads++;
-                    } else {
-                        logger.warn("rolling up data across {} agent rollup took {} seconds (using"
-                                + " {} threads)", count(agentRollups), elapsedInSeconds,
-                                numWorkerThreads);
-                    }
-                } else if (elapsedInSeconds < 60 && numWorkerThreads > MIN_WORKER_THREADS) {
-                    numWorkerThreads--;
+                numWorkerThreads = getNumWorkerThreads(numWorkerThreads, elapsedInSeconds);
+                if (elapsedInSeconds > 300 && numWorkerThreads == oldNumWorkerThreads) {
+                    logger.warn("rolling up data across {} agent rollup took {} seconds (using {}"
+                            + " threads)", count(agentRollups), elapsedInSeconds,
+                            numWorkerThreads);
                 }
                 if (numWorkerThreads != oldNumWorkerThreads) {
                     ExecutorService oldWorkerExecutor = workerExecutor;
@@ -285,6 +283,21 @@ class RollupService implements Runnable {
         return count;
     }
 
+    // the rollup loop is scheduled once a minute, so every minute that a loop takes beyond that is
+    // backlog (the rollups for the next loop are piling up), and the number of worker threads is
+    // increased in proportion to the backlog, but only decreased one at a time
+    @VisibleForTesting
+    static int getNumWorkerThreads(int numWorkerThreads, long elapsedInSeconds) {
+        if (elapsedInSeconds > 60) {
+            long backlogMinutes = elapsedInSeconds / 60;
+            return (int) Math.min(MAX_WORKER_THREADS, numWorkerThreads + backlogMinutes);
+        } else if (elapsedInSeconds < 30) {
+            return Math.max(MIN_WORKER_THREADS, numWorkerThreads - 1);
+        } else {
+            return numWorkerThreads;
+        }
+    }
+
     @VisibleForTesting
     static long millisUntilNextRollup(long currentTimeMillis) {
         return 60000 - (currentTimeMillis - 10000) % 60000;
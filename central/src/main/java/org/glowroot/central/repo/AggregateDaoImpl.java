@@ -19,12 +19,15 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
@@ -48,8 +51,10 @@ import com.google.protobuf.AbstractMessage;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 
+import org.glowroot.central.repo.AggregatePartialRollups.PartialRollupForType;
 import org.glowroot.central.repo.Common.NeedsRollup;
 import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.MoreFutures.DoRollup;
@@ -88,7 +93,6 @@ import org.glowroot.common2.repo.ConfigRepository.AgentConfigNotFoundException;
 import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.MutableAggregate;
 import org.glowroot.common2.repo.MutableThreadStats;
-import org.glowroot.common2.repo.MutableTimer;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
@@ -147,6 +151,10 @@ public class AggregateDaoImpl implements AggregateDao {
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
             .addColumns(ImmutableColumn.of("transaction_count", "bigint"))
             .addColumns(ImmutableColumn.of("duration_nanos_histogram", "blob"))
+            // compact lower precision summary of duration_nanos_histogram (only stored for rollup
+            // levels above 0), used for percentile charts and alerts so that the full histogram
+            // only needs to be read on demand (e.g. for rolling up)
+            .addColumns(ImmutableColumn.of("duration_nanos_summary", "blob"))
             .summary(false)
             .fromInclusive(true)
             .build();
@@ -225,6 +233,13 @@ public class AggregateDaoImpl implements AggregateDao {
     private final List<PreparedStatement> existsAuxThreadProfileOverallPS;
     private final List<PreparedStatement> existsAuxThreadProfileTransactionPS;
 
+    private final List<PreparedStatement> readPercentileSummaryOverallPS;
+    private final List<PreparedStatement> readPercentileSummaryTransactionPS;
+    private final List<PreparedStatement> readHistogramForSummaryOverallPS;
+    private final List<PreparedStatement> readHistogramForSummaryTransactionPS;
+    private final List<PreparedStatement> updatePercentileSummaryOverallPS;
+    private final List<PreparedStatement> updatePercentileSummaryTransactionPS;
+
     private final List<PreparedStatement> insertNeedsRollup;
     private final List<PreparedStatement> readNeedsRollup;
     private final List<PreparedStatement> deleteNeedsRollup;
@@ -235,10 +250,14 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private final ImmutableList<Table> allTables;
 
+    private final AggregatePartialRollups partialRollups;
+
+    private final AggregateResultCache resultCache;
+
     AggregateDaoImpl(Session session, ActiveAgentDao activeAgentDao,
             TransactionTypeDao transactionTypeDao, FullQueryTextDao fullQueryTextDao,
-            ConfigRepositoryImpl configRepository, Executor asyncExecutor, Clock clock)
-            throws Exception {
+            ConfigRepositoryImpl configRepository, ClusterManager clusterManager,
+            Executor asyncExecutor, Clock clock) throws Exception {
         this.session = session;
         this.activeAgentDao = activeAgentDao;
         this.transactionTypeDao = transactionTypeDao;
@@ -246,6 +265,7 @@ public class AggregateDaoImpl implements AggregateDao {
         this.configRepository = configRepository;
         this.asyncExecutor = asyncExecutor;
         this.clock = clock;
+        partialRollups = new AggregatePartialRollups(clock);
 
         int count = configRepository.getRollupConfigs().size();
         List<Integer> rollupExpirationHours =
@@ -362,6 +382,32 @@ public class AggregateDaoImpl implements AggregateDao {
         this.existsAuxThreadProfileOverallPS = existsAuxThreadProfileOverallPS;
         this.existsAuxThreadProfileTransactionPS = existsAuxThreadProfileTransactionPS;
 
+        List<PreparedStatement> readPercentileSummaryOverallPS = new ArrayList<>();
+        List<PreparedStatement> readPercentileSummaryTransactionPS = new ArrayList<>();
+        List<PreparedStatement> readHistogramForSummaryOverallPS = new ArrayList<>();
+        List<PreparedStatement> readHistogramForSummaryTransactionPS = new ArrayList<>();
+        List<PreparedStatement> updatePercentileSummaryOverallPS = new ArrayList<>();
+        List<PreparedStatement> updatePercentileSummaryTransactionPS = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            readPercentileSummaryOverallPS.add(session.prepare(readPercentileSummaryPS(false, i)));
+            readPercentileSummaryTransactionPS
+                    .add(session.prepare(readPercentileSummaryPS(true, i)));
+            readHistogramForSummaryOverallPS
+                    .add(session.prepare(readHistogramForSummaryPS(false, i)));
+            readHistogramForSummaryTransactionPS
+                    .add(session.prepare(readHistogramForSummaryPS(true, i)));
+            updatePercentileSummaryOverallPS
+                    .add(session.prepare(updatePercentileSummaryPS(false, i)));
+            updatePercentileSummaryTransactionPS
+                    .add(session.prepare(updatePercentileSummaryPS(true, i)));
+        }
+        this.readPercentileSummaryOverallPS = readPercentileSummaryOverallPS;
+        this.readPercentileSummaryTransactionPS = readPercentileSummaryTransactionPS;
+        this.readHistogramForSummaryOverallPS = readHistogramForSummaryOverallPS;
+        this.readHistogramForSummaryTransactionPS = readHistogramForSummaryTransactionPS;
+        this.updatePercentileSummaryOverallPS = updatePercentileSummaryOverallPS;
+        this.updatePercentileSummaryTransactionPS = updatePercentileSummaryTransactionPS;
+
         // since rollup operations are idempotent, any records resurrected after gc_grace_seconds
         // would just create extra work, but not have any other effect
         //
@@ -408,6 +454,8 @@ public class AggregateDaoImpl implements AggregateDao {
                 + " where agent_rollup = ?");
         deleteNeedsRollupFromChild = session.prepare("delete from aggregate_needs_rollup_from_child"
                 + " where agent_rollup = ? and capture_time = ? and uniqueness = ?");
+
+        resultCache = new AggregateResultCache(configRepository, clusterManager, clock);
     }
 
     @Override
@@ -453,17 +501,23 @@ public class AggregateDaoImpl implements AggregateDao {
         MoreFutures.waitForAll(futures);
         futures.clear();
 
+        // statements are collected and then submitted grouped by partition, so that e.g. the many
+        // query and service call rows of a single transaction share a single request
+        List<BoundStatement> statements = new ArrayList<>();
         for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueryTexts, adjustedTTL));
+            storeOverallAggregate(agentId, transactionType, captureTime, overallAggregate,
+                    sharedQueryTexts, adjustedTTL, statements);
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
+                storeTransactionAggregate(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL,
+                        statements);
             }
+            futures.addAll(session.writeBatchedAsync(statements));
+            statements.clear();
             // wait for success before proceeding in order to ensure cannot end up with
             // "no overview table records found" during a transactionName rollup, since
             // transactionName rollups are based on finding transactionName in summary table
@@ -471,10 +525,12 @@ public class AggregateDaoImpl implements AggregateDao {
             futures.clear();
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionNameSummary(agentId, transactionType,
+                storeTransactionNameSummary(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), adjustedTTL));
+                        transactionAggregate.getAggregate(), adjustedTTL, statements);
             }
+            futures.addAll(session.writeBatchedAsync(statements));
+            statements.clear();
             futures.addAll(transactionTypeDao.store(agentRollupIdsForMeta, transactionType));
         }
         futures.addAll(activeAgentDao.insert(agentIdForMeta, captureTime));
@@ -504,15 +560,24 @@ public class AggregateDaoImpl implements AggregateDao {
         // insert into aggregate_needs_rollup_1
         long intervalMillis = rollupConfigs.get(1).intervalMillis();
         long rollupCaptureTime = CaptureTimes.getRollup(captureTime, intervalMillis);
+        UUID uniqueness = UUIDs.timeBased();
+        // partial rollup needs to be added before inserting the "needs rollup" record, otherwise
+        // the rollup could find the "needs rollup" record and (correctly) fall back to re-reading
+        // the interval, but then still leave behind the partial rollup until it expires
+        partialRollups.add(agentId, rollupCaptureTime, intervalMillis, uniqueness,
+                aggregatesByTypeList, sharedQueryTexts,
+                getMaxQueryAggregatesPerTransactionAggregate(agentIdForMeta),
+                getMaxServiceCallAggregatesPerTransactionAggregate(agentIdForMeta));
         BoundStatement boundStatement = insertNeedsRollup.get(0).bind();
         int i = 0;
         boundStatement.setString(i++, agentId);
         boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
-        boundStatement.setUUID(i++, UUIDs.timeBased());
+        boundStatement.setUUID(i++, uniqueness);
         boundStatement.setSet(i++, transactionTypes);
         boundStatement.setInt(i++, needsRollupAdjustedTTL);
         futures.add(session.writeAsync(boundStatement));
         MoreFutures.waitForAll(futures);
+        resultCache.written(agentId, 0, transactionTypes, captureTime);
     }
 
     // query.from() is non-inclusive
@@ -599,6 +664,13 @@ public class AggregateDaoImpl implements AggregateDao {
     @Override
     public List<OverviewAggregate> readOverviewAggregates(String agentRollupId,
             AggregateQuery query) throws Exception {
+        return resultCache.read(agentRollupId, query, AggregateResultCache.Kind.OVERVIEW,
+                OverviewAggregate::captureTime,
+                q -> readOverviewAggregatesUncached(agentRollupId, q));
+    }
+
+    private List<OverviewAggregate> readOverviewAggregatesUncached(String agentRollupId,
+            AggregateQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollupId, query, overviewTable);
         List<OverviewAggregate> overviewAggregates = new ArrayList<>();
         for (Row row : results) {
@@ -653,6 +725,16 @@ public class AggregateDaoImpl implements AggregateDao {
     @Override
     public List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
             AggregateQuery query) throws Exception {
+        return resultCache.read(agentRollupId, query, AggregateResultCache.Kind.PERCENTILE,
+                PercentileAggregate::captureTime,
+                q -> readPercentileAggregatesUncached(agentRollupId, q));
+    }
+
+    private List<PercentileAggregate> readPercentileAggregatesUncached(String agentRollupId,
+            AggregateQuery query) throws Exception {
+        if (query.rollupLevel() > 0) {
+            return readPercentileSummaries(agentRollupId, query);
+        }
         ResultSet results = executeQuery(agentRollupId, query, histogramTable);
         List<PercentileAggregate> percentileAggregates = new ArrayList<>();
         for (Row row : results) {
@@ -672,10 +754,118 @@ public class AggregateDaoImpl implements AggregateDao {
         return percentileAggregates;
     }
 
+    private List<PercentileAggregate> readPercentileSummaries(String agentRollupId,
+            AggregateQuery query) throws Exception {
+        BoundStatement boundStatement;
+        if (query.transactionName() == null) {
+            boundStatement = readPercentileSummaryOverallPS.get(query.rollupLevel()).bind();
+        } else {
+            boundStatement = readPercentileSummaryTransactionPS.get(query.rollupLevel()).bind();
+        }
+        bindQuery(boundStatement, agentRollupId, query);
+        ResultSet results = session.read(boundStatement);
+        // linked hash map to preserve capture time order
+        Map<Long, ImmutablePercentileAggregate> percentileAggregates = new LinkedHashMap<>();
+        Set<Long> missingSummaryCaptureTimes = new HashSet<>();
+        for (Row row : results) {
+            int i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            double totalDurationNanos = row.getDouble(i++);
+            long transactionCount = row.getLong(i++);
+            ByteBuffer bytes = row.getBytes(i++);
+            Aggregate.Histogram durationNanosSummary;
+            if (bytes == null) {
+                // filled in below
+                durationNanosSummary = Aggregate.Histogram.getDefaultInstance();
+                missingSummaryCaptureTimes.add(captureTime);
+            } else {
+                durationNanosSummary = Aggregate.Histogram.parseFrom(bytes);
+            }
+            percentileAggregates.put(captureTime, ImmutablePercentileAggregate.builder()
+                    .captureTime(captureTime)
+                    .totalDurationNanos(totalDurationNanos)
+                    .transactionCount(transactionCount)
+                    .durationNanosHistogram(durationNanosSummary)
+                    .build());
+        }
+        if (!missingSummaryCaptureTimes.isEmpty()) {
+            backfillPercentileSummaries(agentRollupId, query, percentileAggregates,
+                    missingSummaryCaptureTimes);
+        }
+        return new ArrayList<>(percentileAggregates.values());
+    }
+
+    // rows that were rolled up prior to storing summaries (schema version 87) have no summary, so
+    // the summary is computed from the full histogram for just those rows, and written back so that
+    // subsequent reads of those rows only need the summary query
+    private void backfillPercentileSummaries(String agentRollupId, AggregateQuery query,
+            Map<Long, ImmutablePercentileAggregate> percentileAggregates,
+            Set<Long> missingSummaryCaptureTimes) throws Exception {
+        BoundStatement boundStatement;
+        if (query.transactionName() == null) {
+            boundStatement = readHistogramForSummaryOverallPS.get(query.rollupLevel()).bind();
+        } else {
+            boundStatement = readHistogramForSummaryTransactionPS.get(query.rollupLevel()).bind();
+        }
+        bindQuery(boundStatement, agentRollupId, ImmutableAggregateQuery.copyOf(query)
+                .withFrom(Collections.min(missingSummaryCaptureTimes))
+                .withTo(Collections.max(missingSummaryCaptureTimes)));
+        ResultSet results = session.read(boundStatement);
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        List<Future<?>> futures = new ArrayList<>();
+        for (Row row : results) {
+            int i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            if (!missingSummaryCaptureTimes.remove(captureTime)) {
+                continue;
+            }
+            ByteBuffer bytes = checkNotNull(row.getBytes(i++));
+            // remaining ttl of the row (zero if none)
+            int ttl = row.getInt(i++);
+            Aggregate.Histogram durationNanosSummary =
+                    new LazyHistogram(Aggregate.Histogram.parseFrom(bytes))
+                            .toSummaryProto(scratchBuffer);
+            ImmutablePercentileAggregate percentileAggregate =
+                    checkNotNull(percentileAggregates.get(captureTime));
+            percentileAggregates.put(captureTime,
+                    percentileAggregate.withDurationNanosHistogram(durationNanosSummary));
+            BoundStatement updateStatement;
+            if (query.transactionName() == null) {
+                updateStatement = updatePercentileSummaryOverallPS.get(query.rollupLevel()).bind();
+            } else {
+                updateStatement =
+                        updatePercentileSummaryTransactionPS.get(query.rollupLevel()).bind();
+            }
+            i = 0;
+            updateStatement.setInt(i++, ttl);
+            updateStatement.setBytes(i++, toByteBuffer(durationNanosSummary));
+            updateStatement.setString(i++, agentRollupId);
+            updateStatement.setString(i++, query.transactionType());
+            String transactionName = query.transactionName();
+            if (transactionName != null) {
+                updateStatement.setString(i++, transactionName);
+            }
+            updateStatement.setTimestamp(i++, new Date(captureTime));
+            futures.add(session.writeAsync(updateStatement));
+        }
+        // rows that expired in the meantime
+        for (Long captureTime : missingSummaryCaptureTimes) {
+            percentileAggregates.remove(captureTime);
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
     // query.from() is INCLUSIVE
     @Override
     public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
             AggregateQuery query) throws Exception {
+        return resultCache.read(agentRollupId, query, AggregateResultCache.Kind.THROUGHPUT,
+                ThroughputAggregate::captureTime,
+                q -> readThroughputAggregatesUncached(agentRollupId, q));
+    }
+
+    private List<ThroughputAggregate> readThroughputAggregatesUncached(String agentRollupId,
+            AggregateQuery query) throws Exception {
         ResultSet results = executeQuery(agentRollupId, query, throughputTable);
         List<ThroughputAggregate> throughputAggregates = new ArrayList<>();
         for (Row row : results) {
@@ -843,6 +1033,12 @@ public class AggregateDaoImpl implements AggregateDao {
             session.updateSchemaWithRetry("truncate aggregate_needs_rollup_" + i);
         }
         session.updateSchemaWithRetry("truncate aggregate_needs_rollup_from_child");
+        partialRollups.clear();
+        resultCache.invalidateAll();
+    }
+
+    public void close() throws Exception {
+        resultCache.close();
     }
 
     private void rollupFromChildren(String agentRollupId, String agentRollupIdForMeta,
@@ -868,6 +1064,8 @@ public class AggregateDaoImpl implements AggregateDao {
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
+            resultCache.written(agentRollupId, rollupLevel,
+                    needsRollupFromChildren.getKeys().keySet(), captureTime);
 
             int needsRollupAdjustedTTL =
                     Common.getNeedsRollupAdjustedTTL(adjustedTTL.generalTTL(), rollupConfigs);
@@ -905,9 +1103,21 @@ public class AggregateDaoImpl implements AggregateDao {
                     getRollupParams(agentRollupId, agentRollupIdForMeta, rollupLevel, adjustedTTL);
             long from = captureTime - rollupIntervalMillis;
             Set<String> transactionTypes = needsRollup.getKeys();
+            Map<String, PartialRollupForType> partialRollup = null;
+            if (rollupLevel == 1) {
+                partialRollup = partialRollups.remove(agentRollupId, captureTime,
+                        needsRollup.getUniquenessKeysForDeletion());
+            }
             List<Future<?>> futures = new ArrayList<>();
-            for (String transactionType : transactionTypes) {
-                futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+            if (partialRollup != null && partialRollup.keySet().equals(transactionTypes)) {
+                for (Map.Entry<String, PartialRollupForType> entry : partialRollup.entrySet()) {
+                    futures.addAll(rollupOneFromPartial(rollupParams, entry.getKey(), from,
+                            captureTime, entry.getValue()));
+                }
+            } else {
+                for (String transactionType : transactionTypes) {
+                    futures.addAll(rollupOne(rollupParams, transactionType, from, captureTime));
+                }
             }
             if (futures.isEmpty()) {
                 // no rollups occurred, warning already logged inside rollupOne() above
@@ -921,6 +1131,7 @@ public class AggregateDaoImpl implements AggregateDao {
             }
             // wait for above async work to ensure rollup complete before proceeding
             MoreFutures.waitForAll(futures);
+            resultCache.written(agentRollupId, rollupLevel, transactionTypes, captureTime);
 
             PreparedStatement insertNeedsRollup = nextRollupIntervalMillis == null ? null
                     : this.insertNeedsRollup.get(rollupLevel);
@@ -990,6 +1201,89 @@ public class AggregateDaoImpl implements AggregateDao {
         return futures;
     }
 
+    private List<Future<?>> rollupOneFromPartial(RollupParams rollup, String transactionType,
+            long from, long to, PartialRollupForType partialRollup) throws Exception {
+
+        ImmutableAggregateQuery query = ImmutableAggregateQuery.builder()
+                .transactionType(transactionType)
+                .from(from)
+                .to(to)
+                .rollupLevel(rollup.rollupLevel() - 1)
+                .build();
+        List<Future<?>> futures = new ArrayList<>();
+
+        MutableAggregate overallAggregate = partialRollup.getOverallAggregate();
+        futures.add(insertOverallSummary(rollup, query, overallAggregate.getTotalDurationNanos(),
+                overallAggregate.getTransactionCount()));
+        if (overallAggregate.getErrorCount() > 0) {
+            futures.add(insertOverallErrorSummary(rollup, query, overallAggregate.getErrorCount(),
+                    overallAggregate.getTransactionCount()));
+        }
+
+        Map<String, MutableSummary> summaries = new HashMap<>();
+        Map<String, MutableErrorSummary> errorSummaries = new HashMap<>();
+        for (Map.Entry<String, MutableAggregate> entry : partialRollup.getTransactionAggregates()
+                .entrySet()) {
+            MutableAggregate aggregate = entry.getValue();
+            MutableSummary summary = new MutableSummary();
+            summary.totalDurationNanos = aggregate.getTotalDurationNanos();
+            summary.transactionCount = aggregate.getTransactionCount();
+            summaries.put(entry.getKey(), summary);
+            if (aggregate.getErrorCount() > 0) {
+                MutableErrorSummary errorSummary = new MutableErrorSummary();
+                errorSummary.errorCount = aggregate.getErrorCount();
+                errorSummary.transactionCount = aggregate.getTransactionCount();
+                errorSummaries.put(entry.getKey(), errorSummary);
+            }
+        }
+        futures.add(insertTransactionSummaries(rollup, query, summaries));
+        futures.add(insertTransactionErrorSummaries(rollup, query, errorSummaries));
+
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        futures.addAll(insertOtherParts(rollup, query, overallAggregate, scratchBuffer));
+
+        for (Map.Entry<String, MutableAggregate> entry : partialRollup.getTransactionAggregates()
+                .entrySet()) {
+            futures.addAll(insertOtherParts(rollup, query.withTransactionName(entry.getKey()),
+                    entry.getValue(), scratchBuffer));
+        }
+        return futures;
+    }
+
+    private List<Future<?>> insertOtherParts(RollupParams rollup, AggregateQuery query,
+            MutableAggregate aggregate, ScratchBuffer scratchBuffer) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(insertOverview(rollup, query, aggregate));
+        futures.add(insertHistogram(rollup, query, aggregate.getTotalDurationNanos(),
+                aggregate.getTransactionCount(), aggregate.getDurationNanosHistogram(),
+                scratchBuffer));
+        futures.add(insertThroughput(rollup, query, aggregate.getTransactionCount(),
+                aggregate.getErrorCount(), false));
+        QueryCollector queries = aggregate.getQueries();
+        if (queries != null) {
+            futures.add(insertQueries(queries.getSortedAndTruncatedQueries(),
+                    rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                    query.transactionName(), query.to(), rollup.adjustedTTL()));
+        }
+        ServiceCallCollector serviceCalls = aggregate.getServiceCalls();
+        if (serviceCalls != null) {
+            futures.add(insertServiceCalls(serviceCalls.getSortedAndTruncatedServiceCalls(),
+                    rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                    query.transactionName(), query.to(), rollup.adjustedTTL()));
+        }
+        MutableProfile mainThreadProfile = aggregate.getMainThreadProfile();
+        if (mainThreadProfile != null) {
+            futures.add(
+                    insertThreadProfile(rollup, query, mainThreadProfile, mainThreadProfileTable));
+        }
+        MutableProfile auxThreadProfile = aggregate.getAuxThreadProfile();
+        if (auxThreadProfile != null) {
+            futures.add(
+                    insertThreadProfile(rollup, query, auxThreadProfile, auxThreadProfileTable));
+        }
+        return futures;
+    }
+
     private List<Future<?>> rollupOtherParts(RollupParams rollup, AggregateQuery query,
             ScratchBuffer scratchBuffer) throws Exception {
         List<Future<?>> futures = new ArrayList<>();
@@ -1051,6 +1345,11 @@ public class AggregateDaoImpl implements AggregateDao {
             totalDurationNanos += row.getDouble(0);
             transactionCount += row.getLong(1);
         }
+        return insertOverallSummary(rollup, query, totalDurationNanos, transactionCount);
+    }
+
+    private ListenableFuture<?> insertOverallSummary(RollupParams rollup, AggregateQuery query,
+            double totalDurationNanos, long transactionCount) throws Exception {
         BoundStatement boundStatement =
                 getInsertOverallPS(summaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1095,6 +1394,11 @@ public class AggregateDaoImpl implements AggregateDao {
             errorCount += row.getLong(0);
             transactionCount += row.getLong(1);
         }
+        return insertOverallErrorSummary(rollup, query, errorCount, transactionCount);
+    }
+
+    private ListenableFuture<?> insertOverallErrorSummary(RollupParams rollup,
+            AggregateQuery query, long errorCount, long transactionCount) throws Exception {
         BoundStatement boundStatement =
                 getInsertOverallPS(errorSummaryTable, rollup.rollupLevel()).bind();
         int i = 0;
@@ -1192,7 +1496,6 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ListenableFuture<?> rollupTransactionErrorSummaryFromRows(RollupParams rollup,
             AggregateQuery query, Iterable<Row> rows) throws Exception {
-        BoundStatement boundStatement;
         Map<String, MutableErrorSummary> summaries = new HashMap<>();
         for (Row row : rows) {
             int i = 0;
@@ -1205,12 +1508,17 @@ public class AggregateDaoImpl implements AggregateDao {
             summary.errorCount += row.getLong(i++);
             summary.transactionCount += row.getLong(i++);
         }
+        return insertTransactionErrorSummaries(rollup, query, summaries);
+    }
+
+    private ListenableFuture<?> insertTransactionErrorSummaries(RollupParams rollup,
+            AggregateQuery query, Map<String, MutableErrorSummary> summaries) throws Exception {
         PreparedStatement preparedStatement =
                 getInsertTransactionPS(errorSummaryTable, rollup.rollupLevel());
         List<ListenableFuture<?>> futures = new ArrayList<>();
         for (Map.Entry<String, MutableErrorSummary> entry : summaries.entrySet()) {
             MutableErrorSummary summary = entry.getValue();
-            boundStatement = preparedStatement.bind();
+            BoundStatement boundStatement = preparedStatement.bind();
             int i = 0;
             boundStatement.setString(i++, rollup.agentRollupId());
             boundStatement.setString(i++, query.transactionType());
@@ -1250,28 +1558,19 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private ListenableFuture<?> rollupOverviewFromRows(RollupParams rollup, AggregateQuery query,
             Iterable<Row> rows) throws Exception {
-        double totalDurationNanos = 0;
-        long transactionCount = 0;
-        boolean asyncTransactions = false;
-        List<MutableTimer> mainThreadRootTimers = new ArrayList<>();
-        MutableThreadStats mainThreadStats = new MutableThreadStats();
-        MutableTimer auxThreadRootTimer = MutableTimer.createAuxThreadRootTimer();
-        MutableThreadStats auxThreadStats = new MutableThreadStats();
-        List<MutableTimer> asyncTimers = new ArrayList<>();
+        MutableAggregate aggregate = new MutableAggregate(0, 0);
         for (Row row : rows) {
             int i = 0;
-            totalDurationNanos += row.getDouble(i++);
-            transactionCount += row.getLong(i++);
-            if (row.getBool(i++)) {
-                asyncTransactions = true;
-            }
+            aggregate.addTotalDurationNanos(row.getDouble(i++));
+            aggregate.addTransactionCount(row.getLong(i++));
+            aggregate.addAsyncTransactions(row.getBool(i++));
             List<Aggregate.Timer> toBeMergedMainThreadRootTimers =
                     Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            MutableAggregate.mergeRootTimers(toBeMergedMainThreadRootTimers, mainThreadRootTimers);
-            mainThreadStats.addTotalCpuNanos(getNextThreadStat(row, i++));
-            mainThreadStats.addTotalBlockedNanos(getNextThreadStat(row, i++));
-            mainThreadStats.addTotalWaitedNanos(getNextThreadStat(row, i++));
-            mainThreadStats.addTotalAllocatedBytes(getNextThreadStat(row, i++));
+            aggregate.mergeMainThreadRootTimers(toBeMergedMainThreadRootTimers);
+            aggregate.addMainThreadTotalCpuNanos(getNextThreadStat(row, i++));
+            aggregate.addMainThreadTotalBlockedNanos(getNextThreadStat(row, i++));
+            aggregate.addMainThreadTotalWaitedNanos(getNextThreadStat(row, i++));
+            aggregate.addMainThreadTotalAllocatedBytes(getNextThreadStat(row, i++));
             // reading delimited singleton list for backwards compatibility with data written
             // prior to 0.12.0
             List<Aggregate.Timer> list =
@@ -1280,16 +1579,21 @@ public class AggregateDaoImpl implements AggregateDao {
             if (toBeMergedAuxThreadRootTimer == null) {
                 i += 4;
             } else {
-                auxThreadRootTimer.merge(toBeMergedAuxThreadRootTimer);
-                auxThreadStats.addTotalCpuNanos(getNextThreadStat(row, i++));
-                auxThreadStats.addTotalBlockedNanos(getNextThreadStat(row, i++));
-                auxThreadStats.addTotalWaitedNanos(getNextThreadStat(row, i++));
-                auxThreadStats.addTotalAllocatedBytes(getNextThreadStat(row, i++));
+                aggregate.mergeAuxThreadRootTimer(toBeMergedAuxThreadRootTimer);
+                aggregate.addAuxThreadTotalCpuNanos(getNextThreadStat(row, i++));
+                aggregate.addAuxThreadTotalBlockedNanos(getNextThreadStat(row, i++));
+                aggregate.addAuxThreadTotalWaitedNanos(getNextThreadStat(row, i++));
+                aggregate.addAuxThreadTotalAllocatedBytes(getNextThreadStat(row, i++));
             }
             List<Aggregate.Timer> toBeMergedAsyncTimers =
                     Messages.parseDelimitedFrom(row.getBytes(i++), Aggregate.Timer.parser());
-            MutableAggregate.mergeRootTimers(toBeMergedAsyncTimers, asyncTimers);
+            aggregate.mergeAsyncTimers(toBeMergedAsyncTimers);
         }
+        return insertOverview(rollup, query, aggregate);
+    }
+
+    private ListenableFuture<?> insertOverview(RollupParams rollup, AggregateQuery query,
+            MutableAggregate aggregate) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(overviewTable, rollup.rollupLevel()).bind();
@@ -1303,36 +1607,40 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setString(i++, query.transactionName());
         }
         boundStatement.setTimestamp(i++, new Date(query.to()));
-        boundStatement.setDouble(i++, totalDurationNanos);
-        boundStatement.setLong(i++, transactionCount);
-        boundStatement.setBool(i++, asyncTransactions);
+        boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
+        boundStatement.setLong(i++, aggregate.getTransactionCount());
+        boundStatement.setBool(i++, aggregate.isAsyncTransactions());
         boundStatement.setBytes(i++,
-                Messages.toByteBuffer(MutableAggregate.toProto(mainThreadRootTimers)));
+                Messages.toByteBuffer(aggregate.getMainThreadRootTimersProto()));
+        MutableThreadStats mainThreadStats = aggregate.getMainThreadStats();
         boundStatement.setDouble(i++, mainThreadStats.getTotalCpuNanos());
         boundStatement.setDouble(i++, mainThreadStats.getTotalBlockedNanos());
         boundStatement.setDouble(i++, mainThreadStats.getTotalWaitedNanos());
         boundStatement.setDouble(i++, mainThreadStats.getTotalAllocatedBytes());
-        if (auxThreadRootTimer.getCount() == 0) {
+        Aggregate.Timer auxThreadRootTimer = aggregate.getAuxThreadRootTimerProto();
+        if (auxThreadRootTimer == null || auxThreadRootTimer.getCount() == 0) {
             boundStatement.setToNull(i++);
             boundStatement.setToNull(i++);
             boundStatement.setToNull(i++);
             boundStatement.setToNull(i++);
             boundStatement.setToNull(i++);
         } else {
+            // aux thread stats is non-null when aux thread root timer is non-null
+            MutableThreadStats auxThreadStats = checkNotNull(aggregate.getAuxThreadStats());
             // writing as delimited singleton list for backwards compatibility with data written
             // prior to 0.12.0
-            boundStatement.setBytes(i++, Messages
-                    .toByteBuffer(MutableAggregate.toProto(ImmutableList.of(auxThreadRootTimer))));
+            boundStatement.setBytes(i++,
+                    Messages.toByteBuffer(ImmutableList.of(auxThreadRootTimer)));
             boundStatement.setDouble(i++, auxThreadStats.getTotalCpuNanos());
             boundStatement.setDouble(i++, auxThreadStats.getTotalBlockedNanos());
             boundStatement.setDouble(i++, auxThreadStats.getTotalWaitedNanos());
             boundStatement.setDouble(i++, auxThreadStats.getTotalAllocatedBytes());
         }
+        List<Aggregate.Timer> asyncTimers = aggregate.getAsyncTimersProto();
         if (asyncTimers.isEmpty()) {
             boundStatement.setToNull(i++);
         } else {
-            boundStatement.setBytes(i++,
-                    Messages.toByteBuffer(MutableAggregate.toProto(asyncTimers)));
+            boundStatement.setBytes(i++, Messages.toByteBuffer(asyncTimers));
         }
         boundStatement.setInt(i++, rollup.adjustedTTL().generalTTL());
         return session.writeAsync(boundStatement);
@@ -1375,6 +1683,17 @@ public class AggregateDaoImpl implements AggregateDao {
             ByteBuffer bytes = checkNotNull(row.getBytes(i++));
             durationNanosHistogram.merge(Aggregate.Histogram.parseFrom(bytes));
         }
+        ListenableFuture<?> future = insertHistogram(rollup, query, totalDurationNanos,
+                transactionCount, durationNanosHistogram, scratchBuffer);
+        // histogram has already been encoded into the insert statement, so it can be returned to
+        // the pool
+        durationNanosHistogram.reset();
+        return future;
+    }
+
+    private ListenableFuture<?> insertHistogram(RollupParams rollup, AggregateQuery query,
+            double totalDurationNanos, long transactionCount, LazyHistogram durationNanosHistogram,
+            ScratchBuffer scratchBuffer) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(histogramTable, rollup.rollupLevel()).bind();
@@ -1391,6 +1710,8 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, totalDurationNanos);
         boundStatement.setLong(i++, transactionCount);
         boundStatement.setBytes(i++, toByteBuffer(durationNanosHistogram.toProto(scratchBuffer)));
+        boundStatement.setBytes(i++,
+                toByteBuffer(durationNanosHistogram.toSummaryProto(scratchBuffer)));
         boundStatement.setInt(i++, rollup.adjustedTTL().generalTTL());
         return session.writeAsync(boundStatement);
     }
@@ -1434,6 +1755,13 @@ public class AggregateDaoImpl implements AggregateDao {
                 errorCount += row.getLong(1);
             }
         }
+        return insertThroughput(rollup, query, transactionCount, errorCount,
+                hasMissingErrorCount);
+    }
+
+    private ListenableFuture<?> insertThroughput(RollupParams rollup, AggregateQuery query,
+            long transactionCount, long errorCount, boolean hasMissingErrorCount)
+            throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(throughputTable, rollup.rollupLevel()).bind();
@@ -1577,6 +1905,11 @@ public class AggregateDaoImpl implements AggregateDao {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
             profile.merge(Profile.parseFrom(bytes));
         }
+        return insertThreadProfile(rollup, query, profile, table);
+    }
+
+    private ListenableFuture<?> insertThreadProfile(RollupParams rollup, AggregateQuery query,
+            MutableProfile profile, Table table) throws Exception {
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(table, rollup.rollupLevel()).bind();
@@ -1625,13 +1958,12 @@ public class AggregateDaoImpl implements AggregateDao {
         return futures;
     }
 
-    private List<ListenableFuture<?>> storeOverallAggregate(String agentRollupId,
-            String transactionType, long captureTime, Aggregate aggregate,
-            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) throws Exception {
+    private void storeOverallAggregate(String agentRollupId, String transactionType,
+            long captureTime, Aggregate aggregate, List<Aggregate.SharedQueryText> sharedQueryTexts,
+            TTL adjustedTTL, List<BoundStatement> statements) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<ListenableFuture<?>> futures = new ArrayList<>();
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1640,7 +1972,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        statements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1651,7 +1983,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.writeAsync(boundStatement));
+            statements.add(boundStatement);
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1660,7 +1992,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.writeAsync(boundStatement));
+        statements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1670,8 +2002,10 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
+        // summary is only stored for rollup levels above 0
+        boundStatement.setToNull(i++);
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        statements.add(boundStatement);
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1681,7 +2015,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setLong(i++, aggregate.getErrorCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        statements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1692,7 +2026,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement));
+            statements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1703,22 +2037,21 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement));
+            statements.add(boundStatement);
         }
-        futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        return futures;
+        insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel, agentRollupId,
+                transactionType, null, captureTime, adjustedTTL, statements);
+        insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel, agentRollupId,
+                transactionType, null, captureTime, adjustedTTL, statements);
     }
 
-    private List<Future<?>> storeTransactionAggregate(String agentRollupId, String transactionType,
+    private void storeTransactionAggregate(String agentRollupId, String transactionType,
             String transactionName, long captureTime, Aggregate aggregate,
-            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) throws Exception {
+            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL,
+            List<BoundStatement> statements) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<Future<?>> futures = new ArrayList<>();
         BoundStatement boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1726,7 +2059,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.writeAsync(boundStatement));
+        statements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1737,8 +2070,10 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
+        // summary is only stored for rollup levels above 0
+        boundStatement.setToNull(i++);
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        statements.add(boundStatement);
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1749,7 +2084,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setLong(i++, aggregate.getErrorCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        statements.add(boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1761,7 +2096,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement));
+            statements.add(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1773,22 +2108,20 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.writeAsync(boundStatement));
+            statements.add(boundStatement);
         }
-        futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        return futures;
+        insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel, agentRollupId,
+                transactionType, transactionName, captureTime, adjustedTTL, statements);
+        insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel, agentRollupId,
+                transactionType, transactionName, captureTime, adjustedTTL, statements);
     }
 
-    private List<Future<?>> storeTransactionNameSummary(String agentRollupId,
-            String transactionType, String transactionName, long captureTime, Aggregate aggregate,
-            TTL adjustedTTL) throws Exception {
+    private void storeTransactionNameSummary(String agentRollupId, String transactionType,
+            String transactionName, long captureTime, Aggregate aggregate, TTL adjustedTTL,
+            List<BoundStatement> statements) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<Future<?>> futures = new ArrayList<>();
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1798,7 +2131,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.writeAsync(boundStatement));
+        statements.add(boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1810,16 +2143,14 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.writeAsync(boundStatement));
+            statements.add(boundStatement);
         }
-        return futures;
     }
 
-    private List<ListenableFuture<?>> insertQueries(List<Aggregate.Query> queries,
+    private void insertQueries(List<Aggregate.Query> queries,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
-            TTL adjustedTTL) throws Exception {
-        List<ListenableFuture<?>> futures = new ArrayList<>();
+            TTL adjustedTTL, List<BoundStatement> statements) throws Exception {
         for (Aggregate.Query query : queries) {
             Aggregate.SharedQueryText sharedQueryText =
                     sharedQueryTexts.get(query.getSharedQueryTextIndex());
@@ -1854,9 +2185,8 @@ public class AggregateDaoImpl implements AggregateDao {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL.queryTTL());
-            futures.add(session.writeAsync(boundStatement));
+            statements.add(boundStatement);
         }
-        return futures;
     }
 
     private ListenableFuture<?> insertQueries(List<MutableQuery> queries, int rollupLevel,
@@ -1895,11 +2225,10 @@ public class AggregateDaoImpl implements AggregateDao {
         return Futures.allAsList(futures);
     }
 
-    private List<ListenableFuture<?>> insertServiceCallsProto(
-            List<Aggregate.ServiceCall> serviceCalls, int rollupLevel, String agentRollupId,
-            String transactionType, @Nullable String transactionName, long captureTime,
-            TTL adjustedTTL) throws Exception {
-        List<ListenableFuture<?>> futures = new ArrayList<>();
+    private void insertServiceCallsProto(List<Aggregate.ServiceCall> serviceCalls,
+            int rollupLevel, String agentRollupId, String transactionType,
+            @Nullable String transactionName, long captureTime, TTL adjustedTTL,
+            List<BoundStatement> statements) throws Exception {
         for (Aggregate.ServiceCall serviceCall : serviceCalls) {
             BoundStatement boundStatement;
             if (transactionName == null) {
@@ -1919,9 +2248,8 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
             boundStatement.setLong(i++, serviceCall.getExecutionCount());
             boundStatement.setInt(i++, adjustedTTL.serviceCallTTL());
-            futures.add(session.writeAsync(boundStatement));
+            statements.add(boundStatement);
         }
-        return futures;
     }
 
     private ListenableFuture<?> insertServiceCalls(List<MutableServiceCall> serviceCalls,
@@ -2171,7 +2499,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static List<Aggregate.Query> getQueries(Aggregate aggregate) {
+    static List<Aggregate.Query> getQueries(Aggregate aggregate) {
         List<Aggregate.OldQueriesByType> queriesByTypeList = aggregate.getOldQueriesByTypeList();
         if (queriesByTypeList.isEmpty()) {
             return aggregate.getQueryList();
@@ -2191,7 +2519,7 @@ public class AggregateDaoImpl implements AggregateDao {
         return queries;
     }
 
-    private static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
+    static List<Aggregate.ServiceCall> getServiceCalls(Aggregate aggregate) {
         List<Aggregate.OldServiceCallsByType> serviceCallsByTypeList =
                 aggregate.getOldServiceCallsByTypeList();
         if (serviceCallsByTypeList.isEmpty()) {
@@ -2292,6 +2620,45 @@ public class AggregateDaoImpl implements AggregateDao {
         return sb.toString();
     }
 
+    private static String readPercentileSummaryPS(boolean transaction, int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select capture_time, total_duration_nanos, transaction_count,"
+                + " duration_nanos_summary from ");
+        sb.append(getTableName(histogramTable.partialName(), transaction, i));
+        sb.append(" where agent_rollup = ? and transaction_type = ?");
+        if (transaction) {
+            sb.append(" and transaction_name = ?");
+        }
+        sb.append(" and capture_time >= ? and capture_time <= ?");
+        return sb.toString();
+    }
+
+    private static String readHistogramForSummaryPS(boolean transaction, int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("select capture_time, duration_nanos_histogram, ttl(duration_nanos_histogram)"
+                + " from ");
+        sb.append(getTableName(histogramTable.partialName(), transaction, i));
+        sb.append(" where agent_rollup = ? and transaction_type = ?");
+        if (transaction) {
+            sb.append(" and transaction_name = ?");
+        }
+        sb.append(" and capture_time >= ? and capture_time <= ?");
+        return sb.toString();
+    }
+
+    private static String updatePercentileSummaryPS(boolean transaction, int i) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("update ");
+        sb.append(getTableName(histogramTable.partialName(), transaction, i));
+        sb.append(" using TTL ? set duration_nanos_summary = ?");
+        sb.append(" where agent_rollup = ? and transaction_type = ?");
+        if (transaction) {
+            sb.append(" and transaction_name = ?");
+        }
+        sb.append(" and capture_time = ?");
+        return sb.toString();
+    }
+
     private static String readForRollupPS(Table table, boolean transaction, int i) {
         StringBuilder sb = new StringBuilder();
         sb.append("select ");
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.base.Strings;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// level 1 aggregate rollups that are accumulated in memory as the 1-min aggregates are stored, so
+// that the rollup doesn't need to re-read all of the 1-min rows in the interval
+//
+// each store inserts exactly one "needs rollup" record with a unique id, and a partial rollup is
+// only used if it contains exactly the stores that are referenced by the "needs rollup" records
+// for the interval, so anything that the partial rollup may have missed (data stored by another
+// central node, data stored prior to restart, late data, partial rollups dropped because of the
+// memory bound) falls back to re-reading the 1-min rows
+class AggregatePartialRollups {
+
+    // partial rollups are normally removed by the rollup shortly after the interval closes, this
+    // is just to clean up partial rollups whose interval was rolled up by a different central node
+    private static final long EXPIRATION_MILLIS = HOURS.toMillis(1);
+
+    private final Clock clock;
+
+    // memory usage is estimated by the size of the aggregates that have been merged (which
+    // over-estimates since repeated timers, queries, etc. are merged together)
+    private final long maxEstimatedBytes;
+    private final AtomicLong estimatedBytes = new AtomicLong();
+
+    private final ConcurrentMap<PartialRollupKey, PartialRollup> partialRollups =
+            new ConcurrentHashMap<>();
+
+    private volatile long lastExpirationCheckTime;
+
+    AggregatePartialRollups(Clock clock) {
+        this(clock, Runtime.getRuntime().maxMemory() / 10);
+    }
+
+    AggregatePartialRollups(Clock clock, long maxEstimatedBytes) {
+        this.clock = clock;
+        this.maxEstimatedBytes = maxEstimatedBytes;
+    }
+
+    void add(String agentRollupId, long rollupCaptureTime, long rollupIntervalMillis,
+            UUID uniqueness, List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> sharedQueryTexts, int maxQueryAggregates,
+            int maxServiceCallAggregates) {
+        removeExpired();
+        if (clock.currentTimeMillis() >= rollupCaptureTime + rollupIntervalMillis / 2) {
+            // late data, the interval may have already been rolled up (possibly by another central
+            // node), in which case a new partial rollup would be missing the earlier data in the
+            // interval (and the "needs rollup" records for the earlier data would no longer exist
+            // to detect this)
+            //
+            // not adding late data to an existing partial rollup is fine, since the partial rollup
+            // will then be detected as incomplete
+            return;
+        }
+        PartialRollupKey key = ImmutablePartialRollupKey.of(agentRollupId, rollupCaptureTime);
+        PartialRollup partialRollup = partialRollups.get(key);
+        if (partialRollup == null) {
+            partialRollup = new PartialRollup(rollupCaptureTime, maxQueryAggregates,
+                    maxServiceCallAggregates);
+            PartialRollup existing = partialRollups.putIfAbsent(key, partialRollup);
+            if (existing != null) {
+                partialRollup = existing;
+            }
+        }
+        long bytes = 0;
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            bytes += aggregatesByType.getSerializedSize();
+        }
+        synchronized (partialRollup) {
+            if (partialRollup.abandoned) {
+                return;
+            }
+            if (estimatedBytes.addAndGet(bytes) > maxEstimatedBytes) {
+                estimatedBytes.addAndGet(-bytes);
+                abandon(partialRollup);
+                return;
+            }
+            partialRollup.estimatedBytes += bytes;
+            partialRollup.uniquenessKeys.add(uniqueness);
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                partialRollup.merge(aggregatesByType, sharedQueryTexts);
+            }
+        }
+    }
+
+    // returns null if the partial rollup is not complete, in which case the rollup needs to
+    // fall back to re-reading the 1-min rows
+    @Nullable Map<String, PartialRollupForType> remove(String agentRollupId,
+            long rollupCaptureTime, Set<UUID> uniquenessKeys) {
+        PartialRollup partialRollup = partialRollups
+                .remove(ImmutablePartialRollupKey.of(agentRollupId, rollupCaptureTime));
+        if (partialRollup == null) {
+            return null;
+        }
+        synchronized (partialRollup) {
+            boolean complete =
+                    !partialRollup.abandoned && partialRollup.uniquenessKeys.equals(uniquenessKeys);
+            abandon(partialRollup);
+            // the aggregates are no longer modified once abandoned, so can be safely used by the
+            // caller outside of the synchronized block
+            return complete ? partialRollup.forTypes : null;
+        }
+    }
+
+    void clear() {
+        for (PartialRollup partialRollup : partialRollups.values()) {
+            synchronized (partialRollup) {
+                abandon(partialRollup);
+            }
+        }
+        partialRollups.clear();
+    }
+
+    @GuardedBy("partialRollup")
+    private void abandon(PartialRollup partialRollup) {
+        if (!partialRollup.abandoned) {
+            partialRollup.abandoned = true;
+            estimatedBytes.addAndGet(-partialRollup.estimatedBytes);
+            partialRollup.estimatedBytes = 0;
+        }
+    }
+
+    private void removeExpired() {
+        long currentTimeMillis = clock.currentTimeMillis();
+        if (currentTimeMillis - lastExpirationCheckTime < MINUTES.toMillis(1)) {
+            return;
+        }
+        lastExpirationCheckTime = currentTimeMillis;
+        Iterator<PartialRollup> i = partialRollups.values().iterator();
+        while (i.hasNext()) {
+            PartialRollup partialRollup = i.next();
+            if (partialRollup.rollupCaptureTime < currentTimeMillis - EXPIRATION_MILLIS) {
+                i.remove();
+                synchronized (partialRollup) {
+                    abandon(partialRollup);
+                }
+            }
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface PartialRollupKey {
+        String agentRollupId();
+        long rollupCaptureTime();
+    }
+
+    static class PartialRollupForType {
+
+        private final MutableAggregate overallAggregate;
+        private final Map<String, MutableAggregate> transactionAggregates = new HashMap<>();
+
+        private final int maxQueryAggregates;
+        private final int maxServiceCallAggregates;
+
+        private PartialRollupForType(int maxQueryAggregates, int maxServiceCallAggregates) {
+            overallAggregate = new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates);
+            this.maxQueryAggregates = maxQueryAggregates;
+            this.maxServiceCallAggregates = maxServiceCallAggregates;
+        }
+
+        MutableAggregate getOverallAggregate() {
+            return overallAggregate;
+        }
+
+        Map<String, MutableAggregate> getTransactionAggregates() {
+            return transactionAggregates;
+        }
+
+        private MutableAggregate getTransactionAggregate(String transactionName) {
+            MutableAggregate aggregate = transactionAggregates.get(transactionName);
+            if (aggregate == null) {
+                aggregate = new MutableAggregate(maxQueryAggregates, maxServiceCallAggregates);
+                transactionAggregates.put(transactionName, aggregate);
+            }
+            return aggregate;
+        }
+    }
+
+    private static class PartialRollup {
+
+        private final long rollupCaptureTime;
+        private final int maxQueryAggregates;
+        private final int maxServiceCallAggregates;
+
+        @GuardedBy("this")
+        private final Set<UUID> uniquenessKeys = new HashSet<>();
+        @GuardedBy("this")
+        private final Map<String, PartialRollupForType> forTypes = new HashMap<>();
+        @GuardedBy("this")
+        private long estimatedBytes;
+        @GuardedBy("this")
+        private boolean abandoned;
+
+        private PartialRollup(long rollupCaptureTime, int maxQueryAggregates,
+                int maxServiceCallAggregates) {
+            this.rollupCaptureTime = rollupCaptureTime;
+            this.maxQueryAggregates = maxQueryAggregates;
+            this.maxServiceCallAggregates = maxServiceCallAggregates;
+        }
+
+        @GuardedBy("this")
+        private void merge(OldAggregatesByType aggregatesByType,
+                List<Aggregate.SharedQueryText> sharedQueryTexts) {
+            String transactionType = aggregatesByType.getTransactionType();
+            PartialRollupForType forType = forTypes.get(transactionType);
+            if (forType == null) {
+                forType = new PartialRollupForType(maxQueryAggregates, maxServiceCallAggregates);
+                forTypes.put(transactionType, forType);
+            }
+            mergeAggregate(forType.overallAggregate, aggregatesByType.getOverallAggregate(),
+                    sharedQueryTexts);
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                mergeAggregate(
+                        forType.getTransactionAggregate(transactionAggregate.getTransactionName()),
+                        transactionAggregate.getAggregate(), sharedQueryTexts);
+            }
+        }
+    }
+
+    // this needs to produce the same result as rolling up the rows that are written by
+    // AggregateDaoImpl.storeOverallAggregate() and AggregateDaoImpl.storeTransactionAggregate()
+    private static void mergeAggregate(MutableAggregate mutableAggregate, Aggregate aggregate,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) {
+        mutableAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mutableAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mutableAggregate.addErrorCount(aggregate.getErrorCount());
+        mutableAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mutableAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        if (aggregate.hasOldMainThreadStats()) {
+            // data from agent prior to 0.10.9
+            Aggregate.OldThreadStats threadStats = aggregate.getOldMainThreadStats();
+            mutableAggregate.addMainThreadTotalCpuNanos(threadStats.getTotalCpuNanos().getValue());
+            mutableAggregate
+                    .addMainThreadTotalBlockedNanos(threadStats.getTotalBlockedNanos().getValue());
+            mutableAggregate
+                    .addMainThreadTotalWaitedNanos(threadStats.getTotalWaitedNanos().getValue());
+            mutableAggregate.addMainThreadTotalAllocatedBytes(
+                    threadStats.getTotalAllocatedBytes().getValue());
+        } else {
+            mutableAggregate.mergeMainThreadStats(aggregate.getMainThreadStats());
+        }
+        if (aggregate.hasAuxThreadRootTimer()) {
+            mutableAggregate.mergeAuxThreadRootTimer(aggregate.getAuxThreadRootTimer());
+            if (aggregate.hasOldAuxThreadStats()) {
+                Aggregate.OldThreadStats threadStats = aggregate.getOldAuxThreadStats();
+                mutableAggregate
+                        .addAuxThreadTotalCpuNanos(threadStats.getTotalCpuNanos().getValue());
+                mutableAggregate.addAuxThreadTotalBlockedNanos(
+                        threadStats.getTotalBlockedNanos().getValue());
+                mutableAggregate
+                        .addAuxThreadTotalWaitedNanos(threadStats.getTotalWaitedNanos().getValue());
+                mutableAggregate.addAuxThreadTotalAllocatedBytes(
+                        threadStats.getTotalAllocatedBytes().getValue());
+            } else {
+                mutableAggregate.mergeAuxThreadStats(aggregate.getAuxThreadStats());
+            }
+        }
+        mutableAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        mutableAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (Aggregate.Query query : AggregateDaoImpl.getQueries(aggregate)) {
+            Aggregate.SharedQueryText sharedQueryText =
+                    sharedQueryTexts.get(query.getSharedQueryTextIndex());
+            String fullTextSha1 = sharedQueryText.getFullTextSha1();
+            String truncatedText;
+            if (fullTextSha1.isEmpty()) {
+                truncatedText = sharedQueryText.getFullText();
+            } else {
+                truncatedText = sharedQueryText.getTruncatedText();
+            }
+            mutableAggregate.mergeQuery(query.getType(), truncatedText,
+                    Strings.emptyToNull(fullTextSha1), query.getTotalDurationNanos(),
+                    query.getExecutionCount(), query.hasTotalRows(),
+                    query.getTotalRows().getValue());
+        }
+        for (Aggregate.ServiceCall serviceCall : AggregateDaoImpl.getServiceCalls(aggregate)) {
+            mutableAggregate.mergeServiceCall(serviceCall.getType(), serviceCall.getText(),
+                    serviceCall.getTotalDurationNanos(), serviceCall.getExecutionCount());
+        }
+        if (aggregate.hasMainThreadProfile()) {
+            mutableAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            mutableAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.serial.Serial;
+import org.immutables.value.Value;
+
+import org.glowroot.central.util.Cache;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.LocalCacheStats;
+import org.glowroot.common.live.ImmutableAggregateQuery;
+import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.util.CaptureTimes;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.Styles;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches the chart series reads (overview, percentile and throughput aggregates) so that many
+// users viewing the same dashboards do not each re-read the same rows from Cassandra
+//
+// reads are split into buckets of POINTS_PER_BUCKET capture times aligned to the rollup interval,
+// so that overlapping time ranges share cache entries
+//
+// buckets at the live edge are still being written to, and are only cached for a short time,
+// while older buckets are cached until evicted, or until a (late) write into that agent rollup,
+// rollup level and transaction type bumps the version that is part of the cache key
+class AggregateResultCache {
+
+    private static final int POINTS_PER_BUCKET = 60;
+
+    // requests spanning more buckets than this bypass the cache
+    private static final int MAX_BUCKETS = 20;
+
+    private static final long MAX_CACHED_POINTS =
+            Long.getLong("glowroot.internal.aggregateResultCache.maxPoints", 50000);
+
+    // percentile points carry a duration histogram, which at rollup level 0 can be tens of kb, so
+    // they are weighed by encoded histogram size (in multiples of this) instead of as a single
+    // point
+    private static final int HISTOGRAM_BYTES_PER_POINT = 200;
+
+    private static final long LIVE_EDGE_EXPIRATION_MILLIS =
+            Long.getLong("glowroot.internal.aggregateResultCache.liveEdgeExpirationMillis", 10000);
+
+    // time after the end of an interval after which data for that interval is not expected to
+    // change (other than from agents that were temporarily unable to connect)
+    private static final long SETTLE_MILLIS = MINUTES.toMillis(5);
+
+    private final ConfigRepositoryImpl configRepository;
+    private final Clock clock;
+
+    private final com.google.common.cache.Cache<ResultKey, List<?>> results;
+    private final com.google.common.cache.Cache<ResultKey, List<?>> liveEdgeResults;
+
+    // this is self bounded since the number of keys is bounded by the number of agent rollups,
+    // rollup levels and transaction types, and invalidation (from any central node) is global
+    private final Cache<VersionKey, Long> versions;
+
+    AggregateResultCache(ConfigRepositoryImpl configRepository, ClusterManager clusterManager,
+            Clock clock) throws Exception {
+        this.configRepository = configRepository;
+        this.clock = clock;
+        Weigher<ResultKey, List<?>> weigher = AggregateResultCache::weigh;
+        results = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_CACHED_POINTS)
+                .weigher(weigher)
+                .recordStats()
+                .build();
+        liveEdgeResults = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_CACHED_POINTS / 10)
+                .weigher(weigher)
+                .expireAfterWrite(LIVE_EDGE_EXPIRATION_MILLIS, MILLISECONDS)
+                .recordStats()
+                .build();
+        AtomicLong nextVersion = new AtomicLong();
+        versions = clusterManager.createSelfBoundedCache("aggregateResultVersionCache",
+                key -> nextVersion.incrementAndGet());
+
+        MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
+        platformMBeanServer.registerMBean(new LocalCacheStats(results),
+                ObjectName.getInstance("org.glowroot.central:type=AggregateResultCache"));
+        platformMBeanServer.registerMBean(new LocalCacheStats(liveEdgeResults),
+                ObjectName.getInstance("org.glowroot.central:type=AggregateLiveEdgeResultCache"));
+    }
+
+    // query.from() is INCLUSIVE
+    <T> List<T> read(String agentRollupId, AggregateQuery query, Kind kind,
+            ToLongFunction<T> captureTimeFn, Reader<T> reader) throws Exception {
+        long intervalMillis =
+                configRepository.getRollupConfigs().get(query.rollupLevel()).intervalMillis();
+        long bucketMillis = intervalMillis * POINTS_PER_BUCKET;
+        long firstBucketTo = CaptureTimes.getRollup(query.from(), bucketMillis);
+        long lastBucketTo = CaptureTimes.getRollup(query.to(), bucketMillis);
+        if (query.from() > query.to()
+                || (lastBucketTo - firstBucketTo) / bucketMillis >= MAX_BUCKETS) {
+            return reader.read(query);
+        }
+        // version needs to be read prior to reading the data, so that data read concurrently
+        // with a write is cached under the prior version
+        long version = versions.get(ImmutableVersionKey.of(agentRollupId, query.rollupLevel(),
+                query.transactionType()));
+        List<T> aggregates = new ArrayList<>();
+        for (long bucketTo = firstBucketTo; bucketTo <= lastBucketTo; bucketTo += bucketMillis) {
+            ResultKey key = ImmutableResultKey.builder()
+                    .kind(kind)
+                    .agentRollupId(agentRollupId)
+                    .rollupLevel(query.rollupLevel())
+                    .transactionType(query.transactionType())
+                    .transactionName(query.transactionName())
+                    .bucketTo(bucketTo)
+                    .version(version)
+                    .build();
+            for (T aggregate : readBucket(key, bucketMillis, intervalMillis, query, reader)) {
+                long captureTime = captureTimeFn.applyAsLong(aggregate);
+                if (captureTime >= query.from() && captureTime <= query.to()) {
+                    aggregates.add(aggregate);
+                }
+            }
+        }
+        return aggregates;
+    }
+
+    // called after writing aggregates with the given capture time
+    void written(String agentRollupId, int rollupLevel, Set<String> transactionTypes,
+            long captureTime) throws Exception {
+        long intervalMillis =
+                configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        long bucketTo = CaptureTimes.getRollup(captureTime, intervalMillis * POINTS_PER_BUCKET);
+        if (isLiveEdge(bucketTo, intervalMillis)) {
+            // live edge buckets expire on their own
+            return;
+        }
+        for (String transactionType : transactionTypes) {
+            versions.invalidate(ImmutableVersionKey.of(agentRollupId, rollupLevel,
+                    transactionType));
+        }
+    }
+
+    void invalidateAll() {
+        results.invalidateAll();
+        liveEdgeResults.invalidateAll();
+    }
+
+    void close() throws Exception {
+        MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
+        platformMBeanServer.unregisterMBean(
+                ObjectName.getInstance("org.glowroot.central:type=AggregateResultCache"));
+        platformMBeanServer.unregisterMBean(
+                ObjectName.getInstance("org.glowroot.central:type=AggregateLiveEdgeResultCache"));
+    }
+
+    private <T> List<T> readBucket(ResultKey key, long bucketMillis, long intervalMillis,
+            AggregateQuery query, Reader<T> reader) throws Exception {
+        boolean liveEdge = isLiveEdge(key.bucketTo(), intervalMillis);
+        com.google.common.cache.Cache<ResultKey, List<?>> cache =
+                liveEdge ? liveEdgeResults : results;
+        @SuppressWarnings("unchecked")
+        List<T> aggregates = (List<T>) cache.getIfPresent(key);
+        if (aggregates == null) {
+            aggregates = reader.read(ImmutableAggregateQuery.builder()
+                    .copyFrom(query)
+                    .from(key.bucketTo() - bucketMillis + 1)
+                    .to(key.bucketTo())
+                    .build());
+            cache.put(key, aggregates);
+        }
+        return aggregates;
+    }
+
+    // weight is in number of points (see HISTOGRAM_BYTES_PER_POINT)
+    static int weigh(ResultKey key, List<?> value) {
+        if (key.kind() != Kind.PERCENTILE) {
+            return Math.max(1, value.size());
+        }
+        long weight = 0;
+        for (Object aggregate : value) {
+            int histogramBytes = ((PercentileAggregate) aggregate).durationNanosHistogram()
+                    .getSerializedSize();
+            weight += 1 + histogramBytes / HISTOGRAM_BYTES_PER_POINT;
+        }
+        return (int) Math.max(1, Math.min(weight, Integer.MAX_VALUE));
+    }
+
+    private boolean isLiveEdge(long bucketTo, long intervalMillis) {
+        return bucketTo + intervalMillis + SETTLE_MILLIS > clock.currentTimeMillis();
+    }
+
+    enum Kind {
+        OVERVIEW, PERCENTILE, THROUGHPUT
+    }
+
+    interface Reader<T> {
+        List<T> read(AggregateQuery query) throws Exception;
+    }
+
+    @Value.Immutable
+    interface ResultKey {
+        Kind kind();
+        String agentRollupId();
+        int rollupLevel();
+        String transactionType();
+        @Nullable
+        String transactionName();
+        long bucketTo();
+        long version();
+    }
+
+    @Value.Immutable
+    @Serial.Structural
+    @Styles.AllParameters
+    interface VersionKey extends Serializable {
+        String agentRollupId();
+        int rollupLevel();
+        String transactionType();
+    }
+}
@@ -58,6 +58,7 @@ public class CentralRepoModule {
     private final TransactionTypeDao transactionTypeDao;
     private final TraceAttributeNameDao traceAttributeNameDao;
     private final FullQueryTextDao fullQueryTextDao;
+    private final AggregateDaoImpl aggregateDaoImpl;
     private final AggregateDao aggregateDao;
     private final TraceDao traceDao;
     private final GaugeValueDao gaugeValueDao;
@@ -136,8 +137,8 @@ public class CentralRepoModule {
             v09AggregateLastExpirationTime = checkNotNull(row.getTimestamp(i++)).getTime();
         }
         fullQueryTextDao = new FullQueryTextDao(session, configRepository, asyncExecutor);
-        AggregateDaoImpl aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao,
-                transactionTypeDao, fullQueryTextDao, configRepository, asyncExecutor, clock);
+        aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao,
+                fullQueryTextDao, configRepository, clusterManager, asyncExecutor, clock);
         GaugeValueDaoImpl gaugeValueDaoImpl = new GaugeValueDaoImpl(session, configRepository,
                 clusterManager, asyncExecutor, clock);
         SyntheticResultDaoImpl syntheticResultDaoImpl = new SyntheticResultDaoImpl(session,
@@ -239,6 +240,7 @@ public class CentralRepoModule {
     }
 
     public void close() throws Exception {
+        aggregateDaoImpl.close();
         fullQueryTextDao.close();
     }
 
@@ -45,6 +45,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMap;
@@ -61,6 +62,8 @@ import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.central.repo.TraceDaoImpl.PointIndexKey;
+import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
 import org.glowroot.common.ConfigDefaults;
@@ -88,6 +91,7 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.OldAlertCon
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.SyntheticMonitorConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.UiDefaultsConfig;
 import org.glowroot.wire.api.model.Proto.OptionalInt32;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -106,7 +110,7 @@ public class SchemaUpgrade {
 
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    private static final int CURR_SCHEMA_VERSION = 85;
+    private static final int CURR_SCHEMA_VERSION = 88;
 
     private final Session session;
     private final Clock clock;
@@ -513,6 +517,18 @@ public class SchemaUpgrade {
             populateAgentDisplayTable();
             updateSchemaVersion(85);
         }
+        if (initialSchemaVersion < 86) {
+            populateTracePointIndexTables();
+            updateSchemaVersion(86);
+        }
+        if (initialSchemaVersion < 87) {
+            addAggregateHistogramSummaryColumn();
+            updateSchemaVersion(87);
+        }
+        if (initialSchemaVersion < 88) {
+            addTraceBlobDictionaryIdColumn();
+            updateSchemaVersion(88);
+        }
 
         // when adding new schema upgrade, make sure to update CURR_SCHEMA_VERSION above
         startupLogger.info("upgraded glowroot central schema from version {} to version {}",
@@ -1083,6 +1099,24 @@ public class SchemaUpgrade {
         addColumnIfNotExists("aggregate_tn_throughput_rollup_3", "error_count", "bigint");
     }
 
+    private void addAggregateHistogramSummaryColumn() throws Exception {
+        // rollup level 0 is included even though summaries are only stored for rollup levels
+        // above 0, since all levels share the same column definitions
+        for (int i = 0; i < 4; i++) {
+            addColumnIfNotExists("aggregate_tt_histogram_rollup_" + i, "duration_nanos_summary",
+                    "blob");
+            addColumnIfNotExists("aggregate_tn_histogram_rollup_" + i, "duration_nanos_summary",
+                    "blob");
+        }
+    }
+
+    private void addTraceBlobDictionaryIdColumn() throws Exception {
+        addColumnIfNotExists("trace_header_v2", "dictionary_id", "int");
+        addColumnIfNotExists("trace_entry_v2", "dictionary_id", "int");
+        addColumnIfNotExists("trace_main_thread_profile_v2", "dictionary_id", "int");
+        addColumnIfNotExists("trace_aux_thread_profile_v2", "dictionary_id", "int");
+    }
+
     private void updateRolePermissionName() throws Exception {
         PreparedStatement insertPS =
                 session.prepare("insert into role (name, permissions) values (?, ?)");
@@ -2753,6 +2787,115 @@ public class SchemaUpgrade {
         MoreFutures.waitForAll(futures);
     }
 
+    private void populateTracePointIndexTables() throws Exception {
+        logger.info("populating trace point index tables - this could take several minutes on"
+                + " large data sets...");
+        CentralStorageConfig storageConfig = getCentralStorageConfig(session);
+        int expirationHours = storageConfig.traceExpirationHours();
+        int ttl = storageConfig.getTraceTTL();
+        session.createTableWithTWCS("create table if not exists trace_tt_slow_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, filter_key varchar,"
+                + " filter_value varchar, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, duration_nanos bigint, error boolean, headline varchar, user varchar,"
+                + " attributes blob, primary key ((agent_rollup, transaction_type, filter_key,"
+                + " filter_value), capture_time, agent_id, trace_id))", expirationHours);
+        session.createTableWithTWCS("create table if not exists trace_tn_slow_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " filter_key varchar, filter_value varchar, capture_time timestamp, agent_id"
+                + " varchar, trace_id varchar, duration_nanos bigint, error boolean, headline"
+                + " varchar, user varchar, attributes blob, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name, filter_key, filter_value), capture_time,"
+                + " agent_id, trace_id))", expirationHours);
+        session.createTableWithTWCS("create table if not exists trace_tt_error_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, filter_key varchar,"
+                + " filter_value varchar, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, duration_nanos bigint, error_message varchar, headline varchar, user"
+                + " varchar, attributes blob, primary key ((agent_rollup, transaction_type,"
+                + " filter_key, filter_value), capture_time, agent_id, trace_id))",
+                expirationHours);
+        session.createTableWithTWCS("create table if not exists trace_tn_error_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " filter_key varchar, filter_value varchar, capture_time timestamp, agent_id"
+                + " varchar, trace_id varchar, duration_nanos bigint, error_message varchar,"
+                + " headline varchar, user varchar, attributes blob, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name, filter_key, filter_value), capture_time,"
+                + " agent_id, trace_id))", expirationHours);
+        populateTracePointIndexTable("trace_tt_slow_point", true, "error", ttl);
+        populateTracePointIndexTable("trace_tn_slow_point", false, "error", ttl);
+        populateTracePointIndexTable("trace_tt_error_point", true, "error_message", ttl);
+        populateTracePointIndexTable("trace_tn_error_point", false, "error_message", ttl);
+        logger.info("populating trace point index tables - complete");
+    }
+
+    private void populateTracePointIndexTable(String pointTableName, boolean overall,
+            String errorColumnName, int ttl) throws Exception {
+        if (!tableExists(pointTableName)) {
+            // unlikely, but possible if upgrading from very old schema
+            return;
+        }
+        String transactionNameColumn = overall ? "" : " transaction_name,";
+        String transactionNameBindMarker = overall ? "" : " ?,";
+        PreparedStatement insertPS = session.prepare("insert into " + pointTableName
+                + "_index (agent_rollup, transaction_type," + transactionNameColumn
+                + " capture_time, agent_id, trace_id, filter_key, filter_value, duration_nanos, "
+                + errorColumnName + ", headline, user, attributes) values (?, ?,"
+                + transactionNameBindMarker + " ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+        ResultSet results = session.read("select agent_rollup, transaction_type,"
+                + transactionNameColumn + " capture_time, agent_id, trace_id, duration_nanos, "
+                + errorColumnName + ", headline, user, attributes from " + pointTableName);
+        Queue<ListenableFuture<?>> futures = new ArrayDeque<>();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        int rowCount = 0;
+        for (Row row : results) {
+            int userIndex = overall ? 8 : 9;
+            int attributesIndex = userIndex + 1;
+            String user = row.getString(userIndex);
+            List<Trace.Attribute> attributes = Messages
+                    .parseDelimitedFrom(row.getBytes(attributesIndex), Trace.Attribute.parser());
+            Set<PointIndexKey> pointIndexKeys =
+                    TraceDaoImpl.getPointIndexKeys(Strings.nullToEmpty(user), attributes);
+            if (pointIndexKeys.isEmpty()) {
+                continue;
+            }
+            int captureTimeIndex = overall ? 2 : 3;
+            Date captureDate = checkNotNull(row.getTimestamp(captureTimeIndex));
+            int adjustedTTL = Common.getAdjustedTTL(ttl, captureDate.getTime(), clock);
+            for (PointIndexKey pointIndexKey : pointIndexKeys) {
+                BoundStatement boundStatement = insertPS.bind();
+                int i = 0;
+                int j = 0;
+                boundStatement.setString(i++, row.getString(j++)); // agent_rollup
+                boundStatement.setString(i++, row.getString(j++)); // transaction_type
+                if (!overall) {
+                    boundStatement.setString(i++, row.getString(j++)); // transaction_name
+                }
+                boundStatement.setTimestamp(i++, row.getTimestamp(j++)); // capture_time
+                boundStatement.setString(i++, row.getString(j++)); // agent_id
+                boundStatement.setString(i++, row.getString(j++)); // trace_id
+                boundStatement.setString(i++, pointIndexKey.filterKey());
+                boundStatement.setString(i++, pointIndexKey.filterValue());
+                boundStatement.setLong(i++, row.getLong(j++)); // duration_nanos
+                if (errorColumnName.equals("error")) {
+                    boundStatement.setBool(i++, row.getBool(j++));
+                } else {
+                    boundStatement.setString(i++, row.getString(j++));
+                }
+                boundStatement.setString(i++, row.getString(j++)); // headline
+                boundStatement.setString(i++, row.getString(j++)); // user
+                boundStatement.setBytes(i++, row.getBytes(j++)); // attributes
+                boundStatement.setInt(i++, adjustedTTL);
+                futures.add(session.writeAsync(boundStatement));
+                waitForSome(futures);
+            }
+            rowCount++;
+            if (stopwatch.elapsed(SECONDS) > 60) {
+                logger.info("processed {} records", rowCount);
+                stopwatch.reset().start();
+            }
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
     private void addColumnIfNotExists(String tableName, String columnName, String cqlType)
             throws Exception {
         if (tableExists(tableName) && !columnExists(tableName, columnName)) {
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.central.util.Session;
+import org.glowroot.common.util.Styles;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// optional compression of trace blobs (trace headers, trace entry detail/location/error and
+// thread profiles) using a deflate preset dictionary that is trained per top-level agent rollup
+//
+// messages from the same application repeat the same sql texts, urls, class names, etc, but each
+// blob on its own is too small for generic compression to find much repetition, so the preset
+// dictionary is built from a sample of earlier blobs from the same agent rollup
+//
+// rows that are compressed store the id of the dictionary that was used, and rows without a
+// dictionary id are stored uncompressed (this includes all rows written prior to this, and all
+// rows written while the codec is disabled), so the codec can be enabled and disabled at any time
+class TraceBlobCodec {
+
+    private static final Logger logger = LoggerFactory.getLogger(TraceBlobCodec.class);
+
+    private static final boolean ENABLED =
+            Boolean.getBoolean("glowroot.internal.traceBlobDictionaryCompression");
+
+    // deflate can only reference back 32kb, so larger dictionaries are not useful
+    private static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    // smaller dictionaries are not worth the extra dictionary lookup (and storage) per blob
+    private static final int MIN_DICTIONARY_SIZE = 1024;
+
+    // amount of sample blobs to collect (per agent rollup) before training a dictionary
+    private static final int TRAINING_SAMPLE_SIZE = 256 * 1024;
+
+    private final Session session;
+    private final boolean enabled;
+
+    private final PreparedStatement insertPS;
+    private final PreparedStatement readPS;
+    private final PreparedStatement readAllPS;
+
+    // dictionaries (and dictionary training) for writing, by top-level agent rollup
+    private final ConcurrentMap<String, WriteState> writeStates = Maps.newConcurrentMap();
+
+    private final LoadingCache<DictionaryKey, byte[]> readDictionaries;
+
+    TraceBlobCodec(Session session) throws Exception {
+        this(session, ENABLED);
+    }
+
+    TraceBlobCodec(Session session, boolean enabled) throws Exception {
+        this.session = session;
+        this.enabled = enabled;
+
+        // dictionaries are small and few (one per top-level agent rollup, plus one more each time
+        // a new central node trains one before seeing a dictionary trained by another node), and
+        // are never expired since they are needed to read any trace stored with them
+        session.createTableWithLCS("create table if not exists trace_blob_dictionary"
+                + " (agent_rollup varchar, dictionary_id int, dictionary blob, primary key"
+                + " (agent_rollup, dictionary_id))");
+
+        insertPS = session.prepare("insert into trace_blob_dictionary (agent_rollup,"
+                + " dictionary_id, dictionary) values (?, ?, ?)");
+        readPS = session.prepare("select dictionary from trace_blob_dictionary where"
+                + " agent_rollup = ? and dictionary_id = ?");
+        readAllPS = session.prepare("select dictionary_id, dictionary from trace_blob_dictionary"
+                + " where agent_rollup = ?");
+
+        readDictionaries = CacheBuilder.newBuilder()
+                .maximumSize(1000)
+                .build(new CacheLoader<DictionaryKey, byte[]>() {
+                    @Override
+                    public byte[] load(DictionaryKey key) throws Exception {
+                        return readDictionary(key);
+                    }
+                });
+    }
+
+    // a new encoder should be used for each trace
+    Encoder newEncoder(String agentId) throws Exception {
+        if (!enabled) {
+            return new Encoder(agentId, null, false);
+        }
+        return new Encoder(agentId, getWriteState(getDictionaryAgentRollupId(agentId)).dictionary,
+                true);
+    }
+
+    private void addTrainingSamples(String agentId, List<byte[]> samples) throws Exception {
+        String agentRollupId = getDictionaryAgentRollupId(agentId);
+        WriteState writeState = getWriteState(agentRollupId);
+        List<byte[]> trainingSamples;
+        synchronized (writeState) {
+            if (writeState.dictionary != null) {
+                return;
+            }
+            for (byte[] sample : samples) {
+                // samples that cannot fit in the dictionary are not useful for training
+                if (sample.length <= MAX_DICTIONARY_SIZE) {
+                    writeState.samples.add(sample);
+                    writeState.sampleSize += sample.length;
+                }
+            }
+            if (writeState.sampleSize < TRAINING_SAMPLE_SIZE) {
+                return;
+            }
+            trainingSamples = writeState.samples;
+            writeState.samples = new ArrayList<>();
+            writeState.sampleSize = 0;
+        }
+        byte[] dictionaryBytes = train(trainingSamples);
+        if (dictionaryBytes.length < MIN_DICTIONARY_SIZE) {
+            // blobs continue to be stored without a dictionary, and training is tried again once
+            // enough new samples have been collected
+            logger.debug("trained dictionary is too small: {} bytes", dictionaryBytes.length);
+            return;
+        }
+        Dictionary dictionary = ImmutableDictionary.of(getDictionaryId(dictionaryBytes),
+                dictionaryBytes);
+        // the dictionary must be stored before any rows reference it
+        BoundStatement boundStatement = insertPS.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setInt(i++, dictionary.id());
+        boundStatement.setBytes(i++, ByteBuffer.wrap(dictionaryBytes));
+        session.write(boundStatement);
+        readDictionaries.put(ImmutableDictionaryKey.of(agentRollupId, dictionary.id()),
+                dictionaryBytes);
+        synchronized (writeState) {
+            writeState.dictionary = dictionary;
+            writeState.samples.clear();
+            writeState.sampleSize = 0;
+        }
+    }
+
+    ByteBuffer decode(String agentId, int dictionaryId, ByteBuffer bytes) throws Exception {
+        byte[] dictionary = readDictionaries.get(
+                ImmutableDictionaryKey.of(getDictionaryAgentRollupId(agentId), dictionaryId));
+        return ByteBuffer.wrap(decompress(toByteArray(bytes), dictionary));
+    }
+
+    private WriteState getWriteState(String agentRollupId) throws Exception {
+        WriteState writeState = writeStates.get(agentRollupId);
+        if (writeState == null) {
+            // pick up a dictionary that was trained previously (or by another central node)
+            writeState = new WriteState(readAnyDictionary(agentRollupId));
+            WriteState existing = writeStates.putIfAbsent(agentRollupId, writeState);
+            if (existing != null) {
+                writeState = existing;
+            }
+        }
+        return writeState;
+    }
+
+    private @Nullable Dictionary readAnyDictionary(String agentRollupId) throws Exception {
+        BoundStatement boundStatement = readAllPS.bind();
+        boundStatement.setString(0, agentRollupId);
+        ResultSet results = session.read(boundStatement);
+        Row row = results.one();
+        if (row == null) {
+            return null;
+        }
+        return ImmutableDictionary.of(row.getInt(0), toByteArray(checkNotNull(row.getBytes(1))));
+    }
+
+    private byte[] readDictionary(DictionaryKey key) throws Exception {
+        BoundStatement boundStatement = readPS.bind();
+        boundStatement.setString(0, key.agentRollupId());
+        boundStatement.setInt(1, key.dictionaryId());
+        ResultSet results = session.read(boundStatement);
+        Row row = results.one();
+        if (row == null) {
+            logger.error("trace blob dictionary not found: {} {}", key.agentRollupId(),
+                    key.dictionaryId());
+            throw new IllegalStateException("Trace blob dictionary not found");
+        }
+        return toByteArray(checkNotNull(row.getBytes(0)));
+    }
+
+    // all agents under the same top-level agent rollup share the same dictionary
+    private static String getDictionaryAgentRollupId(String agentId) {
+        return Iterables.getLast(AgentRollupIds.getAgentRollupIds(agentId));
+    }
+
+    // the dictionary id is derived from the dictionary contents so that the same dictionary gets
+    // the same id regardless of which central node trained it
+    @SuppressWarnings("deprecation")
+    private static int getDictionaryId(byte[] dictionary) {
+        return Hashing.sha1().hashBytes(dictionary).asInt();
+    }
+
+    // distinct samples are ordered from least frequent to most frequent, and the most frequent
+    // samples are kept, since deflate encodes matches against the end of the dictionary (closest
+    // to the data) more compactly
+    //
+    // samples that do not fit in the remaining space are skipped, so that a single large sample
+    // does not prevent less frequent (smaller) samples from being included
+    static byte[] train(List<byte[]> samples) {
+        Map<ByteBuffer, Integer> counts = new HashMap<>();
+        for (byte[] sample : samples) {
+            counts.merge(ByteBuffer.wrap(sample), 1, Integer::sum);
+        }
+        List<Map.Entry<ByteBuffer, Integer>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        // most frequent first
+        Deque<ByteBuffer> selected = new ArrayDeque<>();
+        int size = 0;
+        for (int i = entries.size() - 1; i >= 0 && size < MAX_DICTIONARY_SIZE; i--) {
+            ByteBuffer sample = entries.get(i).getKey();
+            if (size + sample.remaining() <= MAX_DICTIONARY_SIZE) {
+                selected.addFirst(sample);
+                size += sample.remaining();
+            }
+        }
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (ByteBuffer sample : selected) {
+            dictionary.write(sample.array(), sample.arrayOffset() + sample.position(),
+                    sample.remaining());
+        }
+        return dictionary.toByteArray();
+    }
+
+    static byte[] compress(byte[] bytes, byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] decompress(byte[] bytes, byte[] dictionary) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(dictionary);
+            inflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) {
+                    // raw deflate streams can need one extra (dummy) input byte to finish
+                    inflater.setInput(new byte[1]);
+                    n = inflater.inflate(buffer);
+                    if (n == 0 && !inflater.finished()) {
+                        throw new DataFormatException("Truncated trace blob");
+                    }
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] toByteArray(ByteBuffer byteBuffer) {
+        byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    class Encoder {
+
+        private final String agentId;
+        private final @Nullable Dictionary dictionary;
+        private final boolean collectSamples;
+
+        private final List<byte[]> samples = new ArrayList<>();
+
+        private Encoder(String agentId, @Nullable Dictionary dictionary,
+                boolean collectSamples) {
+            this.agentId = agentId;
+            this.dictionary = dictionary;
+            this.collectSamples = collectSamples && dictionary == null;
+        }
+
+        ByteBuffer encode(ByteBuffer bytes) {
+            if (dictionary != null) {
+                return ByteBuffer.wrap(compress(toByteArray(bytes), dictionary.bytes()));
+            }
+            if (collectSamples) {
+                samples.add(toByteArray(bytes));
+            }
+            return bytes;
+        }
+
+        // null dictionary id means the blobs are not compressed
+        void bindDictionaryId(BoundStatement boundStatement, int i) {
+            if (dictionary == null) {
+                boundStatement.setToNull(i);
+            } else {
+                boundStatement.setInt(i, dictionary.id());
+            }
+        }
+
+        // trains a dictionary once enough samples have been collected for the agent rollup
+        void finish() throws Exception {
+            if (!samples.isEmpty()) {
+                addTrainingSamples(agentId, samples);
+            }
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface Dictionary {
+        int id();
+        byte[] bytes();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface DictionaryKey {
+        String agentRollupId();
+        int dictionaryId();
+    }
+
+    private static class WriteState {
+
+        private volatile @Nullable Dictionary dictionary;
+
+        // these are guarded by the WriteState instance
+        private List<byte[]> samples = new ArrayList<>();
+        private int sampleSize;
+
+        private WriteState(@Nullable Dictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -23,6 +23,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
@@ -57,11 +58,13 @@ import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.Queries;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.NotAvailableAware;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.Styles;
 import org.glowroot.common2.repo.ImmutableErrorMessageCount;
 import org.glowroot.common2.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common2.repo.ImmutableErrorMessageResult;
@@ -81,6 +84,13 @@ public class TraceDaoImpl implements TraceDao {
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    private static final String USER_FILTER_KEY = "user";
+    private static final String ATTRIBUTE_FILTER_KEY_PREFIX = "attribute:";
+
+    // values longer than this (after upper casing) are not indexed, and filtering on them falls
+    // back to reading all of the points in the time range
+    private static final int MAX_INDEXED_VALUE_LENGTH = 512;
+
     private final Session session;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
@@ -88,6 +98,8 @@ public class TraceDaoImpl implements TraceDao {
     private final ConfigRepositoryImpl configRepository;
     private final Clock clock;
 
+    private final TraceBlobCodec traceBlobCodec;
+
     private final PreparedStatement insertOverallSlowCount;
     private final PreparedStatement insertOverallSlowCountPartial;
     private final PreparedStatement insertTransactionSlowCount;
@@ -104,6 +116,11 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement insertOverallErrorPoint;
     private final PreparedStatement insertTransactionErrorPoint;
 
+    private final PreparedStatement insertOverallSlowPointIndex;
+    private final PreparedStatement insertTransactionSlowPointIndex;
+    private final PreparedStatement insertOverallErrorPointIndex;
+    private final PreparedStatement insertTransactionErrorPointIndex;
+
     private final PreparedStatement insertOverallErrorMessage;
     private final PreparedStatement insertTransactionErrorMessage;
 
@@ -130,6 +147,11 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement readOverallErrorPoint;
     private final PreparedStatement readTransactionErrorPoint;
 
+    private final PreparedStatement readOverallSlowPointIndex;
+    private final PreparedStatement readTransactionSlowPointIndex;
+    private final PreparedStatement readOverallErrorPointIndex;
+    private final PreparedStatement readTransactionErrorPointIndex;
+
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
@@ -162,6 +184,8 @@ public class TraceDaoImpl implements TraceDao {
         this.configRepository = configRepository;
         this.clock = clock;
 
+        traceBlobCodec = new TraceBlobCodec(session);
+
         int expirationHours = configRepository.getCentralStorageConfig().traceExpirationHours();
 
         // agent_rollup/capture_time is not necessarily unique
@@ -242,6 +266,42 @@ public class TraceDaoImpl implements TraceDao {
                 + " key ((agent_rollup, transaction_type, transaction_name), capture_time,"
                 + " agent_id, trace_id))", expirationHours);
 
+        // the point index tables are keyed by the trace point filter values that can be matched
+        // exactly (user, and attribute name + value, see getPointIndexKey()), and duplicate the
+        // point columns so that filtered searches only read the matching points
+        //
+        // partial points are not indexed since there are relatively few of them
+        session.createTableWithTWCS("create table if not exists trace_tt_slow_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, filter_key varchar,"
+                + " filter_value varchar, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, duration_nanos bigint, error boolean, headline varchar, user varchar,"
+                + " attributes blob, primary key ((agent_rollup, transaction_type, filter_key,"
+                + " filter_value), capture_time, agent_id, trace_id))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tn_slow_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " filter_key varchar, filter_value varchar, capture_time timestamp, agent_id"
+                + " varchar, trace_id varchar, duration_nanos bigint, error boolean, headline"
+                + " varchar, user varchar, attributes blob, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name, filter_key, filter_value), capture_time,"
+                + " agent_id, trace_id))", expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tt_error_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, filter_key varchar,"
+                + " filter_value varchar, capture_time timestamp, agent_id varchar, trace_id"
+                + " varchar, duration_nanos bigint, error_message varchar, headline varchar, user"
+                + " varchar, attributes blob, primary key ((agent_rollup, transaction_type,"
+                + " filter_key, filter_value), capture_time, agent_id, trace_id))",
+                expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tn_error_point_index"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " filter_key varchar, filter_value varchar, capture_time timestamp, agent_id"
+                + " varchar, trace_id varchar, duration_nanos bigint, error_message varchar,"
+                + " headline varchar, user varchar, attributes blob, primary key ((agent_rollup,"
+                + " transaction_type, transaction_name, filter_key, filter_value), capture_time,"
+                + " agent_id, trace_id))", expirationHours);
+
         session.createTableWithTWCS("create table if not exists trace_tt_error_message"
                 + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
                 + " agent_id varchar, trace_id varchar, error_message varchar, primary key"
@@ -285,16 +345,16 @@ public class TraceDaoImpl implements TraceDao {
         // ===== trace components v2 =====
 
         session.createTableWithTWCS("create table if not exists trace_header_v2 (agent_id varchar,"
-                + " trace_id varchar, header blob, primary key ((agent_id, trace_id)))",
-                expirationHours);
+                + " trace_id varchar, header blob, dictionary_id int, primary key ((agent_id,"
+                + " trace_id)))", expirationHours);
 
         // index_ is used to provide uniqueness and ordering
         session.createTableWithTWCS("create table if not exists trace_entry_v2 (agent_id varchar,"
                 + " trace_id varchar, index_ int, depth int, start_offset_nanos bigint,"
                 + " duration_nanos bigint, active boolean, message varchar, shared_query_text_index"
                 + " int, query_message_prefix varchar, query_message_suffix varchar, detail blob,"
-                + " location_stack_trace blob, error blob, primary key ((agent_id, trace_id),"
-                + " index_))", expirationHours);
+                + " location_stack_trace blob, error blob, dictionary_id int, primary key"
+                + " ((agent_id, trace_id), index_))", expirationHours);
 
         session.createTableWithTWCS("create table if not exists trace_query_v2 (agent_id varchar,"
                 + " trace_id varchar, type varchar, shared_query_text_index int,"
@@ -309,12 +369,12 @@ public class TraceDaoImpl implements TraceDao {
                 + " trace_id), index_))", expirationHours);
 
         session.createTableWithTWCS("create table if not exists trace_main_thread_profile_v2"
-                + " (agent_id varchar, trace_id varchar, profile blob, primary key ((agent_id,"
-                + " trace_id)))", expirationHours);
+                + " (agent_id varchar, trace_id varchar, profile blob, dictionary_id int, primary"
+                + " key ((agent_id, trace_id)))", expirationHours);
 
         session.createTableWithTWCS("create table if not exists trace_aux_thread_profile_v2"
-                + " (agent_id varchar, trace_id varchar, profile blob, primary key ((agent_id,"
-                + " trace_id)))", expirationHours);
+                + " (agent_id varchar, trace_id varchar, profile blob, dictionary_id int, primary"
+                + " key ((agent_id, trace_id)))", expirationHours);
 
         insertOverallSlowCount = session.prepare("insert into trace_tt_slow_count (agent_rollup,"
                 + " transaction_type, capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?)"
@@ -369,6 +429,26 @@ public class TraceDaoImpl implements TraceDao {
                 + " trace_id, duration_nanos, error_message, headline, user, attributes) values (?,"
                 + " ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertOverallSlowPointIndex = session.prepare("insert into trace_tt_slow_point_index"
+                + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id, filter_key,"
+                + " filter_value, duration_nanos, error, headline, user, attributes) values (?, ?,"
+                + " ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionSlowPointIndex = session.prepare("insert into trace_tn_slow_point_index"
+                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+                + " trace_id, filter_key, filter_value, duration_nanos, error, headline, user,"
+                + " attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertOverallErrorPointIndex = session.prepare("insert into trace_tt_error_point_index"
+                + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id, filter_key,"
+                + " filter_value, duration_nanos, error_message, headline, user, attributes) values"
+                + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        insertTransactionErrorPointIndex = session.prepare("insert into trace_tn_error_point_index"
+                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+                + " trace_id, filter_key, filter_value, duration_nanos, error_message, headline,"
+                + " user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
         insertOverallErrorMessage = session.prepare("insert into trace_tt_error_message"
                 + " (agent_rollup, transaction_type, capture_time, agent_id, trace_id,"
                 + " error_message) values (?, ?, ?, ?, ?, ?) using ttl ?");
@@ -377,14 +457,14 @@ public class TraceDaoImpl implements TraceDao {
                 + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
                 + " trace_id, error_message) values (?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
-        insertHeaderV2 = session.prepare("insert into trace_header_v2 (agent_id, trace_id, header)"
-                + " values (?, ?, ?) using ttl ?");
+        insertHeaderV2 = session.prepare("insert into trace_header_v2 (agent_id, trace_id, header,"
+                + " dictionary_id) values (?, ?, ?, ?) using ttl ?");
 
         insertEntryV2 = session.prepare("insert into trace_entry_v2 (agent_id, trace_id, index_,"
                 + " depth, start_offset_nanos, duration_nanos, active, message,"
                 + " shared_query_text_index, query_message_prefix, query_message_suffix, detail,"
-                + " location_stack_trace, error) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
-                + " using ttl ?");
+                + " location_stack_trace, error, dictionary_id) values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
+                + " ?, ?, ?, ?, ?, ?) using ttl ?");
 
         insertQueryV2 = session.prepare("insert into trace_query_v2 (agent_id, trace_id, type,"
                 + " shared_query_text_index, total_duration_nanos, execution_count, total_rows,"
@@ -395,10 +475,10 @@ public class TraceDaoImpl implements TraceDao {
                 + " full_text_sha1) values (?, ?, ?, ?, ?, ?) using ttl ?");
 
         insertMainThreadProfileV2 = session.prepare("insert into trace_main_thread_profile_v2"
-                + " (agent_id, trace_id, profile) values (?, ?, ?) using ttl ?");
+                + " (agent_id, trace_id, profile, dictionary_id) values (?, ?, ?, ?) using ttl ?");
 
         insertAuxThreadProfileV2 = session.prepare("insert into trace_aux_thread_profile_v2"
-                + " (agent_id, trace_id, profile) values (?, ?, ?) using ttl ?");
+                + " (agent_id, trace_id, profile, dictionary_id) values (?, ?, ?, ?) using ttl ?");
 
         readOverallSlowCount = session.prepare("select count(*) from trace_tt_slow_count where"
                 + " agent_rollup = ? and transaction_type = ? and capture_time > ? and capture_time"
@@ -454,6 +534,30 @@ public class TraceDaoImpl implements TraceDao {
                 + " trace_tn_error_point where agent_rollup = ? and transaction_type = ? and"
                 + " transaction_name = ? and capture_time > ? and capture_time <= ?");
 
+        readOverallSlowPointIndex = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, error, headline, user, attributes from"
+                + " trace_tt_slow_point_index where agent_rollup = ? and transaction_type = ? and"
+                + " filter_key = ? and filter_value = ? and capture_time > ? and capture_time"
+                + " <= ?");
+
+        readTransactionSlowPointIndex = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, error, headline, user, attributes from"
+                + " trace_tn_slow_point_index where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and filter_key = ? and filter_value = ? and capture_time"
+                + " > ? and capture_time <= ?");
+
+        readOverallErrorPointIndex = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, error_message, headline, user, attributes from"
+                + " trace_tt_error_point_index where agent_rollup = ? and transaction_type = ? and"
+                + " filter_key = ? and filter_value = ? and capture_time > ? and capture_time"
+                + " <= ?");
+
+        readTransactionErrorPointIndex = session.prepare("select agent_id, trace_id, capture_time,"
+                + " duration_nanos, error_message, headline, user, attributes from"
+                + " trace_tn_error_point_index where agent_rollup = ? and transaction_type = ? and"
+                + " transaction_name = ? and filter_key = ? and filter_value = ? and capture_time"
+                + " > ? and capture_time <= ?");
+
         readOverallErrorMessage = session.prepare("select capture_time, error_message from"
                 + " trace_tt_error_message where agent_rollup = ? and transaction_type = ? and"
                 + " capture_time > ? and capture_time <= ?");
@@ -480,13 +584,13 @@ public class TraceDaoImpl implements TraceDao {
         readAuxThreadProfileV1 = session.prepare("select profile from trace_aux_thread_profile"
                 + " where agent_id = ? and trace_id = ?");
 
-        readHeaderV2 = session
-                .prepare("select header from trace_header_v2 where agent_id = ? and trace_id = ?");
+        readHeaderV2 = session.prepare("select header, dictionary_id from trace_header_v2 where"
+                + " agent_id = ? and trace_id = ?");
 
         readEntriesV2 = session.prepare("select depth, start_offset_nanos, duration_nanos, active,"
                 + " message, shared_query_text_index, query_message_prefix, query_message_suffix,"
-                + " detail, location_stack_trace, error from trace_entry_v2 where agent_id = ? and"
-                + " trace_id = ?");
+                + " detail, location_stack_trace, error, dictionary_id from trace_entry_v2 where"
+                + " agent_id = ? and trace_id = ?");
 
         readQueriesV2 = session.prepare("select type, shared_query_text_index,"
                 + " total_duration_nanos, execution_count, total_rows, active from trace_query_v2"
@@ -496,11 +600,11 @@ public class TraceDaoImpl implements TraceDao {
                 + " full_text_sha1 from trace_shared_query_text_v2 where agent_id = ? and trace_id"
                 + " = ?");
 
-        readMainThreadProfileV2 = session.prepare("select profile from trace_main_thread_profile_v2"
-                + " where agent_id = ? and trace_id = ?");
+        readMainThreadProfileV2 = session.prepare("select profile, dictionary_id from"
+                + " trace_main_thread_profile_v2 where agent_id = ? and trace_id = ?");
 
-        readAuxThreadProfileV2 = session.prepare("select profile from trace_aux_thread_profile_v2"
-                + " where agent_id = ? and trace_id = ?");
+        readAuxThreadProfileV2 = session.prepare("select profile, dictionary_id from"
+                + " trace_aux_thread_profile_v2 where agent_id = ? and trace_id = ?");
 
         deleteOverallSlowCountPartial = session.prepare("delete from trace_tt_slow_count_partial"
                 + " where agent_rollup = ? and transaction_type = ? and capture_time = ? and"
@@ -578,6 +682,8 @@ public class TraceDaoImpl implements TraceDao {
         int adjustedTTL =
                 Common.getAdjustedTTL(configRepository.getCentralStorageConfig().getTraceTTL(),
                         header.getCaptureTime(), clock);
+        Set<PointIndexKey> pointIndexKeys =
+                getPointIndexKeys(header.getUser(), header.getAttributeList());
         for (String agentRollupId : agentRollupIds) {
             if (header.getSlow()) {
                 BoundStatement boundStatement;
@@ -617,6 +723,20 @@ public class TraceDaoImpl implements TraceDao {
                         false);
                 futures.add(session.writeAsync(boundStatement));
 
+                if (!header.getPartial()) {
+                    for (PointIndexKey pointIndexKey : pointIndexKeys) {
+                        boundStatement = insertOverallSlowPointIndex.bind();
+                        bindSlowPointIndex(boundStatement, agentRollupId, agentId, traceId, header,
+                                pointIndexKey, adjustedTTL, true);
+                        futures.add(session.writeAsync(boundStatement));
+
+                        boundStatement = insertTransactionSlowPointIndex.bind();
+                        bindSlowPointIndex(boundStatement, agentRollupId, agentId, traceId, header,
+                                pointIndexKey, adjustedTTL, false);
+                        futures.add(session.writeAsync(boundStatement));
+                    }
+                }
+
                 if (priorHeader != null) {
                     boundStatement = deleteOverallSlowPointPartial.bind();
                     bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
@@ -667,6 +787,18 @@ public class TraceDaoImpl implements TraceDao {
                 bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
                         false);
                 futures.add(session.writeAsync(boundStatement));
+
+                for (PointIndexKey pointIndexKey : pointIndexKeys) {
+                    boundStatement = insertOverallErrorPointIndex.bind();
+                    bindErrorPointIndex(boundStatement, agentRollupId, agentId, traceId, header,
+                            pointIndexKey, adjustedTTL, true);
+                    futures.add(session.writeAsync(boundStatement));
+
+                    boundStatement = insertTransactionErrorPointIndex.bind();
+                    bindErrorPointIndex(boundStatement, agentRollupId, agentId, traceId, header,
+                            pointIndexKey, adjustedTTL, false);
+                    futures.add(session.writeAsync(boundStatement));
+                }
             }
         }
         for (String agentRollupIdForMeta : agentRollupIdsForMeta) {
@@ -676,11 +808,14 @@ public class TraceDaoImpl implements TraceDao {
             }
         }
 
+        TraceBlobCodec.Encoder encoder = traceBlobCodec.newEncoder(agentId);
+
         BoundStatement boundStatement = insertHeaderV2.bind();
         int i = 0;
         boundStatement.setString(i++, agentId);
         boundStatement.setString(i++, traceId);
-        boundStatement.setBytes(i++, ByteBuffer.wrap(header.toByteArray()));
+        boundStatement.setBytes(i++, encoder.encode(ByteBuffer.wrap(header.toByteArray())));
+        encoder.bindDictionaryId(boundStatement, i++);
         boundStatement.setInt(i++, adjustedTTL);
         futures.add(session.writeAsync(boundStatement));
 
@@ -713,19 +848,21 @@ public class TraceDaoImpl implements TraceDao {
             if (detailEntries.isEmpty()) {
                 boundStatement.setToNull(i++);
             } else {
-                boundStatement.setBytes(i++, Messages.toByteBuffer(detailEntries));
+                boundStatement.setBytes(i++, encoder.encode(Messages.toByteBuffer(detailEntries)));
             }
             List<StackTraceElement> location = entry.getLocationStackTraceElementList();
             if (location.isEmpty()) {
                 boundStatement.setToNull(i++);
             } else {
-                boundStatement.setBytes(i++, Messages.toByteBuffer(location));
+                boundStatement.setBytes(i++, encoder.encode(Messages.toByteBuffer(location)));
             }
             if (entry.hasError()) {
-                boundStatement.setBytes(i++, ByteBuffer.wrap(entry.getError().toByteArray()));
+                boundStatement.setBytes(i++,
+                        encoder.encode(ByteBuffer.wrap(entry.getError().toByteArray())));
             } else {
                 boundStatement.setToNull(i++);
             }
+            encoder.bindDictionaryId(boundStatement, i++);
             boundStatement.setInt(i++, adjustedTTL);
             futures.add(session.writeAsync(boundStatement));
         }
@@ -773,19 +910,20 @@ public class TraceDaoImpl implements TraceDao {
         if (trace.hasMainThreadProfile()) {
             boundStatement = insertMainThreadProfileV2.bind();
             bindThreadProfile(boundStatement, agentId, traceId, trace.getMainThreadProfile(),
-                    adjustedTTL);
+                    encoder, adjustedTTL);
             futures.add(session.writeAsync(boundStatement));
         }
 
         if (trace.hasAuxThreadProfile()) {
             boundStatement = insertAuxThreadProfileV2.bind();
             bindThreadProfile(boundStatement, agentId, traceId, trace.getAuxThreadProfile(),
-                    adjustedTTL);
+                    encoder, adjustedTTL);
             futures.add(session.writeAsync(boundStatement));
         }
         futures.addAll(
                 transactionTypeDao.store(agentRollupIdsForMeta, header.getTransactionType()));
         MoreFutures.waitForAll(futures);
+        encoder.finish();
     }
 
     @Override
@@ -815,15 +953,24 @@ public class TraceDaoImpl implements TraceDao {
         BoundStatement boundStatement;
         BoundStatement boundStatementPartial;
         String transactionName = query.transactionName();
+        PointIndexKey pointIndexKey = getPointIndexKey(filter);
         if (transactionName == null) {
-            boundStatement = readOverallSlowPoint.bind();
+            if (pointIndexKey == null) {
+                boundStatement = readOverallSlowPoint.bind();
+            } else {
+                boundStatement = readOverallSlowPointIndex.bind();
+            }
             boundStatementPartial = readOverallSlowPointPartial.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
+            bindTraceQuery(boundStatement, agentRollupId, query, pointIndexKey, true);
             bindTraceQuery(boundStatementPartial, agentRollupId, query, true);
         } else {
-            boundStatement = readTransactionSlowPoint.bind();
+            if (pointIndexKey == null) {
+                boundStatement = readTransactionSlowPoint.bind();
+            } else {
+                boundStatement = readTransactionSlowPointIndex.bind();
+            }
             boundStatementPartial = readTransactionSlowPointPartial.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
+            bindTraceQuery(boundStatement, agentRollupId, query, pointIndexKey, false);
             bindTraceQuery(boundStatementPartial, agentRollupId, query, false);
         }
         Future<ResultSet> future = session.readAsync(boundStatement);
@@ -853,12 +1000,21 @@ public class TraceDaoImpl implements TraceDao {
             TracePointFilter filter, int limit) throws Exception {
         BoundStatement boundStatement;
         String transactionName = query.transactionName();
+        PointIndexKey pointIndexKey = getPointIndexKey(filter);
         if (transactionName == null) {
-            boundStatement = readOverallErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
+            if (pointIndexKey == null) {
+                boundStatement = readOverallErrorPoint.bind();
+            } else {
+                boundStatement = readOverallErrorPointIndex.bind();
+            }
+            bindTraceQuery(boundStatement, agentRollupId, query, pointIndexKey, true);
         } else {
-            boundStatement = readTransactionErrorPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
+            if (pointIndexKey == null) {
+                boundStatement = readTransactionErrorPoint.bind();
+            } else {
+                boundStatement = readTransactionErrorPointIndex.bind();
+            }
+            bindTraceQuery(boundStatement, agentRollupId, query, pointIndexKey, false);
         }
         ResultSet results = session.read(boundStatement);
         List<TracePoint> errorPoints = processPoints(results, filter, false, true);
@@ -1003,7 +1159,7 @@ public class TraceDaoImpl implements TraceDao {
         if (row == null) {
             return null;
         }
-        return Profile.parseFrom(checkNotNull(row.getBytes(0)));
+        return Profile.parseFrom(decode(agentId, row, checkNotNull(row.getBytes(0))));
     }
 
     @Override
@@ -1025,7 +1181,7 @@ public class TraceDaoImpl implements TraceDao {
         if (row == null) {
             return null;
         }
-        return Profile.parseFrom(checkNotNull(row.getBytes(0)));
+        return Profile.parseFrom(decode(agentId, row, checkNotNull(row.getBytes(0))));
     }
 
     private Trace. /*@Nullable*/ Header readHeader(String agentId, String traceId)
@@ -1047,7 +1203,7 @@ public class TraceDaoImpl implements TraceDao {
         if (row == null) {
             return null;
         }
-        return Trace.Header.parseFrom(checkNotNull(row.getBytes(0)));
+        return Trace.Header.parseFrom(decode(agentId, row, checkNotNull(row.getBytes(0))));
     }
 
     private List<Trace.Entry> readEntriesInternal(String agentId, String traceId) throws Exception {
@@ -1090,23 +1246,33 @@ public class TraceDaoImpl implements TraceDao {
             }
             ByteBuffer detailBytes = row.getBytes(i++);
             if (detailBytes != null) {
-                entry.addAllDetailEntry(
-                        Messages.parseDelimitedFrom(detailBytes, Trace.DetailEntry.parser()));
+                entry.addAllDetailEntry(Messages.parseDelimitedFrom(
+                        decode(agentId, row, detailBytes), Trace.DetailEntry.parser()));
             }
             ByteBuffer locationBytes = row.getBytes(i++);
             if (locationBytes != null) {
-                entry.addAllLocationStackTraceElement(Messages.parseDelimitedFrom(locationBytes,
-                        Proto.StackTraceElement.parser()));
+                entry.addAllLocationStackTraceElement(Messages.parseDelimitedFrom(
+                        decode(agentId, row, locationBytes), Proto.StackTraceElement.parser()));
             }
             ByteBuffer errorBytes = row.getBytes(i++);
             if (errorBytes != null) {
-                entry.setError(Trace.Error.parseFrom(errorBytes));
+                entry.setError(Trace.Error.parseFrom(decode(agentId, row, errorBytes)));
             }
             entries.add(entry.build());
         }
         return entries;
     }
 
+    // dictionary_id is only selected from the v2 tables, and is null for blobs that were stored
+    // uncompressed
+    private ByteBuffer decode(String agentId, Row row, ByteBuffer bytes) throws Exception {
+        if (!row.getColumnDefinitions().contains("dictionary_id")
+                || row.isNull("dictionary_id")) {
+            return bytes;
+        }
+        return traceBlobCodec.decode(agentId, row.getInt("dictionary_id"), bytes);
+    }
+
     private List<Aggregate.Query> readQueriesInternal(String agentId, String traceId)
             throws Exception {
         BoundStatement boundStatement = readQueriesV2.bind();
@@ -1183,6 +1349,10 @@ public class TraceDaoImpl implements TraceDao {
         session.updateSchemaWithRetry("truncate table trace_tn_error_count");
         session.updateSchemaWithRetry("truncate table trace_tt_error_point");
         session.updateSchemaWithRetry("truncate table trace_tn_error_point");
+        session.updateSchemaWithRetry("truncate table trace_tt_slow_point_index");
+        session.updateSchemaWithRetry("truncate table trace_tn_slow_point_index");
+        session.updateSchemaWithRetry("truncate table trace_tt_error_point_index");
+        session.updateSchemaWithRetry("truncate table trace_tn_error_point_index");
         session.updateSchemaWithRetry("truncate table trace_tt_error_message");
         session.updateSchemaWithRetry("truncate table trace_tn_error_message");
         session.updateSchemaWithRetry("truncate table trace_header");
@@ -1202,6 +1372,23 @@ public class TraceDaoImpl implements TraceDao {
             String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall)
             throws IOException {
         int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall);
+        i = bindSlowPointColumns(boundStatement, i, header);
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
+    private static void bindSlowPointIndex(BoundStatement boundStatement, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, PointIndexKey pointIndexKey,
+            int adjustedTTL, boolean overall) throws IOException {
+        int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall);
+        boundStatement.setString(i++, pointIndexKey.filterKey());
+        boundStatement.setString(i++, pointIndexKey.filterValue());
+        i = bindSlowPointColumns(boundStatement, i, header);
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
+    private static int bindSlowPointColumns(BoundStatement boundStatement, int startIndex,
+            Trace.Header header) throws IOException {
+        int i = startIndex;
         boundStatement.setLong(i++, header.getDurationNanos());
         boundStatement.setBool(i++, header.hasError());
         boundStatement.setString(i++, header.getHeadline());
@@ -1212,7 +1399,7 @@ public class TraceDaoImpl implements TraceDao {
         } else {
             boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
         }
-        boundStatement.setInt(i++, adjustedTTL);
+        return i;
     }
 
     private static void bindCount(BoundStatement boundStatement, String agentRollupId,
@@ -1232,6 +1419,23 @@ public class TraceDaoImpl implements TraceDao {
             String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall)
             throws IOException {
         int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall);
+        i = bindErrorPointColumns(boundStatement, i, header);
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
+    private static void bindErrorPointIndex(BoundStatement boundStatement, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, PointIndexKey pointIndexKey,
+            int adjustedTTL, boolean overall) throws IOException {
+        int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall);
+        boundStatement.setString(i++, pointIndexKey.filterKey());
+        boundStatement.setString(i++, pointIndexKey.filterValue());
+        i = bindErrorPointColumns(boundStatement, i, header);
+        boundStatement.setInt(i++, adjustedTTL);
+    }
+
+    private static int bindErrorPointColumns(BoundStatement boundStatement, int startIndex,
+            Trace.Header header) throws IOException {
+        int i = startIndex;
         boundStatement.setLong(i++, header.getDurationNanos());
         boundStatement.setString(i++, header.getError().getMessage());
         boundStatement.setString(i++, header.getHeadline());
@@ -1242,7 +1446,7 @@ public class TraceDaoImpl implements TraceDao {
         } else {
             boundStatement.setBytes(i++, Messages.toByteBuffer(attributes));
         }
-        boundStatement.setInt(i++, adjustedTTL);
+        return i;
     }
 
     private static int bind(BoundStatement boundStatement, String agentRollupId, String agentId,
@@ -1260,22 +1464,32 @@ public class TraceDaoImpl implements TraceDao {
     }
 
     private static void bindThreadProfile(BoundStatement boundStatement, String agentId,
-            String traceId, Profile profile, int adjustedTTL) {
+            String traceId, Profile profile, TraceBlobCodec.Encoder encoder, int adjustedTTL) {
         int i = 0;
         boundStatement.setString(i++, agentId);
         boundStatement.setString(i++, traceId);
-        boundStatement.setBytes(i++, ByteBuffer.wrap(profile.toByteArray()));
+        boundStatement.setBytes(i++, encoder.encode(ByteBuffer.wrap(profile.toByteArray())));
+        encoder.bindDictionaryId(boundStatement, i++);
         boundStatement.setInt(i++, adjustedTTL);
     }
 
     private static void bindTraceQuery(BoundStatement boundStatement, String agentRollupId,
             TraceQuery query, boolean overall) {
+        bindTraceQuery(boundStatement, agentRollupId, query, null, overall);
+    }
+
+    private static void bindTraceQuery(BoundStatement boundStatement, String agentRollupId,
+            TraceQuery query, @Nullable PointIndexKey pointIndexKey, boolean overall) {
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, query.transactionType());
         if (!overall) {
             boundStatement.setString(i++, query.transactionName());
         }
+        if (pointIndexKey != null) {
+            boundStatement.setString(i++, pointIndexKey.filterKey());
+            boundStatement.setString(i++, pointIndexKey.filterValue());
+        }
         boundStatement.setTimestamp(i++, new Date(query.from()));
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
@@ -1391,6 +1605,66 @@ public class TraceDaoImpl implements TraceDao {
         return true;
     }
 
+    // only exact (case insensitive) matches can be looked up in the point index, other filters are
+    // still applied to the points that are read (see processPoints())
+    private static @Nullable PointIndexKey getPointIndexKey(TracePointFilter filter) {
+        String user = filter.user();
+        if (filter.userComparator() == StringComparator.EQUALS && !Strings.isNullOrEmpty(user)) {
+            PointIndexKey pointIndexKey = createPointIndexKey(USER_FILTER_KEY, user);
+            if (pointIndexKey != null) {
+                return pointIndexKey;
+            }
+        }
+        String attributeName = filter.attributeName();
+        String attributeValue = filter.attributeValue();
+        if (!Strings.isNullOrEmpty(attributeName)
+                && filter.attributeValueComparator() == StringComparator.EQUALS
+                && !Strings.isNullOrEmpty(attributeValue)) {
+            return createPointIndexKey(getAttributeFilterKey(attributeName), attributeValue);
+        }
+        return null;
+    }
+
+    static Set<PointIndexKey> getPointIndexKeys(String user, List<Trace.Attribute> attributes) {
+        Set<PointIndexKey> pointIndexKeys = new LinkedHashSet<>();
+        if (!user.isEmpty()) {
+            PointIndexKey pointIndexKey = createPointIndexKey(USER_FILTER_KEY, user);
+            if (pointIndexKey != null) {
+                pointIndexKeys.add(pointIndexKey);
+            }
+        }
+        for (Trace.Attribute attribute : attributes) {
+            String filterKey = getAttributeFilterKey(attribute.getName());
+            for (String value : attribute.getValueList()) {
+                PointIndexKey pointIndexKey = createPointIndexKey(filterKey, value);
+                if (pointIndexKey != null) {
+                    pointIndexKeys.add(pointIndexKey);
+                }
+            }
+        }
+        return pointIndexKeys;
+    }
+
+    private static String getAttributeFilterKey(String attributeName) {
+        return ATTRIBUTE_FILTER_KEY_PREFIX + attributeName.toUpperCase(Locale.ENGLISH);
+    }
+
+    private static @Nullable PointIndexKey createPointIndexKey(String filterKey, String value) {
+        // upper case to match StringComparator.EQUALS, which is case insensitive
+        String filterValue = value.toUpperCase(Locale.ENGLISH);
+        if (filterValue.isEmpty() || filterValue.length() > MAX_INDEXED_VALUE_LENGTH) {
+            return null;
+        }
+        return ImmutablePointIndexKey.of(filterKey, filterValue);
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface PointIndexKey {
+        String filterKey();
+        String filterValue();
+    }
+
     @Value.Immutable
     abstract static class TraceKey {
 
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+// concurrency limit that adapts to observed latency (additive increase, multiplicative decrease)
+//
+// the limit grows by one per "limit" samples while the limit is saturated and latency is close to
+// the baseline, shrinks by 10% when smoothed latency exceeds LATENCY_TOLERANCE times the baseline,
+// and is halved when Cassandra reports overload (timeouts, busy pool, etc)
+//
+// the baseline tracks the lower end of observed latency: it follows faster samples quickly and
+// slower samples only very slowly
+//
+// batches (of up to 100 statements) and single statements have very different latency, so they are
+// tracked separately, and each sample is only compared against the baseline of its own kind
+class AdaptiveConcurrencyLimit {
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double SMOOTHING = 0.1;
+    private static final double BASELINE_DOWN_SMOOTHING = 0.1;
+    private static final double BASELINE_UP_SMOOTHING = 0.001;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition permitAvailable = lock.newCondition();
+
+    @GuardedBy("lock")
+    private int limit;
+    @GuardedBy("lock")
+    private int inFlight;
+    @GuardedBy("lock")
+    private int waiting;
+
+    @GuardedBy("lock")
+    private final LatencyTracker singleLatency = new LatencyTracker();
+    @GuardedBy("lock")
+    private final LatencyTracker batchLatency = new LatencyTracker();
+    @GuardedBy("lock")
+    private int samplesSinceLastChange;
+
+    AdaptiveConcurrencyLimit(int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        // start at the max since that is the previous (fixed) behavior
+        limit = this.maxLimit;
+    }
+
+    void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            waiting++;
+            try {
+                while (inFlight >= limit) {
+                    permitAvailable.await();
+                }
+            } finally {
+                waiting--;
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // release without a latency sample, e.g. for schema updates
+    void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            permitAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(long latencyNanos, boolean batch, boolean overloaded) {
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= limit;
+            inFlight--;
+            int priorLimit = limit;
+            samplesSinceLastChange++;
+            if (overloaded) {
+                limit = Math.max(minLimit, limit / 2);
+                samplesSinceLastChange = 0;
+            } else {
+                LatencyTracker latency = batch ? batchLatency : singleLatency;
+                latency.update(latencyNanos);
+                if (samplesSinceLastChange >= limit) {
+                    if (latency.isDegraded()) {
+                        limit = Math.max(minLimit, (int) (limit * 0.9));
+                        samplesSinceLastChange = 0;
+                    } else if (saturated) {
+                        limit = Math.min(maxLimit, limit + 1);
+                        samplesSinceLastChange = 0;
+                    }
+                }
+            }
+            if (limit > priorLimit) {
+                permitAvailable.signalAll();
+            } else {
+                permitAvailable.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getAvailablePermits() {
+        lock.lock();
+        try {
+            return Math.max(0, limit - inFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getQueueLength() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class LatencyTracker {
+
+        private double smoothedLatencyNanos;
+        private double baselineLatencyNanos;
+
+        private void update(long latencyNanos) {
+            if (baselineLatencyNanos == 0) {
+                smoothedLatencyNanos = latencyNanos;
+                baselineLatencyNanos = latencyNanos;
+                return;
+            }
+            smoothedLatencyNanos += SMOOTHING * (latencyNanos - smoothedLatencyNanos);
+            if (latencyNanos < baselineLatencyNanos) {
+                baselineLatencyNanos +=
+                        BASELINE_DOWN_SMOOTHING * (latencyNanos - baselineLatencyNanos);
+            } else {
+                baselineLatencyNanos +=
+                        BASELINE_UP_SMOOTHING * (latencyNanos - baselineLatencyNanos);
+            }
+        }
+
+        private boolean isDegraded() {
+            return smoothedLatencyNanos > baselineLatencyNanos * LATENCY_TOLERANCE;
+        }
+    }
+}
@@ -25,6 +25,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ColumnDefinitions;
 import com.datastax.driver.core.ColumnMetadata;
@@ -59,6 +60,15 @@ public class CassandraWriteMetrics {
 
     private final Map<String, WriteMetrics> writeMetrics = new ConcurrentHashMap<>();
 
+    // write pipeline stage metrics: statements are grouped into requests (batches), requests wait
+    // for the adaptive concurrency limit, and then are executed by Cassandra
+    private final AtomicLong statementsSubmitted = new AtomicLong();
+    private final AtomicLong requestsSubmitted = new AtomicLong();
+    private final AtomicLong totalThrottleWaitNanos = new AtomicLong();
+    private final AtomicLong requestsCompleted = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong requestsOverloaded = new AtomicLong();
+
     private final ThreadLocal</*@Nullable*/ String> currTransactionType = new ThreadLocal<>();
     private final ThreadLocal</*@Nullable*/ String> currTransactionName = new ThreadLocal<>();
 
@@ -140,14 +150,65 @@ public class CassandraWriteMetrics {
         return getCassandraDataWritten(perTableMetrics.nestedWriteMetricsMap, limit);
     }
 
+    long getStatementsSubmitted() {
+        return statementsSubmitted.get();
+    }
+
+    long getRequestsSubmitted() {
+        return requestsSubmitted.get();
+    }
+
+    long getTotalThrottleWaitNanos() {
+        return totalThrottleWaitNanos.get();
+    }
+
+    long getRequestsCompleted() {
+        return requestsCompleted.get();
+    }
+
+    long getTotalLatencyNanos() {
+        return totalLatencyNanos.get();
+    }
+
+    long getRequestsOverloaded() {
+        return requestsOverloaded.get();
+    }
+
     void recordMetrics(Statement statement) {
         try {
-            recordMetricsInternal(statement);
+            if (statement instanceof BatchStatement) {
+                for (Statement childStatement : ((BatchStatement) statement).getStatements()) {
+                    recordMetricsInternal(childStatement);
+                }
+            } else {
+                recordMetricsInternal(statement);
+            }
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
     }
 
+    void recordRequest(Statement statement) {
+        if (statement instanceof BatchStatement) {
+            statementsSubmitted.addAndGet(((BatchStatement) statement).size());
+        } else {
+            statementsSubmitted.incrementAndGet();
+        }
+        requestsSubmitted.incrementAndGet();
+    }
+
+    void recordThrottleWait(long nanos) {
+        totalThrottleWaitNanos.addAndGet(nanos);
+    }
+
+    void recordWriteLatency(long nanos, boolean overloaded) {
+        requestsCompleted.incrementAndGet();
+        totalLatencyNanos.addAndGet(nanos);
+        if (overloaded) {
+            requestsOverloaded.incrementAndGet();
+        }
+    }
+
     void close() throws InterruptedException {
         // this shouldn't require shutdownNow()
         scheduledExecutor.shutdown();
@@ -319,7 +380,7 @@ public class CassandraWriteMetrics {
         }
     }
 
-    private static int getNumBytes(BoundStatement boundStatement, int i, DataType dataType) {
+    static int getNumBytes(BoundStatement boundStatement, int i, DataType dataType) {
         switch (dataType.getName()) {
             case VARCHAR:
                 String s = boundStatement.getString(i);
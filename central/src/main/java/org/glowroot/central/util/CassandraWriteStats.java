@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+class CassandraWriteStats implements CassandraWriteStatsMXBean {
+
+    private final CassandraWriteMetrics cassandraWriteMetrics;
+    private final AdaptiveConcurrencyLimit writeQueryLimit;
+
+    CassandraWriteStats(CassandraWriteMetrics cassandraWriteMetrics,
+            AdaptiveConcurrencyLimit writeQueryLimit) {
+        this.cassandraWriteMetrics = cassandraWriteMetrics;
+        this.writeQueryLimit = writeQueryLimit;
+    }
+
+    @Override
+    public long getStatementsSubmitted() {
+        return cassandraWriteMetrics.getStatementsSubmitted();
+    }
+
+    @Override
+    public long getRequestsSubmitted() {
+        return cassandraWriteMetrics.getRequestsSubmitted();
+    }
+
+    @Override
+    public double getAverageStatementsPerRequest() {
+        long requestsSubmitted = cassandraWriteMetrics.getRequestsSubmitted();
+        if (requestsSubmitted == 0) {
+            return 0;
+        }
+        return cassandraWriteMetrics.getStatementsSubmitted() / (double) requestsSubmitted;
+    }
+
+    @Override
+    public double getAverageThrottleWaitMillis() {
+        long requestsSubmitted = cassandraWriteMetrics.getRequestsSubmitted();
+        if (requestsSubmitted == 0) {
+            return 0;
+        }
+        return cassandraWriteMetrics.getTotalThrottleWaitNanos()
+                / (double) NANOSECONDS.convert(1, MILLISECONDS) / requestsSubmitted;
+    }
+
+    @Override
+    public double getAverageLatencyMillis() {
+        long requestsCompleted = cassandraWriteMetrics.getRequestsCompleted();
+        if (requestsCompleted == 0) {
+            return 0;
+        }
+        return cassandraWriteMetrics.getTotalLatencyNanos()
+                / (double) NANOSECONDS.convert(1, MILLISECONDS) / requestsCompleted;
+    }
+
+    @Override
+    public long getRequestsOverloaded() {
+        return cassandraWriteMetrics.getRequestsOverloaded();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return writeQueryLimit.getLimit();
+    }
+
+    @Override
+    public int getAvailablePermits() {
+        return writeQueryLimit.getAvailablePermits();
+    }
+
+    @Override
+    public int getQueueLength() {
+        return writeQueryLimit.getQueueLength();
+    }
+}
@@ -518,7 +518,7 @@ public abstract class ClusterManager {
             if (value == null) {
                 return Optional.empty();
             }
-            return Optional.of(task.apply(value));
+            return Optional.ofNullable(task.apply(value));
         }
     }
 
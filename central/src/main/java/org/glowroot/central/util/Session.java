@@ -16,7 +16,12 @@
 package org.glowroot.central.util;
 
 import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
@@ -24,18 +29,26 @@ import java.util.concurrent.Semaphore;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
 import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.SimpleStatement;
 import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.exceptions.BusyPoolException;
 import com.datastax.driver.core.exceptions.InvalidConfigurationInQueryException;
 import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
 import com.google.common.base.Function;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
@@ -49,6 +62,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -56,6 +70,10 @@ public class Session {
 
     private static final Logger logger = LoggerFactory.getLogger(Session.class);
 
+    // stay under Cassandra's default batch_size_warn_threshold_in_kb of 5
+    private static final int MAX_BATCH_BYTES = 4 * 1024;
+    private static final int MAX_BATCH_STATEMENTS = 100;
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private static final ThreadLocal<Boolean> inRollupThread = new ThreadLocal<Boolean>() {
         @Override
@@ -70,8 +88,11 @@ public class Session {
     // write queries
     // separate rollup query limit in order to prevent rollup from hogging too many, and also to
     // prevent rollup from not getting enough
+    //
+    // the write query limit adapts (downwards from the fixed max) to observed write latency, so
+    // that when Cassandra slows down, central backs off instead of queueing up ever more requests
     private final Semaphore readQuerySemaphore;
-    private final Semaphore writeQuerySemaphore;
+    private final AdaptiveConcurrencyLimit writeQueryLimit;
     private final Semaphore rollupQuerySemaphore;
 
     private final com.datastax.driver.core.Session wrappedSession;
@@ -90,7 +111,8 @@ public class Session {
         this.writeConsistencyLevel = writeConsistencyLevel;
 
         readQuerySemaphore = new Semaphore(maxConcurrentQueries / 4);
-        writeQuerySemaphore = new Semaphore(maxConcurrentQueries / 2);
+        writeQueryLimit = new AdaptiveConcurrencyLimit(maxConcurrentQueries / 32,
+                maxConcurrentQueries / 2);
         rollupQuerySemaphore = new Semaphore(maxConcurrentQueries / 4);
 
         cassandraWriteMetrics = new CassandraWriteMetrics(wrappedSession, keyspaceName);
@@ -108,8 +130,9 @@ public class Session {
         MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
         platformMBeanServer.registerMBean(new SemaphoreStats(readQuerySemaphore),
                 ObjectName.getInstance("org.glowroot.central:type=ReadQuerySemaphore"));
-        platformMBeanServer.registerMBean(new SemaphoreStats(writeQuerySemaphore),
-                ObjectName.getInstance("org.glowroot.central:type=WriteQuerySemaphore"));
+        platformMBeanServer.registerMBean(
+                new CassandraWriteStats(cassandraWriteMetrics, writeQueryLimit),
+                ObjectName.getInstance("org.glowroot.central:type=CassandraWrites"));
         platformMBeanServer.registerMBean(new SemaphoreStats(rollupQuerySemaphore),
                 ObjectName.getInstance("org.glowroot.central:type=RollupQuerySemaphore"));
     }
@@ -215,16 +238,32 @@ public class Session {
         if (statement.getConsistencyLevel() == null && writeConsistencyLevel != null) {
             statement.setConsistencyLevel(writeConsistencyLevel);
         }
-        return throttleWrite(() -> {
+        return throttleWrite(statement instanceof BatchStatement, () -> {
             // for now, need to record metrics in the same method because CassandraWriteMetrics
             // relies on some thread locals
             cassandraWriteMetrics.recordMetrics(statement);
+            cassandraWriteMetrics.recordRequest(statement);
             return wrappedSession.executeAsync(statement);
         });
     }
 
+    // groups statements by partition into unlogged batches
+    //
+    // single partition unlogged batches are applied as a single mutation on the replicas, and since
+    // the routing key of the batch is the (shared) routing key of its statements, the token aware
+    // load balancing policy sends each batch directly to a replica for its partition
+    public List<ListenableFuture<?>> writeBatchedAsync(List<BoundStatement> statements)
+            throws Exception {
+        List<ListenableFuture<?>> futures = new ArrayList<>();
+        for (Statement statement : groupByPartition(statements)) {
+            futures.add(writeAsync(statement));
+        }
+        return futures;
+    }
+
     private ListenableFuture<ResultSet> updateAsync(Statement statement) throws Exception {
-        return throttleWrite(() -> wrappedSession.executeAsync(statement));
+        return throttleWrite(statement instanceof BatchStatement,
+                () -> wrappedSession.executeAsync(statement));
     }
 
     public Cluster getCluster() {
@@ -266,7 +305,7 @@ public class Session {
         platformMBeanServer.unregisterMBean(
                 ObjectName.getInstance("org.glowroot.central:type=ReadQuerySemaphore"));
         platformMBeanServer.unregisterMBean(
-                ObjectName.getInstance("org.glowroot.central:type=WriteQuerySemaphore"));
+                ObjectName.getInstance("org.glowroot.central:type=CassandraWrites"));
         platformMBeanServer.unregisterMBean(
                 ObjectName.getInstance("org.glowroot.central:type=RollupQuerySemaphore"));
         wrappedSession.close();
@@ -354,11 +393,11 @@ public class Session {
     }
 
     public void updateSchemaWithRetry(String query) throws InterruptedException {
-        writeQuerySemaphore.acquire();
+        writeQueryLimit.acquire();
         try {
             updateSchemaWithRetry(wrappedSession, query);
         } finally {
-            writeQuerySemaphore.release();
+            writeQueryLimit.release();
         }
     }
 
@@ -391,13 +430,121 @@ public class Session {
         }
     }
 
-    private ListenableFuture<ResultSet> throttleWrite(DoUnderThrottle doUnderThrottle)
-            throws Exception {
+    private ListenableFuture<ResultSet> throttleWrite(boolean batch,
+            DoUnderThrottle doUnderThrottle) throws Exception {
         if (inRollupThread.get()) {
             return throttle(doUnderThrottle, rollupQuerySemaphore);
         } else {
-            return throttle(doUnderThrottle, writeQuerySemaphore);
+            return throttle(doUnderThrottle, batch, writeQueryLimit, cassandraWriteMetrics);
+        }
+    }
+
+    private List<Statement> groupByPartition(List<BoundStatement> statements) {
+        Cluster cluster = wrappedSession.getCluster();
+        ProtocolVersion protocolVersion =
+                cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+        CodecRegistry codecRegistry = cluster.getConfiguration().getCodecRegistry();
+        List<Statement> grouped = new ArrayList<>();
+        // prepared query string -> routing key -> statements
+        Map<String, Map<ByteBuffer, List<BoundStatement>>> partitions = new LinkedHashMap<>();
+        for (BoundStatement statement : statements) {
+            ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+            if (routingKey == null) {
+                grouped.add(statement);
+                continue;
+            }
+            partitions
+                    .computeIfAbsent(statement.preparedStatement().getQueryString(),
+                            k -> new LinkedHashMap<>())
+                    .computeIfAbsent(routingKey, k -> new ArrayList<>())
+                    .add(statement);
+        }
+        for (Map<ByteBuffer, List<BoundStatement>> partitionsForQuery : partitions.values()) {
+            for (List<BoundStatement> partitionStatements : partitionsForQuery.values()) {
+                addBatches(partitionStatements, grouped);
+            }
+        }
+        return grouped;
+    }
+
+    private static void addBatches(List<BoundStatement> partitionStatements,
+            List<Statement> grouped) {
+        if (partitionStatements.size() == 1) {
+            grouped.add(partitionStatements.get(0));
+            return;
+        }
+        BatchStatement batch = null;
+        int batchBytes = 0;
+        for (BoundStatement statement : partitionStatements) {
+            int statementBytes = getApproximateNumBytes(statement);
+            if (batch != null && (batch.size() == MAX_BATCH_STATEMENTS
+                    || batchBytes + statementBytes > MAX_BATCH_BYTES)) {
+                grouped.add(batch.size() == 1 ? batch.getStatements().iterator().next() : batch);
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+                batchBytes = 0;
+            }
+            batch.add(statement);
+            batchBytes += statementBytes;
+        }
+        checkNotNull(batch);
+        grouped.add(batch.size() == 1 ? batch.getStatements().iterator().next() : batch);
+    }
+
+    private static int getApproximateNumBytes(BoundStatement statement) {
+        int numBytes = 0;
+        List<ColumnDefinitions.Definition> variables =
+                statement.preparedStatement().getVariables().asList();
+        for (int i = 0; i < variables.size(); i++) {
+            // fixed size columns (timestamps, counts, etc) are approximated as 8 bytes
+            numBytes += Math.max(8,
+                    CassandraWriteMetrics.getNumBytes(statement, i, variables.get(i).getType()));
+        }
+        return numBytes;
+    }
+
+    private static ListenableFuture<ResultSet> throttle(DoUnderThrottle doUnderThrottle,
+            boolean batch, AdaptiveConcurrencyLimit limit,
+            CassandraWriteMetrics cassandraWriteMetrics) throws Exception {
+        long waitStartTick = System.nanoTime();
+        limit.acquire();
+        long startTick = System.nanoTime();
+        cassandraWriteMetrics.recordThrottleWait(startTick - waitStartTick);
+        SettableFuture<ResultSet> outerFuture = SettableFuture.create();
+        ResultSetFuture innerFuture;
+        try {
+            innerFuture = doUnderThrottle.execute();
+        } catch (Throwable t) {
+            limit.release();
+            throw t;
         }
+        Futures.addCallback(innerFuture, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                long latencyNanos = System.nanoTime() - startTick;
+                limit.release(latencyNanos, batch, false);
+                cassandraWriteMetrics.recordWriteLatency(latencyNanos, false);
+                outerFuture.set(result);
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                long latencyNanos = System.nanoTime() - startTick;
+                boolean overloaded = isOverloaded(t);
+                limit.release(latencyNanos, batch, overloaded);
+                cassandraWriteMetrics.recordWriteLatency(latencyNanos, overloaded);
+                outerFuture.setException(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return outerFuture;
+    }
+
+    // NoHostAvailableException is not included since it is also thrown when the hosts are down
+    // (not just busy), in which case shrinking the limit does not help and only slows recovery
+    private static boolean isOverloaded(Throwable t) {
+        return t instanceof OverloadedException || t instanceof WriteTimeoutException
+                || t instanceof OperationTimedOutException || t instanceof BusyPoolException;
     }
 
     private static ListenableFuture<ResultSet> throttle(DoUnderThrottle doUnderThrottle,
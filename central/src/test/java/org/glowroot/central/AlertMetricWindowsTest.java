@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.util.AlertMetricValues.MetricValue;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeValue;
+import org.glowroot.wire.api.model.Proto.OptionalDouble;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class AlertMetricWindowsTest {
+
+    private static final MetricCondition AVERAGE_CONDITION = MetricCondition.newBuilder()
+            .setMetric("transaction:average")
+            .setTransactionType("Web")
+            .setTimePeriodSeconds(300)
+            .build();
+
+    private static final MetricCondition PERCENTILE_CONDITION = MetricCondition.newBuilder()
+            .setMetric("transaction:x-percentile")
+            .setTransactionType("Web")
+            .setTransactionName("/abc")
+            .setPercentile(OptionalDouble.newBuilder().setValue(50))
+            .setTimePeriodSeconds(120)
+            .build();
+
+    private static final MetricCondition GAUGE_CONDITION = MetricCondition.newBuilder()
+            .setMetric("gauge:java.lang:type=Memory:HeapMemoryUsage.used")
+            .setTimePeriodSeconds(60)
+            .build();
+
+    private static final List<AlertConfig> ALERT_CONFIGS = ImmutableList.of(
+            alertConfig(AVERAGE_CONDITION), alertConfig(PERCENTILE_CONDITION),
+            alertConfig(GAUGE_CONDITION));
+
+    private static ClusterManager clusterManager;
+
+    private AlertMetricWindows alertMetricWindows;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        clusterManager = ClusterManager.create();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        clusterManager.close();
+    }
+
+    @Before
+    public void beforeEachTest() {
+        alertMetricWindows = new AlertMetricWindows(clusterManager, mock(Clock.class));
+    }
+
+    @Test
+    public void shouldOnlyAnswerOnceWindowCoversTimePeriod() throws Exception {
+        // given
+        for (int i = 1; i <= 10; i++) {
+            alertMetricWindows.recordAggregates("a", ALERT_CONFIGS, i * 60000L,
+                    aggregates(i, 1000000L * i));
+        }
+        // when
+        MetricValue notCovered =
+                alertMetricWindows.getMetricValue("a", AVERAGE_CONDITION, -60000, 240000);
+        MetricValue covered =
+                alertMetricWindows.getMetricValue("a", AVERAGE_CONDITION, 300000, 600000);
+        // then
+        assertThat(notCovered).isNull();
+        assertThat(covered).isNotNull();
+        // transaction counts 6..10, each transaction took i milliseconds
+        assertThat(covered.transactionCount()).isEqualTo(40);
+        assertThat(covered.value()).isEqualTo((36 + 49 + 64 + 81 + 100) / 40.0);
+    }
+
+    @Test
+    public void shouldAnswerPercentileFromMergedHistograms() throws Exception {
+        // given
+        for (int i = 1; i <= 4; i++) {
+            alertMetricWindows.recordAggregates("a", ALERT_CONFIGS, i * 60000L,
+                    aggregates(1, 1000000L * i));
+        }
+        // when
+        MetricValue metricValue =
+                alertMetricWindows.getMetricValue("a", PERCENTILE_CONDITION, 120000, 240000);
+        // then
+        assertThat(metricValue).isNotNull();
+        assertThat(metricValue.transactionCount()).isEqualTo(2);
+        assertThat(metricValue.value()).isEqualTo(3.0);
+    }
+
+    @Test
+    public void shouldNotAnswerAfterGapOrWithoutRecentData() throws Exception {
+        // given
+        for (int i = 1; i <= 5; i++) {
+            alertMetricWindows.recordAggregates("a", ALERT_CONFIGS, i * 60000L,
+                    aggregates(1, 1000000));
+        }
+        alertMetricWindows.recordAggregates("a", ALERT_CONFIGS, 480000, aggregates(1, 1000000));
+        // when
+        MetricValue afterGap =
+                alertMetricWindows.getMetricValue("a", AVERAGE_CONDITION, 180000, 480000);
+        MetricValue withoutRecentData =
+                alertMetricWindows.getMetricValue("a", AVERAGE_CONDITION, 300000, 600000);
+        // then
+        assertThat(afterGap).isNull();
+        assertThat(withoutRecentData).isNull();
+    }
+
+    @Test
+    public void shouldAnswerGaugeValue() throws Exception {
+        // given
+        List<GaugeValue> gaugeValues = new ArrayList<>();
+        for (int i = 0; i < 24; i++) {
+            gaugeValues.add(GaugeValue.newBuilder()
+                    .setGaugeName("java.lang:type=Memory:HeapMemoryUsage.used")
+                    .setCaptureTime(i * 5000L)
+                    .setValue(i < 12 ? 100 : 200)
+                    .setWeight(1)
+                    .build());
+        }
+        // when
+        alertMetricWindows.recordGaugeValues("a", ALERT_CONFIGS, gaugeValues);
+        // then
+        MetricValue metricValue =
+                alertMetricWindows.getMetricValue("a", GAUGE_CONDITION, 55000, 115000);
+        assertThat(metricValue).isNotNull();
+        assertThat(metricValue.value()).isEqualTo(200.0);
+    }
+
+    @Test
+    public void shouldNotAnswerForAgentRollup() throws Exception {
+        // given
+        for (int i = 1; i <= 10; i++) {
+            alertMetricWindows.recordAggregates("a", ALERT_CONFIGS, i * 60000L,
+                    aggregates(1, 1000000));
+        }
+        // when
+        MetricValue metricValue =
+                alertMetricWindows.getMetricValue("a::", AVERAGE_CONDITION, 300000, 600000);
+        // then
+        assertThat(metricValue).isNull();
+    }
+
+    private static AlertConfig alertConfig(MetricCondition metricCondition) {
+        return AlertConfig.newBuilder()
+                .setCondition(AlertCondition.newBuilder()
+                        .setMetricCondition(metricCondition))
+                .build();
+    }
+
+    private static List<OldAggregatesByType> aggregates(int transactionCount,
+            long durationNanos) {
+        Aggregate.Histogram.Builder histogram = Aggregate.Histogram.newBuilder();
+        for (int i = 0; i < transactionCount; i++) {
+            histogram.addOrderedRawValue(durationNanos);
+        }
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(durationNanos * transactionCount)
+                .setTransactionCount(transactionCount)
+                .setDurationNanosHistogram(histogram)
+                .build();
+        return ImmutableList.of(OldAggregatesByType.newBuilder()
+                .setTransactionType("Web")
+                .setOverallAggregate(aggregate)
+                .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                        .setTransactionName("/abc")
+                        .setAggregate(aggregate))
+                .build());
+    }
+}
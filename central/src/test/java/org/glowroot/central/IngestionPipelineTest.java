@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IngestionPipelineTest {
+
+    private FakeTicker ticker;
+    private IngestionPipeline ingestionPipeline;
+
+    @Before
+    public void beforeEachTest() {
+        ticker = new FakeTicker();
+        ingestionPipeline = new IngestionPipeline(4, 2, 3, ticker);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        ingestionPipeline.close();
+    }
+
+    @Test
+    public void shouldRunTasksForSameAgentInOrder() throws Exception {
+        // given
+        CountDownLatch latch = new CountDownLatch(1);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        // when
+        ingestionPipeline.submit("a", () -> {
+            await(latch);
+            order.add(1);
+            done.countDown();
+        });
+        ingestionPipeline.submit("a", () -> {
+            order.add(2);
+            done.countDown();
+        });
+        ingestionPipeline.submit("b", () -> {
+            order.add(3);
+            done.countDown();
+        });
+        // agent "b" is not blocked behind agent "a"
+        Thread.sleep(100);
+        assertThat(order).containsExactly(3);
+        latch.countDown();
+        // then
+        assertThat(done.await(10, SECONDS)).isTrue();
+        assertThat(order).containsExactly(3, 1, 2);
+    }
+
+    @Test
+    public void shouldRejectWhenAgentQueueIsFull() throws Exception {
+        // given
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        ingestionPipeline.submit("a", () -> {
+            started.countDown();
+            await(latch);
+        });
+        assertThat(started.await(10, SECONDS)).isTrue();
+        // when
+        boolean accepted1 = ingestionPipeline.submit("a", () -> {});
+        boolean accepted2 = ingestionPipeline.submit("a", () -> {});
+        boolean accepted3 = ingestionPipeline.submit("a", () -> {});
+        boolean acceptedOtherAgent = ingestionPipeline.submit("b", () -> {});
+        latch.countDown();
+        // then
+        assertThat(accepted1).isTrue();
+        assertThat(accepted2).isTrue();
+        assertThat(accepted3).isFalse();
+        assertThat(acceptedOtherAgent).isTrue();
+    }
+
+    @Test
+    public void shouldRejectWhenGlobalQueueIsFull() throws Exception {
+        // given
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(3);
+        for (String agentId : new String[] {"a", "b", "c"}) {
+            ingestionPipeline.submit(agentId, () -> {
+                started.countDown();
+                await(latch);
+            });
+        }
+        assertThat(started.await(10, SECONDS)).isTrue();
+        // when
+        boolean acceptedA = ingestionPipeline.submit("a", () -> {});
+        boolean acceptedB = ingestionPipeline.submit("b", () -> {});
+        boolean acceptedC = ingestionPipeline.submit("c", () -> {});
+        boolean acceptedD = ingestionPipeline.submit("d", () -> {});
+        latch.countDown();
+        // then
+        assertThat(acceptedA).isTrue();
+        assertThat(acceptedB).isTrue();
+        assertThat(acceptedC).isTrue();
+        assertThat(acceptedD).isFalse();
+        CountDownLatch done = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
+        while (!ingestionPipeline.submit("d", done::countDown)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(done.await(10, SECONDS)).isTrue();
+    }
+
+    @Test
+    public void shouldSignalBackpressureOnSlowStorage() throws Exception {
+        // given
+        assertThat(ingestionPipeline.getBackpressureDelayMillis()).isEqualTo(0);
+        CountDownLatch done = new CountDownLatch(1);
+        // when
+        ingestionPipeline.submit("a", () -> {
+            ticker.advance(MILLISECONDS.toNanos(5000));
+            done.countDown();
+        });
+        assertThat(done.await(10, SECONDS)).isTrue();
+        // latency is recorded after the task completes
+        Thread.sleep(100);
+        // then
+        assertThat(ingestionPipeline.getBackpressureDelayMillis()).isEqualTo(5000);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private volatile long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        private void advance(long nanos) {
+            this.nanos += nanos;
+        }
+    }
+}
@@ -28,4 +28,14 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldScaleWorkerThreadsWithBacklog() {
+        assertThat(RollupService.getNumWorkerThreads(2, 45)).isEqualTo(2);
+        assertThat(RollupService.getNumWorkerThreads(2, 10)).isEqualTo(1);
+        assertThat(RollupService.getNumWorkerThreads(1, 10)).isEqualTo(1);
+        assertThat(RollupService.getNumWorkerThreads(2, 90)).isEqualTo(3);
+        assertThat(RollupService.getNumWorkerThreads(2, 150)).isEqualTo(4);
+        assertThat(RollupService.getNumWorkerThreads(2, 100000)).isGreaterThanOrEqualTo(4);
+    }
 }
@@ -81,6 +81,7 @@ public class AggregateDaoIT {
     private static AgentConfigDao agentConfigDao;
     private static ActiveAgentDao activeAgentDao;
     private static FullQueryTextDao fullQueryTextDao;
+    private static AggregateDaoImpl aggregateDaoImpl;
     private static AggregateDao aggregateDao;
 
     @BeforeClass
@@ -106,13 +107,16 @@ public class AggregateDaoIT {
                 new RollupLevelService(configRepository, Clock.systemClock());
         activeAgentDao = new ActiveAgentDao(session, agentDisplayDao, agentConfigDao,
                 configRepository, rollupLevelService, Clock.systemClock());
+        aggregateDaoImpl = new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao,
+                fullQueryTextDao, configRepository, clusterManager, asyncExecutor,
+                Clock.systemClock());
         aggregateDao = new AggregateDaoWithV09Support(ImmutableSet.of(), 0, 0, Clock.systemClock(),
-                new AggregateDaoImpl(session, activeAgentDao, transactionTypeDao, fullQueryTextDao,
-                        configRepository, asyncExecutor, Clock.systemClock()));
+                aggregateDaoImpl);
     }
 
     @AfterClass
     public static void tearDown() throws Exception {
+        aggregateDaoImpl.close();
         fullQueryTextDao.close();
         asyncExecutor.shutdown();
         session.close();
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Map;
+import java.util.UUID;
+
+import com.datastax.driver.core.utils.UUIDs;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import org.glowroot.central.repo.AggregatePartialRollups.PartialRollupForType;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.MutableAggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
+import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregatePartialRollupsTest {
+
+    private static final long INTERVAL_MILLIS = 300000;
+
+    @Test
+    public void shouldUseCompletePartialRollup() {
+        // given
+        AggregatePartialRollups partialRollups = new AggregatePartialRollups(clock(240000));
+        UUID uniqueness1 = UUIDs.timeBased();
+        UUID uniqueness2 = UUIDs.timeBased();
+        // when
+        partialRollups.add("a", 300000, INTERVAL_MILLIS, uniqueness1, aggregates(3, 1),
+                ImmutableList.of(), 500, 500);
+        partialRollups.add("a", 300000, INTERVAL_MILLIS, uniqueness2, aggregates(5, 0),
+                ImmutableList.of(), 500, 500);
+        Map<String, PartialRollupForType> partialRollup =
+                partialRollups.remove("a", 300000, ImmutableSet.of(uniqueness1, uniqueness2));
+        // then
+        assertThat(partialRollup).isNotNull();
+        assertThat(partialRollup.keySet()).containsExactly("Web");
+        MutableAggregate overallAggregate = partialRollup.get("Web").getOverallAggregate();
+        assertThat(overallAggregate.getTransactionCount()).isEqualTo(8);
+        assertThat(overallAggregate.getErrorCount()).isEqualTo(1);
+        assertThat(overallAggregate.getTotalDurationNanos()).isEqualTo(8000000.0);
+        MutableAggregate transactionAggregate =
+                partialRollup.get("Web").getTransactionAggregates().get("/abc");
+        assertThat(transactionAggregate.getTransactionCount()).isEqualTo(8);
+        assertThat(transactionAggregate.getDurationNanosHistogram().getValueAtPercentile(50))
+                .isEqualTo(1000000);
+        // and removed
+        assertThat(partialRollups.remove("a", 300000, ImmutableSet.of(uniqueness1, uniqueness2)))
+                .isNull();
+    }
+
+    @Test
+    public void shouldNotUseIncompletePartialRollup() {
+        // given
+        AggregatePartialRollups partialRollups = new AggregatePartialRollups(clock(240000));
+        UUID uniqueness1 = UUIDs.timeBased();
+        // e.g. stored by another central node
+        UUID uniqueness2 = UUIDs.timeBased();
+        partialRollups.add("a", 300000, INTERVAL_MILLIS, uniqueness1, aggregates(3, 1),
+                ImmutableList.of(), 500, 500);
+        // when
+        Map<String, PartialRollupForType> partialRollup =
+                partialRollups.remove("a", 300000, ImmutableSet.of(uniqueness1, uniqueness2));
+        // then
+        assertThat(partialRollup).isNull();
+    }
+
+    @Test
+    public void shouldNotAddLateData() {
+        // given
+        AggregatePartialRollups partialRollups = new AggregatePartialRollups(clock(600000));
+        UUID uniqueness = UUIDs.timeBased();
+        // when
+        partialRollups.add("a", 300000, INTERVAL_MILLIS, uniqueness, aggregates(3, 1),
+                ImmutableList.of(), 500, 500);
+        // then
+        assertThat(partialRollups.remove("a", 300000, ImmutableSet.of(uniqueness))).isNull();
+    }
+
+    @Test
+    public void shouldAbandonWhenOverMemoryBound() {
+        // given
+        AggregatePartialRollups partialRollups = new AggregatePartialRollups(clock(240000), 10);
+        UUID uniqueness = UUIDs.timeBased();
+        // when
+        partialRollups.add("a", 300000, INTERVAL_MILLIS, uniqueness, aggregates(3, 1),
+                ImmutableList.of(), 500, 500);
+        // then
+        assertThat(partialRollups.remove("a", 300000, ImmutableSet.of(uniqueness))).isNull();
+    }
+
+    private static Clock clock(long currentTimeMillis) {
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(currentTimeMillis);
+        return clock;
+    }
+
+    private static ImmutableList<OldAggregatesByType> aggregates(int transactionCount,
+            int errorCount) {
+        Aggregate aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(transactionCount * 1000000.0)
+                .setTransactionCount(transactionCount)
+                .setErrorCount(errorCount)
+                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValue(1000000))
+                .build();
+        return ImmutableList.of(OldAggregatesByType.newBuilder()
+                .setTransactionType("Web")
+                .setOverallAggregate(aggregate)
+                .addTransactionAggregate(OldTransactionAggregate.newBuilder()
+                        .setTransactionName("/abc")
+                        .setAggregate(aggregate))
+                .build());
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.repo.AggregateResultCache.Kind;
+import org.glowroot.central.repo.AggregateResultCache.Reader;
+import org.glowroot.central.repo.AggregateResultCache.ResultKey;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.live.ImmutableAggregateQuery;
+import org.glowroot.common.live.ImmutablePercentileAggregate;
+import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.AggregateQuery;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common2.repo.ImmutableRollupConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateResultCacheTest {
+
+    private static final long INTERVAL_MILLIS = 60000;
+    private static final long BUCKET_MILLIS = INTERVAL_MILLIS * 60;
+
+    private ClusterManager clusterManager;
+    private Clock clock;
+    private AggregateResultCache resultCache;
+    private CountingReader reader;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        ConfigRepositoryImpl configRepository = mock(ConfigRepositoryImpl.class);
+        when(configRepository.getRollupConfigs()).thenReturn(ImmutableList
+                .<RollupConfig>of(ImmutableRollupConfig.of(INTERVAL_MILLIS, 0)));
+        clusterManager = ClusterManager.create();
+        clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(DAYS.toMillis(1));
+        resultCache = new AggregateResultCache(configRepository, clusterManager, clock);
+        reader = new CountingReader();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        resultCache.close();
+        clusterManager.close();
+    }
+
+    @Test
+    public void shouldReadBucketsOnce() throws Exception {
+        // when
+        List<ThroughputAggregate> aggregates1 = read(BUCKET_MILLIS + 1, 3 * BUCKET_MILLIS);
+        List<ThroughputAggregate> aggregates2 =
+                read(BUCKET_MILLIS + INTERVAL_MILLIS, 2 * BUCKET_MILLIS);
+        // then
+        assertThat(aggregates1).hasSize(120);
+        assertThat(aggregates1.get(0).captureTime()).isEqualTo(BUCKET_MILLIS + INTERVAL_MILLIS);
+        assertThat(aggregates2).hasSize(60);
+        assertThat(reader.count).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRereadAfterLateWrite() throws Exception {
+        // given
+        read(BUCKET_MILLIS + 1, 2 * BUCKET_MILLIS);
+        // when
+        resultCache.written("a", 0, ImmutableSet.of("Web"), BUCKET_MILLIS + INTERVAL_MILLIS);
+        read(BUCKET_MILLIS + 1, 2 * BUCKET_MILLIS);
+        // then
+        assertThat(reader.count).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotCacheLiveEdgeAsImmutable() throws Exception {
+        // given
+        long now = DAYS.toMillis(1);
+        read(now - INTERVAL_MILLIS, now);
+        // when
+        // data for the live edge is still being written to
+        when(clock.currentTimeMillis()).thenReturn(DAYS.toMillis(2));
+        read(now - INTERVAL_MILLIS, now);
+        // then
+        assertThat(reader.count).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldWeighPercentilesByHistogramSize() {
+        // given
+        ResultKey key = ImmutableResultKey.builder()
+                .kind(Kind.PERCENTILE)
+                .agentRollupId("a")
+                .rollupLevel(0)
+                .transactionType("Web")
+                .bucketTo(BUCKET_MILLIS)
+                .version(1)
+                .build();
+        Aggregate.Histogram histogram = Aggregate.Histogram.newBuilder()
+                .setEncodedBytes(ByteString.copyFrom(new byte[20000]))
+                .build();
+        List<PercentileAggregate> aggregates = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            aggregates.add(ImmutablePercentileAggregate.builder()
+                    .captureTime(i)
+                    .totalDurationNanos(1)
+                    .transactionCount(1)
+                    .durationNanosHistogram(histogram)
+                    .build());
+        }
+        // when
+        int weight = AggregateResultCache.weigh(key, aggregates);
+        // then
+        assertThat(weight).isEqualTo(60 * (1 + histogram.getSerializedSize() / 200));
+    }
+
+    private List<ThroughputAggregate> read(long from, long to) throws Exception {
+        AggregateQuery query = ImmutableAggregateQuery.builder()
+                .transactionType("Web")
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+        return resultCache.read("a", query, Kind.THROUGHPUT, ThroughputAggregate::captureTime,
+                reader);
+    }
+
+    private static class CountingReader implements Reader<ThroughputAggregate> {
+
+        private int count;
+
+        @Override
+        public List<ThroughputAggregate> read(AggregateQuery query) {
+            count++;
+            List<ThroughputAggregate> aggregates = new ArrayList<>();
+            long captureTime = query.from() + INTERVAL_MILLIS - 1;
+            for (; captureTime <= query.to(); captureTime += INTERVAL_MILLIS) {
+                aggregates.add(ImmutableThroughputAggregate.builder()
+                        .captureTime(captureTime)
+                        .transactionCount(1)
+                        .build());
+            }
+            return aggregates;
+        }
+    }
+}
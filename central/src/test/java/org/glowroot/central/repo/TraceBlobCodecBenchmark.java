@@ -0,0 +1,125 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.glowroot.central.util.Messages;
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// reports the compression ratio and encode/decode cost of TraceBlobCodec over a recorded trace
+// corpus, where each file contains length-delimited Trace messages
+//
+// the first half of the corpus is used to train the dictionary (the same way that central trains
+// on the first traces that it receives), and the second half is measured
+//
+// e.g. run with the test classpath and arguments: /path/to/corpus/*.bin
+class TraceBlobCodecBenchmark {
+
+    private static final int ITERATIONS = 10;
+
+    private TraceBlobCodecBenchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        List<byte[]> blobs = new ArrayList<>();
+        for (String arg : args) {
+            try (InputStream in = new FileInputStream(new File(arg))) {
+                Trace trace;
+                while ((trace = Trace.parseDelimitedFrom(in)) != null) {
+                    addBlobs(trace, blobs);
+                }
+            }
+        }
+        if (blobs.size() < 2) {
+            System.err.println("corpus is empty");
+            return;
+        }
+        List<byte[]> trainingBlobs = blobs.subList(0, blobs.size() / 2);
+        List<byte[]> measuredBlobs = blobs.subList(blobs.size() / 2, blobs.size());
+        byte[] dictionary = TraceBlobCodec.train(trainingBlobs);
+
+        long uncompressedSize = 0;
+        long noDictionarySize = 0;
+        long compressedSize = 0;
+        List<byte[]> compressedBlobs = new ArrayList<>();
+        for (byte[] blob : measuredBlobs) {
+            uncompressedSize += blob.length;
+            noDictionarySize += TraceBlobCodec.compress(blob, new byte[0]).length;
+            byte[] compressed = TraceBlobCodec.compress(blob, dictionary);
+            compressedSize += compressed.length;
+            compressedBlobs.add(compressed);
+        }
+        long encodeNanos = Long.MAX_VALUE;
+        long decodeNanos = Long.MAX_VALUE;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long startTime = System.nanoTime();
+            for (byte[] blob : measuredBlobs) {
+                TraceBlobCodec.compress(blob, dictionary);
+            }
+            encodeNanos = Math.min(encodeNanos, System.nanoTime() - startTime);
+            startTime = System.nanoTime();
+            for (byte[] compressed : compressedBlobs) {
+                TraceBlobCodec.decompress(compressed, dictionary);
+            }
+            decodeNanos = Math.min(decodeNanos, System.nanoTime() - startTime);
+        }
+        int count = measuredBlobs.size();
+        System.out.format("blobs: %d (%d trained on), dictionary size: %d%n", count,
+                trainingBlobs.size(), dictionary.length);
+        System.out.format("ratio: %.2f (%.2f without dictionary)%n",
+                uncompressedSize / (double) compressedSize,
+                uncompressedSize / (double) noDictionarySize);
+        System.out.format("encode: %.1f us/blob, decode: %.1f us/blob%n",
+                encodeNanos / 1000.0 / count, decodeNanos / 1000.0 / count);
+    }
+
+    // same blobs that TraceDaoImpl stores
+    private static void addBlobs(Trace trace, List<byte[]> blobs) throws IOException {
+        blobs.add(trace.getHeader().toByteArray());
+        for (Trace.Entry entry : trace.getEntryList()) {
+            List<Trace.DetailEntry> detailEntries = entry.getDetailEntryList();
+            if (!detailEntries.isEmpty()) {
+                blobs.add(toByteArray(Messages.toByteBuffer(detailEntries)));
+            }
+            List<Proto.StackTraceElement> location = entry.getLocationStackTraceElementList();
+            if (!location.isEmpty()) {
+                blobs.add(toByteArray(Messages.toByteBuffer(location)));
+            }
+            if (entry.hasError()) {
+                blobs.add(entry.getError().toByteArray());
+            }
+        }
+        if (trace.hasMainThreadProfile()) {
+            blobs.add(trace.getMainThreadProfile().toByteArray());
+        }
+        if (trace.hasAuxThreadProfile()) {
+            blobs.add(trace.getAuxThreadProfile().toByteArray());
+        }
+    }
+
+    private static byte[] toByteArray(ByteBuffer byteBuffer) {
+        byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
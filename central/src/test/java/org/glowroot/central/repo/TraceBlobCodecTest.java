@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceBlobCodecTest {
+
+    @Test
+    public void shouldRoundTrip() throws Exception {
+        // given
+        byte[] dictionary = TraceBlobCodec.train(createSamples(100));
+        byte[] bytes = createSample(1000);
+        // when
+        byte[] compressed = TraceBlobCodec.compress(bytes, dictionary);
+        byte[] decompressed = TraceBlobCodec.decompress(compressed, dictionary);
+        // then
+        assertThat(decompressed).isEqualTo(bytes);
+        assertThat(compressed.length).isLessThan(bytes.length / 2);
+    }
+
+    @Test
+    public void shouldRoundTripEmpty() throws Exception {
+        // given
+        byte[] dictionary = TraceBlobCodec.train(createSamples(10));
+        // when
+        byte[] compressed = TraceBlobCodec.compress(new byte[0], dictionary);
+        byte[] decompressed = TraceBlobCodec.decompress(compressed, dictionary);
+        // then
+        assertThat(decompressed).isEmpty();
+    }
+
+    @Test
+    public void shouldCompressBetterWithDictionary() throws Exception {
+        // given
+        byte[] dictionary = TraceBlobCodec.train(createSamples(100));
+        byte[] bytes = createSample(1000);
+        // when
+        byte[] withDictionary = TraceBlobCodec.compress(bytes, dictionary);
+        byte[] withoutDictionary = TraceBlobCodec.compress(bytes, new byte[0]);
+        // then
+        assertThat(withDictionary.length).isLessThan(withoutDictionary.length);
+    }
+
+    @Test
+    public void shouldLimitDictionarySize() {
+        // given
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            samples.add(createSample(i));
+        }
+        // when
+        byte[] dictionary = TraceBlobCodec.train(samples);
+        // then
+        assertThat(dictionary.length).isLessThanOrEqualTo(32 * 1024);
+        assertThat(dictionary.length).isGreaterThan(30 * 1024);
+    }
+
+    @Test
+    public void shouldPlaceMostFrequentSampleLast() {
+        // given
+        List<byte[]> samples = new ArrayList<>();
+        samples.add("rare".getBytes(UTF_8));
+        samples.add("frequent".getBytes(UTF_8));
+        samples.add("frequent".getBytes(UTF_8));
+        // when
+        byte[] dictionary = TraceBlobCodec.train(samples);
+        // then
+        assertThat(new String(dictionary, UTF_8)).isEqualTo("rarefrequent");
+    }
+
+    @Test
+    public void shouldSkipSampleLargerThanDictionary() {
+        // given
+        List<byte[]> samples = new ArrayList<>();
+        byte[] largeSample = new byte[40 * 1024];
+        Arrays.fill(largeSample, (byte) '#');
+        // the large sample is the most frequent
+        samples.add(largeSample);
+        samples.add(largeSample);
+        for (int i = 0; i < 100; i++) {
+            samples.add(createSample(i));
+        }
+        // when
+        byte[] dictionary = TraceBlobCodec.train(samples);
+        // then
+        assertThat(dictionary.length).isGreaterThan(10 * 1024);
+        assertThat(new String(dictionary, UTF_8)).doesNotContain("#");
+        assertThat(new String(dictionary, UTF_8)).contains(new String(createSample(0), UTF_8),
+                new String(createSample(99), UTF_8));
+    }
+
+    private static List<byte[]> createSamples(int count) {
+        List<byte[]> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            samples.add(createSample(i));
+        }
+        return samples;
+    }
+
+    private static byte[] createSample(int i) {
+        return ("select order_id, customer_id, status from orders where customer_id = ? and"
+                + " status = ? /* " + i + " */ at com.example.OrderRepository.findByCustomer"
+                + "(OrderRepository.java:" + i + ")").getBytes(UTF_8);
+    }
+}
@@ -312,4 +312,50 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    @Test
+    public void shouldReadTraceWithUserQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace(partial);
+        traceDao.store(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .userComparator(StringComparator.EQUALS)
+                .user("J")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotReadTraceWithNonMatchingUserQualifier() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace(partial);
+        traceDao.store(AGENT_ID, trace);
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .userComparator(StringComparator.EQUALS)
+                .user("k")
+                .build();
+
+        // when
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 1);
+
+        // then
+        assertThat(queryResult.records()).isEmpty();
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveConcurrencyLimitTest {
+
+    @Test
+    public void shouldHalveOnOverload() throws Exception {
+        // given
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 10);
+        // when
+        limit.acquire();
+        limit.release(MILLISECONDS.toNanos(1), false, true);
+        limit.acquire();
+        limit.release(MILLISECONDS.toNanos(1), false, true);
+        limit.acquire();
+        limit.release(MILLISECONDS.toNanos(1), false, true);
+        // then
+        assertThat(limit.getLimit()).isEqualTo(2);
+        assertThat(limit.getAvailablePermits()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldDecreaseOnHighLatency() throws Exception {
+        // given
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 10);
+        for (int i = 0; i < 10; i++) {
+            limit.acquire();
+            limit.release(MILLISECONDS.toNanos(1), false, false);
+        }
+        // when
+        for (int i = 0; i < 20; i++) {
+            limit.acquire();
+            limit.release(MILLISECONDS.toNanos(10), false, false);
+        }
+        // then
+        assertThat(limit.getLimit()).isLessThan(10);
+    }
+
+    @Test
+    public void shouldNotDecreaseOnSlowerBatches() throws Exception {
+        // given
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 10);
+        for (int i = 0; i < 10; i++) {
+            limit.acquire();
+            limit.release(MILLISECONDS.toNanos(1), false, false);
+        }
+        // when
+        for (int i = 0; i < 20; i++) {
+            limit.acquire();
+            limit.release(MILLISECONDS.toNanos(10), true, false);
+            limit.acquire();
+            limit.release(MILLISECONDS.toNanos(1), false, false);
+        }
+        // then
+        assertThat(limit.getLimit()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldIncreaseWhenSaturated() throws Exception {
+        // given
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 4);
+        limit.acquire();
+        limit.release(MILLISECONDS.toNanos(1), false, true);
+        assertThat(limit.getLimit()).isEqualTo(2);
+        // when
+        for (int i = 0; i < 20; i++) {
+            int currLimit = limit.getLimit();
+            for (int j = 0; j < currLimit; j++) {
+                limit.acquire();
+            }
+            for (int j = 0; j < currLimit; j++) {
+                limit.release(MILLISECONDS.toNanos(1), false, false);
+            }
+        }
+        // then
+        assertThat(limit.getLimit()).isEqualTo(4);
+        assertThat(limit.getQueueLength()).isEqualTo(0);
+    }
+}
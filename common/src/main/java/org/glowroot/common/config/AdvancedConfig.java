@@ -23,6 +23,8 @@ import org.glowroot.common.ConfigDefaults;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.Proto.OptionalInt32;
 
+import static com.google.common.base.Preconditions.checkState;
+
 @Value.Immutable
 public abstract class AdvancedConfig {
 
@@ -70,6 +72,20 @@ public abstract class AdvancedConfig {
         return 50000;
     }
 
+    // percentage of transactions (decided when the transaction starts) that capture trace entries
+    // up to maxTraceEntriesPerTransaction, the remaining transactions only capture timers,
+    // query/service call aggregates, error entries, and their most recent trace entries
+    @Value.Default
+    public int traceEntrySamplingPercentage() {
+        return 100;
+    }
+
+    // used so that slow or error traces of unsampled transactions still have some context
+    @Value.Default
+    public int maxRecentTraceEntriesPerUnsampledTransaction() {
+        return 100;
+    }
+
     @Value.Default
     public int mbeanGaugeNotFoundDelaySeconds() {
         return 60;
@@ -81,6 +97,12 @@ public abstract class AdvancedConfig {
         return false;
     }
 
+    @Value.Check
+    void checkTraceEntrySamplingPercentage() {
+        checkState(traceEntrySamplingPercentage() >= 0 && traceEntrySamplingPercentage() <= 100,
+                "traceEntrySamplingPercentage must be between 0 and 100");
+    }
+
     public AgentConfig.AdvancedConfig toProto() {
         return AgentConfig.AdvancedConfig.newBuilder()
                 .setImmediatePartialStoreThresholdSeconds(
@@ -90,6 +112,9 @@ public abstract class AdvancedConfig {
                 .setMaxServiceCallAggregates(of(maxServiceCallAggregates()))
                 .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                 .setMaxProfileSamplesPerTransaction(of(maxProfileSamplesPerTransaction()))
+                .setTraceEntrySamplingPercentage(of(traceEntrySamplingPercentage()))
+                .setMaxRecentTraceEntriesPerUnsampledTransaction(
+                        of(maxRecentTraceEntriesPerUnsampledTransaction()))
                 .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
                 .setWeavingTimer(weavingTimer())
                 .build();
@@ -118,6 +143,14 @@ public abstract class AdvancedConfig {
             builder.maxProfileSamplesPerTransaction(
                     config.getMaxProfileSamplesPerTransaction().getValue());
         }
+        if (config.hasTraceEntrySamplingPercentage()) {
+            builder.traceEntrySamplingPercentage(
+                    config.getTraceEntrySamplingPercentage().getValue());
+        }
+        if (config.hasMaxRecentTraceEntriesPerUnsampledTransaction()) {
+            builder.maxRecentTraceEntriesPerUnsampledTransaction(
+                    config.getMaxRecentTraceEntriesPerUnsampledTransaction().getValue());
+        }
         if (config.hasMbeanGaugeNotFoundDelaySeconds()) {
             builder.mbeanGaugeNotFoundDelaySeconds(
                     config.getMbeanGaugeNotFoundDelaySeconds().getValue());
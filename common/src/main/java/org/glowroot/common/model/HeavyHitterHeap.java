@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+// indexed min-heap ordered by estimated total duration
+//
+// used by the query collectors once they reach capacity, to find the entry with the smallest
+// estimated total duration, which is evicted (into the limit exceeded bucket) to make room for a
+// new entry (space-saving heavy hitters algorithm)
+//
+// estimated total durations must only ever increase, see increased()
+public class HeavyHitterHeap<T extends HeavyHitterHeap.Entry> {
+
+    private final List<T> entries;
+
+    public HeavyHitterHeap(Collection<T> entries) {
+        this.entries = Lists.newArrayList(entries);
+        for (int i = 0; i < this.entries.size(); i++) {
+            this.entries.get(i).setHeapIndex(i);
+        }
+        for (int i = this.entries.size() / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    public T min() {
+        return entries.get(0);
+    }
+
+    // the new entry's estimated total duration must be at least that of the current min
+    public void replaceMin(T entry) {
+        entries.get(0).setHeapIndex(-1);
+        entries.set(0, entry);
+        entry.setHeapIndex(0);
+        siftDown(0);
+    }
+
+    public void increased(T entry) {
+        int heapIndex = entry.getHeapIndex();
+        if (heapIndex != -1) {
+            siftDown(heapIndex);
+        }
+    }
+
+    private void siftDown(int index) {
+        int size = entries.size();
+        T entry = entries.get(index);
+        double value = entry.getEstimatedTotalDurationNanos();
+        int i = index;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            T childEntry = entries.get(child);
+            if (child + 1 < size) {
+                T rightEntry = entries.get(child + 1);
+                if (rightEntry.getEstimatedTotalDurationNanos() < childEntry
+                        .getEstimatedTotalDurationNanos()) {
+                    child++;
+                    childEntry = rightEntry;
+                }
+            }
+            if (childEntry.getEstimatedTotalDurationNanos() >= value) {
+                break;
+            }
+            entries.set(i, childEntry);
+            childEntry.setHeapIndex(i);
+            i = child;
+        }
+        entries.set(i, entry);
+        entry.setHeapIndex(i);
+    }
+
+    public interface Entry {
+
+        // total duration plus the maximum duration that may have been attributed to the limit
+        // exceeded bucket before this entry was (re-)admitted
+        double getEstimatedTotalDurationNanos();
+
+        int getHeapIndex();
+
+        void setHeapIndex(int heapIndex);
+    }
+}
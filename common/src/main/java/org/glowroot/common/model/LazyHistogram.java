@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,7 +17,9 @@ package org.glowroot.common.model;
 
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -25,6 +27,7 @@ import com.google.protobuf.ByteString;
 import org.HdrHistogram.Histogram;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
@@ -33,11 +36,20 @@ public class LazyHistogram {
     private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
     private static final int MAX_VALUES = 1024;
 
+    // 1% precision
+    private static final int SUMMARY_SIGNIFICANT_DIGITS = 2;
+    private static final int MAX_SUMMARY_VALUES = 128;
+
+    // see AbstractHistogram.encodeIntoByteBuffer()
+    private static final int V2_ENCODING_COOKIE_BASE = 0x1c849303;
+
+    private static final HistogramPool histogramPool = new HistogramPool();
+
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
-    private @MonotonicNonNull Histogram histogram;
+    private @Nullable Histogram histogram;
 
     public LazyHistogram() {}
 
@@ -52,39 +64,41 @@ public class LazyHistogram {
             }
             size = values.length;
         } else {
-            histogram = Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+            Histogram histogram = histogramPool.acquire();
+            mergeEncoded(histogram, encodedBytes);
+            this.histogram = histogram;
+            values = new long[0];
         }
     }
 
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
-        final Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
+        Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
+        if (histogram == null) {
+            addOrderedRawValues(builder);
+        } else {
+            encode(histogram, scratchBuffer, builder);
+        }
+        return builder.build();
+    }
+
+    // compact lower precision summary, which is much cheaper to store, read, merge and calculate
+    // percentiles from than the full histogram (see merge(Aggregate.Histogram))
+    public Aggregate.Histogram toSummaryProto(ScratchBuffer scratchBuffer) {
+        Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
+        if (histogram == null && size <= MAX_SUMMARY_VALUES) {
+            addOrderedRawValues(builder);
+            return builder.build();
+        }
+        Histogram summary = new Histogram(1000, 2000, SUMMARY_SIGNIFICANT_DIGITS);
+        summary.setAutoResize(true);
         if (histogram == null) {
-            if (!sorted) {
-                // sort values before storing so don't have to sort each time later when calculating
-                // percentiles
-                sortValues();
-            }
             for (int i = 0; i < size; i++) {
-                builder.addOrderedRawValue(values[i]);
+                summary.recordValue(values[i]);
             }
         } else {
-            scratchBuffer.execute(histogram.getNeededByteBufferCapacity(), new DoWithByteBuffer() {
-                @Override
-                public void call(ByteBuffer buffer) {
-                    // this cast is needed in order to avoid
-                    // java.lang.NoSuchMethodError: java.nio.ByteBuffer.clear()Ljava/nio/ByteBuffer;
-                    // when this code is compiled with Java 9 and run with Java 8 or earlier
-                    ((Buffer) buffer).clear();
-                    histogram.encodeIntoByteBuffer(buffer);
-                    int size = buffer.position();
-                    // this cast is needed in order to avoid
-                    // java.lang.NoSuchMethodError: java.nio.ByteBuffer.flip()Ljava/nio/ByteBuffer;
-                    // when this code is compiled with Java 9 and run with Java 8 or earlier
-                    ((Buffer) buffer).flip();
-                    builder.setEncodedBytes(ByteString.copyFrom(buffer, size));
-                }
-            });
+            summary.add(histogram);
         }
+        encode(summary, scratchBuffer, builder);
         return builder.build();
     }
 
@@ -96,9 +110,22 @@ public class LazyHistogram {
             }
         } else {
             if (histogram == null) {
+                if (isSummary(encodedBytes)) {
+                    // lower precision summary (see toSummaryProto()), keep it at that precision
+                    // since it is so much cheaper to work with
+                    Histogram summary =
+                            Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+                    summary.setAutoResize(true);
+                    for (int i = 0; i < size; i++) {
+                        summary.recordValue(values[i]);
+                    }
+                    histogram = summary;
+                    values = new long[0];
+                    return;
+                }
                 convertValuesToHistogram();
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+            mergeEncoded(histogram, encodedBytes);
         }
     }
 
@@ -133,6 +160,18 @@ public class LazyHistogram {
         return histogram.getValueAtPercentile(percentile);
     }
 
+    // resets to empty so that the instance can be reused, returning the underlying histogram (if
+    // any) to the pool
+    public void reset() {
+        if (histogram != null) {
+            histogramPool.release(histogram);
+            histogram = null;
+            values = new long[8];
+        }
+        size = 0;
+        sorted = false;
+    }
+
     @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
@@ -162,9 +201,7 @@ public class LazyHistogram {
 
     @EnsuresNonNull("histogram")
     private void convertValuesToHistogram() {
-        // tracking nanoseconds, but only at microsecond precision (to save histogram space)
-        histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
-        histogram.setAutoResize(true);
+        histogram = histogramPool.acquire();
         for (int i = 0; i < size; i++) {
             histogram.recordValue(values[i]);
         }
@@ -176,6 +213,114 @@ public class LazyHistogram {
         sorted = true;
     }
 
+    private void addOrderedRawValues(Aggregate.Histogram.Builder builder) {
+        if (!sorted) {
+            // sort values before storing so don't have to sort each time later when calculating
+            // percentiles
+            sortValues();
+        }
+        for (int i = 0; i < size; i++) {
+            builder.addOrderedRawValue(values[i]);
+        }
+    }
+
+    private static void encode(final Histogram histogram, ScratchBuffer scratchBuffer,
+            final Aggregate.Histogram.Builder builder) {
+        scratchBuffer.execute(histogram.getNeededByteBufferCapacity(), new DoWithByteBuffer() {
+            @Override
+            public void call(ByteBuffer buffer) {
+                // this cast is needed in order to avoid
+                // java.lang.NoSuchMethodError: java.nio.ByteBuffer.clear()Ljava/nio/ByteBuffer;
+                // when this code is compiled with Java 9 and run with Java 8 or earlier
+                ((Buffer) buffer).clear();
+                histogram.encodeIntoByteBuffer(buffer);
+                int size = buffer.position();
+                // this cast is needed in order to avoid
+                // java.lang.NoSuchMethodError: java.nio.ByteBuffer.flip()Ljava/nio/ByteBuffer;
+                // when this code is compiled with Java 9 and run with Java 8 or earlier
+                ((Buffer) buffer).flip();
+                builder.setEncodedBytes(ByteString.copyFrom(buffer, size));
+            }
+        });
+    }
+
+    private static boolean isSummary(ByteString encodedBytes) {
+        ByteBuffer buffer = encodedBytes.asReadOnlyByteBuffer();
+        // significant digits immediately follow cookie, payload length and normalizing index offset
+        return (buffer.getInt(0) & ~0xf0) == V2_ENCODING_COOKIE_BASE
+                && buffer.getInt(12) < HISTOGRAM_SIGNIFICANT_DIGITS;
+    }
+
+    // adds the counts directly from the encoding, instead of decoding into a new histogram (which
+    // at 5 significant digits allocates a counts array of several megabytes) and then adding that
+    @VisibleForTesting
+    static void mergeEncoded(Histogram histogram, ByteString encodedBytes) {
+        ByteBuffer buffer = encodedBytes.asReadOnlyByteBuffer();
+        int cookie = buffer.getInt();
+        int payloadLength = buffer.getInt();
+        int normalizingIndexOffset = buffer.getInt();
+        int numberOfSignificantValueDigits = buffer.getInt();
+        long lowestDiscernibleValue = buffer.getLong();
+        // skip highestTrackableValue and integerToDoubleValueConversionRatio
+        buffer.getLong();
+        buffer.getDouble();
+        if ((cookie & ~0xf0) != V2_ENCODING_COOKIE_BASE || normalizingIndexOffset != 0
+                || numberOfSignificantValueDigits < 0 || numberOfSignificantValueDigits > 5
+                || lowestDiscernibleValue < 1) {
+            // not an encoding that is produced by toProto(), so fall back to full decoding
+            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+            return;
+        }
+        // see AbstractHistogram.init()
+        int unitMagnitude = (int) (Math.log(lowestDiscernibleValue) / Math.log(2));
+        long largestValueWithSingleUnitResolution =
+                2 * (long) Math.pow(10, numberOfSignificantValueDigits);
+        int subBucketCountMagnitude =
+                (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+        int subBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+        int subBucketHalfCount = 1 << subBucketHalfCountMagnitude;
+
+        int endPosition = buffer.position() + payloadLength;
+        int index = 0;
+        while (buffer.position() < endPosition) {
+            long count = getZigZagLong(buffer);
+            if (count < 0) {
+                // run of zero counts
+                index += (int) -count;
+                continue;
+            }
+            if (count > 0) {
+                // see AbstractHistogram.valueFromIndex()
+                int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+                int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+                if (bucketIndex < 0) {
+                    subBucketIndex -= subBucketHalfCount;
+                    bucketIndex = 0;
+                }
+                long value = (long) subBucketIndex << (bucketIndex + unitMagnitude);
+                histogram.recordValueWithCount(value, count);
+            }
+            index++;
+        }
+    }
+
+    // see ZigZagEncoding.getLong() in HdrHistogram (LEB128 with 9th byte using all 8 bits)
+    private static long getZigZagLong(ByteBuffer buffer) {
+        long v = buffer.get();
+        long value = v & 0x7F;
+        int shift = 7;
+        while ((v & 0x80) != 0 && shift < 56) {
+            v = buffer.get();
+            value |= (v & 0x7F) << shift;
+            shift += 7;
+        }
+        if ((v & 0x80) != 0) {
+            v = buffer.get();
+            value |= v << 56;
+        }
+        return (value >>> 1) ^ (-(value & 1));
+    }
+
     public static class ScratchBuffer {
 
         private @MonotonicNonNull ByteBuffer buffer;
@@ -195,4 +340,46 @@ public class LazyHistogram {
     interface DoWithByteBuffer {
         void call(ByteBuffer buffer);
     }
+
+    // pool of reusable histograms, since each histogram (at 5 significant digits) has a counts
+    // array of several megabytes, and short-lived lazy histograms (e.g. rollups and percentile
+    // charts) would otherwise allocate a new one each time (and large arrays like these are costly
+    // for the garbage collector)
+    //
+    // this only saves the allocation, not the zeroing, since Histogram.reset() still clears the
+    // whole counts array (HdrHistogram does not expose a way to clear only the touched range)
+    //
+    // only histograms returned via reset() are pooled
+    private static class HistogramPool {
+
+        private static final int MAX_POOLED_HISTOGRAMS = 8;
+
+        private final Deque<Histogram> histograms = new ArrayDeque<Histogram>();
+
+        private Histogram acquire() {
+            Histogram histogram;
+            synchronized (histograms) {
+                histogram = histograms.poll();
+            }
+            if (histogram == null) {
+                // tracking nanoseconds, but only at microsecond precision (to save histogram space)
+                histogram = new Histogram(1000, 2000, HISTOGRAM_SIGNIFICANT_DIGITS);
+                histogram.setAutoResize(true);
+            }
+            return histogram;
+        }
+
+        private void release(Histogram histogram) {
+            if (histogram.getNumberOfSignificantValueDigits() != HISTOGRAM_SIGNIFICANT_DIGITS) {
+                // lower precision summary
+                return;
+            }
+            histogram.reset();
+            synchronized (histograms) {
+                if (histograms.size() < MAX_POOLED_HISTOGRAMS) {
+                    histograms.push(histogram);
+                }
+            }
+        }
+    }
 }
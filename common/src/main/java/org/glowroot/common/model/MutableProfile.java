@@ -261,7 +261,7 @@ public class MutableProfile {
         return index;
     }
 
-    private static Profile.LeafThreadState getThreadState(Thread. /*@Nullable*/ State state) {
+    public static Profile.LeafThreadState getThreadState(Thread. /*@Nullable*/ State state) {
         if (state == null) {
             return Profile.LeafThreadState.NONE;
         }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,7 +19,7 @@ import com.google.common.collect.Ordering;
 import com.google.common.primitives.Doubles;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
-public class MutableQuery {
+public class MutableQuery implements HeavyHitterHeap.Entry {
 
     static final Ordering<MutableQuery> byTotalDurationDesc = new Ordering<MutableQuery>() {
         @Override
@@ -38,6 +38,11 @@ public class MutableQuery {
     private boolean hasTotalRows;
     private long totalRows;
 
+    // maximum total duration that may have been attributed to the limit exceeded bucket before
+    // this query was admitted (see HeavyHitterHeap)
+    private double errorBoundNanos;
+    private int heapIndex = -1;
+
     MutableQuery(String type, String truncatedText, @Nullable String fullTextSha1) {
         this.type = type;
         this.truncatedText = truncatedText;
@@ -72,6 +77,29 @@ public class MutableQuery {
         return totalRows;
     }
 
+    public double getErrorBoundNanos() {
+        return errorBoundNanos;
+    }
+
+    @Override
+    public double getEstimatedTotalDurationNanos() {
+        return totalDurationNanos + errorBoundNanos;
+    }
+
+    @Override
+    public int getHeapIndex() {
+        return heapIndex;
+    }
+
+    @Override
+    public void setHeapIndex(int heapIndex) {
+        this.heapIndex = heapIndex;
+    }
+
+    void setErrorBoundNanos(double errorBoundNanos) {
+        this.errorBoundNanos = errorBoundNanos;
+    }
+
     void addToTotalDurationNanos(double totalDurationNanos) {
         this.totalDurationNanos += totalDurationNanos;
     }
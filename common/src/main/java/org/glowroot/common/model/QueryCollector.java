@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2018 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,22 +18,34 @@ package org.glowroot.common.model;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 public class QueryCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
 
+    // number of distinct queries retained while merging is bounded by limit times this multiplier,
+    // after which the query with the smallest estimated total duration is evicted into the limit
+    // exceeded bucket to make room for each new query (space-saving heavy hitters algorithm)
+    private static final int HARD_LIMIT_MULTIPLIER_WHILE_MERGING = 10;
+
     // first key is the query type, second key is either the full query text (if the query text is
     // relatively short) or the sha1 of the full query text (if the query text is long)
     private final Map<String, Map<String, MutableQuery>> queries = Maps.newHashMap();
     private final Map<String, MutableQuery> limitExceededBuckets = Maps.newHashMap();
     private final int limit;
 
+    private int queryCount;
+    // only created once the hard limit is reached
+    private @MonotonicNonNull HeavyHitterHeap<MutableQuery> heap;
+
     // this is only used by UI
     private long lastCaptureTime;
 
@@ -50,43 +62,43 @@ public class QueryCollector {
     }
 
     public List<MutableQuery> getSortedAndTruncatedQueries() {
-        List<MutableQuery> allQueries = Lists.newArrayList();
-        for (Map.Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
-            allQueries.addAll(outerEntry.getValue().values());
+        List<MutableQuery> allQueries = Lists.newArrayListWithCapacity(queryCount);
+        for (Map<String, MutableQuery> queriesForType : queries.values()) {
+            allQueries.addAll(queriesForType.values());
         }
         if (allQueries.size() <= limit) {
             allQueries.addAll(limitExceededBuckets.values());
             return MutableQuery.byTotalDurationDesc.sortedCopy(allQueries);
         }
-        allQueries = MutableQuery.byTotalDurationDesc.sortedCopy(allQueries);
-        List<MutableQuery> exceededQueries = allQueries.subList(limit, allQueries.size());
-        allQueries = Lists.newArrayList(allQueries.subList(0, limit));
+        // partial selection of the top queries instead of sorting all of them
+        List<MutableQuery> topQueries = MutableQuery.byTotalDurationDesc.leastOf(allQueries, limit);
+        Set<MutableQuery> topQuerySet = Sets.newHashSet(topQueries);
         // do not modify original limit exceeded buckets since adding exceeded queries below
         Map<String, MutableQuery> limitExceededBuckets = copyLimitExceededBuckets();
-        for (MutableQuery exceededQuery : exceededQueries) {
-            String queryType = exceededQuery.getType();
+        for (MutableQuery query : allQueries) {
+            if (topQuerySet.contains(query)) {
+                continue;
+            }
+            String queryType = query.getType();
             MutableQuery limitExceededBucket = limitExceededBuckets.get(queryType);
             if (limitExceededBucket == null) {
                 limitExceededBucket = new MutableQuery(queryType, LIMIT_EXCEEDED_BUCKET, null);
                 limitExceededBuckets.put(queryType, limitExceededBucket);
             }
-            limitExceededBucket.add(exceededQuery);
+            limitExceededBucket.add(query);
         }
-        allQueries.addAll(limitExceededBuckets.values());
+        List<MutableQuery> sortedQueries = Lists.newArrayList(topQueries);
+        sortedQueries.addAll(limitExceededBuckets.values());
         // need to re-sort now including limit exceeded bucket
-        Collections.sort(allQueries, MutableQuery.byTotalDurationDesc);
-        return allQueries;
+        Collections.sort(sortedQueries, MutableQuery.byTotalDurationDesc);
+        return sortedQueries;
     }
 
     public void mergeQuery(String queryType, String truncatedText, @Nullable String fullTextSha1,
             double totalDurationNanos, long executionCount, boolean hasRows, long totalRows) {
         MutableQuery aggregateQuery;
         if (truncatedText.equals(LIMIT_EXCEEDED_BUCKET)) {
-            aggregateQuery = limitExceededBuckets.get(queryType);
-            if (aggregateQuery == null) {
-                aggregateQuery = new MutableQuery(queryType, LIMIT_EXCEEDED_BUCKET, null);
-                limitExceededBuckets.put(queryType, aggregateQuery);
-            }
+            aggregateQuery = getOrCreateLimitExceededBucket(queryType);
         } else {
             Map<String, MutableQuery> queriesForType = queries.get(queryType);
             if (queriesForType == null) {
@@ -96,13 +108,53 @@ public class QueryCollector {
             String queryKey = MoreObjects.firstNonNull(fullTextSha1, truncatedText);
             aggregateQuery = queriesForType.get(queryKey);
             if (aggregateQuery == null) {
-                aggregateQuery = new MutableQuery(queryType, truncatedText, fullTextSha1);
-                queriesForType.put(queryKey, aggregateQuery);
+                if (queryCount < limit * HARD_LIMIT_MULTIPLIER_WHILE_MERGING) {
+                    aggregateQuery = new MutableQuery(queryType, truncatedText, fullTextSha1);
+                    queriesForType.put(queryKey, aggregateQuery);
+                    queryCount++;
+                } else {
+                    aggregateQuery = evictMinQuery(queryType, truncatedText, fullTextSha1);
+                    queriesForType.put(queryKey, aggregateQuery);
+                }
             }
         }
         aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
         aggregateQuery.addToExecutionCount(executionCount);
         aggregateQuery.addToTotalRows(hasRows, totalRows);
+        if (heap != null) {
+            heap.increased(aggregateQuery);
+        }
+    }
+
+    private MutableQuery evictMinQuery(String queryType, String truncatedText,
+            @Nullable String fullTextSha1) {
+        if (heap == null) {
+            List<MutableQuery> allQueries = Lists.newArrayListWithCapacity(queryCount);
+            for (Map<String, MutableQuery> queriesForType : queries.values()) {
+                allQueries.addAll(queriesForType.values());
+            }
+            heap = new HeavyHitterHeap<MutableQuery>(allQueries);
+        }
+        MutableQuery minQuery = heap.min();
+        Map<String, MutableQuery> minQueriesForType = queries.get(minQuery.getType());
+        if (minQueriesForType != null) {
+            minQueriesForType.remove(MoreObjects.firstNonNull(minQuery.getFullTextSha1(),
+                    minQuery.getTruncatedText()));
+        }
+        getOrCreateLimitExceededBucket(minQuery.getType()).add(minQuery);
+        MutableQuery query = new MutableQuery(queryType, truncatedText, fullTextSha1);
+        query.setErrorBoundNanos(minQuery.getEstimatedTotalDurationNanos());
+        heap.replaceMin(query);
+        return query;
+    }
+
+    private MutableQuery getOrCreateLimitExceededBucket(String queryType) {
+        MutableQuery query = limitExceededBuckets.get(queryType);
+        if (query == null) {
+            query = new MutableQuery(queryType, LIMIT_EXCEEDED_BUCKET, null);
+            limitExceededBuckets.put(queryType, query);
+        }
+        return query;
     }
 
     private Map<String, MutableQuery> copyLimitExceededBuckets() {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,10 @@
  */
 package org.glowroot.common.model;
 
+import java.util.Random;
+
+import com.google.protobuf.ByteString;
+import org.HdrHistogram.Histogram;
 import org.junit.Test;
 
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
@@ -78,6 +82,79 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldMergeEncodedSameAsDecodeAndAdd() throws Exception {
+        // given
+        Random random = new Random(0);
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = 0; i < 100000; i++) {
+            lazyHistogram.add((long) (Math.abs(random.nextGaussian()) * 100000000));
+        }
+        ByteString encodedBytes = lazyHistogram.toProto(new ScratchBuffer()).getEncodedBytes();
+        Histogram expected = new Histogram(1000, 2000, 5);
+        expected.setAutoResize(true);
+        expected.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+        Histogram histogram = new Histogram(1000, 2000, 5);
+        histogram.setAutoResize(true);
+        // when
+        LazyHistogram.mergeEncoded(histogram, encodedBytes);
+        // then
+        assertThat(histogram.getTotalCount()).isEqualTo(expected.getTotalCount());
+        assertThat(histogram.getMinValue()).isEqualTo(expected.getMinValue());
+        assertThat(histogram.getMaxValue()).isEqualTo(expected.getMaxValue());
+        for (double percentile : new double[] {0, 50, 95, 99, 99.9, 99.99, 100}) {
+            assertThat(histogram.getValueAtPercentile(percentile))
+                    .isEqualTo(expected.getValueAtPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void shouldReuseAfterReset() throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = 10000000; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        // when
+        lazyHistogram.reset();
+        lazyHistogram.add(5000);
+        lazyHistogram.add(3000);
+        // then
+        // values are exact again (not recorded into a histogram) after reset
+        assertThat(lazyHistogram.getValueAtPercentile(50)).isEqualTo(3000);
+        assertThat(lazyHistogram.getValueAtPercentile(100)).isEqualTo(5000);
+        // and merging encoded histogram after reset
+        lazyHistogram.reset();
+        lazyHistogram.merge(histogram);
+        assertPercentile(lazyHistogram, 10000000, 50);
+        assertPercentile(lazyHistogram, 10000000, 99);
+    }
+
+    @Test
+    public void shouldMergeSummaries() throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (int i = 10000000; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram summary = lazyHistogram.toSummaryProto(new ScratchBuffer());
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        LazyHistogram smallHistogram = new LazyHistogram();
+        smallHistogram.add(1000);
+        // when
+        LazyHistogram mergedHistogram = new LazyHistogram();
+        mergedHistogram.merge(smallHistogram.toSummaryProto(new ScratchBuffer()));
+        mergedHistogram.merge(summary);
+        mergedHistogram.merge(summary);
+        // then
+        assertThat(summary.getEncodedBytes().size())
+                .isLessThan(histogram.getEncodedBytes().size());
+        assertPercentile(mergedHistogram, 10000000, 50);
+        assertPercentile(mergedHistogram, 10000000, 95);
+        assertPercentile(mergedHistogram, 10000000, 99);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import java.io.Serializable;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.serial.Serial;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
+
+// source of alert metric values that is consulted before reading the underlying repositories,
+// e.g. sliding windows that are maintained in memory as data is collected
+public interface AlertMetricValues {
+
+    // returns null if the metric value cannot be calculated from this source, in which case the
+    // metric value is read from the repositories
+    @Nullable
+    MetricValue getMetricValue(String agentRollupId, MetricCondition metricCondition,
+            long startTime, long endTime) throws Exception;
+
+    @Value.Immutable
+    @Serial.Structural
+    @Styles.AllParameters
+    interface MetricValue extends Serializable {
+        // null when the value cannot be calculated due to no data (see MetricService)
+        @Nullable
+        Double value();
+        // only used for checking min transaction count (zero for gauge metrics)
+        long transactionCount();
+    }
+}
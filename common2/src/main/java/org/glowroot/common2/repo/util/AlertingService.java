@@ -61,6 +61,7 @@ import org.glowroot.common2.repo.GaugeValueRepository.Gauge;
 import org.glowroot.common2.repo.IncidentRepository;
 import org.glowroot.common2.repo.IncidentRepository.OpenIncident;
 import org.glowroot.common2.repo.Utils;
+import org.glowroot.common2.repo.util.AlertMetricValues.MetricValue;
 import org.glowroot.common2.repo.util.HttpClient.TooManyRequestsHttpResponseException;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition;
@@ -143,9 +144,26 @@ public class AlertingService {
     public void checkMetricAlert(String centralDisplay, String agentRollupId,
             String agentRollupDisplay, AlertConfig alertConfig, MetricCondition metricCondition,
             long endTime) throws Exception {
+        checkMetricAlert(centralDisplay, agentRollupId, agentRollupDisplay, alertConfig,
+                metricCondition, endTime, null);
+    }
+
+    public void checkMetricAlert(String centralDisplay, String agentRollupId,
+            String agentRollupDisplay, AlertConfig alertConfig, MetricCondition metricCondition,
+            long endTime, @Nullable AlertMetricValues alertMetricValues) throws Exception {
         long startTime = endTime - SECONDS.toMillis(metricCondition.getTimePeriodSeconds());
-        Number value =
-                metricService.getMetricValue(agentRollupId, metricCondition, startTime, endTime);
+        MetricValue metricValue = null;
+        if (alertMetricValues != null) {
+            metricValue = alertMetricValues.getMetricValue(agentRollupId, metricCondition,
+                    startTime, endTime);
+        }
+        Number value;
+        if (metricValue == null) {
+            value = metricService.getMetricValue(agentRollupId, metricCondition, startTime,
+                    endTime);
+        } else {
+            value = metricValue.value();
+        }
         if (value == null) {
             // cannot calculate due to no data, e.g. error rate (but not error count, which can be
             // calculated - zero - when no data)
@@ -169,10 +187,15 @@ public class AlertingService {
             if (hasMinTransactionCount(metricCondition.getMetric())) {
                 long minTransactionCount = metricCondition.getMinTransactionCount();
                 if (minTransactionCount != 0) {
-                    long transactionCount = metricService.getTransactionCount(agentRollupId,
-                            metricCondition.getTransactionType(),
-                            Strings.emptyToNull(metricCondition.getTransactionName()), startTime,
-                            endTime);
+                    long transactionCount;
+                    if (metricValue == null) {
+                        transactionCount = metricService.getTransactionCount(agentRollupId,
+                                metricCondition.getTransactionType(),
+                                Strings.emptyToNull(metricCondition.getTransactionName()),
+                                startTime, endTime);
+                    } else {
+                        transactionCount = metricValue.transactionCount();
+                    }
                     if (transactionCount < minTransactionCount) {
                         return;
                     }
@@ -57,6 +57,7 @@ import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.UiDefaultsC
 import org.glowroot.wire.api.model.Proto.OptionalInt32;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.PRECONDITION_FAILED;
 
 @JsonService
@@ -254,6 +255,11 @@ class ConfigJsonService {
     @POST(path = "/backend/config/advanced", permission = "agent:config:edit:advanced")
     String updateAdvancedConfig(@BindAgentRollupId String agentRollupId,
             @BindRequest AdvancedConfigDto configDto) throws Exception {
+        int traceEntrySamplingPercentage = configDto.traceEntrySamplingPercentage();
+        if (traceEntrySamplingPercentage < 0 || traceEntrySamplingPercentage > 100) {
+            throw new JsonServiceException(BAD_REQUEST,
+                    "trace entry sampling percentage must be between 0 and 100");
+        }
         try {
             configRepository.updateAdvancedConfig(agentRollupId, configDto.convert(),
                     configDto.version());
@@ -587,6 +593,8 @@ class ConfigJsonService {
         abstract int maxServiceCallAggregates();
         abstract int maxTraceEntriesPerTransaction();
         abstract int maxProfileSamplesPerTransaction();
+        abstract int traceEntrySamplingPercentage();
+        abstract int maxRecentTraceEntriesPerUnsampledTransaction();
         abstract int mbeanGaugeNotFoundDelaySeconds();
         abstract boolean weavingTimer();
         abstract String version();
@@ -600,6 +608,9 @@ class ConfigJsonService {
                     .setMaxServiceCallAggregates(of(maxServiceCallAggregates()))
                     .setMaxTraceEntriesPerTransaction(of(maxTraceEntriesPerTransaction()))
                     .setMaxProfileSamplesPerTransaction(of(maxProfileSamplesPerTransaction()))
+                    .setTraceEntrySamplingPercentage(of(traceEntrySamplingPercentage()))
+                    .setMaxRecentTraceEntriesPerUnsampledTransaction(
+                            of(maxRecentTraceEntriesPerUnsampledTransaction()))
                     .setMbeanGaugeNotFoundDelaySeconds(of(mbeanGaugeNotFoundDelaySeconds()))
                     .setWeavingTimer(weavingTimer())
                     .build();
@@ -616,6 +627,10 @@ class ConfigJsonService {
                             config.getMaxTraceEntriesPerTransaction().getValue())
                     .maxProfileSamplesPerTransaction(
                             config.getMaxProfileSamplesPerTransaction().getValue())
+                    .traceEntrySamplingPercentage(
+                            config.getTraceEntrySamplingPercentage().getValue())
+                    .maxRecentTraceEntriesPerUnsampledTransaction(
+                            config.getMaxRecentTraceEntriesPerUnsampledTransaction().getValue())
                     .mbeanGaugeNotFoundDelaySeconds(
                             config.getMbeanGaugeNotFoundDelaySeconds().getValue())
                     .weavingTimer(config.getWeavingTimer())
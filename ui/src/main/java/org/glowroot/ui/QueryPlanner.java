@@ -0,0 +1,316 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// issues the independent repository reads behind a single ui request concurrently
+//
+// concurrency is bounded per node (by the size of the shared read pool) and per request, and when
+// either bound is reached the read simply runs inline on the request thread, so a busy node
+// degrades to the previous sequential behavior instead of queueing reads behind other requests
+//
+// reads always run inline for the embedded collector, since the embedded h2 data source serializes
+// all queries anyway (so there is nothing to gain), and since interrupting a thread in the middle
+// of h2 file io closes the underlying file channel
+//
+// reads that are no longer needed are cancelled without interrupting them, for the same reason
+class QueryPlanner {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryPlanner.class);
+
+    private static final int MAX_CONCURRENT_READS =
+            Integer.getInteger("glowroot.internal.ui.maxConcurrentReads", 8);
+
+    private static final int MAX_CONCURRENT_READS_PER_REQUEST =
+            Integer.getInteger("glowroot.internal.ui.maxConcurrentReadsPerRequest", 3);
+
+    private static final long PARTIAL_RESULT_TIMEOUT_MILLIS =
+            Long.getLong("glowroot.internal.ui.partialResultTimeoutMillis", 30000);
+
+    // null when reads always run inline
+    private final @Nullable ThreadPoolExecutor executor;
+    private final int maxConcurrentReadsPerRequest;
+    private final long partialResultTimeoutNanos;
+    private final Ticker ticker;
+
+    private final ConcurrentMap<String, PageStats> pageStats = Maps.newConcurrentMap();
+
+    QueryPlanner(boolean central, Ticker ticker) {
+        this(central ? MAX_CONCURRENT_READS : 0, MAX_CONCURRENT_READS_PER_REQUEST,
+                PARTIAL_RESULT_TIMEOUT_MILLIS, ticker);
+    }
+
+    QueryPlanner(int maxConcurrentReads, int maxConcurrentReadsPerRequest,
+            long partialResultTimeoutMillis, Ticker ticker) {
+        if (maxConcurrentReads > 0) {
+            // synchronous queue so that reads are never queued behind other requests' reads, see
+            // Plan.submit()
+            executor = new ThreadPoolExecutor(0, maxConcurrentReads, 60, SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("Glowroot-UI-Query-%d")
+                            .build());
+        } else {
+            executor = null;
+        }
+        this.maxConcurrentReadsPerRequest = maxConcurrentReadsPerRequest;
+        this.partialResultTimeoutNanos = MILLISECONDS.toNanos(partialResultTimeoutMillis);
+        this.ticker = ticker;
+    }
+
+    Plan newPlan(String page) {
+        return new Plan(page);
+    }
+
+    Map<String, PageStats> getPageStats() {
+        return ImmutableMap.copyOf(pageStats);
+    }
+
+    void close() {
+        if (executor != null) {
+            // not interrupting reads that are still running, see class comment
+            executor.shutdown();
+        }
+    }
+
+    private PageStats getOrCreatePageStats(String page) {
+        PageStats stats = pageStats.get(page);
+        if (stats == null) {
+            stats = new PageStats();
+            PageStats existing = pageStats.putIfAbsent(page, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    // a plan is owned by a single request thread, with the exception of inFlight which is
+    // decremented by the read pool threads
+    class Plan {
+
+        private final String page;
+        private final long startTick;
+        private final long deadlineTick;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private int readCount;
+        private int concurrentReadCount;
+        private boolean partial;
+        private long waitNanos;
+
+        private Plan(String page) {
+            this.page = page;
+            startTick = ticker.read();
+            deadlineTick = startTick + partialResultTimeoutNanos;
+        }
+
+        <T> Read<T> submit(final Callable<T> callable) throws Exception {
+            readCount++;
+            if (executor == null) {
+                return new Read<T>(this, callable.call());
+            }
+            if (inFlight.incrementAndGet() <= maxConcurrentReadsPerRequest) {
+                try {
+                    Future<T> future = executor.submit(new Callable<T>() {
+                        @Override
+                        public T call() throws Exception {
+                            try {
+                                return callable.call();
+                            } finally {
+                                inFlight.decrementAndGet();
+                            }
+                        }
+                    });
+                    concurrentReadCount++;
+                    return new Read<T>(this, future);
+                } catch (RejectedExecutionException e) {
+                    // node-wide read pool is saturated
+                    logger.debug(e.getMessage(), e);
+                }
+            }
+            inFlight.decrementAndGet();
+            return new Read<T>(this, callable.call());
+        }
+
+        // true if any read did not complete before the partial result timeout
+        boolean isPartial() {
+            return partial;
+        }
+
+        private long tick() {
+            return ticker.read();
+        }
+
+        void close() {
+            long durationNanos = ticker.read() - startTick;
+            getOrCreatePageStats(page).record(durationNanos, waitNanos, readCount,
+                    concurrentReadCount, partial);
+            logger.debug("{} took {} ms ({} reads, {} concurrent, {} ms waiting{})", page,
+                    NANOSECONDS.toMillis(durationNanos), readCount, concurrentReadCount,
+                    NANOSECONDS.toMillis(waitNanos), partial ? ", partial" : "");
+        }
+    }
+
+    static class Read<T> {
+
+        private final Plan plan;
+        private final @Nullable Future<T> future;
+        private final @Nullable T inlineResult;
+
+        private Read(Plan plan, Future<T> future) {
+            this.plan = plan;
+            this.future = future;
+            inlineResult = null;
+        }
+
+        private Read(Plan plan, T inlineResult) {
+            this.plan = plan;
+            future = null;
+            this.inlineResult = inlineResult;
+        }
+
+        T get() throws Exception {
+            if (future == null) {
+                return castNonNull(inlineResult);
+            }
+            long startTick = plan.tick();
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            } finally {
+                plan.waitNanos += plan.tick() - startTick;
+            }
+        }
+
+        // returns the partial result if the read does not complete before the plan's partial
+        // result timeout
+        T get(T partialResult) throws Exception {
+            if (future == null) {
+                return castNonNull(inlineResult);
+            }
+            long startTick = plan.tick();
+            try {
+                return future.get(Math.max(0, plan.deadlineTick - startTick), NANOSECONDS);
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            } catch (TimeoutException e) {
+                logger.debug(e.getMessage(), e);
+                future.cancel(false);
+                plan.partial = true;
+                return partialResult;
+            } finally {
+                plan.waitNanos += plan.tick() - startTick;
+            }
+        }
+
+        // used for speculative reads whose result turns out not to be needed (the read is not
+        // interrupted if it has already started, see class comment)
+        void cancel() {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        @SuppressWarnings("return.type.incompatible")
+        private static <T> T castNonNull(@Nullable T value) {
+            // inline results have the same nullness as the callable's return type
+            return value;
+        }
+
+        private static Exception unwrap(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                return (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            return e;
+        }
+    }
+
+    static class PageStats {
+
+        private final AtomicLong requestCount = new AtomicLong();
+        private final AtomicLong partialCount = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final AtomicLong readCount = new AtomicLong();
+        private final AtomicLong concurrentReadCount = new AtomicLong();
+
+        private void record(long durationNanos, long waitNanos, int readCount,
+                int concurrentReadCount, boolean partial) {
+            requestCount.incrementAndGet();
+            if (partial) {
+                partialCount.incrementAndGet();
+            }
+            totalNanos.addAndGet(durationNanos);
+            this.waitNanos.addAndGet(waitNanos);
+            this.readCount.addAndGet(readCount);
+            this.concurrentReadCount.addAndGet(concurrentReadCount);
+        }
+
+        long requestCount() {
+            return requestCount.get();
+        }
+
+        long partialCount() {
+            return partialCount.get();
+        }
+
+        long totalNanos() {
+            return totalNanos.get();
+        }
+
+        // time the request thread spent blocked on concurrent reads
+        long waitNanos() {
+            return waitNanos.get();
+        }
+
+        long readCount() {
+            return readCount.get();
+        }
+
+        long concurrentReadCount() {
+            return concurrentReadCount.get();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.CharStreams;
+
+import org.glowroot.common.util.ObjectMappers;
+import org.glowroot.ui.QueryPlanner.PageStats;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+@JsonService
+class QueryPlannerJsonService {
+
+    private static final ObjectMapper mapper = ObjectMappers.create();
+
+    private final QueryPlanner queryPlanner;
+
+    QueryPlannerJsonService(QueryPlanner queryPlanner) {
+        this.queryPlanner = queryPlanner;
+    }
+
+    // per-page latency breakdown since startup
+    @GET(path = "/backend/admin/query-stats", permission = "admin:view")
+    String getQueryStats() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
+        try {
+            jg.writeStartObject();
+            for (Map.Entry<String, PageStats> entry : queryPlanner.getPageStats().entrySet()) {
+                PageStats stats = entry.getValue();
+                jg.writeObjectFieldStart(entry.getKey());
+                jg.writeNumberField("requestCount", stats.requestCount());
+                jg.writeNumberField("partialCount", stats.partialCount());
+                jg.writeNumberField("totalMillis", NANOSECONDS.toMillis(stats.totalNanos()));
+                jg.writeNumberField("waitMillis", NANOSECONDS.toMillis(stats.waitNanos()));
+                jg.writeNumberField("readCount", stats.readCount());
+                jg.writeNumberField("concurrentReadCount", stats.concurrentReadCount());
+                jg.writeEndObject();
+            }
+            jg.writeEndObject();
+        } finally {
+            jg.close();
+        }
+        return sb.toString();
+    }
+}
@@ -378,13 +378,15 @@ class ReportJsonService {
                     .build());
         }
         PercentileAggregate priorAggregate = null;
+        // reused across aggregates to avoid allocating a new histogram for each one
+        LazyHistogram durationNanosHistogram = new LazyHistogram();
         for (PercentileAggregate aggregate : aggregates) {
             if (priorAggregate != null
                     && aggregate.captureTime() - priorAggregate.captureTime() > gapMillis) {
                 dataSeries.addNull();
             }
-            LazyHistogram durationNanosHistogram =
-                    new LazyHistogram(aggregate.durationNanosHistogram());
+            durationNanosHistogram.reset();
+            durationNanosHistogram.merge(aggregate.durationNanosHistogram());
             dataSeries.add(getIntervalAverage(rollup, timeZone, aggregate.captureTime()),
                     durationNanosHistogram.getValueAtPercentile(percentile)
                             / NANOSECONDS_PER_MILLISECOND);
@@ -396,6 +398,8 @@ class ReportJsonService {
         }
         dataSeries.setOverall(
                 mergedHistogram.getValueAtPercentile(percentile) / NANOSECONDS_PER_MILLISECOND);
+        durationNanosHistogram.reset();
+        mergedHistogram.reset();
         return dataSeries;
     }
 
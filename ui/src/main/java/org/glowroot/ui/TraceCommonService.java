@@ -20,6 +20,7 @@ import java.text.SimpleDateFormat;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeoutException;
 
 import com.fasterxml.jackson.core.JsonFactory;
@@ -56,12 +57,14 @@ class TraceCommonService {
     private final TraceRepository traceRepository;
     private final LiveTraceRepository liveTraceRepository;
     private final AgentDisplayRepository agentDisplayRepository;
+    private final QueryPlanner queryPlanner;
 
     TraceCommonService(TraceRepository traceRepository, LiveTraceRepository liveTraceRepository,
-            AgentDisplayRepository agentDisplayRepository) {
+            AgentDisplayRepository agentDisplayRepository, QueryPlanner queryPlanner) {
         this.traceRepository = traceRepository;
         this.liveTraceRepository = liveTraceRepository;
         this.agentDisplayRepository = agentDisplayRepository;
+        this.queryPlanner = queryPlanner;
     }
 
     @Nullable
@@ -185,7 +188,7 @@ class TraceCommonService {
     }
 
     @Nullable
-    TraceExport getExport(String agentId, String traceId, boolean checkLiveTraces)
+    TraceExport getExport(final String agentId, final String traceId, boolean checkLiveTraces)
             throws Exception {
         if (checkLiveTraces) {
             // check active/pending traces first, and lastly stored traces to make sure that the
@@ -222,20 +225,44 @@ class TraceCommonService {
         ImmutableTraceExport.Builder builder = ImmutableTraceExport.builder()
                 .fileName(getFileName(header.header()))
                 .headerJson(toJsonRepoHeader(agentId, header));
-        EntriesAndQueries queriesAndEntries =
-                getStoredEntriesAndQueriesForExport(agentId, traceId, retryCountdown);
-        if (queriesAndEntries != null) {
-            builder.entriesJson(entriesToJson(queriesAndEntries.entries()));
-            builder.queriesJson(queriesToJson(queriesAndEntries.queries()));
-            // SharedQueryTexts are always returned from getStoredEntries() above with fullTrace,
-            // so no need to resolve fullTraceSha1
-            builder.sharedQueryTextsJson(
-                    sharedQueryTextsToJson(queriesAndEntries.sharedQueryTexts()));
-        }
-        builder.mainThreadProfileJson(
-                toJson(getStoredMainThreadProfile(agentId, traceId, retryCountdown)));
-        builder.auxThreadProfileJson(
-                toJson(getStoredAuxThreadProfile(agentId, traceId, retryCountdown)));
+        // the remaining parts of the stored trace are independent of each other, so they are read
+        // concurrently, each with its own copy of the remaining retries
+        QueryPlanner.Plan plan = queryPlanner.newPlan("trace/export");
+        try {
+            final RetryCountdown entriesRetryCountdown = retryCountdown.copy();
+            QueryPlanner.Read</*@Nullable*/ EntriesAndQueries> queriesAndEntriesRead =
+                    plan.submit(new Callable</*@Nullable*/ EntriesAndQueries>() {
+                        @Override
+                        public @Nullable EntriesAndQueries call() throws Exception {
+                            return getStoredEntriesAndQueriesForExport(agentId, traceId,
+                                    entriesRetryCountdown);
+                        }
+                    });
+            final RetryCountdown mainThreadProfileRetryCountdown = retryCountdown.copy();
+            QueryPlanner.Read</*@Nullable*/ Profile> mainThreadProfileRead =
+                    plan.submit(new Callable</*@Nullable*/ Profile>() {
+                        @Override
+                        public @Nullable Profile call() throws Exception {
+                            return getStoredMainThreadProfile(agentId, traceId,
+                                    mainThreadProfileRetryCountdown);
+                        }
+                    });
+            Profile auxThreadProfile =
+                    getStoredAuxThreadProfile(agentId, traceId, retryCountdown);
+            EntriesAndQueries queriesAndEntries = queriesAndEntriesRead.get();
+            if (queriesAndEntries != null) {
+                builder.entriesJson(entriesToJson(queriesAndEntries.entries()));
+                builder.queriesJson(queriesToJson(queriesAndEntries.queries()));
+                // SharedQueryTexts are always returned from getStoredEntries() above with
+                // fullTrace, so no need to resolve fullTraceSha1
+                builder.sharedQueryTextsJson(
+                        sharedQueryTextsToJson(queriesAndEntries.sharedQueryTexts()));
+            }
+            builder.mainThreadProfileJson(toJson(mainThreadProfileRead.get()));
+            builder.auxThreadProfileJson(toJson(auxThreadProfile));
+        } finally {
+            plan.close();
+        }
         return builder.build();
     }
 
@@ -555,6 +582,10 @@ class TraceCommonService {
             if (entryLimitExceeded) {
                 jg.writeBooleanField("entryLimitExceeded", entryLimitExceeded);
             }
+            boolean entriesUnsampled = header.getEntriesUnsampled();
+            if (entriesUnsampled) {
+                jg.writeBooleanField("entriesUnsampled", entriesUnsampled);
+            }
             jg.writeNumberField("queryCount", header.getQueryCount());
             boolean queryLimitExceeded = header.getQueryLimitExceeded();
             if (queryLimitExceeded) {
@@ -772,6 +803,14 @@ class TraceCommonService {
         public RetryCountdown(boolean checkLiveTraces) {
             remaining = checkLiveTraces ? 5 : 0;
         }
+
+        private RetryCountdown(int remaining) {
+            this.remaining = remaining;
+        }
+
+        private RetryCountdown copy() {
+            return new RetryCountdown(remaining);
+        }
     }
 
     @Value.Immutable
@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2018 the original author or authors.
+ * Copyright 2011-2019 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,11 +15,13 @@
  */
 package org.glowroot.ui;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -77,15 +79,18 @@ class TransactionJsonService {
     private static final ObjectMapper mapper = ObjectMappers.create();
 
     private final TransactionCommonService transactionCommonService;
+    private final QueryPlanner queryPlanner;
     private final AggregateRepository aggregateRepository;
     private final ConfigRepository configRepository;
     private final RollupLevelService rollupLevelService;
     private final Clock clock;
 
     TransactionJsonService(TransactionCommonService transactionCommonService,
-            AggregateRepository aggregateRepository, ConfigRepository configRepository,
-            RollupLevelService rollupLevelService, Clock clock) {
+            QueryPlanner queryPlanner, AggregateRepository aggregateRepository,
+            ConfigRepository configRepository, RollupLevelService rollupLevelService,
+            Clock clock) {
         this.transactionCommonService = transactionCommonService;
+        this.queryPlanner = queryPlanner;
         this.aggregateRepository = aggregateRepository;
         this.configRepository = configRepository;
         this.rollupLevelService = rollupLevelService;
@@ -343,67 +348,111 @@ class TransactionJsonService {
     }
 
     @GET(path = "/backend/transaction/profile", permission = "agent:transaction:threadProfile")
-    String getProfile(@BindAgentRollupId String agentRollupId,
-            @BindRequest TransactionProfileRequest request) throws Exception {
+    String getProfile(final @BindAgentRollupId String agentRollupId,
+            final @BindRequest TransactionProfileRequest request) throws Exception {
         AggregateQuery query = toQuery(request, DataKind.PROFILE);
-        ProfileCollector profileCollector =
-                transactionCommonService.getMergedProfile(agentRollupId, query, request.auxiliary(),
-                        request.include(), request.exclude(), request.truncateBranchPercentage());
-        MutableProfile profile = profileCollector.getProfile();
-        if (profile.isEmpty() && fallBackToLargestAggregates(query)) {
-            // fall back to largest aggregates in case expiration settings have recently changed
-            query = withLargestRollupLevel(query);
-            profileCollector = transactionCommonService.getMergedProfile(agentRollupId, query,
-                    request.auxiliary(), request.include(), request.exclude(),
-                    request.truncateBranchPercentage());
-            profile = profileCollector.getProfile();
-            if (ignoreFallBackData(query, profileCollector.getLastCaptureTime())) {
-                // this is probably data from before the requested time period
-                profile = new MutableProfile();
-            }
-        }
-        boolean hasUnfilteredMainThreadProfile;
-        boolean hasUnfilteredAuxThreadProfile;
-        if (request.auxiliary()) {
-            hasUnfilteredMainThreadProfile =
-                    transactionCommonService.hasMainThreadProfile(agentRollupId, query);
-            hasUnfilteredAuxThreadProfile = profile.getUnfilteredSampleCount() > 0;
-        } else {
-            if (profile.getUnfilteredSampleCount() == 0) {
-                hasUnfilteredMainThreadProfile = false;
-                // return and display aux profile instead
+        QueryPlanner.Plan plan = queryPlanner.newPlan("transaction/profile");
+        try {
+            // whether the other (main vs aux) thread profile exists does not depend on the
+            // requested profile, so it is read concurrently, and only re-read in the (rare) fall
+            // back case below
+            final AggregateQuery initialQuery = query;
+            QueryPlanner.Read<Boolean> hasOtherThreadProfile =
+                    plan.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            if (request.auxiliary()) {
+                                return transactionCommonService.hasMainThreadProfile(
+                                        agentRollupId, initialQuery);
+                            } else {
+                                return transactionCommonService.hasAuxThreadProfile(
+                                        agentRollupId, initialQuery);
+                            }
+                        }
+                    });
+            ProfileCollector profileCollector = transactionCommonService.getMergedProfile(
+                    agentRollupId, query, request.auxiliary(), request.include(),
+                    request.exclude(), request.truncateBranchPercentage());
+            MutableProfile profile = profileCollector.getProfile();
+            if (profile.isEmpty() && fallBackToLargestAggregates(query)) {
+                // fall back to largest aggregates in case expiration settings have recently
+                // changed
+                query = withLargestRollupLevel(query);
                 profileCollector = transactionCommonService.getMergedProfile(agentRollupId, query,
-                        true, request.include(), request.exclude(),
+                        request.auxiliary(), request.include(), request.exclude(),
                         request.truncateBranchPercentage());
                 profile = profileCollector.getProfile();
-                if (profile.isEmpty() && fallBackToLargestAggregates(query)) {
-                    // fall back to largest aggregates in case expiration settings have recently
-                    // changed
-                    query = withLargestRollupLevel(query);
+                if (ignoreFallBackData(query, profileCollector.getLastCaptureTime())) {
+                    // this is probably data from before the requested time period
+                    profile = new MutableProfile();
+                }
+            }
+            boolean hasUnfilteredMainThreadProfile;
+            boolean hasUnfilteredAuxThreadProfile;
+            if (request.auxiliary()) {
+                if (query == initialQuery) {
+                    // showing the main thread profile toggle is harmless if the read times out
+                    hasUnfilteredMainThreadProfile = hasOtherThreadProfile.get(true);
+                } else {
+                    hasOtherThreadProfile.cancel();
+                    hasUnfilteredMainThreadProfile =
+                            transactionCommonService.hasMainThreadProfile(agentRollupId, query);
+                }
+                hasUnfilteredAuxThreadProfile = profile.getUnfilteredSampleCount() > 0;
+            } else {
+                if (profile.getUnfilteredSampleCount() == 0) {
+                    hasOtherThreadProfile.cancel();
+                    hasUnfilteredMainThreadProfile = false;
+                    // return and display aux profile instead
                     profileCollector = transactionCommonService.getMergedProfile(agentRollupId,
-                            query, request.auxiliary(), request.include(), request.exclude(),
+                            query, true, request.include(), request.exclude(),
                             request.truncateBranchPercentage());
                     profile = profileCollector.getProfile();
-                    if (ignoreFallBackData(query, profileCollector.getLastCaptureTime())) {
-                        // this is probably data from before the requested time period
-                        profile = new MutableProfile();
+                    if (profile.isEmpty() && fallBackToLargestAggregates(query)) {
+                        // fall back to largest aggregates in case expiration settings have
+                        // recently changed
+                        query = withLargestRollupLevel(query);
+                        profileCollector = transactionCommonService.getMergedProfile(
+                                agentRollupId, query, request.auxiliary(), request.include(),
+                                request.exclude(), request.truncateBranchPercentage());
+                        profile = profileCollector.getProfile();
+                        if (ignoreFallBackData(query, profileCollector.getLastCaptureTime())) {
+                            // this is probably data from before the requested time period
+                            profile = new MutableProfile();
+                        }
+                    }
+                    hasUnfilteredAuxThreadProfile = profile.getUnfilteredSampleCount() > 0;
+                } else {
+                    hasUnfilteredMainThreadProfile = true;
+                    if (query == initialQuery) {
+                        // showing the aux thread profile toggle is harmless if the read times out
+                        hasUnfilteredAuxThreadProfile = hasOtherThreadProfile.get(true);
+                    } else {
+                        hasOtherThreadProfile.cancel();
+                        hasUnfilteredAuxThreadProfile =
+                                transactionCommonService.hasAuxThreadProfile(agentRollupId, query);
                     }
                 }
-                hasUnfilteredAuxThreadProfile = profile.getUnfilteredSampleCount() > 0;
-            } else {
-                hasUnfilteredMainThreadProfile = true;
-                hasUnfilteredAuxThreadProfile =
-                        transactionCommonService.hasAuxThreadProfile(agentRollupId, query);
             }
+            boolean overwritten = profile.getUnfilteredSampleCount() == 0
+                    && isProfileOverwritten(request, agentRollupId, query);
+            return toProfileJson(hasUnfilteredMainThreadProfile, hasUnfilteredAuxThreadProfile,
+                    overwritten, profile);
+        } finally {
+            plan.close();
         }
+    }
+
+    private static String toProfileJson(boolean hasUnfilteredMainThreadProfile,
+            boolean hasUnfilteredAuxThreadProfile, boolean overwritten, MutableProfile profile)
+            throws IOException {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
             jg.writeStartObject();
             jg.writeBooleanField("hasUnfilteredMainThreadProfile", hasUnfilteredMainThreadProfile);
             jg.writeBooleanField("hasUnfilteredAuxThreadProfile", hasUnfilteredAuxThreadProfile);
-            if (profile.getUnfilteredSampleCount() == 0
-                    && isProfileOverwritten(request, agentRollupId, query)) {
+            if (overwritten) {
                 jg.writeBooleanField("overwritten", true);
             }
             jg.writeFieldName("profile");
@@ -416,9 +465,9 @@ class TransactionJsonService {
     }
 
     @GET(path = "/backend/transaction/summaries", permission = "agent:transaction:overview")
-    String getSummaries(@BindAgentRollupId String agentRollupId,
-            @BindRequest TransactionSummaryRequest request, @BindAutoRefresh boolean autoRefresh)
-            throws Exception {
+    String getSummaries(final @BindAgentRollupId String agentRollupId,
+            final @BindRequest TransactionSummaryRequest request,
+            final @BindAutoRefresh boolean autoRefresh) throws Exception {
         SummaryQuery query = ImmutableSummaryQuery.builder()
                 .transactionType(request.transactionType())
                 .from(request.from())
@@ -426,26 +475,54 @@ class TransactionJsonService {
                 .rollupLevel(rollupLevelService.getRollupLevelForView(request.from(), request.to(),
                         DataKind.GENERAL))
                 .build();
-        OverallSummaryCollector overallSummaryCollector =
-                transactionCommonService.readOverallSummary(agentRollupId, query, autoRefresh);
-        OverallSummary overallSummary = overallSummaryCollector.getOverallSummary();
-        if (overallSummary.transactionCount() == 0 && fallBackToLargestAggregate(query)) {
-            // fall back to largest aggregates in case expiration settings have recently changed
-            query = withLargestRollupLevel(query);
-            overallSummaryCollector =
+        QueryPlanner.Plan plan = queryPlanner.newPlan("transaction/summaries");
+        try {
+            // the transaction name summaries do not depend on the overall summary, so they are
+            // read concurrently, and only re-read in the (rare) fall back case below
+            final SummaryQuery initialQuery = query;
+            QueryPlanner.Read<Result<TransactionNameSummary>> transactionNameSummaries =
+                    plan.submit(new Callable<Result<TransactionNameSummary>>() {
+                        @Override
+                        public Result<TransactionNameSummary> call() throws Exception {
+                            return transactionCommonService.readTransactionNameSummaries(
+                                    agentRollupId, initialQuery, request.sortOrder(),
+                                    request.limit(), autoRefresh);
+                        }
+                    });
+            OverallSummaryCollector overallSummaryCollector =
                     transactionCommonService.readOverallSummary(agentRollupId, query, autoRefresh);
-            overallSummary = overallSummaryCollector.getOverallSummary();
-            if (ignoreFallBackData(query, overallSummaryCollector.getLastCaptureTime())) {
-                // this is probably data from before the requested time period
-                overallSummary = ImmutableOverallSummary.builder()
-                        .totalDurationNanos(0)
-                        .transactionCount(0)
-                        .build();
+            OverallSummary overallSummary = overallSummaryCollector.getOverallSummary();
+            if (overallSummary.transactionCount() == 0 && fallBackToLargestAggregate(query)) {
+                // fall back to largest aggregates in case expiration settings have recently
+                // changed
+                query = withLargestRollupLevel(query);
+                overallSummaryCollector = transactionCommonService
+                        .readOverallSummary(agentRollupId, query, autoRefresh);
+                overallSummary = overallSummaryCollector.getOverallSummary();
+                if (ignoreFallBackData(query, overallSummaryCollector.getLastCaptureTime())) {
+                    // this is probably data from before the requested time period
+                    overallSummary = ImmutableOverallSummary.builder()
+                            .totalDurationNanos(0)
+                            .transactionCount(0)
+                            .build();
+                }
             }
+            Result<TransactionNameSummary> queryResult;
+            if (query == initialQuery) {
+                queryResult = transactionNameSummaries.get();
+            } else {
+                transactionNameSummaries.cancel();
+                queryResult = transactionCommonService.readTransactionNameSummaries(
+                        agentRollupId, query, request.sortOrder(), request.limit(), autoRefresh);
+            }
+            return toSummariesJson(overallSummary, queryResult);
+        } finally {
+            plan.close();
         }
-        Result<TransactionNameSummary> queryResult = transactionCommonService
-                .readTransactionNameSummaries(agentRollupId, query, request.sortOrder(),
-                        request.limit(), autoRefresh);
+    }
+
+    private static String toSummariesJson(OverallSummary overallSummary,
+            Result<TransactionNameSummary> queryResult) throws IOException {
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         try {
@@ -588,6 +665,8 @@ class TransactionJsonService {
         long transactionCount = 0;
         double totalDurationNanos = 0;
         LazyHistogram mergedHistogram = new LazyHistogram();
+        // reused across aggregates to avoid allocating a new histogram for each one
+        LazyHistogram durationNanosHistogram = new LazyHistogram();
 
         PercentileAggregate priorPercentileAggregate = null;
         for (PercentileAggregate percentileAggregate : percentileAggregates) {
@@ -600,8 +679,8 @@ class TransactionJsonService {
                 dataSeriesHelper.addGapIfNeeded(priorPercentileAggregate.captureTime(), captureTime,
                         dataSeriesList, null);
             }
-            LazyHistogram durationNanosHistogram =
-                    new LazyHistogram(percentileAggregate.durationNanosHistogram());
+            durationNanosHistogram.reset();
+            durationNanosHistogram.merge(percentileAggregate.durationNanosHistogram());
             for (int i = 0; i < percentiles.size(); i++) {
                 DataSeries dataSeries = dataSeriesList.get(i);
                 double percentile = percentiles.get(i);
@@ -628,6 +707,8 @@ class TransactionJsonService {
                     Utils.getPercentileWithSuffix(percentile) + " percentile",
                     mergedHistogram.getValueAtPercentile(percentile)));
         }
+        durationNanosHistogram.reset();
+        mergedHistogram.reset();
 
         return ImmutablePercentileData.builder()
                 .dataSeriesList(dataSeriesList)
@@ -65,6 +65,8 @@ public class UiModule {
     // CommonHandler is non-null when using servlet container (applies to central only)
     private final @Nullable CommonHandler commonHandler;
 
+    private final QueryPlanner queryPlanner;
+
     @Builder.Factory
     public static UiModule createUiModule(
             boolean central,
@@ -103,10 +105,12 @@ public class UiModule {
             int numWorkerThreads,
             String version) throws Exception {
 
+        QueryPlanner queryPlanner =
+                new QueryPlanner(central, ticker == null ? Ticker.systemTicker() : ticker);
         TransactionCommonService transactionCommonService = new TransactionCommonService(
                 aggregateRepository, liveAggregateRepository, configRepository, clock);
         TraceCommonService traceCommonService = new TraceCommonService(traceRepository,
-                liveTraceRepository, agentDisplayRepository);
+                liveTraceRepository, agentDisplayRepository, queryPlanner);
         ErrorCommonService errorCommonService =
                 new ErrorCommonService(aggregateRepository, liveAggregateRepository);
         MailService mailService = new MailService();
@@ -121,8 +125,8 @@ public class UiModule {
 
         List<Object> jsonServices = Lists.newArrayList();
         jsonServices.add(new LayoutJsonService(activeAgentRepository, layoutService));
-        jsonServices.add(new TransactionJsonService(transactionCommonService, aggregateRepository,
-                configRepository, rollupLevelService, clock));
+        jsonServices.add(new TransactionJsonService(transactionCommonService, queryPlanner,
+                aggregateRepository, configRepository, rollupLevelService, clock));
         jsonServices.add(new TracePointJsonService(traceRepository, liveTraceRepository,
                 configRepository, ticker, clock));
         jsonServices.add(new TraceJsonService(traceCommonService));
@@ -148,6 +152,7 @@ public class UiModule {
         jsonServices.add(new InstrumentationConfigJsonService(central, configRepository,
                 liveWeavingService, liveJvmService));
         jsonServices.add(adminJsonService);
+        jsonServices.add(new QueryPlannerJsonService(queryPlanner));
 
         if (central) {
             checkNotNull(syntheticResultRepository);
@@ -199,7 +204,7 @@ public class UiModule {
                 httpSessionManager, jsonServices, clock);
 
         if (servlet) {
-            return new UiModule(commonHandler);
+            return new UiModule(commonHandler, queryPlanner);
         } else {
             HttpServer httpServer;
             int initialPort;
@@ -228,18 +233,20 @@ public class UiModule {
             }
             adminJsonService.setHttpServer(httpServer);
             httpServer.bindEventually(initialPort);
-            return new UiModule(httpServer);
+            return new UiModule(httpServer, queryPlanner);
         }
     }
 
-    private UiModule(HttpServer httpServer) {
+    private UiModule(HttpServer httpServer, QueryPlanner queryPlanner) {
         this.httpServer = httpServer;
         commonHandler = null;
+        this.queryPlanner = queryPlanner;
     }
 
-    private UiModule(CommonHandler commonHandler) {
+    private UiModule(CommonHandler commonHandler, QueryPlanner queryPlanner) {
         this.commonHandler = commonHandler;
         httpServer = null;
+        this.queryPlanner = queryPlanner;
     }
 
     public CommonHandler getCommonHandler() {
@@ -252,5 +259,6 @@ public class UiModule {
         if (httpServer != null) {
             httpServer.close();
         }
+        queryPlanner.close();
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryPlannerTest {
+
+    private QueryPlanner queryPlanner;
+
+    @Before
+    public void beforeEachTest() {
+        queryPlanner = new QueryPlanner(4, 2, 100, Ticker.systemTicker());
+    }
+
+    @After
+    public void afterEachTest() {
+        queryPlanner.close();
+    }
+
+    @Test
+    public void shouldRunReadsConcurrently() throws Exception {
+        // given
+        // both reads must be running at the same time in order to complete
+        CountDownLatch latch = new CountDownLatch(2);
+        QueryPlanner.Plan plan = queryPlanner.newPlan("test");
+        // when
+        QueryPlanner.Read<Boolean> read1 = plan.submit(new AwaitLatch(latch));
+        QueryPlanner.Read<Boolean> read2 = plan.submit(new AwaitLatch(latch));
+        // then
+        assertThat(read1.get()).isTrue();
+        assertThat(read2.get()).isTrue();
+        plan.close();
+        assertThat(queryPlanner.getPageStats().get("test").concurrentReadCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldRunInlineWhenRequestLimitReached() throws Exception {
+        // given
+        // the first two reads block until the third read runs
+        final CountDownLatch latch = new CountDownLatch(3);
+        QueryPlanner.Plan plan = queryPlanner.newPlan("test");
+        QueryPlanner.Read<Boolean> read1 = plan.submit(new AwaitLatch(latch));
+        QueryPlanner.Read<Boolean> read2 = plan.submit(new AwaitLatch(latch));
+        // when
+        final Thread requestThread = Thread.currentThread();
+        QueryPlanner.Read<Boolean> read3 = plan.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                latch.countDown();
+                return Thread.currentThread() == requestThread;
+            }
+        });
+        // then
+        assertThat(read3.get()).isTrue();
+        assertThat(read1.get()).isTrue();
+        assertThat(read2.get()).isTrue();
+        plan.close();
+        assertThat(queryPlanner.getPageStats().get("test").readCount()).isEqualTo(3);
+        assertThat(queryPlanner.getPageStats().get("test").concurrentReadCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldReturnPartialResultAfterTimeout() throws Exception {
+        // given
+        CountDownLatch latch = new CountDownLatch(2);
+        QueryPlanner.Plan plan = queryPlanner.newPlan("test");
+        // when
+        QueryPlanner.Read<Boolean> read = plan.submit(new AwaitLatch(latch));
+        // then
+        assertThat(read.get(false)).isFalse();
+        assertThat(plan.isPartial()).isTrue();
+        plan.close();
+        assertThat(queryPlanner.getPageStats().get("test").partialCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotInterruptReadAfterTimeout() throws Exception {
+        // given
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch notInterrupted = new CountDownLatch(1);
+        QueryPlanner.Plan plan = queryPlanner.newPlan("test");
+        QueryPlanner.Read<Boolean> read = plan.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                release.await(10, SECONDS);
+                if (!Thread.currentThread().isInterrupted()) {
+                    notInterrupted.countDown();
+                }
+                return true;
+            }
+        });
+        // when
+        assertThat(read.get(false)).isFalse();
+        release.countDown();
+        // then
+        assertThat(notInterrupted.await(10, SECONDS)).isTrue();
+        plan.close();
+    }
+
+    @Test
+    public void shouldRunInlineWithoutReadPool() throws Exception {
+        // given
+        QueryPlanner inlineQueryPlanner = new QueryPlanner(0, 2, 100, Ticker.systemTicker());
+        QueryPlanner.Plan plan = inlineQueryPlanner.newPlan("test");
+        final Thread requestThread = Thread.currentThread();
+        // when
+        QueryPlanner.Read<Boolean> read = plan.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return Thread.currentThread() == requestThread;
+            }
+        });
+        // then
+        assertThat(read.get()).isTrue();
+        plan.close();
+        assertThat(inlineQueryPlanner.getPageStats().get("test").concurrentReadCount())
+                .isEqualTo(0);
+        inlineQueryPlanner.close();
+    }
+
+    private static class AwaitLatch implements Callable<Boolean> {
+
+        private final CountDownLatch latch;
+
+        private AwaitLatch(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            latch.countDown();
+            return latch.await(10, SECONDS);
+        }
+    }
+}